@@ -1,6 +1,7 @@
 package com.shinonometn.re.ssim.application.configuration;
 
 import com.shinonometn.re.ssim.service.caterpillar.SpiderMonitor;
+import com.shinonometn.re.ssim.service.caterpillar.kingo.KingoSessionPool;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
@@ -16,6 +17,11 @@ public class CaterpillarConfigurations {
         return new SpiderMonitor();
     }
 
+    @Bean
+    public KingoSessionPool kingoSessionPool() {
+        return new KingoSessionPool();
+    }
+
     @Bean(name = "caterpillarProperties")
     public Properties caterpillarProperties() throws IOException {
         Properties properties = new Properties();
@@ -0,0 +1,35 @@
+package com.shinonometn.re.ssim.application.configuration;
+
+import com.shinonometn.re.ssim.application.controller.course.TermInfoAPI;
+import com.shinonometn.re.ssim.service.bus.Listener;
+import com.shinonometn.re.ssim.service.bus.MessageBus;
+import com.shinonometn.re.ssim.service.data.ImportTask;
+import com.shinonometn.re.ssim.service.refresh.RefreshPipelineService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Fill term caches after an automatic refresh published a new version,
+ * so the first visitors do not wait for the queries
+ */
+@Configuration
+public class TermCacheWarmingConfiguration {
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    public TermCacheWarmingConfiguration(MessageBus messageBus, TermInfoAPI termInfoAPI) {
+        messageBus.register(new Listener(RefreshPipelineService.TOPIC_PUBLISHED, message -> {
+            String termName = ((ImportTask) message.getPayload()).getTermName();
+            if (termName == null) return;
+
+            // Calls go through the cache proxy
+            termInfoAPI.listTermCourse(termName);
+            termInfoAPI.listTermTeachers(termName);
+            termInfoAPI.listTermClasses(termName);
+            termInfoAPI.listTermClassrooms(termName);
+
+            logger.info("Caches of term {} warmed.", termName);
+        }));
+    }
+}
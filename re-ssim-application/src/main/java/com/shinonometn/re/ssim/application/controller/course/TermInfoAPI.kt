@@ -1,16 +1,16 @@
 package com.shinonometn.re.ssim.application.controller.course
 
+import com.shinonometn.re.ssim.application.controller.froms.SchoolDateConvertForm
+import com.shinonometn.re.ssim.commons.BusinessException
 import com.shinonometn.re.ssim.commons.CacheKeys
 import com.shinonometn.re.ssim.service.courses.CourseInfoService
 import com.shinonometn.re.ssim.service.terms.SchoolTermInfoService
 import com.shinonometn.re.ssim.service.courses.plugin.CourseTermListStore
+import com.shinonometn.re.ssim.service.calendar.SchoolCalendarService
 import com.shinonometn.re.ssim.service.calendar.SchoolCalendarStore
 import com.shinonometn.re.ssim.service.courses.plugin.structure.TermMeta
 import org.springframework.cache.annotation.Cacheable
-import org.springframework.web.bind.annotation.GetMapping
-import org.springframework.web.bind.annotation.PathVariable
-import org.springframework.web.bind.annotation.RequestMapping
-import org.springframework.web.bind.annotation.RestController
+import org.springframework.web.bind.annotation.*
 import java.util.*
 
 @RestController
@@ -18,7 +18,12 @@ import java.util.*
 open class TermInfoAPI(private val courseInfoService: CourseInfoService,
                        private val termInfoService: SchoolTermInfoService,
                        private val courseTermListStore: CourseTermListStore,
-                       private val schoolCalendarStore: SchoolCalendarStore) {
+                       private val schoolCalendarStore: SchoolCalendarStore,
+                       private val schoolCalendarService: SchoolCalendarService) {
+
+    companion object {
+        private const val MAX_CONVERT_RANGES = 100
+    }
 
     /**
      *
@@ -84,4 +89,21 @@ open class TermInfoAPI(private val courseInfoService: CourseInfoService,
     open fun currentTerm(): Any? {
         return schoolCalendarStore.get()
     }
+
+    /**
+     *
+     * Convert dates and every day of date ranges to school dates
+     * null for those out of any term
+     *
+     * */
+    @PostMapping("/calendar/convert")
+    open fun convertDates(@RequestBody form: SchoolDateConvertForm): Any {
+        val ranges = form.ranges ?: emptyList()
+        if (ranges.size > MAX_CONVERT_RANGES) throw BusinessException("too_many_ranges")
+
+        return mapOf(
+                "dates" to schoolCalendarService.convert(form.dates ?: emptyList()),
+                "ranges" to ranges.map { schoolCalendarService.convert(it.from, it.to) }
+        )
+    }
 }
@@ -0,0 +1,13 @@
+package com.shinonometn.re.ssim.application.controller.froms
+
+import java.util.*
+
+class SchoolDateConvertForm {
+    var dates: List<Date?>? = null
+    var ranges: List<DateRange>? = null
+
+    class DateRange {
+        var from: Date? = null
+        var to: Date? = null
+    }
+}
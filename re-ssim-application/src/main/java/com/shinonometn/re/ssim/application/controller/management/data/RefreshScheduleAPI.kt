@@ -0,0 +1,44 @@
+package com.shinonometn.re.ssim.application.controller.management.data
+
+import com.shinonometn.re.ssim.application.configuration.preparation.endpoint.scanning.ApiDescription
+import com.shinonometn.re.ssim.service.refresh.RefreshPipelineService
+import com.shinonometn.re.ssim.service.refresh.RefreshSchedule
+import com.shiononometn.commons.web.RexModel
+import org.apache.shiro.authz.annotation.RequiresPermissions
+import org.springframework.data.domain.Page
+import org.springframework.data.domain.Pageable
+import org.springframework.data.web.PageableDefault
+import org.springframework.web.bind.annotation.*
+
+@RestController
+@RequestMapping("/refresh")
+class RefreshScheduleAPI(private val refreshPipelineService: RefreshPipelineService) {
+
+    @GetMapping
+    @ApiDescription(title = "List refresh schedules", description = "List all automatic capture and import schedules")
+    @RequiresPermissions("refresh:read")
+    fun list(@PageableDefault pageable: Pageable): Page<RefreshSchedule> =
+            refreshPipelineService.list(pageable)
+
+    @PostMapping
+    @ApiDescription(title = "Save a refresh schedule", description = "Create or update a schedule, takes effect immediately.")
+    @RequiresPermissions("refresh:write")
+    fun save(@RequestBody refreshSchedule: RefreshSchedule): RefreshSchedule =
+            refreshPipelineService.save(refreshSchedule)
+
+    @PostMapping(value = ["/{id}"], params = ["run"])
+    @ApiDescription(title = "Run a refresh schedule", description = "Capture and import the term now.")
+    @RequiresPermissions("refresh:run")
+    fun run(@PathVariable("id") id: String): RexModel<Any> {
+        refreshPipelineService.runNow(id)
+        return RexModel.success()
+    }
+
+    @DeleteMapping("/{id}")
+    @ApiDescription(title = "Delete a refresh schedule", description = "Delete a schedule, a running refresh is not stopped.")
+    @RequiresPermissions("refresh:write")
+    fun delete(@PathVariable("id") id: String): RexModel<Any> {
+        refreshPipelineService.delete(id)
+        return RexModel.success()
+    }
+}
@@ -0,0 +1,58 @@
+package com.shinonometn.re.ssim.benchmark;
+
+import com.shinonometn.re.ssim.service.caterpillar.kingo.KingoCourseTableParser;
+import com.shinonometn.re.ssim.service.caterpillar.kingo.KingoRawCourseParser;
+import com.shinonometn.re.ssim.service.caterpillar.kingo.pojo.Course;
+import com.shinonometn.re.ssim.service.caterpillar.kingo.pojo.TimePoint;
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compare the course detail parsers on the sample course page
+ * <p>
+ * Documents are parsed by jsoup once in setup, only the table walking is measured.
+ * Run with {@code -prof gc} to compare allocation rates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KingoCourseParserBenchmark {
+
+    private Document document;
+
+    @Setup
+    public void setup() throws IOException {
+        try (InputStream inputStream = KingoCourseParserBenchmark.class.getResourceAsStream("/sample_pages/KBFB_LessonSel_rpt.aspx")) {
+            document = Jsoup.parse(inputStream, "utf-8", "http://jwgl.lnc.edu.cn/ZNPK/KBFB_LessonSel_rpt.aspx");
+        }
+    }
+
+    @Benchmark
+    public Course rawParser() {
+        return KingoRawCourseParser.parseFromHTML(document);
+    }
+
+    @Benchmark
+    public Course tableParser() {
+        return KingoCourseTableParser.parseFromHTML(document);
+    }
+
+    @Benchmark
+    public List<TimePoint> rawExpandTimePoints() {
+        return KingoRawCourseParser.expandKingoWeekdays("1-8,10-17", "三[3-4节]单");
+    }
+
+    @Benchmark
+    public List<TimePoint> tableExpandTimePoints() {
+        return KingoCourseTableParser.expandTimePoints("1-8,10-17", "三[3-4节]单");
+    }
+}
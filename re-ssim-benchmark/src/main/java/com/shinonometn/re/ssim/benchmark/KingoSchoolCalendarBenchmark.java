@@ -0,0 +1,63 @@
+package com.shinonometn.re.ssim.benchmark;
+
+import com.shinonometn.re.ssim.service.caterpillar.common.SchoolDate;
+import com.shinonometn.re.ssim.service.caterpillar.kingo.KingoSchoolCalendar;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compare school date lookup by the day table with the calculation on every call
+ * <p>
+ * Date times are spread over the term and a few days around it, so lookups
+ * out of the term are measured too. Run with {@code -prof gc} to compare allocation rates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KingoSchoolCalendarBenchmark {
+
+    private final static int DATE_TIME_COUNT = 1024;
+
+    private KingoSchoolCalendar schoolCalendar;
+    private LocalDateTime[] dateTimes;
+    private int next;
+
+    @Setup
+    public void setup() {
+        schoolCalendar = new KingoSchoolCalendar();
+        schoolCalendar.setName("2017-2018学年第一学期");
+        schoolCalendar.setStartDate(LocalDate.of(2017, 9, 7).atStartOfDay());
+        schoolCalendar.setEndDate(LocalDate.of(2018, 1, 5).atTime(LocalTime.MAX));
+
+        Random random = new Random(42);
+        LocalDateTime from = LocalDate.of(2017, 8, 28).atStartOfDay();
+        dateTimes = new LocalDateTime[DATE_TIME_COUNT];
+        for (int i = 0; i < dateTimes.length; i++) dateTimes[i] = from.plusMinutes(random.nextInt(140 * 24 * 60));
+
+        // Build the table before measuring
+        schoolCalendar.getFromDateTime(dateTimes[0]);
+    }
+
+    @Benchmark
+    public SchoolDate calculated() {
+        return schoolCalendar.calculateFromDateTime(nextDateTime());
+    }
+
+    @Benchmark
+    public SchoolDate table() {
+        return schoolCalendar.getFromDateTime(nextDateTime());
+    }
+
+    private LocalDateTime nextDateTime() {
+        next = (next + 1) & (DATE_TIME_COUNT - 1);
+        return dateTimes[next];
+    }
+}
@@ -1,9 +1,12 @@
 package com.shinonometn.re.ssim.service.caterpillar
 
+import com.shinonometn.re.ssim.service.caterpillar.downloader.AdaptiveRateController
+import com.shinonometn.re.ssim.service.caterpillar.downloader.PooledHttpDownloader
 import org.slf4j.LoggerFactory
 import us.codecraft.webmagic.Spider
 import us.codecraft.webmagic.SpiderListener
 import java.util.*
+import java.util.concurrent.ConcurrentHashMap
 import java.util.stream.Stream
 
 /**
@@ -12,6 +15,9 @@ import java.util.stream.Stream
  *
  * Spider monitor is used for registering spiders to a list for managing.
  *
+ * Status are read by request threads while spiders register, the registry is a
+ * concurrent map so readers never wait for registering.
+ *
  */
 open class SpiderMonitor {
 
@@ -19,39 +25,60 @@ open class SpiderMonitor {
 
     //    private AtomicBoolean started = new AtomicBoolean(false);
 
-    private val spiderStatus = HashMap<String, SpiderStatus>()
+    private val spiderStatus = ConcurrentHashMap<String, SpiderStatus>()
+
+    // Listeners added to shared retry policies, removed with the status
+    private val detachers = ConcurrentHashMap<String, () -> Unit>()
 
     fun getSpiderStatus(): Map<String, SpiderStatus> = spiderStatus
 
     fun removeSpiderStatusMonitor(id: String) {
         spiderStatus.remove(id)
+        detachers.remove(id)?.invoke()
     }
 
     @Synchronized
     fun register(vararg spiders: Spider): SpiderMonitor {
-        Stream.of(*spiders).forEach { spider ->
-            val spiderMonitorListener = SpiderMonitorListener()
-
-            /**
-             *
-             * If spider already has listeners, get the list and add the monitor listener,
-             * else, create a new array list and put the listener in.
-             *
-             */
-            if (spider.spiderListeners == null) {
-                val spiderMonitorListeners = ArrayList<SpiderListener>()
-                spiderMonitorListeners.add(spiderMonitorListener)
-                spider.spiderListeners = spiderMonitorListeners
-            } else {
-                spider.spiderListeners.add(spiderMonitorListener)
-            }
-
-            val spiderStatus = SpiderStatusImpl(spider, spiderMonitorListener)
-            this.spiderStatus[spider.uuid] = spiderStatus
-
-            logger.info("Task {} registered to monitor.", spider.uuid)
+        Stream.of(*spiders).forEach { register(it, null) }
+        return this
+    }
+
+    /**
+     * Register a spider, and report decisions of its rate controller and
+     * downloads, retries and circuit changes of its downloader if given
+     */
+    @Synchronized
+    @JvmOverloads
+    fun register(spider: Spider, rateController: AdaptiveRateController?, downloader: PooledHttpDownloader? = null): SpiderMonitor {
+        val spiderMonitorListener = SpiderMonitorListener()
+        detachers.remove(spider.uuid)?.invoke()
+
+        /**
+         *
+         * If spider already has listeners, get the list and add the monitor listener,
+         * else, create a new array list and put the listener in.
+         *
+         */
+        if (spider.spiderListeners == null) {
+            val spiderMonitorListeners = ArrayList<SpiderListener>()
+            spiderMonitorListeners.add(spiderMonitorListener)
+            spider.spiderListeners = spiderMonitorListeners
+        } else {
+            spider.spiderListeners.add(spiderMonitorListener)
+        }
+
+        if (downloader != null) {
+            downloader.addListener(spiderMonitorListener)
+            val retryPolicy = downloader.retryPolicy
+            retryPolicy?.addListener(spiderMonitorListener)
+            detachers[spider.uuid] = { retryPolicy?.removeListener(spiderMonitorListener) }
         }
 
+        val spiderStatus = SpiderStatusImpl(spider, spiderMonitorListener, rateController)
+        this.spiderStatus[spider.uuid] = spiderStatus
+
+        logger.info("Task {} registered to monitor.", spider.uuid)
+
         return this
     }
 }
@@ -1,10 +1,15 @@
 package com.shinonometn.re.ssim.service.caterpillar
 
+import com.shinonometn.re.ssim.service.caterpillar.downloader.AdaptiveRateController
+import com.shinonometn.re.ssim.service.caterpillar.downloader.CircuitBreaker
+import com.shinonometn.re.ssim.service.caterpillar.downloader.DownloadEventListener
+import com.shinonometn.re.ssim.service.caterpillar.monitor.ErrorLog
+import com.shinonometn.re.ssim.service.caterpillar.monitor.LatencyHistogram
+import com.shinonometn.re.ssim.service.caterpillar.monitor.RateMeter
 import us.codecraft.webmagic.Request
 import us.codecraft.webmagic.SpiderListener
 
-import java.util.ArrayList
-import java.util.Collections
+import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.atomic.AtomicInteger
 
 /**
@@ -16,24 +21,111 @@ import java.util.concurrent.atomic.AtomicInteger
  * It counting and storing base information about tasks of the spider,
  * such as success page count, error page count and so on.
  *
+ * If the spider downloads with an PooledHttpDownloader, downloads, retries,
+ * hedges, give-ups and circuit changes are counted here too.
+ *
+ * Everything is updated without locks, and memory is bounded by
+ * [recentErrorCapacity], so status could be polled while a long capture runs.
+ *
  */
-class SpiderMonitorListener : SpiderListener {
+class SpiderMonitorListener(recentErrorCapacity: Int = 100) : SpiderListener, DownloadEventListener {
     val successCount = AtomicInteger(0)
 
     val errorCount = AtomicInteger(0)
 
-    private val errorUrls = Collections.synchronizedList(ArrayList<String>())
+    val retryCount = AtomicInteger(0)
+
+    val gaveUpCount = AtomicInteger(0)
+
+    val hedgeCount = AtomicInteger(0)
+
+    val hedgeWonCount = AtomicInteger(0)
+
+    val pageMeter = RateMeter()
+
+    val errorMeter = RateMeter()
+
+    val byteMeter = RateMeter()
+
+    val hedgeMeter = RateMeter()
+
+    val latencyHistogram = LatencyHistogram()
+
+    /*
+    * Failed attempts (retried or not) and process errors
+    */
+    val errorLog = ErrorLog(recentErrorCapacity)
+
+    private val circuitStates = ConcurrentHashMap<String, CircuitBreaker.State>()
+
+    /*
+    * Domain of the latest response, rate controllers are keyed by it
+    */
+    @Volatile
+    var targetDomain: String? = null
+        private set
 
     override fun onSuccess(request: Request) {
         successCount.incrementAndGet()
+        pageMeter.mark()
     }
 
     override fun onError(request: Request) {
-        errorUrls.add(request.url)
         errorCount.incrementAndGet()
+        recordError(request, ERROR_PROCESS)
+    }
+
+    /**
+     * Urls of recent errors, latest first
+     */
+    fun getErrorUrls(): List<String> = errorLog.recent.map { it.url }
+
+    override fun onDownloaded(request: Request, statusCode: Int, bytes: Long, latencyMillis: Long) {
+        targetDomain = AdaptiveRateController.domainOf(request.url)
+        byteMeter.mark(bytes)
+        latencyHistogram.record(latencyMillis)
+    }
+
+    override fun onRetry(request: Request, attempt: Int, delayMillis: Long, reason: String) {
+        retryCount.incrementAndGet()
+        recordError(request, reason)
+    }
+
+    override fun onGiveUp(request: Request, reason: String) {
+        gaveUpCount.incrementAndGet()
+        recordError(request, reason)
+    }
+
+    override fun onHedge(request: Request, delayMillis: Long) {
+        hedgeCount.incrementAndGet()
+        hedgeMeter.mark()
+    }
+
+    override fun onHedgeWon(request: Request) {
+        hedgeWonCount.incrementAndGet()
+    }
+
+    override fun onCircuitStateChange(circuit: String, state: CircuitBreaker.State) {
+        circuitStates[circuit] = state
+    }
+
+    /**
+     * Errors by class, e.g. timeout, io_error, http_503, process_error
+     */
+    fun getFailureReasons(): Map<String, Long> = errorLog.counts
+
+    /**
+     * Circuits opened or half opened, the spider is paused on their endpoints
+     */
+    fun getOpenCircuits(): List<String> =
+            circuitStates.filterValues { it != CircuitBreaker.State.CLOSED }.keys.sorted()
+
+    private fun recordError(request: Request, errorClass: String) {
+        errorMeter.mark()
+        errorLog.record(request.url, errorClass)
     }
 
-    fun getErrorUrls(): List<String> {
-        return errorUrls
+    companion object {
+        const val ERROR_PROCESS = "process_error"
     }
 }
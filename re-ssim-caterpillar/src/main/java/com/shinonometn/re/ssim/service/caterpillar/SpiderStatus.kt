@@ -1,5 +1,6 @@
 package com.shinonometn.re.ssim.service.caterpillar
 
+import com.shinonometn.re.ssim.service.caterpillar.monitor.ErrorLog
 import java.util.Date
 
 interface SpiderStatus {
@@ -18,11 +19,78 @@ interface SpiderStatus {
 
     val errorPageCount: Int
 
+    /**
+     * Urls of recent errors, latest first, only the last ones are kept
+     */
     val errorPages: List<String>
 
+    val recentErrors: List<ErrorLog.Entry>
+
     val startTime: Date
 
-    val pagePerSecond: Int
+    /**
+     * Moving averages over about the last ten seconds
+     */
+    val pagePerSecond: Double
+
+    val errorPerSecond: Double
+
+    val bytePerSecond: Double
+
+    /**
+     * Response time of downloads, counts by bucket upper bound in milliseconds
+     */
+    val latencyHistogram: Map<String, Long>
+
+    val latencyP50Millis: Long
+
+    val latencyP99Millis: Long
+
+    /**
+     * Finished requests in percent of all known requests,
+     * -1 if the scheduler could not tell
+     */
+    val progress: Double
+
+    /**
+     * Pages per second of each node working on the spider's queue,
+     * empty if the queue is not shared
+     */
+    val nodePagePerSecond: Map<String, Double>
+
+    /**
+     * Retries sent by the retry policy, and errors by class
+     */
+    val retryCount: Int
+
+    val failureReasons: Map<String, Long>
+
+    /**
+     * Duplicates sent for slow requests, and the ones answered
+     * before their original request
+     */
+    val hedgeCount: Int
+
+    val hedgeWonCount: Int
+
+    val hedgePerSecond: Double
+
+    /**
+     * Endpoints the spider is paused on because their circuit is open
+     */
+    val openCircuits: List<String>
+
+    /**
+     * Current decisions of adaptive rate control,
+     * -1 if the spider is not rate controlled
+     */
+    val concurrencyLimit: Int
+
+    val requestIntervalMillis: Long
+
+    val latencyMillis: Long
+
+    val errorRate: Double
 
     fun start()
 
@@ -1,6 +1,10 @@
 package com.shinonometn.re.ssim.service.caterpillar
 
 import com.fasterxml.jackson.annotation.JsonIgnore
+import com.shinonometn.re.ssim.service.caterpillar.downloader.AdaptiveRateController
+import com.shinonometn.re.ssim.service.caterpillar.monitor.ErrorLog
+import com.shinonometn.re.ssim.service.caterpillar.scheduler.RedisLeaseScheduler
+import com.shinonometn.re.ssim.service.caterpillar.scheduler.TrackingScheduler
 import org.slf4j.Logger
 import org.slf4j.LoggerFactory
 import us.codecraft.webmagic.Spider
@@ -10,7 +14,8 @@ import java.util.Date
 
 class SpiderStatusImpl(@field:JsonIgnore
                        @get:JsonIgnore
-                       val spider: Spider, protected val monitorSpiderListener: SpiderMonitorListener) : SpiderStatus {
+                       val spider: Spider, protected val monitorSpiderListener: SpiderMonitorListener,
+                       private val rateController: AdaptiveRateController? = null) : SpiderStatus {
 
     protected var logger = LoggerFactory.getLogger(javaClass)
 
@@ -44,6 +49,9 @@ class SpiderStatusImpl(@field:JsonIgnore
     override val errorPages: List<String>
         get() = monitorSpiderListener.getErrorUrls()
 
+    override val recentErrors: List<ErrorLog.Entry>
+        get() = monitorSpiderListener.errorLog.recent
+
     override val status: String
         get() = spider.status.name
 
@@ -53,12 +61,76 @@ class SpiderStatusImpl(@field:JsonIgnore
     override val startTime: Date
         get() = spider.startTime
 
-    override val pagePerSecond: Int
+    override val pagePerSecond: Double
+        get() = monitorSpiderListener.pageMeter.rate
+
+    override val errorPerSecond: Double
+        get() = monitorSpiderListener.errorMeter.rate
+
+    override val bytePerSecond: Double
+        get() = monitorSpiderListener.byteMeter.rate
+
+    override val latencyHistogram: Map<String, Long>
+        get() = monitorSpiderListener.latencyHistogram.buckets
+
+    override val latencyP50Millis: Long
+        get() = monitorSpiderListener.latencyHistogram.percentile(0.5)
+
+    override val latencyP99Millis: Long
+        get() = monitorSpiderListener.latencyHistogram.percentile(0.99)
+
+    override val progress: Double
         get() {
-            val runSeconds = (System.currentTimeMillis() - startTime.time).toInt() / 1000
-            return if (runSeconds == 0) 0 else successPageCount / runSeconds
+            val scheduler = spider.scheduler as? MonitorableScheduler ?: return -1.0
+            val total = scheduler.getTotalRequestsCount(spider)
+            if (total <= 0) return -1.0
+
+            // Requests in flight are not finished yet, only tracking schedulers know about them
+            val finished = if (scheduler is TrackingScheduler)
+                scheduler.getFinishedRequestsCount(spider)
+            else
+                total - scheduler.getLeftRequestsCount(spider)
+
+            return finished * 100.0 / total
         }
 
+    override val nodePagePerSecond: Map<String, Double>
+        get() = (spider.scheduler as? RedisLeaseScheduler)?.nodePagePerSecond ?: emptyMap()
+
+    override val retryCount: Int
+        get() = monitorSpiderListener.retryCount.get()
+
+    override val failureReasons: Map<String, Long>
+        get() = monitorSpiderListener.getFailureReasons()
+
+    override val hedgeCount: Int
+        get() = monitorSpiderListener.hedgeCount.get()
+
+    override val hedgeWonCount: Int
+        get() = monitorSpiderListener.hedgeWonCount.get()
+
+    override val hedgePerSecond: Double
+        get() = monitorSpiderListener.hedgeMeter.rate
+
+    override val openCircuits: List<String>
+        get() = monitorSpiderListener.getOpenCircuits()
+
+    // Requests could go to another host than the site domain, e.g. a mirror
+    private val rateDomain: String
+        get() = monitorSpiderListener.targetDomain ?: spider.site.domain
+
+    override val concurrencyLimit: Int
+        get() = rateController?.getConcurrencyLimit(rateDomain) ?: -1
+
+    override val requestIntervalMillis: Long
+        get() = rateController?.getRequestIntervalMillis(rateDomain) ?: -1
+
+    override val latencyMillis: Long
+        get() = rateController?.getLatencyMillis(rateDomain) ?: -1
+
+    override val errorRate: Double
+        get() = rateController?.getErrorRate(rateDomain) ?: -1.0
+
     override fun start() {
         spider.start()
     }
@@ -0,0 +1,45 @@
+package com.shinonometn.re.ssim.service.caterpillar.common;
+
+import us.codecraft.webmagic.Page;
+import us.codecraft.webmagic.ResultItems;
+import us.codecraft.webmagic.Site;
+import us.codecraft.webmagic.processor.PageProcessor;
+
+import java.util.function.Consumer;
+
+/**
+ * Hand raw bytes of every fetched page to an archive before processing
+ * <p>
+ * Pages without body (304 Not Modified) are not archived, pipelines could
+ * check {@link #isArchived(ResultItems)} and archive a previous copy instead.
+ */
+public class ArchivingPageProcessor implements PageProcessor {
+
+    private final PageProcessor delegate;
+    private final Consumer<RawPage> archive;
+
+    public ArchivingPageProcessor(PageProcessor delegate, Consumer<RawPage> archive) {
+        this.delegate = delegate;
+        this.archive = archive;
+    }
+
+    @Override
+    public void process(Page page) {
+        if (page.getStatusCode() != ChangeDetectingPageProcessor.NOT_MODIFIED) {
+            archive.accept(RawPage.of(page));
+            page.putField(FIELD_ARCHIVED, true);
+        }
+        delegate.process(page);
+    }
+
+    @Override
+    public Site getSite() {
+        return delegate.getSite();
+    }
+
+    private final static String FIELD_ARCHIVED = "_page_archived";
+
+    public static boolean isArchived(ResultItems resultItems) {
+        return Boolean.TRUE.equals(resultItems.get(FIELD_ARCHIVED));
+    }
+}
@@ -0,0 +1,148 @@
+package com.shinonometn.re.ssim.service.caterpillar.common;
+
+import org.apache.commons.lang3.SerializationUtils;
+import us.codecraft.webmagic.Page;
+import us.codecraft.webmagic.Request;
+import us.codecraft.webmagic.ResultItems;
+import us.codecraft.webmagic.Site;
+import us.codecraft.webmagic.processor.PageProcessor;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Skip parsing of pages not changed since the previous capture
+ * <p>
+ * Pages are identified by a key in request extras. A page is unchanged if
+ * server answered 304 to the conditional request, or the hash of its raw bytes
+ * equals the previous fingerprint. Unchanged pages are not passed to the delegate,
+ * pipelines should use their previous result instead. A 304 without a previous
+ * fingerprint has nothing to reuse, the page is requested again without validators.
+ * <p>
+ * Fingerprint of every fetched page is put to result items for the next capture.
+ */
+public class ChangeDetectingPageProcessor implements PageProcessor {
+
+    public final static int NOT_MODIFIED = 304;
+
+    private final PageProcessor delegate;
+    private final Map<String, PageFingerprint> previousFingerprints;
+    private final String keyExtra;
+
+    /**
+     * @param delegate             processor to parse changed pages
+     * @param previousFingerprints fingerprints of previous capture, by key
+     * @param keyExtra             name of request extra holding the page key
+     */
+    public ChangeDetectingPageProcessor(PageProcessor delegate,
+                                        Map<String, PageFingerprint> previousFingerprints,
+                                        String keyExtra) {
+        this.delegate = delegate;
+        this.previousFingerprints = previousFingerprints;
+        this.keyExtra = keyExtra;
+    }
+
+    @Override
+    public void process(Page page) {
+        Object key = page.getRequest().getExtra(keyExtra);
+        PageFingerprint previous = key == null ? null : previousFingerprints.get(key.toString());
+
+        if (key != null) page.putField(FIELD_KEY, key.toString());
+
+        if (page.getStatusCode() == NOT_MODIFIED) {
+            // Without a previous fingerprint there is nothing to reuse, fetch the page unconditionally
+            if (previous == null) {
+                page.setSkip(true);
+                if (!Boolean.TRUE.equals(page.getRequest().getExtra(EXTRA_UNCONDITIONAL)))
+                    page.addTargetRequest(unconditional(page.getRequest()));
+                return;
+            }
+            page.putField(FIELD_FINGERPRINT, previous);
+            page.putField(FIELD_UNCHANGED, true);
+            return;
+        }
+
+        PageFingerprint fingerprint = new PageFingerprint(
+                sha256Hex(page.getBytes()),
+                headerOf(page, "ETag"),
+                headerOf(page, "Last-Modified"));
+
+        page.putField(FIELD_FINGERPRINT, fingerprint);
+
+        if (previous != null && fingerprint.getHash().equals(previous.getHash())) {
+            page.putField(FIELD_UNCHANGED, true);
+            return;
+        }
+
+        delegate.process(page);
+    }
+
+    @Override
+    public Site getSite() {
+        return delegate.getSite();
+    }
+
+    /**
+     * Make the request conditional with validators of its previous fingerprint
+     */
+    public static Request conditional(Request request, PageFingerprint previous) {
+        if (previous == null) return request;
+        if (previous.getETag() != null) request.addHeader("If-None-Match", previous.getETag());
+        if (previous.getLastModified() != null) request.addHeader("If-Modified-Since", previous.getLastModified());
+        return request;
+    }
+
+    /**
+     * Copy of a conditional request without validators
+     * <p>
+     * It is marked as a cycle retry, so schedulers take it as another copy of the same request.
+     */
+    static Request unconditional(Request request) {
+        Request copy = SerializationUtils.clone(request);
+        copy.getHeaders().remove("If-None-Match");
+        copy.getHeaders().remove("If-Modified-Since");
+
+        Object triedTimes = copy.getExtra(Request.CYCLE_TRIED_TIMES);
+        copy.putExtra(Request.CYCLE_TRIED_TIMES, triedTimes == null ? 0 : triedTimes);
+        return copy.putExtra(EXTRA_UNCONDITIONAL, Boolean.TRUE);
+    }
+
+    private final static String EXTRA_UNCONDITIONAL = "_unconditional";
+
+    private final static String FIELD_KEY = "_page_key";
+    private final static String FIELD_FINGERPRINT = "_page_fingerprint";
+    private final static String FIELD_UNCHANGED = "_page_unchanged";
+
+    public static String getKey(ResultItems resultItems) {
+        return resultItems.get(FIELD_KEY);
+    }
+
+    public static PageFingerprint getFingerprint(ResultItems resultItems) {
+        return resultItems.get(FIELD_FINGERPRINT);
+    }
+
+    public static boolean isUnchanged(ResultItems resultItems) {
+        return Boolean.TRUE.equals(resultItems.get(FIELD_UNCHANGED));
+    }
+
+    private static String headerOf(Page page, String name) {
+        if (page.getHeaders() == null) return null;
+        for (Map.Entry<String, List<String>> header : page.getHeaders().entrySet())
+            if (name.equalsIgnoreCase(header.getKey()) && header.getValue() != null && !header.getValue().isEmpty())
+                return header.getValue().get(0);
+        return null;
+    }
+
+    private static String sha256Hex(byte[] bytes) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(bytes == null ? new byte[0] : bytes);
+            StringBuilder builder = new StringBuilder(digest.length * 2);
+            for (byte b : digest) builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            return builder.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package com.shinonometn.re.ssim.service.caterpillar.common;
+
+import com.shinonometn.re.ssim.service.caterpillar.kingo.pojo.Course;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Consumer of captured courses
+ * <p>
+ * Closing a sink means no more course will come,
+ * implementations should flush or publish what they received.
+ */
+public interface CourseSink extends Closeable {
+
+    void accept(Course course) throws IOException;
+}
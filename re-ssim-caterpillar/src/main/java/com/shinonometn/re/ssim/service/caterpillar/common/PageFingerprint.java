@@ -0,0 +1,64 @@
+package com.shinonometn.re.ssim.service.caterpillar.common;
+
+import java.util.Objects;
+
+/**
+ * Content fingerprint of a fetched page
+ * <p>
+ * Hash is the hex SHA-256 of the raw page bytes, eTag and lastModified
+ * are validators sent by server, null if server did not send them.
+ */
+public class PageFingerprint {
+
+    private String hash;
+    private String eTag;
+    private String lastModified;
+
+    public PageFingerprint() {
+    }
+
+    public PageFingerprint(String hash, String eTag, String lastModified) {
+        this.hash = hash;
+        this.eTag = eTag;
+        this.lastModified = lastModified;
+    }
+
+    public String getHash() {
+        return hash;
+    }
+
+    public void setHash(String hash) {
+        this.hash = hash;
+    }
+
+    public String getETag() {
+        return eTag;
+    }
+
+    public void setETag(String eTag) {
+        this.eTag = eTag;
+    }
+
+    public String getLastModified() {
+        return lastModified;
+    }
+
+    public void setLastModified(String lastModified) {
+        this.lastModified = lastModified;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        PageFingerprint that = (PageFingerprint) o;
+        return Objects.equals(hash, that.hash) &&
+                Objects.equals(eTag, that.eTag) &&
+                Objects.equals(lastModified, that.lastModified);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(hash, eTag, lastModified);
+    }
+}
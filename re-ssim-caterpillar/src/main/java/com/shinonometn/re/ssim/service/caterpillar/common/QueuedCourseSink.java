@@ -0,0 +1,124 @@
+package com.shinonometn.re.ssim.service.caterpillar.common;
+
+import com.shinonometn.re.ssim.service.caterpillar.kingo.pojo.Course;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded in-process queue in front of other sinks
+ * <p>
+ * Spider threads only put courses into the queue, a single drain thread hands them
+ * to the downstream sinks in order. When the queue is full {@link #accept(Course)}
+ * blocks, so a slow consumer slows the spider down instead of filling the memory.
+ * <p>
+ * A failing downstream sink is detached and reported on {@link #close()},
+ * it will not stop the others.
+ */
+public class QueuedCourseSink implements CourseSink {
+
+    private final static Logger logger = LoggerFactory.getLogger(QueuedCourseSink.class);
+
+    private final static Course END_OF_STREAM = new Course();
+
+    private final BlockingQueue<Course> queue;
+    private final List<CourseSink> sinks;
+    private final List<CourseSink> activeSinks;
+    private final List<IOException> errors = new ArrayList<>();
+
+    private final Thread drainThread;
+
+    private volatile boolean closed = false;
+
+    public QueuedCourseSink(String name, int capacity, CourseSink... sinks) {
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.sinks = Arrays.asList(sinks);
+        this.activeSinks = new ArrayList<>(this.sinks);
+
+        this.drainThread = new Thread(this::drain, "course-sink-" + name);
+        this.drainThread.setDaemon(true);
+        this.drainThread.start();
+    }
+
+    @Override
+    public void accept(Course course) throws IOException {
+        if (closed) throw new IllegalStateException("sink_closed");
+        try {
+            queue.put(course);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted_while_queueing");
+        }
+    }
+
+    /**
+     * Courses waiting in queue
+     */
+    public int pending() {
+        return queue.size();
+    }
+
+    /**
+     * Wait for all queued courses drained, then close downstream sinks
+     *
+     * @throws IOException first error happened in downstream sinks
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+
+        try {
+            queue.put(END_OF_STREAM);
+            drainThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted_while_draining");
+        }
+
+        for (CourseSink sink : sinks) {
+            try {
+                sink.close();
+            } catch (IOException e) {
+                errors.add(e);
+            }
+        }
+
+        if (!errors.isEmpty()) {
+            IOException exception = new IOException("course_sink_failed", errors.get(0));
+            errors.stream().skip(1).forEach(exception::addSuppressed);
+            throw exception;
+        }
+    }
+
+    private void drain() {
+        try {
+            while (true) {
+                Course course = queue.poll(1, TimeUnit.SECONDS);
+                if (course == null) continue;
+                if (course == END_OF_STREAM) return;
+
+                for (int i = 0; i < activeSinks.size(); i++) {
+                    CourseSink sink = activeSinks.get(i);
+                    try {
+                        sink.accept(course);
+                    } catch (IOException | RuntimeException e) {
+                        logger.error("Course sink {} failed, detached.", sink.getClass().getSimpleName(), e);
+                        errors.add(e instanceof IOException ? (IOException) e : new IOException(e));
+                        activeSinks.remove(i--);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
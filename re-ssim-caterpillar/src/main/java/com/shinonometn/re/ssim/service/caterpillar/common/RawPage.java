@@ -0,0 +1,224 @@
+package com.shinonometn.re.ssim.service.caterpillar.common;
+
+import us.codecraft.webmagic.Page;
+import us.codecraft.webmagic.Request;
+import us.codecraft.webmagic.model.HttpRequestBody;
+import us.codecraft.webmagic.selector.PlainText;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * A fetched page with its request metadata, for re-parsing without network
+ * <p>
+ * Serialized like a WARC record: a block of "Name: value" lines, an empty line,
+ * then the request body followed by the response body.
+ * <pre>
+ * RSSIM-PAGE/1
+ * URL: http://...
+ * Method: POST
+ * Status: 200
+ * Charset: utf8
+ * Fetch-Date: 1538323200000
+ * Request-Content-Type: application/x-www-form-urlencoded
+ * Request-Length: 42
+ * Extra-course_code: 0001
+ * Header-Content-Type: text/html
+ * Content-Length: 12345
+ *
+ * [request body][response body]
+ * </pre>
+ */
+public class RawPage {
+
+    private final static String VERSION_LINE = "RSSIM-PAGE/1";
+
+    private String url;
+    private String method;
+    private int statusCode;
+    private String charset;
+    private long fetchDate;
+
+    private String requestContentType;
+    private byte[] requestBody = new byte[0];
+
+    private final Map<String, String> extras = new LinkedHashMap<>();
+    private final Map<String, String> headers = new LinkedHashMap<>();
+
+    private byte[] body = new byte[0];
+
+    /**
+     * Take a snapshot of a downloaded page
+     */
+    public static RawPage of(Page page) {
+        Request request = page.getRequest();
+        RawPage rawPage = new RawPage();
+
+        rawPage.url = request.getUrl();
+        rawPage.method = request.getMethod();
+        rawPage.statusCode = page.getStatusCode();
+        rawPage.charset = page.getCharset();
+        rawPage.fetchDate = System.currentTimeMillis();
+
+        HttpRequestBody requestBody = request.getRequestBody();
+        if (requestBody != null) {
+            rawPage.requestContentType = requestBody.getContentType();
+            rawPage.requestBody = requestBody.getBody() == null ? new byte[0] : requestBody.getBody();
+        }
+
+        if (request.getExtras() != null)
+            request.getExtras().forEach((k, v) -> {
+                if (v != null) rawPage.extras.put(k, v.toString());
+            });
+
+        if (page.getHeaders() != null)
+            page.getHeaders().forEach((k, v) -> {
+                if (k != null && v != null && !v.isEmpty()) rawPage.headers.put(k, v.get(0));
+            });
+
+        if (page.getBytes() != null) rawPage.body = page.getBytes();
+        return rawPage;
+    }
+
+    /**
+     * Rebuild a webmagic page, as if it was just downloaded
+     */
+    public Page toPage() {
+        Request request = new Request(url);
+        request.setMethod(method);
+        if (requestContentType != null || requestBody.length > 0)
+            request.setRequestBody(new HttpRequestBody(requestBody, requestContentType, charset));
+        extras.forEach(request::putExtra);
+
+        Map<String, List<String>> pageHeaders = new LinkedHashMap<>();
+        headers.forEach((k, v) -> pageHeaders.put(k, Collections.singletonList(v)));
+
+        Page page = new Page();
+        page.setBytes(body);
+        if (charset != null) {
+            page.setCharset(charset);
+            page.setRawText(new String(body, Charset.forName(charset)));
+        } else {
+            page.setRawText(new String(body, Charset.defaultCharset()));
+        }
+        page.setUrl(new PlainText(url));
+        page.setRequest(request);
+        page.setStatusCode(statusCode);
+        page.setHeaders(pageHeaders);
+        page.setDownloadSuccess(true);
+        return page;
+    }
+
+    public byte[] toBytes() {
+        StringBuilder head = new StringBuilder(VERSION_LINE).append("\r\n");
+        field(head, "URL", url);
+        field(head, "Method", method);
+        field(head, "Status", String.valueOf(statusCode));
+        field(head, "Charset", charset);
+        field(head, "Fetch-Date", String.valueOf(fetchDate));
+        field(head, "Request-Content-Type", requestContentType);
+        field(head, "Request-Length", String.valueOf(requestBody.length));
+        extras.forEach((k, v) -> field(head, "Extra-" + k, v));
+        headers.forEach((k, v) -> field(head, "Header-" + k, v));
+        field(head, "Content-Length", String.valueOf(body.length));
+        head.append("\r\n");
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(head.length() + requestBody.length + body.length);
+        try {
+            outputStream.write(head.toString().getBytes(StandardCharsets.UTF_8));
+            outputStream.write(requestBody);
+            outputStream.write(body);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return outputStream.toByteArray();
+    }
+
+    public static RawPage fromBytes(byte[] bytes) {
+        int headEnd = indexOfHeadEnd(bytes);
+        if (headEnd < 0) throw new IllegalArgumentException("raw_page_head_not_found");
+
+        String[] lines = new String(bytes, 0, headEnd, StandardCharsets.UTF_8).split("\r\n");
+        if (!VERSION_LINE.equals(lines[0])) throw new IllegalArgumentException("unsupported_raw_page_version");
+
+        RawPage rawPage = new RawPage();
+        int requestLength = 0;
+        int contentLength = 0;
+
+        for (int i = 1; i < lines.length; i++) {
+            int split = lines[i].indexOf(": ");
+            if (split < 0) continue;
+            String name = lines[i].substring(0, split);
+            String value = lines[i].substring(split + 2);
+
+            switch (name) {
+                case "URL": rawPage.url = value; break;
+                case "Method": rawPage.method = value; break;
+                case "Status": rawPage.statusCode = Integer.parseInt(value); break;
+                case "Charset": rawPage.charset = value; break;
+                case "Fetch-Date": rawPage.fetchDate = Long.parseLong(value); break;
+                case "Request-Content-Type": rawPage.requestContentType = value; break;
+                case "Request-Length": requestLength = Integer.parseInt(value); break;
+                case "Content-Length": contentLength = Integer.parseInt(value); break;
+                default:
+                    if (name.startsWith("Extra-")) rawPage.extras.put(name.substring(6), value);
+                    else if (name.startsWith("Header-")) rawPage.headers.put(name.substring(7), value);
+            }
+        }
+
+        int offset = headEnd + 4;
+        if (offset + requestLength + contentLength > bytes.length) throw new IllegalArgumentException("raw_page_truncated");
+
+        rawPage.requestBody = Arrays.copyOfRange(bytes, offset, offset + requestLength);
+        rawPage.body = Arrays.copyOfRange(bytes, offset + requestLength, offset + requestLength + contentLength);
+        return rawPage;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    public String getCharset() {
+        return charset;
+    }
+
+    public long getFetchDate() {
+        return fetchDate;
+    }
+
+    public String getExtra(String name) {
+        return extras.get(name);
+    }
+
+    public Map<String, String> getHeaders() {
+        return Collections.unmodifiableMap(headers);
+    }
+
+    public byte[] getBody() {
+        return body;
+    }
+
+    private static void field(StringBuilder head, String name, String value) {
+        if (value == null) return;
+        // Values are single line, drop line breaks instead of breaking the record
+        head.append(name).append(": ").append(value.replace("\r", "").replace("\n", "")).append("\r\n");
+    }
+
+    private static int indexOfHeadEnd(byte[] bytes) {
+        for (int i = 0; i + 3 < bytes.length; i++)
+            if (bytes[i] == '\r' && bytes[i + 1] == '\n' && bytes[i + 2] == '\r' && bytes[i + 3] == '\n') return i;
+        return -1;
+    }
+}
@@ -0,0 +1,61 @@
+package com.shinonometn.re.ssim.service.caterpillar.common;
+
+import us.codecraft.webmagic.Page;
+import us.codecraft.webmagic.Request;
+import us.codecraft.webmagic.Site;
+import us.codecraft.webmagic.processor.PageProcessor;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Process pages of different kinds in one spider
+ * <p>
+ * A request names its processor by a route in its extras, pages of requests
+ * without a route go to the default processor. With it a spider could fetch
+ * list pages and the detail pages they lead to at the same time.
+ */
+public class RoutingPageProcessor implements PageProcessor {
+
+    private final static String EXTRA_ROUTE = "_route";
+
+    private final PageProcessor defaultProcessor;
+    private final Map<String, PageProcessor> routes = new HashMap<>();
+
+    public RoutingPageProcessor(PageProcessor defaultProcessor) {
+        this.defaultProcessor = defaultProcessor;
+    }
+
+    /**
+     * Process pages of requests with the route by the processor
+     */
+    public RoutingPageProcessor route(String route, PageProcessor processor) {
+        routes.put(route, processor);
+        return this;
+    }
+
+    @Override
+    public void process(Page page) {
+        Object route = page.getRequest().getExtra(EXTRA_ROUTE);
+        if (route == null) {
+            defaultProcessor.process(page);
+            return;
+        }
+
+        PageProcessor processor = routes.get(route.toString());
+        if (processor == null) throw new IllegalStateException("unknown_route:" + route);
+        processor.process(page);
+    }
+
+    @Override
+    public Site getSite() {
+        return defaultProcessor.getSite();
+    }
+
+    /**
+     * Mark a request to be processed by the processor of route
+     */
+    public static Request routed(Request request, String route) {
+        return request.putExtra(EXTRA_ROUTE, route);
+    }
+}
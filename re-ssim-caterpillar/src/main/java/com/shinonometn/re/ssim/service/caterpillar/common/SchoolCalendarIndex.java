@@ -0,0 +1,114 @@
+package com.shinonometn.re.ssim.service.caterpillar.common;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Interval index of school calendars
+ * <p>
+ * Calendars are sorted by start date, with the latest end date of every prefix kept
+ * beside them. Finding the calendar of a date time is a binary search for the last
+ * calendar started before it, then a walk back only while earlier calendars could
+ * still cover it, so a lookup does not depend on how many terms are indexed.
+ * If calendars overlap, the latest started one wins.
+ * <p>
+ * The index is immutable, build a new one when calendars change.
+ */
+public class SchoolCalendarIndex {
+
+    private final SchoolCalendar[] calendars;
+    private final LocalDateTime[] startDates;
+    private final LocalDateTime[] maxEndDates;
+
+    /**
+     * @param calendars calendars, those without start or end date are ignored
+     */
+    public SchoolCalendarIndex(Collection<? extends SchoolCalendar> calendars) {
+        List<SchoolCalendar> sorted = new ArrayList<>(calendars.size());
+        for (SchoolCalendar calendar : calendars) {
+            if (calendar.getStartDate() != null && calendar.getEndDate() != null) sorted.add(calendar);
+        }
+        sorted.sort(Comparator.comparing(SchoolCalendar::getStartDate));
+
+        this.calendars = sorted.toArray(new SchoolCalendar[0]);
+        this.startDates = new LocalDateTime[this.calendars.length];
+        this.maxEndDates = new LocalDateTime[this.calendars.length];
+
+        LocalDateTime maxEndDate = null;
+        for (int i = 0; i < this.calendars.length; i++) {
+            LocalDateTime endDate = this.calendars[i].getEndDate();
+            if (maxEndDate == null || endDate.isAfter(maxEndDate)) maxEndDate = endDate;
+
+            startDates[i] = this.calendars[i].getStartDate();
+            maxEndDates[i] = maxEndDate;
+        }
+    }
+
+    public int size() {
+        return calendars.length;
+    }
+
+    /**
+     * Find the calendar covering the date time
+     *
+     * @return calendar, null if no calendar covers it
+     */
+    public SchoolCalendar find(LocalDateTime dateTime) {
+        for (int i = lastStartedAt(dateTime); i >= 0 && !maxEndDates[i].isBefore(dateTime); i--) {
+            if (!calendars[i].getEndDate().isBefore(dateTime)) return calendars[i];
+        }
+        return null;
+    }
+
+    /**
+     * Convert a date time to school date
+     *
+     * @return school date, null if no calendar covers it
+     */
+    public SchoolDate getFromDateTime(LocalDateTime dateTime) {
+        SchoolCalendar calendar = find(dateTime);
+        return calendar == null ? null : calendar.getFromDateTime(dateTime);
+    }
+
+    /**
+     * Convert date times to school dates
+     *
+     * @return school dates in order of the date times, null for those not covered
+     */
+    public List<SchoolDate> convert(List<LocalDateTime> dateTimes) {
+        List<SchoolDate> result = new ArrayList<>(dateTimes.size());
+        for (LocalDateTime dateTime : dateTimes) result.add(dateTime == null ? null : getFromDateTime(dateTime));
+        return result;
+    }
+
+    /**
+     * Convert every day of a date range to school dates
+     *
+     * @param from first day
+     * @param to   last day, included
+     * @return school dates from the first day, null for days not covered
+     */
+    public List<SchoolDate> convert(LocalDate from, LocalDate to) {
+        List<SchoolDate> result = new ArrayList<>();
+        for (LocalDate date = from; !date.isAfter(to); date = date.plusDays(1)) {
+            result.add(getFromDateTime(date.atStartOfDay()));
+        }
+        return result;
+    }
+
+    // Index of the last calendar started at or before the date time, -1 if none
+    private int lastStartedAt(LocalDateTime dateTime) {
+        int low = 0;
+        int high = startDates.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (startDates[middle].isAfter(dateTime)) high = middle;
+            else low = middle + 1;
+        }
+        return low - 1;
+    }
+}
@@ -0,0 +1,80 @@
+package com.shinonometn.re.ssim.service.caterpillar.common;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Shares equal strings between objects of a data set
+ * <p>
+ * Teacher names, units, class names and so on repeat thousands of times in a term,
+ * a pool makes them point to one instance. Unlike {@link String#intern()} a pool is
+ * dropped with the capture or import it belongs to. Long strings are not pooled, they
+ * rarely repeat, and the pool stops growing after {@code maxEntries}.
+ * <p>
+ * Pooled arrays are shared too, so they should not be changed after pooled.
+ */
+public class StringPool {
+
+    private final static int DEFAULT_MAX_ENTRIES = 65536;
+    private final static int DEFAULT_MAX_LENGTH = 64;
+
+    private final int maxEntries;
+    private final int maxLength;
+
+    private final Map<String, String> strings = new ConcurrentHashMap<>();
+    private final Map<List<String>, String[]> arrays = new ConcurrentHashMap<>();
+
+    public StringPool() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_LENGTH);
+    }
+
+    public StringPool(int maxEntries, int maxLength) {
+        this.maxEntries = maxEntries;
+        this.maxLength = maxLength;
+    }
+
+    /**
+     * Pooled instance equal to the string
+     *
+     * @param value string, could be null
+     * @return the pooled one, or value itself if it is not pooled
+     */
+    public String intern(String value) {
+        if (value == null || value.length() > maxLength) return value;
+
+        String pooled = strings.get(value);
+        if (pooled != null) return pooled;
+        if (strings.size() >= maxEntries) return value;
+
+        pooled = strings.putIfAbsent(value, value);
+        return pooled == null ? value : pooled;
+    }
+
+    /**
+     * Pooled array equal to the given one, its elements are pooled as well
+     *
+     * @param values array, could be null
+     * @return the pooled one, or values with pooled elements if it is not pooled
+     */
+    public String[] internAll(String[] values) {
+        if (values == null) return null;
+
+        String[] pooled = arrays.get(Arrays.asList(values));
+        if (pooled != null) return pooled;
+
+        for (int i = 0; i < values.length; i++) values[i] = intern(values[i]);
+        if (arrays.size() >= maxEntries) return values;
+
+        pooled = arrays.putIfAbsent(Arrays.asList(values), values);
+        return pooled == null ? values : pooled;
+    }
+
+    /**
+     * Count of pooled strings and arrays
+     */
+    public int size() {
+        return strings.size() + arrays.size();
+    }
+}
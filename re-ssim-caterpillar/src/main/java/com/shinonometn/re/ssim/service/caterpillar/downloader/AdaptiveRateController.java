@@ -0,0 +1,207 @@
+package com.shinonometn.re.ssim.service.caterpillar.downloader;
+
+import us.codecraft.webmagic.utils.UrlUtils;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Adaptive concurrency and request spacing per target domain
+ * <p>
+ * Works as AIMD: every healthy response adds about one permit per round trip
+ * and shortens the spacing between requests, an error or a latency spike halves
+ * the concurrency limit and doubles the spacing, at most once per round trip.
+ * <p>
+ * A response is considered a latency spike when it is slower than
+ * {@code latencyTolerance} times of the best latency observed recently
+ * (and at least 100ms slower).
+ * Limits never exceed {@code maxConcurrency} and {@code maxIntervalMillis}.
+ */
+public class AdaptiveRateController {
+
+    private static final double EWMA_ALPHA = 0.2;
+
+    private final int maxConcurrency;
+    private final long minIntervalMillis;
+    private final long maxIntervalMillis;
+    private final long initialIntervalMillis;
+    private final double latencyTolerance;
+
+    private final Map<String, DomainLimiter> limiters = new ConcurrentHashMap<>();
+
+    /**
+     * @param maxConcurrency    ceiling of concurrent requests of a domain
+     * @param minIntervalMillis lower bound of request spacing, also the spacing when a domain first seen
+     * @param maxIntervalMillis upper bound of request spacing
+     */
+    public AdaptiveRateController(int maxConcurrency, long minIntervalMillis, long maxIntervalMillis) {
+        this(maxConcurrency, minIntervalMillis, minIntervalMillis, maxIntervalMillis, 2.0);
+    }
+
+    public AdaptiveRateController(int maxConcurrency,
+                                  long minIntervalMillis,
+                                  long initialIntervalMillis,
+                                  long maxIntervalMillis,
+                                  double latencyTolerance) {
+
+        if (maxConcurrency < 1) throw new IllegalArgumentException("max_concurrency_should_be_positive");
+        if (minIntervalMillis > maxIntervalMillis) throw new IllegalArgumentException("min_interval_greater_than_max");
+
+        this.maxConcurrency = maxConcurrency;
+        this.minIntervalMillis = minIntervalMillis;
+        this.maxIntervalMillis = maxIntervalMillis;
+        this.initialIntervalMillis = Math.max(minIntervalMillis, Math.min(initialIntervalMillis, maxIntervalMillis));
+        this.latencyTolerance = latencyTolerance;
+    }
+
+    /**
+     * Domain of the url requests are limited by
+     */
+    public static String domainOf(String url) {
+        return UrlUtils.removePort(UrlUtils.getDomain(url));
+    }
+
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    /**
+     * Wait until a request to the domain is allowed
+     *
+     * @param domain target domain
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void acquire(String domain) throws InterruptedException {
+        limiterOf(domain).acquire();
+    }
+
+    /**
+     * Report a finished request, must be called once for every acquire
+     *
+     * @param domain        target domain
+     * @param latencyMillis time used by the request
+     * @param failed        if request failed, or the server says it is overloaded
+     */
+    public void release(String domain, long latencyMillis, boolean failed) {
+        limiterOf(domain).release(latencyMillis, failed);
+    }
+
+    /**
+     * Current concurrency limit of a domain
+     */
+    public int getConcurrencyLimit(String domain) {
+        DomainLimiter limiter = limiters.get(domain);
+        return limiter == null ? Math.min(2, maxConcurrency) : limiter.getLimit();
+    }
+
+    /**
+     * Current request spacing of a domain
+     */
+    public long getRequestIntervalMillis(String domain) {
+        DomainLimiter limiter = limiters.get(domain);
+        return limiter == null ? initialIntervalMillis : limiter.getIntervalMillis();
+    }
+
+    /**
+     * Smoothed latency of a domain, -1 if not measured yet
+     */
+    public long getLatencyMillis(String domain) {
+        DomainLimiter limiter = limiters.get(domain);
+        return limiter == null ? -1 : limiter.getLatencyMillis();
+    }
+
+    /**
+     * Smoothed error rate of a domain, from 0 to 1
+     */
+    public double getErrorRate(String domain) {
+        DomainLimiter limiter = limiters.get(domain);
+        return limiter == null ? 0 : limiter.getErrorRate();
+    }
+
+    private DomainLimiter limiterOf(String domain) {
+        return limiters.computeIfAbsent(domain == null ? "" : domain, k -> new DomainLimiter());
+    }
+
+    /*
+     * Per domain state, guarded by its monitor
+     */
+    private class DomainLimiter {
+
+        // Start slow, the limit grows to the ceiling if the server keeps healthy
+        private double limit = Math.min(2, maxConcurrency);
+        private double intervalMillis = initialIntervalMillis;
+
+        private int inFlight = 0;
+        private long nextRequestTime = 0;
+
+        private double latencyEwma = -1;
+        private double baseLatency = -1;
+        private double errorEwma = 0;
+
+        private long lastDecreaseTime = 0;
+
+        synchronized void acquire() throws InterruptedException {
+            while (true) {
+                long now = System.currentTimeMillis();
+                if (inFlight < (int) limit) {
+                    if (now >= nextRequestTime) {
+                        inFlight++;
+                        nextRequestTime = now + (long) intervalMillis;
+                        return;
+                    }
+                    wait(nextRequestTime - now);
+                } else {
+                    wait();
+                }
+            }
+        }
+
+        synchronized void release(long latencyMillis, boolean failed) {
+            inFlight--;
+
+            long now = System.currentTimeMillis();
+
+            latencyEwma = latencyEwma < 0 ? latencyMillis : latencyEwma + EWMA_ALPHA * (latencyMillis - latencyEwma);
+            errorEwma = errorEwma + EWMA_ALPHA * ((failed ? 1 : 0) - errorEwma);
+
+            // Base latency slowly forgets, so a permanently slower server becomes the new normal
+            if (!failed) baseLatency = baseLatency < 0 || latencyMillis < baseLatency
+                    ? latencyMillis
+                    : baseLatency + 0.01 * (latencyMillis - baseLatency);
+
+            // Jitter of a few milliseconds is not a spike, even if base latency is tiny
+            boolean congested = failed || (baseLatency >= 0
+                    && latencyMillis > Math.max(baseLatency * latencyTolerance, baseLatency + 100));
+
+            if (congested) {
+                // Decrease once per round trip, responses of the same burst report the same congestion
+                if (now - lastDecreaseTime > Math.max(latencyEwma, 1)) {
+                    limit = Math.max(1, limit / 2);
+                    intervalMillis = Math.min(maxIntervalMillis, Math.max(intervalMillis * 2, Math.max(minIntervalMillis, 50)));
+                    lastDecreaseTime = now;
+                }
+            } else {
+                limit = Math.min(maxConcurrency, limit + 1 / Math.max(limit, 1));
+                intervalMillis = Math.max(minIntervalMillis, intervalMillis * 0.95);
+            }
+
+            notifyAll();
+        }
+
+        synchronized int getLimit() {
+            return (int) limit;
+        }
+
+        synchronized long getIntervalMillis() {
+            return (long) intervalMillis;
+        }
+
+        synchronized long getLatencyMillis() {
+            return (long) latencyEwma;
+        }
+
+        synchronized double getErrorRate() {
+            return errorEwma;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.shinonometn.re.ssim.service.caterpillar.downloader;
+
+import java.util.function.BiConsumer;
+import java.util.regex.Pattern;
+
+/**
+ * Circuit breaker of an endpoint (requests matching a url pattern)
+ * <p>
+ * After {@code failureThreshold} failures in a row the circuit opens, and callers of
+ * {@link #awaitPermission()} wait instead of sending requests, so a spider pauses
+ * when the server can not serve it. After the cool down one trial request is let through
+ * (half open), its success closes the circuit, its failure opens it again with a
+ * doubled cool down, up to {@code maxCoolDownMillis}.
+ */
+public class CircuitBreaker {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final String name;
+    private final Pattern pattern;
+    private final int failureThreshold;
+    private final long coolDownMillis;
+    private final long maxCoolDownMillis;
+
+    private BiConsumer<CircuitBreaker, State> stateListener = (circuit, state) -> {
+    };
+
+    private State state = State.CLOSED;
+    private int failures = 0;
+    private long currentCoolDownMillis;
+    private long openUntil = 0;
+    private boolean trialInFlight = false;
+
+    public CircuitBreaker(String name, Pattern pattern, int failureThreshold, long coolDownMillis, long maxCoolDownMillis) {
+        if (failureThreshold < 1) throw new IllegalArgumentException("failure_threshold_should_be_positive");
+
+        this.name = name;
+        this.pattern = pattern;
+        this.failureThreshold = failureThreshold;
+        this.coolDownMillis = coolDownMillis;
+        this.maxCoolDownMillis = Math.max(coolDownMillis, maxCoolDownMillis);
+        this.currentCoolDownMillis = coolDownMillis;
+    }
+
+    public boolean matches(String url) {
+        return pattern == null || pattern.matcher(url).find();
+    }
+
+    /**
+     * Wait until a request is allowed
+     *
+     * @return milliseconds waited
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public synchronized long awaitPermission() throws InterruptedException {
+        long startTime = System.currentTimeMillis();
+        while (true) {
+            long now = System.currentTimeMillis();
+            switch (state) {
+                case CLOSED:
+                    return now - startTime;
+
+                case OPEN:
+                    if (now < openUntil) {
+                        wait(openUntil - now);
+                        continue;
+                    }
+                    changeState(State.HALF_OPEN);
+                    // fall through, the first caller after cool down is the trial
+
+                case HALF_OPEN:
+                    if (!trialInFlight) {
+                        trialInFlight = true;
+                        return now - startTime;
+                    }
+                    wait();
+            }
+        }
+    }
+
+    public synchronized void onSuccess() {
+        failures = 0;
+        trialInFlight = false;
+        currentCoolDownMillis = coolDownMillis;
+        if (state != State.CLOSED) changeState(State.CLOSED);
+        notifyAll();
+    }
+
+    public synchronized void onFailure() {
+        failures++;
+
+        if (state == State.HALF_OPEN) {
+            trialInFlight = false;
+            currentCoolDownMillis = Math.min(maxCoolDownMillis, currentCoolDownMillis * 2);
+            open();
+        } else if (state == State.CLOSED && failures >= failureThreshold) {
+            open();
+        }
+        notifyAll();
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    void setStateListener(BiConsumer<CircuitBreaker, State> stateListener) {
+        this.stateListener = stateListener;
+    }
+
+    private void open() {
+        openUntil = System.currentTimeMillis() + currentCoolDownMillis;
+        changeState(State.OPEN);
+    }
+
+    private void changeState(State newState) {
+        state = newState;
+        stateListener.accept(this, newState);
+    }
+}
@@ -0,0 +1,50 @@
+package com.shinonometn.re.ssim.service.caterpillar.downloader;
+
+import us.codecraft.webmagic.Request;
+
+/**
+ * Listener of downloads of an {@link PooledHttpDownloader}
+ * <p>
+ * Download, retry, hedge and give-up events come from the downloader, circuit changes
+ * come from the {@link RetryPolicy}, which may be shared by several downloaders.
+ * Reasons are short codes, e.g. {@code http_503}, {@code timeout} or {@code io_error}.
+ * Events are fired from spider threads, listeners should be quick.
+ */
+public interface DownloadEventListener {
+
+    /**
+     * A response received, whatever the status code is
+     */
+    default void onDownloaded(Request request, int statusCode, long bytes, long latencyMillis) {
+    }
+
+    /**
+     * A failed request will be sent again after the delay
+     */
+    default void onRetry(Request request, int attempt, long delayMillis, String reason) {
+    }
+
+    /**
+     * A failed request will not be retried, max retries or retry budget reached
+     */
+    default void onGiveUp(Request request, String reason) {
+    }
+
+    /**
+     * A duplicate of a slow request sent after the delay, see {@link HedgingPolicy}
+     */
+    default void onHedge(Request request, long delayMillis) {
+    }
+
+    /**
+     * The duplicate of a hedged request answered first
+     */
+    default void onHedgeWon(Request request) {
+    }
+
+    /**
+     * A circuit opened, closed or is letting a trial request through
+     */
+    default void onCircuitStateChange(String circuit, CircuitBreaker.State state) {
+    }
+}
@@ -0,0 +1,147 @@
+package com.shinonometn.re.ssim.service.caterpillar.downloader;
+
+import com.shinonometn.re.ssim.service.caterpillar.monitor.LatencyHistogram;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Hedging policy of a capture task
+ * <p>
+ * A few requests are answered far later than the others, usually because the server
+ * stalled on them rather than because they are heavier. If a request matching the policy
+ * is not answered within the observed {@code percentile} latency, the downloader sends a
+ * duplicate and takes whichever response arrives first. Hedges are limited to
+ * {@code budgetRatio} of matching requests, so a server slow on everything is not sent
+ * double traffic.
+ * <p>
+ * Only idempotent requests should be hedged, e.g. course detail queries. Hedging starts
+ * after {@code minSamples} responses observed. One policy should be shared by all
+ * spiders of a task.
+ */
+public class HedgingPolicy {
+
+    private final Pattern urlPattern;
+    private final double percentile;
+    private final long minDelayMillis;
+    private final int minSamples;
+    private final double budgetRatio;
+
+    private final LatencyHistogram latencyHistogram = new LatencyHistogram();
+
+    private final AtomicLong requestCount = new AtomicLong(0);
+    private final AtomicLong hedgeCount = new AtomicLong(0);
+
+    private HedgingPolicy(Builder builder) {
+        this.urlPattern = builder.urlPattern;
+        this.percentile = builder.percentile;
+        this.minDelayMillis = builder.minDelayMillis;
+        this.minSamples = builder.minSamples;
+        this.budgetRatio = builder.budgetRatio;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Requests to the url could be hedged
+     */
+    public boolean matches(String url) {
+        return urlPattern == null || urlPattern.matcher(url).matches();
+    }
+
+    /**
+     * Count a new request, it raises the hedge budget
+     */
+    public void onRequest() {
+        requestCount.incrementAndGet();
+    }
+
+    /**
+     * Record latency of a response, hedged or not
+     */
+    public void record(long latencyMillis) {
+        latencyHistogram.record(latencyMillis);
+    }
+
+    /**
+     * Time to wait for a response before hedging
+     *
+     * @return milliseconds, -1 if not enough responses observed yet
+     */
+    public long delayMillis() {
+        if (latencyHistogram.getCount() < minSamples) return -1;
+        return Math.max(minDelayMillis, latencyHistogram.percentile(percentile));
+    }
+
+    /**
+     * Take a hedge from the budget
+     *
+     * @return false if too many requests hedged
+     */
+    public boolean tryHedge() {
+        while (true) {
+            long hedges = hedgeCount.get();
+            if (hedges >= budgetRatio * requestCount.get()) return false;
+            if (hedgeCount.compareAndSet(hedges, hedges + 1)) return true;
+        }
+    }
+
+    public long getHedgeCount() {
+        return hedgeCount.get();
+    }
+
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    public static class Builder {
+
+        private Pattern urlPattern;
+        private double percentile = 0.95;
+        private long minDelayMillis = 100;
+        private int minSamples = 20;
+        private double budgetRatio = 0.05;
+
+        private Builder() {
+        }
+
+        /**
+         * Only hedge requests to urls matching the pattern, all requests by default
+         */
+        public Builder endpoint(String urlPattern) {
+            this.urlPattern = Pattern.compile(urlPattern);
+            return this;
+        }
+
+        /**
+         * Hedge after the latency of the percentile, but not before the min delay
+         */
+        public Builder delay(double percentile, long minDelayMillis) {
+            this.percentile = percentile;
+            this.minDelayMillis = minDelayMillis;
+            return this;
+        }
+
+        /**
+         * Responses to observe before hedging
+         */
+        public Builder minSamples(int minSamples) {
+            this.minSamples = minSamples;
+            return this;
+        }
+
+        /**
+         * Hedges of the task are limited to {@code ratio * requests}
+         */
+        public Builder budget(double ratio) {
+            this.budgetRatio = ratio;
+            return this;
+        }
+
+        public HedgingPolicy build() {
+            return new HedgingPolicy(this);
+        }
+    }
+}
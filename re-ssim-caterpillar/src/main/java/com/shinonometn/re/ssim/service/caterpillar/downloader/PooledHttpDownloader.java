@@ -0,0 +1,557 @@
+package com.shinonometn.re.ssim.service.caterpillar.downloader;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.CookieStore;
+import org.apache.http.client.config.CookieSpecs;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.methods.RequestBuilder;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.client.BasicCookieStore;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.cookie.BasicClientCookie;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import us.codecraft.webmagic.Page;
+import us.codecraft.webmagic.Request;
+import us.codecraft.webmagic.Site;
+import us.codecraft.webmagic.Task;
+import us.codecraft.webmagic.downloader.AbstractDownloader;
+import us.codecraft.webmagic.selector.PlainText;
+import us.codecraft.webmagic.utils.CharsetUtils;
+import us.codecraft.webmagic.utils.HttpClientUtils;
+import us.codecraft.webmagic.utils.HttpConstant;
+import us.codecraft.webmagic.utils.UrlUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Pooled and bounded downloader for WebMagic spiders
+ * <p>
+ * Requests are sent by an asynchronous http client with a keep-alive connection
+ * pool, a few I/O reactor threads serve all connections. In-flight requests are
+ * capped by {@code maxInFlight}, callers block when the cap is reached.
+ * <p>
+ * WebMagic calls {@link #download(Request, Task)} synchronously from its worker
+ * threads, so a spider thread is still parked on the response future of every
+ * in-flight request, and a spider has at most as many requests in flight as it
+ * has threads. What this downloader saves is sockets and connection setup, not
+ * threads. Callers outside spiders can use {@link #execute(Request, Site)} directly.
+ * <p>
+ * With a {@link RetryPolicy}, failed downloads are retried inside
+ * {@link #download(Request, Task)} after a backoff, and requests wait while
+ * the circuit of their endpoint is open.
+ * <p>
+ * With a {@link HedgingPolicy}, a slow request is sent again after the delay of
+ * the policy, the first response is taken and the other exchange is cancelled.
+ */
+public class PooledHttpDownloader extends AbstractDownloader implements Closeable {
+
+    private final static String FAILURE_IO = "io_error";
+    private final static String FAILURE_TIMEOUT = "timeout";
+    private final static String FAILURE_INTERRUPTED = "interrupted";
+
+    private final Logger logger = LoggerFactory.getLogger(PooledHttpDownloader.class);
+
+    private final CloseableHttpAsyncClient httpClient;
+    private final Semaphore inFlightPermits;
+    private final int maxInFlight;
+
+    private AdaptiveRateController rateController;
+    private RetryPolicy retryPolicy;
+    private HedgingPolicy hedgingPolicy;
+
+    private final List<DownloadEventListener> listeners = new CopyOnWriteArrayList<>();
+
+    public PooledHttpDownloader(int maxInFlight) {
+        this(maxInFlight, 2);
+    }
+
+    public PooledHttpDownloader(int maxInFlight, int ioThreads) {
+        this.maxInFlight = maxInFlight;
+        this.inFlightPermits = new Semaphore(maxInFlight);
+
+        try {
+            PoolingNHttpClientConnectionManager connectionManager = new PoolingNHttpClientConnectionManager(
+                    new DefaultConnectingIOReactor(IOReactorConfig.custom()
+                            .setIoThreadCount(ioThreads)
+                            .setSoKeepAlive(true)
+                            .setTcpNoDelay(true)
+                            .build()));
+
+            connectionManager.setMaxTotal(maxInFlight);
+            connectionManager.setDefaultMaxPerRoute(maxInFlight);
+
+            this.httpClient = HttpAsyncClients.custom()
+                    .setConnectionManager(connectionManager)
+                    .setKeepAliveStrategy(DefaultConnectionKeepAliveStrategy.INSTANCE)
+                    .build();
+
+        } catch (IOReactorException e) {
+            throw new IllegalStateException("could_not_create_io_reactor", e);
+        }
+
+        this.httpClient.start();
+    }
+
+    /**
+     * Let a controller decide concurrency and spacing of requests per domain.
+     * Server errors (429 and 5xx) and I/O failures are reported to it as congestion.
+     */
+    public PooledHttpDownloader setRateController(AdaptiveRateController rateController) {
+        this.rateController = rateController;
+        return this;
+    }
+
+    public AdaptiveRateController getRateController() {
+        return rateController;
+    }
+
+    /**
+     * Retry failed downloads (I/O errors, timeouts, 429 and 5xx) by the policy,
+     * without a policy every request is sent once.
+     */
+    public PooledHttpDownloader setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+        return this;
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * Hedge slow requests by the policy, without a policy no request is hedged
+     */
+    public PooledHttpDownloader setHedgingPolicy(HedgingPolicy hedgingPolicy) {
+        this.hedgingPolicy = hedgingPolicy;
+        return this;
+    }
+
+    public HedgingPolicy getHedgingPolicy() {
+        return hedgingPolicy;
+    }
+
+    public PooledHttpDownloader addListener(DownloadEventListener listener) {
+        listeners.add(listener);
+        return this;
+    }
+
+    public void removeListener(DownloadEventListener listener) {
+        listeners.remove(listener);
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    /**
+     * Requests waiting for response now
+     */
+    public int getInFlight() {
+        return maxInFlight - inFlightPermits.availablePermits();
+    }
+
+    /**
+     * Send a request asynchronously
+     * <p>
+     * Blocks only if max in-flight requests reached, or the rate controller asks to wait.
+     *
+     * @param request webmagic request
+     * @param site    site settings, headers, cookies and timeout are taken from it
+     * @return future of the downloaded page, failed if an I/O error occurred
+     */
+    public CompletableFuture<Page> execute(Request request, Site site) {
+        CompletableFuture<Page> future = new CompletableFuture<>();
+
+        AdaptiveRateController controller = this.rateController;
+        String domain = AdaptiveRateController.domainOf(request.getUrl());
+
+        try {
+            if (controller != null) controller.acquire(domain);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.completeExceptionally(e);
+            return future;
+        }
+
+        try {
+            inFlightPermits.acquire();
+        } catch (InterruptedException e) {
+            if (controller != null) controller.release(domain, 0, false);
+            Thread.currentThread().interrupt();
+            future.completeExceptionally(e);
+            return future;
+        }
+
+        String charset = request.getCharset() != null ? request.getCharset() : site.getCharset();
+        long startTime = System.currentTimeMillis();
+
+        try {
+            Future<HttpResponse> exchange = httpClient.execute(convertRequest(request, site), convertContext(request, site), new FutureCallback<HttpResponse>() {
+                @Override
+                public void completed(HttpResponse httpResponse) {
+                    int statusCode = httpResponse.getStatusLine().getStatusCode();
+                    release(statusCode == 429 || statusCode >= 500);
+                    try {
+                        future.complete(handleResponse(request, charset, httpResponse));
+                    } catch (IOException | RuntimeException e) {
+                        future.completeExceptionally(e);
+                    }
+                }
+
+                @Override
+                public void failed(Exception e) {
+                    release(true);
+                    future.completeExceptionally(e);
+                }
+
+                @Override
+                public void cancelled() {
+                    release(false);
+                    future.cancel(false);
+                }
+
+                private void release(boolean congested) {
+                    inFlightPermits.release();
+                    if (controller != null)
+                        controller.release(domain, System.currentTimeMillis() - startTime, congested);
+                }
+            });
+
+            // Abort the exchange when the caller gave up, e.g. timed out or a hedge answered first
+            future.whenComplete((page, e) -> {
+                if (future.isCancelled()) exchange.cancel(true);
+            });
+        } catch (RuntimeException e) {
+            inFlightPermits.release();
+            if (controller != null) controller.release(domain, 0, false);
+            future.completeExceptionally(e);
+        }
+
+        return future;
+    }
+
+    @Override
+    public Page download(Request request, Task task) {
+        if (task == null || task.getSite() == null)
+            throw new NullPointerException("task or site can not be null");
+
+        Site site = task.getSite();
+        RetryPolicy policy = this.retryPolicy;
+        if (policy == null) return downloadOnce(request, site).page;
+
+        policy.onRequest();
+        CircuitBreaker circuit = policy.circuitOf(request.getUrl());
+
+        for (int retried = 0; ; retried++) {
+            try {
+                circuit.awaitPermission();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+
+            Attempt attempt = downloadOnce(request, site);
+            Page page = attempt.page;
+            String reason = attempt.failure != null ? attempt.failure
+                    : policy.isRetryable(page.getStatusCode()) ? "http_" + page.getStatusCode() : null;
+
+            if (reason == null) {
+                circuit.onSuccess();
+                return page;
+            }
+
+            circuit.onFailure();
+            if (Thread.currentThread().isInterrupted()) break;
+
+            if (!policy.tryRetry(retried)) {
+                listeners.forEach(listener -> listener.onGiveUp(request, reason));
+                return page;
+            }
+
+            long delay = Math.max(policy.backoffMillis(retried), retryAfterMillisOf(page));
+            int attemptNumber = retried + 1;
+            listeners.forEach(listener -> listener.onRetry(request, attemptNumber, delay, reason));
+            logger.debug("retry {} after {}ms, reason {}", request.getUrl(), delay, reason);
+
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        return Page.fail();
+    }
+
+    private Attempt downloadOnce(Request request, Site site) {
+        HedgingPolicy hedging = this.hedgingPolicy;
+        boolean hedged = hedging != null && hedging.matches(request.getUrl());
+        if (hedged) hedging.onRequest();
+
+        CompletableFuture<Page> future = execute(request, site);
+        long startTime = System.currentTimeMillis();
+        String failure;
+
+        // Socket timeout applies per read, give the whole exchange some more time
+        long deadline = startTime + site.getTimeOut() * 3L;
+
+        try {
+            if (hedged) future = hedge(request, site, hedging, future, startTime);
+            Page page = future.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            onSuccess(request);
+
+            long latency = System.currentTimeMillis() - startTime;
+            long bytes = page.getBytes() == null ? 0 : page.getBytes().length;
+            listeners.forEach(listener -> listener.onDownloaded(request, page.getStatusCode(), bytes, latency));
+            logger.debug("downloading page success {}", request.getUrl());
+            return new Attempt(page, null);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.cancel(true);
+            failure = FAILURE_INTERRUPTED;
+        } catch (ExecutionException | TimeoutException e) {
+            future.cancel(true);
+            Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+            logger.warn("download page {} error", request.getUrl(), cause);
+            failure = cause instanceof TimeoutException || cause instanceof SocketTimeoutException ? FAILURE_TIMEOUT : FAILURE_IO;
+        }
+
+        onError(request);
+        return new Attempt(Page.fail(), failure);
+    }
+
+    /*
+     * Wait for the primary exchange until the hedging delay, then race it with a duplicate.
+     * The first successful response wins and the other exchange is cancelled, the race
+     * fails only if both fail. Latencies of matching requests are recorded to the policy.
+     */
+    private CompletableFuture<Page> hedge(Request request,
+                                          Site site,
+                                          HedgingPolicy hedging,
+                                          CompletableFuture<Page> primary,
+                                          long startTime) throws InterruptedException {
+
+        primary.thenAccept(page -> hedging.record(System.currentTimeMillis() - startTime));
+
+        long delay = hedging.delayMillis();
+        if (delay < 0) return primary;
+
+        try {
+            primary.get(delay, TimeUnit.MILLISECONDS);
+            return primary;
+        } catch (ExecutionException e) {
+            return primary;
+        } catch (TimeoutException e) {
+            if (!hedging.tryHedge()) return primary;
+        }
+
+        listeners.forEach(listener -> listener.onHedge(request, delay));
+        logger.debug("hedge {} after {}ms", request.getUrl(), delay);
+
+        CompletableFuture<Page> secondary = execute(request, site);
+        long hedgeTime = System.currentTimeMillis();
+        secondary.thenAccept(page -> hedging.record(System.currentTimeMillis() - hedgeTime));
+
+        CompletableFuture<Page> first = new CompletableFuture<>();
+        AtomicInteger failures = new AtomicInteger(0);
+
+        primary.whenComplete((page, e) -> {
+            if (e == null) {
+                if (first.complete(page)) secondary.cancel(true);
+            } else if (failures.incrementAndGet() == 2) first.completeExceptionally(e);
+        });
+
+        secondary.whenComplete((page, e) -> {
+            if (e == null) {
+                if (first.complete(page)) {
+                    primary.cancel(true);
+                    listeners.forEach(listener -> listener.onHedgeWon(request));
+                }
+            } else if (failures.incrementAndGet() == 2) first.completeExceptionally(e);
+        });
+
+        first.whenComplete((page, e) -> {
+            if (!first.isCancelled()) return;
+            primary.cancel(true);
+            secondary.cancel(true);
+        });
+
+        return first;
+    }
+
+    /*
+     * Retry-After in seconds sent with 429 and 503, http-date form is ignored
+     */
+    private static long retryAfterMillisOf(Page page) {
+        if (page.getHeaders() == null) return 0;
+        for (Map.Entry<String, List<String>> header : page.getHeaders().entrySet()) {
+            if (header.getKey() == null || !header.getKey().equalsIgnoreCase("Retry-After")) continue;
+            if (header.getValue() == null || header.getValue().isEmpty()) return 0;
+            try {
+                return TimeUnit.SECONDS.toMillis(Long.parseLong(header.getValue().get(0).trim()));
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Connection pool is sized by max in-flight requests, spider thread count does not matter
+     */
+    @Override
+    public void setThread(int threadNum) {
+    }
+
+    @Override
+    public void close() throws IOException {
+        httpClient.close();
+    }
+
+    /*
+     * Request conversion, same as HttpUriRequestConverter of webmagic
+     */
+    private HttpUriRequest convertRequest(Request request, Site site) {
+        String method = request.getMethod() == null ? HttpConstant.Method.GET : request.getMethod().toUpperCase();
+
+        RequestBuilder requestBuilder = RequestBuilder
+                .create(method)
+                .setUri(UrlUtils.fixIllegalCharacterInUrl(request.getUrl()));
+
+        if (request.getRequestBody() != null) {
+            ByteArrayEntity entity = new ByteArrayEntity(request.getRequestBody().getBody());
+            entity.setContentType(request.getRequestBody().getContentType());
+            requestBuilder.setEntity(entity);
+        }
+
+        requestBuilder.setConfig(RequestConfig.custom()
+                .setConnectionRequestTimeout(site.getTimeOut())
+                .setSocketTimeout(site.getTimeOut())
+                .setConnectTimeout(site.getTimeOut())
+                .setCookieSpec(CookieSpecs.STANDARD)
+                .build());
+
+        requestBuilder.addHeader("User-Agent", site.getUserAgent() == null ? "" : site.getUserAgent());
+        if (site.isUseGzip()) requestBuilder.addHeader("Accept-Encoding", "gzip, deflate");
+
+        for (Map.Entry<String, String> header : site.getHeaders().entrySet())
+            requestBuilder.addHeader(header.getKey(), header.getValue());
+
+        HttpUriRequest httpUriRequest = requestBuilder.build();
+
+        if (request.getHeaders() != null)
+            for (Map.Entry<String, String> header : request.getHeaders().entrySet())
+                httpUriRequest.setHeader(header.getKey(), header.getValue());
+
+        return httpUriRequest;
+    }
+
+    /*
+     * Cookies are read from site for every request, so cookies
+     * changed after spider started (e.g. re-login) take effect immediately.
+     */
+    private HttpClientContext convertContext(Request request, Site site) {
+        HttpClientContext context = HttpClientContext.create();
+        if (site.isDisableCookieManagement()) return context;
+
+        CookieStore cookieStore = new BasicCookieStore();
+        String requestDomain = UrlUtils.removePort(UrlUtils.getDomain(request.getUrl()));
+
+        for (Map.Entry<String, String> cookieEntry : site.getCookies().entrySet())
+            cookieStore.addCookie(createCookie(cookieEntry.getKey(), cookieEntry.getValue(), site.getDomain()));
+
+        for (Map.Entry<String, Map<String, String>> domainEntry : site.getAllCookies().entrySet())
+            for (Map.Entry<String, String> cookieEntry : domainEntry.getValue().entrySet())
+                cookieStore.addCookie(createCookie(cookieEntry.getKey(), cookieEntry.getValue(), domainEntry.getKey()));
+
+        if (request.getCookies() != null)
+            for (Map.Entry<String, String> cookieEntry : request.getCookies().entrySet())
+                cookieStore.addCookie(createCookie(cookieEntry.getKey(), cookieEntry.getValue(), requestDomain));
+
+        context.setCookieStore(cookieStore);
+        return context;
+    }
+
+    private static BasicClientCookie createCookie(String name, String value, String domain) {
+        BasicClientCookie cookie = new BasicClientCookie(name, value);
+        cookie.setDomain(domain);
+        return cookie;
+    }
+
+    private Page handleResponse(Request request, String charset, HttpResponse httpResponse) throws IOException {
+        HttpEntity entity = httpResponse.getEntity();
+
+        byte[] bytes = entity == null ? new byte[0] : decode(entity);
+        String contentType = entity == null || entity.getContentType() == null ? "" : entity.getContentType().getValue();
+
+        Page page = new Page();
+        page.setBytes(bytes);
+        if (!request.isBinaryContent()) {
+            if (charset == null) charset = CharsetUtils.detectCharset(contentType, bytes);
+            if (charset == null) charset = Charset.defaultCharset().name();
+            page.setCharset(charset);
+            page.setRawText(new String(bytes, charset));
+        }
+        page.setUrl(new PlainText(request.getUrl()));
+        page.setRequest(request);
+        page.setStatusCode(httpResponse.getStatusLine().getStatusCode());
+        page.setDownloadSuccess(true);
+        page.setHeaders(HttpClientUtils.convertHeaders(httpResponse.getAllHeaders()));
+        return page;
+    }
+
+    private static byte[] decode(HttpEntity entity) throws IOException {
+        Header encoding = entity.getContentEncoding();
+        String encodingName = encoding == null ? "" : encoding.getValue().trim().toLowerCase();
+
+        try (InputStream content = entity.getContent()) {
+            if (encodingName.isEmpty() || encodingName.equals("identity")) return IOUtils.toByteArray(content);
+
+            byte[] raw = IOUtils.toByteArray(content);
+            if (encodingName.equals("gzip") || encodingName.equals("x-gzip"))
+                return IOUtils.toByteArray(new GZIPInputStream(new ByteArrayInputStream(raw)));
+            if (encodingName.equals("deflate"))
+                return IOUtils.toByteArray(new InflaterInputStream(new ByteArrayInputStream(raw)));
+
+            return raw;
+        }
+    }
+
+    /*
+     * Page of a single attempt, failure is the reason code if no response received
+     */
+    private static class Attempt {
+        private final Page page;
+        private final String failure;
+
+        private Attempt(Page page, String failure) {
+            this.page = page;
+            this.failure = failure;
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package com.shinonometn.re.ssim.service.caterpillar.downloader;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Retry policy of a capture task
+ * <p>
+ * Failed requests (I/O errors, timeouts, 429 and 5xx) are retried after an exponential
+ * backoff with full jitter, at most {@code maxRetries} times each. All retries of the task
+ * share a budget of {@code minRetries + budgetRatio * requests}, so an overloaded server
+ * sees less traffic from us instead of a retry storm.
+ * <p>
+ * Each endpoint (url pattern) has a {@link CircuitBreaker}, requests matching no
+ * pattern share a default one. One policy should be shared by all spiders of a task.
+ */
+public class RetryPolicy {
+
+    private final static String DEFAULT_CIRCUIT = "default";
+
+    private final int maxRetries;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+    private final int minRetries;
+    private final double budgetRatio;
+
+    private final List<CircuitBreaker> circuits;
+    private final CircuitBreaker defaultCircuit;
+
+    private final AtomicLong requestCount = new AtomicLong(0);
+    private final AtomicLong retryCount = new AtomicLong(0);
+
+    private final List<DownloadEventListener> listeners = new CopyOnWriteArrayList<>();
+
+    private RetryPolicy(Builder builder) {
+        this.maxRetries = builder.maxRetries;
+        this.baseDelayMillis = builder.baseDelayMillis;
+        this.maxDelayMillis = Math.max(builder.baseDelayMillis, builder.maxDelayMillis);
+        this.minRetries = builder.minRetries;
+        this.budgetRatio = builder.budgetRatio;
+
+        List<CircuitBreaker> circuits = new ArrayList<>();
+        builder.circuitPatterns.forEach((name, pattern) -> circuits.add(builder.createCircuit(name, pattern)));
+        this.circuits = Collections.unmodifiableList(circuits);
+        this.defaultCircuit = builder.createCircuit(DEFAULT_CIRCUIT, null);
+
+        this.circuits.forEach(this::listenTo);
+        listenTo(defaultCircuit);
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Circuit of the endpoint a url belongs to
+     */
+    public CircuitBreaker circuitOf(String url) {
+        for (CircuitBreaker circuit : circuits) if (circuit.matches(url)) return circuit;
+        return defaultCircuit;
+    }
+
+    /**
+     * Count a new request, it raises the retry budget
+     */
+    public void onRequest() {
+        requestCount.incrementAndGet();
+    }
+
+    /**
+     * Server asks to slow down or failed, a retry may success
+     */
+    public boolean isRetryable(int statusCode) {
+        return statusCode == 429 || (statusCode >= 500 && statusCode != 501);
+    }
+
+    /**
+     * Take a retry from the budget
+     *
+     * @param retried times the request already retried
+     * @return false if the request should not be retried any more
+     */
+    public boolean tryRetry(int retried) {
+        if (retried >= maxRetries) return false;
+
+        while (true) {
+            long retries = retryCount.get();
+            if (retries >= minRetries + budgetRatio * requestCount.get()) return false;
+            if (retryCount.compareAndSet(retries, retries + 1)) return true;
+        }
+    }
+
+    /**
+     * Delay before the next attempt, random between zero and the exponential backoff
+     *
+     * @param retried times the request already retried
+     */
+    public long backoffMillis(int retried) {
+        long ceiling = baseDelayMillis << Math.min(retried, 20);
+        ceiling = ceiling <= 0 ? maxDelayMillis : Math.min(maxDelayMillis, ceiling);
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    public long getRetryCount() {
+        return retryCount.get();
+    }
+
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * Names of circuits not closed now
+     */
+    public List<String> getOpenCircuits() {
+        List<CircuitBreaker> all = new ArrayList<>(circuits);
+        all.add(defaultCircuit);
+        return all.stream()
+                .filter(circuit -> circuit.getState() != CircuitBreaker.State.CLOSED)
+                .map(CircuitBreaker::getName)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Listen to circuit changes, retries are reported by downloaders
+     */
+    public RetryPolicy addListener(DownloadEventListener listener) {
+        listeners.add(listener);
+        return this;
+    }
+
+    public void removeListener(DownloadEventListener listener) {
+        listeners.remove(listener);
+    }
+
+    private void listenTo(CircuitBreaker circuit) {
+        circuit.setStateListener((c, state) ->
+                listeners.forEach(listener -> listener.onCircuitStateChange(c.getName(), state)));
+    }
+
+    public static class Builder {
+
+        private int maxRetries = 8;
+        private long baseDelayMillis = 500;
+        private long maxDelayMillis = 30 * 1000;
+        private int minRetries = 10;
+        private double budgetRatio = 0.2;
+
+        private int failureThreshold = 5;
+        private long coolDownMillis = 30 * 1000;
+        private long maxCoolDownMillis = 5 * 60 * 1000;
+
+        private final Map<String, Pattern> circuitPatterns = new LinkedHashMap<>();
+
+        private Builder() {
+        }
+
+        /**
+         * Max retries of a single request
+         */
+        public Builder maxRetries(int maxRetries) {
+            this.maxRetries = maxRetries;
+            return this;
+        }
+
+        /**
+         * Backoff starts from base delay and doubles for each retry, up to max delay
+         */
+        public Builder backoff(long baseDelayMillis, long maxDelayMillis) {
+            this.baseDelayMillis = baseDelayMillis;
+            this.maxDelayMillis = maxDelayMillis;
+            return this;
+        }
+
+        /**
+         * Retries of the task are limited to {@code minRetries + ratio * requests}
+         */
+        public Builder budget(int minRetries, double ratio) {
+            this.minRetries = minRetries;
+            this.budgetRatio = ratio;
+            return this;
+        }
+
+        /**
+         * Circuits open after failures in a row, and stay open for the cool down
+         */
+        public Builder circuitBreaking(int failureThreshold, long coolDownMillis, long maxCoolDownMillis) {
+            this.failureThreshold = failureThreshold;
+            this.coolDownMillis = coolDownMillis;
+            this.maxCoolDownMillis = maxCoolDownMillis;
+            return this;
+        }
+
+        /**
+         * Add an endpoint with its own circuit, patterns are matched in added order
+         */
+        public Builder circuit(String name, String urlPattern) {
+            circuitPatterns.put(name, Pattern.compile(urlPattern));
+            return this;
+        }
+
+        public RetryPolicy build() {
+            return new RetryPolicy(this);
+        }
+
+        private CircuitBreaker createCircuit(String name, Pattern pattern) {
+            return new CircuitBreaker(name, pattern, failureThreshold, coolDownMillis, maxCoolDownMillis);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.shinonometn.re.ssim.service.caterpillar.kingo;
+
+import com.shinonometn.re.ssim.service.caterpillar.common.StringPool;
+import com.shinonometn.re.ssim.service.caterpillar.kingo.pojo.Course;
+import com.shinonometn.re.ssim.service.caterpillar.kingo.pojo.Lesson;
+
+import java.util.List;
+
+/**
+ * String pool of a term's courses
+ * <p>
+ * Term, unit and the lesson fields shared between courses (teacher, class type,
+ * assessment type, position and attending classes) point to pooled instances after
+ * interning. Names and codes are unique per course, so they are left as they are.
+ */
+public class CourseStringPool extends StringPool {
+
+    public CourseStringPool() {
+        super();
+    }
+
+    public CourseStringPool(int maxEntries, int maxLength) {
+        super(maxEntries, maxLength);
+    }
+
+    /**
+     * Intern strings of a course and its lessons in place
+     *
+     * @param course course, could be null
+     * @return the same course
+     */
+    public Course internCourse(Course course) {
+        if (course == null) return null;
+
+        course.setTerm(intern(course.getTerm()));
+        course.setUnit(intern(course.getUnit()));
+        internLessons(course.getLessons());
+
+        return course;
+    }
+
+    /**
+     * Intern strings of lessons in place
+     *
+     * @param lessons lessons, could be null
+     */
+    public void internLessons(List<Lesson> lessons) {
+        if (lessons == null) return;
+
+        for (Lesson lesson : lessons) {
+            lesson.setTeacher(intern(lesson.getTeacher()));
+            lesson.setClassNumber(intern(lesson.getClassNumber()));
+            lesson.setClassType(intern(lesson.getClassType()));
+            lesson.setAssessmentType(intern(lesson.getAssessmentType()));
+            lesson.setPosition(intern(lesson.getPosition()));
+            lesson.setClassAttend(internAll(lesson.getClassAttend()));
+        }
+    }
+}
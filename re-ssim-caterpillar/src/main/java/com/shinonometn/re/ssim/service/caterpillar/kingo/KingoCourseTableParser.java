@@ -0,0 +1,384 @@
+package com.shinonometn.re.ssim.service.caterpillar.kingo;
+
+import com.shinonometn.re.ssim.service.caterpillar.kingo.pojo.Course;
+import com.shinonometn.re.ssim.service.caterpillar.kingo.pojo.Lesson;
+import com.shinonometn.re.ssim.service.caterpillar.kingo.pojo.TimePoint;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.jsoup.select.Elements;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Course detail page parser walking the element tree once
+ * <p>
+ * Produces the same output as {@link KingoRawCourseParser}, but finds tables
+ * and rows by walking children instead of css selecting the whole subtree,
+ * and expands week ranges and time points by scanning characters into
+ * primitive arrays, without regex splitting or boxed lists.
+ * <p>
+ * Pages missing a part of the course table or having malformed fields are
+ * rejected with an {@link IllegalArgumentException}, number fields throw its
+ * subclass {@link NumberFormatException}.
+ */
+public final class KingoCourseTableParser {
+
+    public final static String COURSE_TABLE_INCOMPLETE = "course_table_incomplete";
+
+    private final static char NBSP = 160;
+    private final static char FIELD_SEPARATOR = '：';
+    private final static Pattern CLASS_SEPARATOR = Pattern.compile(" ");
+
+    private final static int PARITY_ANY = 0;
+    private final static int PARITY_ODD = 1;
+    private final static int PARITY_EVEN = 2;
+
+    private KingoCourseTableParser() {
+    }
+
+    public static Course parseFromHTML(Document document) {
+        Course subject = new Course();
+
+        Element root = firstDescendant(document, "table");
+        if (root == null) throw new IllegalArgumentException(COURSE_TABLE_INCOMPLETE);
+
+        // Term, title and lesson tables, in document order
+        Element[] tables = new Element[3];
+        int tableCount = collectDescendants(root, "table", tables);
+        if (tableCount <= 0) return subject;
+        if (tableCount < 3) throw new IllegalArgumentException(COURSE_TABLE_INCOMPLETE);
+
+        processSubjectTerm(subject, tables[0]);
+        processSubjectTitle(subject, tables[1]);
+        subject.setLessons(processLessonList(tables[2]));
+
+        return subject;
+    }
+
+    private static void processSubjectTerm(Course subject, Element tableElement) {
+        Element[] rows = new Element[2];
+        if (collectDescendants(tableElement, "tr", rows) < 2) throw new IllegalArgumentException(COURSE_TABLE_INCOMPLETE);
+        subject.setTerm(rows[1].children().text());
+    }
+
+    private static void processSubjectTitle(Course subject, Element tableElement) {
+        Element field = firstDescendant(tableElement, "td");
+        if (field == null) throw new IllegalArgumentException(COURSE_TABLE_INCOMPLETE);
+
+        String text = field.text();
+        int start = 0;
+        while (start <= text.length()) {
+            int end = text.indexOf(NBSP, start);
+            if (end < 0) end = text.length();
+
+            int colon = text.indexOf(FIELD_SEPARATOR, start);
+            if (colon >= 0 && colon < end) {
+                int valueEnd = text.indexOf(FIELD_SEPARATOR, colon + 1);
+                if (valueEnd < 0 || valueEnd > end) valueEnd = end;
+                applyTitleField(subject, text.substring(start, colon), text.substring(colon + 1, valueEnd));
+            }
+
+            start = end + 1;
+        }
+    }
+
+    private static void applyTitleField(Course subject, String name, String value) {
+        switch (name) {
+            case "承担单位":
+                subject.setUnit(value);
+                break;
+            case "课程":
+                subject.setNameWithCode(value);
+                break;
+            case "总学时":
+                subject.setTimeSpend(Double.parseDouble(value));
+                break;
+            case "学分":
+                subject.setPoint(Double.parseDouble(value));
+                break;
+            default:
+                break;
+        }
+    }
+
+    private static List<Lesson> processLessonList(Element tableElement) {
+        List<Element> rows = new ArrayList<>();
+        collectDescendants(tableElement, "tr", rows);
+
+        List<Lesson> lessons = new ArrayList<>(rows.size());
+        Lesson lessonLatest = null;
+
+        for (Element row : rows) {
+            Elements cells = row.children();
+
+            // Header rows have a width on their first cell
+            if (cells.isEmpty() || !cells.get(0).attr("width").isEmpty()) continue;
+
+            Lesson lesson = new Lesson();
+            String weekRange = "";
+            String timePoints = "";
+
+            for (int i = 0; i < cells.size() && i < 9; i++) {
+                String c = cells.get(i).text().trim();
+                boolean fillLatest = c.isEmpty() && lessonLatest != null;
+                switch (i) {
+                    case 0:
+                        lesson.setTeacher(fillLatest ? lessonLatest.getTeacher() : c);
+                        break;
+                    case 1:
+                        lesson.setClassNumber(fillLatest ? lessonLatest.getClassNumber() : c);
+                        break;
+                    case 2:
+                        lesson.setAttendAmount(fillLatest ? lessonLatest.getAttendAmount() : Integer.valueOf(c));
+                        break;
+                    case 3:
+                        lesson.setClassType(fillLatest ? lessonLatest.getClassType() : c);
+                        break;
+                    case 4:
+                        lesson.setAssessmentType(fillLatest ? lessonLatest.getAssessmentType() : c);
+                        break;
+                    case 5:
+                        lesson.setClassAttend(fillLatest ? lessonLatest.getClassAttend() : CLASS_SEPARATOR.split(c));
+                        break;
+                    case 6:
+                        weekRange = c;
+                        break;
+                    case 7:
+                        timePoints = c;
+                        break;
+                    case 8:
+                        lesson.setPosition(c);
+                        break;
+                    default:
+                        break;
+                }
+            }
+
+            lesson.setTimePoint(expandTimePoints(weekRange, timePoints));
+            lessons.add(lesson);
+            lessonLatest = lesson;
+        }
+
+        return lessons;
+    }
+
+    /**
+     * Expand course time points from a chinese form
+     * <p>
+     * input  : "1-4,6", "三[3-4节]双"
+     * output : week 2, 4 and 6 on wednesday, turn 3 and 4
+     *
+     * @param weekRanges week ranges
+     * @param timePoints weekday, turns and optional odd or even mark
+     * @return time points, week by week
+     */
+    public static List<TimePoint> expandTimePoints(String weekRanges, String timePoints) {
+        int[] weeks = expandWeeks(weekRanges);
+
+        // Tokens between '[' and ']', just like splitting by them
+        int firstBracket = indexOfBracket(timePoints, 0);
+        if (firstBracket < 0) throw new IllegalArgumentException("turns_not_found:" + timePoints);
+        int secondBracket = indexOfBracket(timePoints, firstBracket + 1);
+        int turnsEnd = secondBracket < 0 ? timePoints.length() : secondBracket;
+        int thirdBracket = secondBracket < 0 ? -1 : indexOfBracket(timePoints, secondBracket + 1);
+
+        int day = weekdayOf(timePoints, 0, firstBracket);
+        int parity = secondBracket < 0
+                ? PARITY_ANY
+                : parityOf(timePoints, secondBracket + 1, thirdBracket < 0 ? timePoints.length() : thirdBracket);
+
+        int dash = indexOf(timePoints, '-', firstBracket + 1, turnsEnd);
+        int turnStart, turnEnd;
+        if (dash < 0 || isBlankRange(timePoints, dash + 1, indexOfOrEnd(timePoints, '-', dash + 1, turnsEnd))) {
+            turnStart = parseInt(timePoints, firstBracket + 1, dash < 0 ? turnsEnd : dash);
+            turnEnd = turnStart;
+        } else {
+            turnStart = parseInt(timePoints, firstBracket + 1, dash);
+            turnEnd = parseInt(timePoints, dash + 1, indexOfOrEnd(timePoints, '-', dash + 1, turnsEnd));
+        }
+
+        List<TimePoint> results = new ArrayList<>(weeks.length * Math.max(1, turnEnd - turnStart + 1));
+        for (int week : weeks) {
+            if (parity == PARITY_EVEN && week % 2 != 0) continue;
+            if (parity == PARITY_ODD && week % 2 == 0) continue;
+
+            for (int turn = turnStart; turn <= turnEnd; turn++) results.add(new TimePoint(week, day, turn));
+        }
+        return results;
+    }
+
+    /**
+     * Expand week ranges
+     * <p>
+     * input  : "1-6,9-14"
+     * output : [1,2,3,4,5,6,9,10,11,12,13,14]
+     */
+    static int[] expandWeeks(String weekRanges) {
+        int[] weeks = new int[32];
+        int count = 0;
+
+        // Trailing commas are ignored, like splitting by them
+        int length = weekRanges.length();
+        while (length > 0 && weekRanges.charAt(length - 1) == ',') length--;
+        if (length == 0 && !weekRanges.isEmpty()) return new int[0];
+
+        int start = 0;
+        while (start <= length) {
+            int end = indexOfOrEnd(weekRanges, ',', start, length);
+
+            // Like splitting by '-': first and last non trailing parts
+            int firstDash = indexOf(weekRanges, '-', start, end);
+            int rangeEnd = end;
+            while (rangeEnd > start && weekRanges.charAt(rangeEnd - 1) == '-') rangeEnd--;
+            int lastDash = weekRanges.lastIndexOf('-', rangeEnd - 1);
+
+            int from, to;
+            if (firstDash < 0 || firstDash >= rangeEnd) {
+                from = to = parseInt(weekRanges, start, firstDash < 0 ? end : firstDash);
+            } else {
+                from = parseInt(weekRanges, start, firstDash);
+                to = parseInt(weekRanges, lastDash + 1, rangeEnd);
+            }
+
+            for (int week = from; week <= to; week++) {
+                if (count == weeks.length) {
+                    int[] grown = new int[weeks.length * 2];
+                    System.arraycopy(weeks, 0, grown, 0, count);
+                    weeks = grown;
+                }
+                weeks[count++] = week;
+            }
+
+            start = end + 1;
+        }
+
+        int[] result = new int[count];
+        System.arraycopy(weeks, 0, result, 0, count);
+        return result;
+    }
+
+    private static int weekdayOf(String s, int start, int end) {
+        int length = 0;
+        char day = 0;
+        for (int i = start; i < end; i++) {
+            if (s.charAt(i) == '节') continue;
+            day = s.charAt(i);
+            length++;
+        }
+        if (length != 1) throw new IllegalArgumentException("unknown_weekday:" + s);
+
+        switch (day) {
+            case '日':
+                return 0;
+            case '一':
+                return 1;
+            case '二':
+                return 2;
+            case '三':
+                return 3;
+            case '四':
+                return 4;
+            case '五':
+                return 5;
+            case '六':
+                return 6;
+            default:
+                throw new IllegalArgumentException("unknown_weekday:" + s);
+        }
+    }
+
+    private static int parityOf(String s, int start, int end) {
+        int length = 0;
+        char mark = 0;
+        for (int i = start; i < end; i++) {
+            if (s.charAt(i) == '节') continue;
+            mark = s.charAt(i);
+            length++;
+        }
+        if (length != 1) return PARITY_ANY;
+        if (mark == '单') return PARITY_ODD;
+        if (mark == '双') return PARITY_EVEN;
+        return PARITY_ANY;
+    }
+
+    /*
+     * Parse decimal digits in range, '节' is ignored as the old parser removed it before splitting
+     */
+    private static int parseInt(String s, int start, int end) {
+        int result = 0;
+        int digits = 0;
+        boolean negative = false;
+
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c == '节') continue;
+            if (digits == 0 && !negative && (c == '-' || c == '+')) {
+                negative = c == '-';
+                continue;
+            }
+            if (c < '0' || c > '9') throw new NumberFormatException("For input string: \"" + s.substring(start, end) + "\"");
+            result = result * 10 + (c - '0');
+            digits++;
+        }
+
+        if (digits == 0) throw new NumberFormatException("For input string: \"" + s.substring(start, end) + "\"");
+        return negative ? -result : result;
+    }
+
+    private static boolean isBlankRange(String s, int start, int end) {
+        for (int i = start; i < end; i++) if (s.charAt(i) != '节') return false;
+        return true;
+    }
+
+    private static int indexOfBracket(String s, int from) {
+        for (int i = from; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '[' || c == ']') return i;
+        }
+        return -1;
+    }
+
+    private static int indexOf(String s, char c, int from, int end) {
+        for (int i = from; i < end; i++) if (s.charAt(i) == c) return i;
+        return -1;
+    }
+
+    private static int indexOfOrEnd(String s, char c, int from, int end) {
+        int index = indexOf(s, c, from, end);
+        return index < 0 ? end : index;
+    }
+
+    /*
+     * Depth first walk, elements are visited in document order, the start element itself is not included
+     */
+    private static Element firstDescendant(Element element, String tagName) {
+        for (Element child : element.children()) {
+            if (child.tagName().equals(tagName)) return child;
+            Element found = firstDescendant(child, tagName);
+            if (found != null) return found;
+        }
+        return null;
+    }
+
+    private static int collectDescendants(Element element, String tagName, Element[] found) {
+        return collectDescendants(element, tagName, found, 0);
+    }
+
+    private static int collectDescendants(Element element, String tagName, Element[] found, int count) {
+        for (Element child : element.children()) {
+            if (count == found.length) return count;
+            if (child.tagName().equals(tagName)) found[count++] = child;
+            count = collectDescendants(child, tagName, found, count);
+        }
+        return count;
+    }
+
+    private static void collectDescendants(Element element, String tagName, List<Element> found) {
+        for (Element child : element.children()) {
+            if (child.tagName().equals(tagName)) found.add(child);
+            collectDescendants(child, tagName, found);
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package com.shinonometn.re.ssim.service.caterpillar.kingo
+
+/**
+ * Page addresses of a kingo site under a base url
+ *
+ * [KingoUrls] are the addresses of Lingnan College, this is for
+ * other deployments of kingo and for local mock servers.
+ */
+class KingoEndpoints(baseUrl: String) {
+
+    val baseUrl = baseUrl.trimEnd('/')
+
+    val classInfoQueryPage = "${this.baseUrl}/ZNPK/KBFB_LessonSel.aspx"
+    val loginPageAddress = "${this.baseUrl}/_data/index_LOGIN.aspx"
+
+    val subjectListQueryPath = "${this.baseUrl}/ZNPK/Private/List_XNXQKC.aspx?xnxq="
+    val subjectQueryPage = "${this.baseUrl}/ZNPK/KBFB_LessonSel_rpt.aspx"
+
+    val calendarPage = "${this.baseUrl}/_data/index_lookxl.aspx"
+
+    companion object {
+        const val DEFAULT_BASE_URL = "http://jwgl.lnc.edu.cn"
+
+        @JvmField
+        val DEFAULT = KingoEndpoints(DEFAULT_BASE_URL)
+    }
+}
@@ -4,17 +4,32 @@ import com.shinonometn.re.ssim.service.caterpillar.common.SchoolCalendar;
 import com.shinonometn.re.ssim.service.caterpillar.common.SchoolDate;
 
 import java.time.DayOfWeek;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.time.temporal.ChronoUnit;
 import java.util.Date;
 
+/**
+ * School calendar of a kingo term
+ * <p>
+ * Weeks start from the week of the start date, the start date is aligned back to the
+ * day before its monday if it is not a monday. School dates of all days of the term
+ * are built into a table on the first lookup, a lookup is then an array access, and
+ * returns the same {@link SchoolDate} instance for the same day. Returned school dates
+ * are shared and should not be changed. Changing the calendar drops the table.
+ */
 public class KingoSchoolCalendar implements SchoolCalendar {
 
+    // Longer calendars are not real terms, they are computed on every lookup
+    private final static int MAX_TABLE_DAYS = 3660;
+
     private String name;
     private LocalDateTime startDate;
     private LocalDateTime endDate;
 
+    private volatile DayTable dayTable;
+
     public KingoSchoolCalendar() {
     }
 
@@ -31,6 +46,7 @@ public class KingoSchoolCalendar implements SchoolCalendar {
 
     public void setName(String name) {
         this.name = name;
+        this.dayTable = null;
     }
 
     public LocalDateTime getStartDate() {
@@ -39,6 +55,7 @@ public class KingoSchoolCalendar implements SchoolCalendar {
 
     public void setStartDate(LocalDateTime startDate) {
         this.startDate = startDate;
+        this.dayTable = null;
     }
 
     public LocalDateTime getEndDate() {
@@ -47,6 +64,7 @@ public class KingoSchoolCalendar implements SchoolCalendar {
 
     public void setEndDate(LocalDateTime endDate) {
         this.endDate = endDate;
+        this.dayTable = null;
     }
 
     public int getDaysOfTerm() {
@@ -54,6 +72,23 @@ public class KingoSchoolCalendar implements SchoolCalendar {
     }
 
     public SchoolDate getFromDateTime(LocalDateTime dateTime) {
+        DayTable table = dayTable();
+        if (table == null) return calculateFromDateTime(dateTime);
+
+        if (endDate.isBefore(dateTime)) return null;
+        if (table.startDateTime.isAfter(dateTime)) return null;
+
+        long index = dateTime.toLocalDate().toEpochDay() - table.firstEpochDay;
+        return index < table.dates.length ? table.dates[(int) index] : null;
+    }
+
+    /**
+     * School date of a date time computed without the table
+     *
+     * @param dateTime date time
+     * @return school date, null if not in the term
+     */
+    public SchoolDate calculateFromDateTime(LocalDateTime dateTime) {
         if (startDate.isAfter(endDate)) throw new IllegalArgumentException("startDate_after_endDate");
         if (endDate.isBefore(dateTime)) return null;
 
@@ -76,4 +111,46 @@ public class KingoSchoolCalendar implements SchoolCalendar {
         schoolDate.setDay(dayOfWeek);
         return schoolDate;
     }
+
+    private DayTable dayTable() {
+        DayTable table = dayTable;
+        if (table != null) return table;
+
+        if (startDate.isAfter(endDate)) throw new IllegalArgumentException("startDate_after_endDate");
+
+        LocalDateTime startDateTime = this.startDate;
+        DayOfWeek startWeekday = startDate.getDayOfWeek();
+        if (!startWeekday.equals(DayOfWeek.MONDAY)) startDateTime = startDateTime.minusDays(startWeekday.getValue());
+
+        LocalDate firstDate = startDateTime.toLocalDate();
+        long days = endDate.toLocalDate().toEpochDay() - firstDate.toEpochDay() + 1;
+        if (days > MAX_TABLE_DAYS) return null;
+
+        // Same as calculated: week is days passed divided by 7 rounded up, but not 0
+        SchoolDate[] dates = new SchoolDate[(int) days];
+        for (int i = 0; i < dates.length; i++) {
+            int week = (i + 6) / 7;
+            if (week == 0) week++;
+            dates[i] = new SchoolDate(name, week, firstDate.plusDays(i).getDayOfWeek());
+        }
+
+        table = new DayTable(startDateTime, firstDate.toEpochDay(), dates);
+        dayTable = table;
+        return table;
+    }
+
+    /*
+     * School dates by days since the aligned start date
+     */
+    private static class DayTable {
+        private final LocalDateTime startDateTime;
+        private final long firstEpochDay;
+        private final SchoolDate[] dates;
+
+        private DayTable(LocalDateTime startDateTime, long firstEpochDay, SchoolDate[] dates) {
+            this.startDateTime = startDateTime;
+            this.firstEpochDay = firstEpochDay;
+            this.dates = dates;
+        }
+    }
 }
@@ -0,0 +1,173 @@
+package com.shinonometn.re.ssim.service.caterpillar.kingo;
+
+import com.shinonometn.re.ssim.service.caterpillar.downloader.PooledHttpDownloader;
+import com.shinonometn.re.ssim.service.caterpillar.kingo.capture.LoginStatusPageProcessor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import us.codecraft.webmagic.Page;
+import us.codecraft.webmagic.Request;
+import us.codecraft.webmagic.Site;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Pool of authenticated kingo sessions
+ * <p>
+ * Sessions are keyed by caterpillar profile (see {@link #keyOf(String...)}) and
+ * stored as cookie sets. Each acquire returns a fresh site carrying the cookies,
+ * so tasks never share a mutable site. A session not used for a while is checked
+ * with {@link LoginStatusPageProcessor} with a single request before reuse, and
+ * dropped if server does not accept it anymore.
+ */
+public class KingoSessionPool implements Closeable {
+
+    private final Logger logger = LoggerFactory.getLogger(KingoSessionPool.class);
+
+    private final long revalidateAfterMillis;
+
+    // Reads cookies from site for every request, unlike HttpClientDownloader which caches them per domain.
+    // Created on first revalidation, so a pool never revalidating starts no I/O reactor
+    private PooledHttpDownloader downloader = null;
+
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+
+    public KingoSessionPool() {
+        this(60 * 1000);
+    }
+
+    /**
+     * @param revalidateAfterMillis sessions idle longer than it will be revalidated before reuse
+     */
+    public KingoSessionPool(long revalidateAfterMillis) {
+        this.revalidateAfterMillis = revalidateAfterMillis;
+    }
+
+    /**
+     * Get a logged in site
+     *
+     * @param key         session key of the profile
+     * @param siteFactory create a site of the profile
+     * @param login       login with the given site, cookies of the site after login are pooled.
+     *                    Should throw if login failed.
+     * @return a new site with session cookies
+     */
+    public Site acquire(String key, Supplier<Site> siteFactory, Consumer<Site> login) {
+        return acquire(key, siteFactory, login, KingoUrls.classInfoQueryPage);
+    }
+
+    /**
+     * Get a logged in site of a kingo site not at the default address
+     *
+     * @param statusPageUrl address of the lesson query page, used to check if a session is still logged in
+     * @see #acquire(String, Supplier, Consumer)
+     */
+    public Site acquire(String key, Supplier<Site> siteFactory, Consumer<Site> login, String statusPageUrl) {
+        Session session = sessions.computeIfAbsent(key, k -> new Session());
+
+        // Tasks of the same profile wait for one login instead of logging in together
+        synchronized (session) {
+            Site site = siteFactory.get();
+
+            if (session.cookies != null) {
+                session.applyTo(site);
+                if (System.currentTimeMillis() - session.lastValidated < revalidateAfterMillis || isLoggedIn(site, statusPageUrl)) {
+                    session.lastValidated = System.currentTimeMillis();
+                    logger.debug("Reuse kingo session {}.", key);
+                    return site;
+                }
+
+                logger.debug("Kingo session {} expired, login again.", key);
+                session.cookies = null;
+                site = siteFactory.get();
+            }
+
+            login.accept(site);
+
+            session.cookies = new HashMap<>(site.getCookies());
+            session.lastValidated = System.currentTimeMillis();
+            return site;
+        }
+    }
+
+    /**
+     * Drop a session, e.g. server redirected a capture to the login page
+     *
+     * @see com.shinonometn.re.ssim.service.caterpillar.kingo.capture.SessionCheckingPageProcessor
+     */
+    public void invalidate(String key) {
+        sessions.remove(key);
+    }
+
+    @Override
+    public void close() throws IOException {
+        sessions.clear();
+
+        synchronized (this) {
+            if (downloader != null) downloader.close();
+            downloader = null;
+        }
+    }
+
+    public int size() {
+        return (int) sessions.values().stream().filter(i -> i.cookies != null).count();
+    }
+
+    /**
+     * Create a session key from profile fields, credentials are hashed
+     */
+    public static String keyOf(String... profileFields) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (String field : profileFields) {
+                if (field != null) digest.update(field.getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+            }
+
+            StringBuilder builder = new StringBuilder();
+            for (byte b : digest.digest()) builder.append(String.format("%02x", b));
+            return builder.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /*
+     * Captcha field of the lesson query page is hidden for logged in users
+     */
+    private boolean isLoggedIn(Site site, String statusPageUrl) {
+        try {
+            Page page = downloader().download(new Request(statusPageUrl), site.toTask());
+            if (!page.isDownloadSuccess()) return false;
+
+            LoginStatusPageProcessor processor = new LoginStatusPageProcessor(site);
+            processor.process(page);
+            return LoginStatusPageProcessor.getIsLogin(page.getResultItems());
+        } catch (RuntimeException e) {
+            logger.debug("Could not validate kingo session.", e);
+            return false;
+        }
+    }
+
+    private synchronized PooledHttpDownloader downloader() {
+        if (downloader == null) downloader = new PooledHttpDownloader(2, 1);
+        return downloader;
+    }
+
+    private static class Session {
+        private Map<String, String> cookies;
+        private long lastValidated;
+
+        private void applyTo(Site site) {
+            cookies.forEach(site::addCookie);
+        }
+    }
+}
@@ -1,25 +1,51 @@
 package com.shinonometn.re.ssim.service.caterpillar.kingo.capture;
 
-import com.shinonometn.re.ssim.service.caterpillar.kingo.KingoRawCourseParser;
+import com.shinonometn.re.ssim.service.caterpillar.kingo.CourseStringPool;
+import com.shinonometn.re.ssim.service.caterpillar.kingo.KingoCourseTableParser;
 import com.shinonometn.re.ssim.service.caterpillar.kingo.pojo.Course;
+import com.shinonometn.re.ssim.service.caterpillar.scheduler.TrackingPageProcessor;
 import org.jsoup.nodes.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import us.codecraft.webmagic.Page;
 import us.codecraft.webmagic.ResultItems;
 import us.codecraft.webmagic.Site;
 import us.codecraft.webmagic.processor.PageProcessor;
 
+/**
+ * Parse course detail pages
+ * <p>
+ * Courses parsed by one processor share repeated strings through its pool,
+ * so a processor should live as long as the capture it belongs to.
+ * <p>
+ * Pages the parser rejects, e.g. a truncated course table, are skipped and left
+ * unfinished for a {@link TrackingPageProcessor}, they have no subject.
+ */
 public class CourseDetailsPageProcessor implements PageProcessor {
 
+    private final static Logger logger = LoggerFactory.getLogger(CourseDetailsPageProcessor.class);
+
     private final Site site;
+    private final CourseStringPool stringPool;
 
     public CourseDetailsPageProcessor(Site site) {
+        this(site, new CourseStringPool());
+    }
+
+    public CourseDetailsPageProcessor(Site site, CourseStringPool stringPool) {
         this.site = site;
+        this.stringPool = stringPool;
     }
 
     @Override
     public void process(Page page) {
         Document document = page.getHtml().getDocument();
-        page.putField(FIELD_SUBJECT, KingoRawCourseParser.parseFromHTML(document));
+        try {
+            page.putField(FIELD_SUBJECT, stringPool.internCourse(KingoCourseTableParser.parseFromHTML(document)));
+        } catch (IllegalArgumentException e) {
+            logger.warn("Could not parse course page {}: {}", page.getRequest().getUrl(), e.getMessage());
+            TrackingPageProcessor.leaveUnfinished(page);
+        }
     }
 
     @Override
@@ -0,0 +1,50 @@
+package com.shinonometn.re.ssim.service.caterpillar.kingo.capture;
+
+import us.codecraft.webmagic.Page;
+import us.codecraft.webmagic.Request;
+import us.codecraft.webmagic.Site;
+import us.codecraft.webmagic.processor.PageProcessor;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.function.BiFunction;
+
+/**
+ * Turn a course list page into course detail requests
+ * <p>
+ * Detail requests are added as target requests of the list page, so a spider
+ * fetching course lists starts on details as soon as a list is parsed, instead
+ * of waiting for every list. List pages are skipped by pipelines.
+ */
+public class CourseListExpandingPageProcessor implements PageProcessor {
+
+    private final CoursesListPageProcessor delegate;
+    private final BiFunction<Request, Collection<String>, Collection<Request>> expander;
+
+    /**
+     * @param site     site of the spider
+     * @param expander creates detail requests from the list request and course codes in the list
+     */
+    public CourseListExpandingPageProcessor(Site site,
+                                            BiFunction<Request, Collection<String>, Collection<Request>> expander) {
+        this.delegate = new CoursesListPageProcessor(site);
+        this.expander = expander;
+    }
+
+    @Override
+    public void process(Page page) {
+        delegate.process(page);
+
+        Map<String, String> courses = CoursesListPageProcessor.getCourseList(page.getResultItems());
+        Collection<String> courseCodes = courses == null ? Collections.emptyList() : courses.keySet();
+
+        for (Request request : expander.apply(page.getRequest(), courseCodes)) page.addTargetRequest(request);
+        page.setSkip(true);
+    }
+
+    @Override
+    public Site getSite() {
+        return delegate.getSite();
+    }
+}
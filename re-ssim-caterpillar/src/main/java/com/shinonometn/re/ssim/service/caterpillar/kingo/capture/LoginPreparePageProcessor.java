@@ -78,7 +78,7 @@ public class LoginPreparePageProcessor implements PageProcessor {
 
         page.putField("ready", true);
         page.putField("formFields", formFields);
-        page.putField("cookies", page.getHeaders().get("Set-Cookie"));
+        page.putField("cookies", getHeader(page, "Set-Cookie"));
     }
 
     @Override
@@ -119,6 +119,16 @@ public class LoginPreparePageProcessor implements PageProcessor {
      *
      * */
 
+    // Header names are case-insensitive, servers do not always send them in canonical case
+    private static List<String> getHeader(Page page, String name) {
+        if (page.getHeaders() == null) return null;
+        return page.getHeaders().entrySet().stream()
+                .filter(e -> name.equalsIgnoreCase(e.getKey()))
+                .map(Map.Entry::getValue)
+                .findFirst()
+                .orElse(null);
+    }
+
     private static String getEncryptedPassword(String username, String password) {
         return md5(username + md5(password).substring(0, 30).toUpperCase() + "12749").substring(0, 30).toUpperCase();
     }
@@ -18,10 +18,11 @@ class LoginStatusPageProcessor(private val site: Site) : PageProcessor {
     }
 
     override fun process(page: Page) {
+        // Page without the captcha field is not the page we expected, treat as not logged in
         val element = page.html.document.getElementById("txt_yzm")
         page.putField(
                 FIELD_IS_LOGIN,
-                element.parent().attr("style") == "display:none")
+                element?.parent()?.attr("style") == "display:none")
     }
 
     override fun getSite(): Site {
@@ -0,0 +1,96 @@
+package com.shinonometn.re.ssim.service.caterpillar.kingo.capture;
+
+import us.codecraft.webmagic.Page;
+import us.codecraft.webmagic.Site;
+import us.codecraft.webmagic.processor.PageProcessor;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Stop parsing pages once kingo dropped the session
+ * <p>
+ * Kingo redirects requests of an expired session to the login page. Redirects of
+ * POST requests are not followed, the 302 itself reaches the processor if
+ * {@link #acceptRedirects(Site)} was applied to the site. Redirects of GET requests
+ * are followed, the login form is fetched instead. Such pages are skipped and the
+ * listener called, so the pooled session could be dropped.
+ * <p>
+ * Pages skipped here are not passed to the delegate, wrap a
+ * {@link com.shinonometn.re.ssim.service.caterpillar.scheduler.TrackingPageProcessor}
+ * with it so their requests are not finished.
+ */
+public class SessionCheckingPageProcessor implements PageProcessor {
+
+    public final static Set<Integer> REDIRECT_CODES = new HashSet<>(Arrays.asList(301, 302, 303, 307));
+
+    // Username field of the login form, see LoginPreparePageProcessor
+    private final static String LOGIN_FORM_FIELD = "txt_asmcdefsddsd";
+
+    private final PageProcessor delegate;
+    private final Runnable onSessionLost;
+
+    /**
+     * @param delegate      processor of pages fetched with a valid session
+     * @param onSessionLost called for every page showing the session lost
+     */
+    public SessionCheckingPageProcessor(PageProcessor delegate, Runnable onSessionLost) {
+        this.delegate = delegate;
+        this.onSessionLost = onSessionLost;
+    }
+
+    @Override
+    public void process(Page page) {
+        if (isLoginPage(page)) {
+            page.setSkip(true);
+            onSessionLost.run();
+            return;
+        }
+
+        // Other redirects are not the page requested either
+        if (REDIRECT_CODES.contains(page.getStatusCode())) {
+            page.setSkip(true);
+            return;
+        }
+
+        delegate.process(page);
+    }
+
+    @Override
+    public Site getSite() {
+        return delegate.getSite();
+    }
+
+    /**
+     * Let redirects reach page processors instead of failing the download
+     */
+    public static Site acceptRedirects(Site site) {
+        Set<Integer> acceptStatCode = new HashSet<>(site.getAcceptStatCode());
+        acceptStatCode.addAll(REDIRECT_CODES);
+        return site.setAcceptStatCode(acceptStatCode);
+    }
+
+    /**
+     * Check if the page is a redirect to the login page or the login page itself
+     */
+    public static boolean isLoginPage(Page page) {
+        if (REDIRECT_CODES.contains(page.getStatusCode())) {
+            String location = headerOf(page, "Location");
+            return location != null && location.toLowerCase().contains("login");
+        }
+
+        if (page.getRawText() == null || page.getRawText().isEmpty()) return false;
+        return !page.getHtml().getDocument().getElementsByAttributeValue("name", LOGIN_FORM_FIELD).isEmpty();
+    }
+
+    private static String headerOf(Page page, String name) {
+        if (page.getHeaders() == null) return null;
+        for (Map.Entry<String, List<String>> header : page.getHeaders().entrySet())
+            if (name.equalsIgnoreCase(header.getKey()) && header.getValue() != null && !header.getValue().isEmpty())
+                return header.getValue().get(0);
+        return null;
+    }
+}
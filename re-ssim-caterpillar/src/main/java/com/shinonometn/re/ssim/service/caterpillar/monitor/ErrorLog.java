@@ -0,0 +1,87 @@
+package com.shinonometn.re.ssim.service.caterpillar.monitor;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Recent errors in a ring buffer, and counts of all errors by class
+ * <p>
+ * Only the latest {@code capacity} errors are kept, older ones are overwritten,
+ * so memory stays bounded however many errors a long capture runs into.
+ */
+public class ErrorLog {
+
+    private final int capacity;
+    private final AtomicReferenceArray<Entry> entries;
+    private final AtomicLong sequence = new AtomicLong(0);
+
+    private final Map<String, LongAdder> counts = new ConcurrentHashMap<>();
+
+    public ErrorLog(int capacity) {
+        if (capacity < 1) throw new IllegalArgumentException("capacity_should_be_positive");
+
+        this.capacity = capacity;
+        this.entries = new AtomicReferenceArray<>(capacity);
+    }
+
+    /**
+     * @param url        url of the failed request
+     * @param errorClass short code, e.g. timeout, http_503
+     */
+    public void record(String url, String errorClass) {
+        long index = sequence.getAndIncrement();
+        entries.set((int) (index % capacity), new Entry(System.currentTimeMillis(), url, errorClass));
+        counts.computeIfAbsent(errorClass, k -> new LongAdder()).increment();
+    }
+
+    /**
+     * Errors kept in the buffer, latest first
+     */
+    public List<Entry> getRecent() {
+        long end = sequence.get();
+        List<Entry> recent = new ArrayList<>((int) Math.min(end, capacity));
+
+        for (long i = end - 1; i >= Math.max(0, end - capacity); i--) {
+            Entry entry = entries.get((int) (i % capacity));
+            if (entry != null) recent.add(entry);
+        }
+        return recent;
+    }
+
+    public Map<String, Long> getCounts() {
+        Map<String, Long> result = new TreeMap<>();
+        counts.forEach((errorClass, count) -> result.put(errorClass, count.sum()));
+        return result;
+    }
+
+    public long getTotal() {
+        return sequence.get();
+    }
+
+    public static class Entry {
+        private final long time;
+        private final String url;
+        private final String errorClass;
+
+        private Entry(long time, String url, String errorClass) {
+            this.time = time;
+            this.url = url;
+            this.errorClass = errorClass;
+        }
+
+        public Date getTime() {
+            return new Date(time);
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        public String getErrorClass() {
+            return errorClass;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.shinonometn.re.ssim.service.caterpillar.monitor;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histogram with fixed buckets
+ * <p>
+ * Bucket bounds grow in 1-2-5 steps from 5ms to 30s, recording is a single
+ * atomic increment. Percentiles are estimated by the upper bound of the bucket,
+ * so they are never lower than the real ones.
+ */
+public class LatencyHistogram {
+
+    private static final long[] BOUNDS = {5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000};
+
+    private final AtomicLongArray counts = new AtomicLongArray(BOUNDS.length + 1);
+    private final AtomicLong max = new AtomicLong(0);
+
+    public void record(long millis) {
+        counts.incrementAndGet(bucketOf(millis));
+        max.accumulateAndGet(millis, Math::max);
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < counts.length(); i++) count += counts.get(i);
+        return count;
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Estimated latency of a percentile
+     *
+     * @param percentile 0 to 1, e.g. 0.99
+     * @return milliseconds, 0 if nothing recorded
+     */
+    public long percentile(double percentile) {
+        long[] snapshot = snapshot();
+
+        long count = 0;
+        for (long c : snapshot) count += c;
+        if (count == 0) return 0;
+
+        long rank = (long) Math.ceil(percentile * count);
+        long seen = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) return i < BOUNDS.length ? Math.min(BOUNDS[i], getMax()) : getMax();
+        }
+        return getMax();
+    }
+
+    /**
+     * Counts of buckets, keyed by upper bound in milliseconds, "inf" for the last one
+     */
+    public Map<String, Long> getBuckets() {
+        long[] snapshot = snapshot();
+
+        Map<String, Long> buckets = new LinkedHashMap<>();
+        for (int i = 0; i < snapshot.length; i++)
+            buckets.put(i < BOUNDS.length ? String.valueOf(BOUNDS[i]) : "inf", snapshot[i]);
+        return buckets;
+    }
+
+    private long[] snapshot() {
+        long[] snapshot = new long[counts.length()];
+        for (int i = 0; i < snapshot.length; i++) snapshot[i] = counts.get(i);
+        return snapshot;
+    }
+
+    private static int bucketOf(long millis) {
+        for (int i = 0; i < BOUNDS.length; i++) if (millis <= BOUNDS[i]) return i;
+        return BOUNDS.length;
+    }
+}
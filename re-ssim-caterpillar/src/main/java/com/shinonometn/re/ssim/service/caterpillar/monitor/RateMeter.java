@@ -0,0 +1,79 @@
+package com.shinonometn.re.ssim.service.caterpillar.monitor;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Events per second as an exponentially weighted moving average
+ * <p>
+ * Events are added to a counter, once a second the counter is folded into the
+ * average by whichever thread marks or reads first. Marking never blocks, and reading
+ * costs a few field reads, so the rate could be polled as often as needed.
+ * Recent {@code windowSeconds} weigh about 63% of the rate.
+ */
+public class RateMeter {
+
+    private static final long TICK_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final double alpha;
+    private final int maxIdleTicks;
+
+    private final LongAdder uncounted = new LongAdder();
+    private final LongAdder total = new LongAdder();
+    private final AtomicLong lastTick = new AtomicLong(System.nanoTime());
+
+    private volatile double rate = 0;
+    private volatile boolean initialized = false;
+
+    public RateMeter() {
+        this(10);
+    }
+
+    public RateMeter(int windowSeconds) {
+        if (windowSeconds < 1) throw new IllegalArgumentException("window_should_be_positive");
+
+        this.alpha = 1 - Math.exp(-1.0 / windowSeconds);
+        this.maxIdleTicks = windowSeconds * 20;
+    }
+
+    public void mark() {
+        mark(1);
+    }
+
+    public void mark(long count) {
+        tickIfNecessary();
+        uncounted.add(count);
+        total.add(count);
+    }
+
+    public double getRate() {
+        tickIfNecessary();
+        return rate;
+    }
+
+    public long getTotal() {
+        return total.sum();
+    }
+
+    private void tickIfNecessary() {
+        long oldTick = lastTick.get();
+        long age = System.nanoTime() - oldTick;
+        if (age < TICK_NANOS) return;
+
+        // Only one thread folds the ticks passed, others keep counting into the next tick
+        long ticks = age / TICK_NANOS;
+        if (!lastTick.compareAndSet(oldTick, oldTick + ticks * TICK_NANOS)) return;
+
+        double newRate = rate;
+        long count = uncounted.sumThenReset();
+
+        // Events of all passed ticks are counted in the first one, the rest were idle
+        for (long i = 0; i < Math.min(ticks, maxIdleTicks); i++) {
+            double instantRate = i == 0 ? count : 0;
+            newRate = initialized ? newRate + alpha * (instantRate - newRate) : instantRate;
+            initialized = true;
+        }
+        rate = ticks > maxIdleTicks ? 0 : newRate;
+    }
+}
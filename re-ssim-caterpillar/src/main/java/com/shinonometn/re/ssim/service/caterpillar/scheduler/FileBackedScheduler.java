@@ -0,0 +1,307 @@
+package com.shinonometn.re.ssim.service.caterpillar.scheduler;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import us.codecraft.webmagic.Request;
+import us.codecraft.webmagic.SpiderListener;
+import us.codecraft.webmagic.Task;
+import us.codecraft.webmagic.model.HttpRequestBody;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * Scheduler keeping its queue in an append-only log, so a spider could be resumed after restart
+ * <p>
+ * Every new request is logged as a PUSH record, and a DONE record is logged when the
+ * spider reports it finished (register the scheduler as a {@link SpiderListener} of the spider)
+ * after its page processed (wrap the page processor by {@link TrackingPageProcessor}).
+ * Opening an existing log queues again every request without a DONE record, including
+ * the ones in flight when the process stopped. Requests failed to download, answered with
+ * a status code not accepted or failed with an exception are not marked done, they are
+ * retried on the next resume.
+ * <pre>
+ * record: 'P' | key (utf) | request length (int) | serialized request
+ *         'D' | key (utf)
+ * </pre>
+ * Requests are deduplicated by key, method, url and body by default, so POST requests
+ * are deduplicated as well. A record left half written by a crash is dropped on open.
+ */
+public class FileBackedScheduler implements TrackingScheduler, Closeable {
+
+    private final static int PUSH = 'P';
+    private final static int DONE = 'D';
+
+    private final Logger logger = LoggerFactory.getLogger(FileBackedScheduler.class);
+
+    private final File logFile;
+    private final Function<Request, String> keyFunction;
+
+    private final Deque<Request> queue = new ArrayDeque<>();
+
+    // Pushed but not done yet, value counts queued and in-flight copies of the request (cycle retries)
+    private final Map<String, Integer> pending = new HashMap<>();
+    private final Set<String> finished = new HashSet<>();
+
+    private final boolean resumed;
+    private DataOutputStream output;
+
+    public FileBackedScheduler(File logFile) throws IOException {
+        this(logFile, FileBackedScheduler::keyOf);
+    }
+
+    /**
+     * @param logFile     request log, created if not exists
+     * @param keyFunction identity of requests, requests with the same key are only fetched once
+     */
+    public FileBackedScheduler(File logFile, Function<Request, String> keyFunction) throws IOException {
+        this.logFile = logFile;
+        this.keyFunction = keyFunction;
+        this.resumed = logFile.isFile() && logFile.length() > 0;
+
+        if (resumed) {
+            replay();
+            compact();
+        }
+
+        output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(logFile, true)));
+
+        if (resumed) logger.info("Resume {} requests from {}, {} finished.", queue.size(), logFile, finished.size());
+    }
+
+    @Override
+    public synchronized void push(Request request, Task task) {
+        String key = keyFunction.apply(request);
+
+        // Cycle retry of a request not done yet, it is already in the log
+        if (request.getExtra(Request.CYCLE_TRIED_TIMES) != null && pending.containsKey(key)) {
+            pending.merge(key, 1, Integer::sum);
+            queue.add(request);
+            return;
+        }
+
+        if (pending.containsKey(key) || finished.contains(key)) return;
+
+        write(PUSH, key, serialize(request));
+        pending.put(key, 1);
+        queue.add(request);
+    }
+
+    @Override
+    public synchronized Request poll(Task task) {
+        return queue.poll();
+    }
+
+    @Override
+    public void onSuccess(Request request) {
+        complete(request, TrackingPageProcessor.isProcessed(request));
+    }
+
+    @Override
+    public void onError(Request request) {
+        complete(request, false);
+    }
+
+    @Override
+    public synchronized int getLeftRequestsCount(Task task) {
+        return queue.size();
+    }
+
+    @Override
+    public synchronized int getTotalRequestsCount(Task task) {
+        return pending.size() + finished.size();
+    }
+
+    @Override
+    public synchronized int getFinishedRequestsCount(Task task) {
+        return finished.size();
+    }
+
+    /**
+     * True if the log had requests when opened
+     */
+    public boolean isResumed() {
+        return resumed;
+    }
+
+    /**
+     * Keys of requests done, in this run and previous ones
+     */
+    public synchronized Set<String> getFinishedKeys() {
+        return new HashSet<>(finished);
+    }
+
+    /**
+     * Fetch a request again even if it is done, e.g. its output was lost
+     */
+    public synchronized void redo(Request request) {
+        String key = keyFunction.apply(request);
+        if (pending.containsKey(key)) return;
+
+        write(PUSH, key, serialize(request));
+        finished.remove(key);
+        pending.put(key, 1);
+        queue.add(request);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (output == null) return;
+        output.close();
+        output = null;
+    }
+
+    /**
+     * Default request key: hash of method, url and request body
+     */
+    public static String keyOf(Request request) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            if (request.getMethod() != null) digest.update(request.getMethod().getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(request.getUrl().getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+
+            HttpRequestBody body = request.getRequestBody();
+            if (body != null && body.getBody() != null) digest.update(body.getBody());
+
+            StringBuilder builder = new StringBuilder();
+            for (byte b : digest.digest()) builder.append(String.format("%02x", b));
+            return builder.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private synchronized void complete(Request request, boolean success) {
+        // Spider closes scheduler when it exits, threads finishing after that are resumed next time
+        if (output == null) return;
+
+        String key = keyFunction.apply(request);
+        Integer copies = pending.get(key);
+        if (copies == null) return;
+
+        // A failed download is queued again before the listener called, wait for the last copy
+        if (copies > 1) {
+            pending.put(key, copies - 1);
+            return;
+        }
+
+        if (!success) {
+            // Keep it pending in the log, so it is retried after resume
+            pending.put(key, 0);
+            return;
+        }
+
+        write(DONE, key, null);
+        pending.remove(key);
+        finished.add(key);
+    }
+
+    private void write(int type, String key, byte[] payload) {
+        if (output == null) throw new IllegalStateException("scheduler_closed");
+        try {
+            output.writeByte(type);
+            output.writeUTF(key);
+            if (payload != null) {
+                output.writeInt(payload.length);
+                output.write(payload);
+            }
+            output.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void replay() throws IOException {
+        Map<String, Request> requests = new LinkedHashMap<>();
+        long validLength = 0;
+
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile)))) {
+            while (true) {
+                int type = input.read();
+                if (type < 0) break;
+
+                String key = input.readUTF();
+                if (type == PUSH) {
+                    byte[] payload = new byte[input.readInt()];
+                    input.readFully(payload);
+                    validLength += 1 + utfLength(key) + 4 + payload.length;
+
+                    requests.put(key, deserialize(payload));
+                    finished.remove(key);
+                } else if (type == DONE) {
+                    validLength += 1 + utfLength(key);
+
+                    requests.remove(key);
+                    finished.add(key);
+                } else {
+                    throw new IOException("Unknown record type " + type + " in " + logFile);
+                }
+            }
+        } catch (EOFException e) {
+            logger.warn("Request log {} is truncated at {}, last record dropped.", logFile, validLength);
+        }
+
+        requests.forEach((key, request) -> {
+            pending.put(key, 1);
+            queue.add(request);
+        });
+    }
+
+    /*
+     * Rewrite the log with one record per request, it also drops a half written record
+     */
+    private void compact() throws IOException {
+        File tempFile = new File(logFile.getPath() + ".tmp");
+        try (DataOutputStream temp = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            for (String key : finished) {
+                temp.writeByte(DONE);
+                temp.writeUTF(key);
+            }
+            for (Request request : queue) {
+                byte[] payload = serialize(request);
+                temp.writeByte(PUSH);
+                temp.writeUTF(keyFunction.apply(request));
+                temp.writeInt(payload.length);
+                temp.write(payload);
+            }
+        }
+        Files.move(tempFile.toPath(), logFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static int utfLength(String key) {
+        int length = 2;
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) length += 1;
+            else if (c > 0x07FF) length += 3;
+            else length += 2;
+        }
+        return length;
+    }
+
+    static byte[] serialize(Request request) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream objectOutput = new ObjectOutputStream(bytes)) {
+            objectOutput.writeObject(request);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    static Request deserialize(byte[] payload) throws IOException {
+        try (ObjectInputStream objectInput = new ObjectInputStream(new ByteArrayInputStream(payload))) {
+            return (Request) objectInput.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+    }
+}
@@ -0,0 +1,339 @@
+package com.shinonometn.re.ssim.service.caterpillar.scheduler;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import us.codecraft.webmagic.Request;
+import us.codecraft.webmagic.Task;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scheduler sharing one request queue between spiders of several nodes through Redis
+ * <p>
+ * A node claims a request by popping it from the queue and taking a lease on it. The lease
+ * is released when the spider reports the request finished and its page processed (wrap the
+ * page processor by {@link TrackingPageProcessor}), a lease not released in time (the node
+ * stopped or crashed) expires and the request is queued again for other nodes. Failed
+ * requests are kept aside until {@link #requeueFailed()}, e.g. when the capture is resumed.
+ * Requests are deduplicated by {@link FileBackedScheduler#keyOf(Request)} across all nodes.
+ * <pre>
+ * {prefix}.queue      list, request keys waiting
+ * {prefix}.requests   hash, request key to serialized request
+ * {prefix}.seen       set, every request key ever pushed
+ * {prefix}.leases     sorted set, claimed request keys scored by lease expiry
+ * {prefix}.finished   set, request keys finished
+ * {prefix}.failed     set, request keys failed to download or failed with an exception
+ * {prefix}.nodes      hash, node id to finished count
+ * {prefix}.node_start hash, node id to time of its first claim
+ * </pre>
+ * {@link #poll(Task)} never waits, when the queue is empty but other nodes still hold leases
+ * it returns null. Spiders should not exit when idle and be stopped once {@link #isDrained()}.
+ * Keys expire after {@code keyTtlMillis}, the expiry is refreshed while nodes work on the
+ * task, so the keys of a task nobody resumes do not stay forever.
+ */
+public class RedisLeaseScheduler implements TrackingScheduler {
+
+    private final static String KEY_PREFIX = "caterpillar.task.";
+
+    private final static long DEFAULT_KEY_TTL_MILLIS = 24 * 3600 * 1000L;
+
+    // Pop and lease in one step, a node dying in between would lose the request otherwise
+    private final static RedisScript<String> CLAIM_SCRIPT = new DefaultRedisScript<>(
+            "local key = redis.call('LPOP', KEYS[1]) " +
+                    "if key then redis.call('ZADD', KEYS[2], ARGV[1], key) end " +
+                    "return key", String.class);
+
+    // Only the node removing an expired lease queues the request again
+    private final static RedisScript<Long> RECLAIM_SCRIPT = new DefaultRedisScript<>(
+            "local expired = redis.call('ZRANGEBYSCORE', KEYS[1], '-inf', ARGV[1]) " +
+                    "for _, key in ipairs(expired) do " +
+                    "  redis.call('ZREM', KEYS[1], key) " +
+                    "  if redis.call('SISMEMBER', KEYS[3], key) == 0 then redis.call('LPUSH', KEYS[2], key) end " +
+                    "end " +
+                    "return #expired", Long.class);
+
+    // Failed requests are kept, so they are only queued again on purpose
+    private final static RedisScript<Long> REQUEUE_SCRIPT = new DefaultRedisScript<>(
+            "local failed = redis.call('SMEMBERS', KEYS[1]) " +
+                    "for _, key in ipairs(failed) do redis.call('RPUSH', KEYS[2], key) end " +
+                    "redis.call('DEL', KEYS[1]) " +
+                    "return #failed", Long.class);
+
+    private final static RedisScript<Long> PUSH_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('SADD', KEYS[1], ARGV[1]) == 0 then return 0 end " +
+                    "redis.call('HSET', KEYS[2], ARGV[1], ARGV[2]) " +
+                    "redis.call('RPUSH', KEYS[3], ARGV[1]) " +
+                    "return 1", Long.class);
+
+    private final Logger logger = LoggerFactory.getLogger(RedisLeaseScheduler.class);
+
+    private final StringRedisTemplate redisTemplate;
+    private final String nodeId;
+    private final long leaseMillis;
+    private final long keyTtlMillis;
+
+    private final String keyPrefix;
+    private final String queueKey;
+    private final String requestsKey;
+    private final String seenKey;
+    private final String leasesKey;
+    private final String finishedKey;
+    private final String failedKey;
+    private final String nodesKey;
+    private final String nodeStartKey;
+
+    // Keys put beside the task by others, e.g. results of nodes
+    private final Set<String> taskKeys = new LinkedHashSet<>();
+    private volatile long nextTouch = 0;
+
+    // Cycle retries stay on the node holding the lease
+    private final Deque<Request> retries = new ArrayDeque<>();
+    private final Map<String, Integer> copies = new HashMap<>();
+
+    private volatile boolean started = false;
+
+    /**
+     * @param redisTemplate redis shared by nodes
+     * @param taskKey       identity of the capture, the same on every node
+     * @param nodeId        identity of this node, null to use name of the JVM
+     * @param leaseMillis   time a node could hold a request, longer than a download with retries
+     */
+    public RedisLeaseScheduler(StringRedisTemplate redisTemplate, String taskKey, String nodeId, long leaseMillis) {
+        this(redisTemplate, taskKey, nodeId, leaseMillis, DEFAULT_KEY_TTL_MILLIS);
+    }
+
+    /**
+     * @param keyTtlMillis time keys of the task are kept after the last node stopped working on it
+     */
+    public RedisLeaseScheduler(StringRedisTemplate redisTemplate, String taskKey, String nodeId, long leaseMillis, long keyTtlMillis) {
+        this.redisTemplate = redisTemplate;
+        this.nodeId = nodeId == null ? ManagementFactory.getRuntimeMXBean().getName() : nodeId;
+        this.leaseMillis = leaseMillis;
+        this.keyTtlMillis = keyTtlMillis;
+
+        this.keyPrefix = KEY_PREFIX + taskKey;
+        this.queueKey = keyPrefix + ".queue";
+        this.requestsKey = keyPrefix + ".requests";
+        this.seenKey = keyPrefix + ".seen";
+        this.leasesKey = keyPrefix + ".leases";
+        this.finishedKey = keyPrefix + ".finished";
+        this.failedKey = keyPrefix + ".failed";
+        this.nodesKey = keyPrefix + ".nodes";
+        this.nodeStartKey = keyPrefix + ".node_start";
+
+        taskKeys.addAll(Arrays.asList(queueKey, requestsKey, seenKey, leasesKey, finishedKey, failedKey, nodesKey, nodeStartKey));
+    }
+
+    @Override
+    public void push(Request request, Task task) {
+        String key = FileBackedScheduler.keyOf(request);
+
+        synchronized (this) {
+            if (request.getExtra(Request.CYCLE_TRIED_TIMES) != null && copies.containsKey(key)) {
+                copies.merge(key, 1, Integer::sum);
+                retries.add(request);
+                return;
+            }
+        }
+
+        String payload = Base64.getEncoder().encodeToString(FileBackedScheduler.serialize(request));
+        redisTemplate.execute(PUSH_SCRIPT, Arrays.asList(seenKey, requestsKey, queueKey), key, payload);
+        touchIfDue();
+    }
+
+    @Override
+    public Request poll(Task task) {
+        touchIfDue();
+
+        while (true) {
+            synchronized (this) {
+                Request retry = retries.poll();
+                if (retry != null) {
+                    lease(FileBackedScheduler.keyOf(retry));
+                    return retry;
+                }
+            }
+
+            // Leases are scored by clocks of nodes, keep them roughly in sync
+            redisTemplate.execute(RECLAIM_SCRIPT, Arrays.asList(leasesKey, queueKey, finishedKey), String.valueOf(System.currentTimeMillis()));
+
+            String key = redisTemplate.execute(CLAIM_SCRIPT, Arrays.asList(queueKey, leasesKey), String.valueOf(System.currentTimeMillis() + leaseMillis));
+            if (key != null) {
+                Request request = loadRequest(key);
+                if (request == null) continue;
+
+                synchronized (this) {
+                    copies.put(key, 1);
+                }
+                if (!started) {
+                    started = true;
+                    redisTemplate.opsForHash().putIfAbsent(nodeStartKey, nodeId, String.valueOf(System.currentTimeMillis()));
+                }
+                return request;
+            }
+
+            return null;
+        }
+    }
+
+    @Override
+    public void onSuccess(Request request) {
+        complete(request, TrackingPageProcessor.isProcessed(request));
+    }
+
+    @Override
+    public void onError(Request request) {
+        complete(request, false);
+    }
+
+    @Override
+    public int getLeftRequestsCount(Task task) {
+        Long size = redisTemplate.opsForList().size(queueKey);
+        return size == null ? 0 : size.intValue();
+    }
+
+    @Override
+    public int getTotalRequestsCount(Task task) {
+        Long size = redisTemplate.opsForSet().size(seenKey);
+        return size == null ? 0 : size.intValue();
+    }
+
+    @Override
+    public int getFinishedRequestsCount(Task task) {
+        Long size = redisTemplate.opsForSet().size(finishedKey);
+        return size == null ? 0 : size.intValue();
+    }
+
+    /**
+     * True if the task already has requests, e.g. pushed by another node
+     */
+    public boolean isStarted() {
+        return getTotalRequestsCount(null) > 0;
+    }
+
+    /**
+     * True if no request waiting or being processed by any node
+     */
+    public boolean isDrained() {
+        Long leased = redisTemplate.opsForZSet().zCard(leasesKey);
+        return getLeftRequestsCount(null) == 0 && (leased == null || leased == 0);
+    }
+
+    /**
+     * Average pages per second of each node since its first claim
+     */
+    public Map<String, Double> getNodePagePerSecond() {
+        Map<Object, Object> counts = redisTemplate.opsForHash().entries(nodesKey);
+        Map<Object, Object> starts = redisTemplate.opsForHash().entries(nodeStartKey);
+
+        long now = System.currentTimeMillis();
+        Map<String, Double> result = new TreeMap<>();
+        counts.forEach((node, count) -> {
+            Object start = starts.get(node);
+            long seconds = start == null ? 0 : (now - Long.parseLong(start.toString())) / 1000;
+            result.put(node.toString(), seconds <= 0 ? 0 : Long.parseLong(count.toString()) / (double) seconds);
+        });
+        return result;
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * Prefix of redis keys of the task, sinks could put results of the task beside
+     */
+    public String getKeyPrefix() {
+        return keyPrefix;
+    }
+
+    /**
+     * Queue failed requests again
+     *
+     * @return count of requests queued
+     */
+    public int requeueFailed() {
+        Long count = redisTemplate.execute(REQUEUE_SCRIPT, Arrays.asList(failedKey, queueKey));
+        return count == null ? 0 : count.intValue();
+    }
+
+    /**
+     * Let keys put beside the task expire and be cleared with it
+     */
+    public synchronized void addTaskKeys(Collection<String> keys) {
+        taskKeys.addAll(keys);
+        nextTouch = 0;
+    }
+
+    /**
+     * Remove all keys of the task
+     */
+    public void clear() {
+        redisTemplate.delete(taskKeysSnapshot());
+    }
+
+    // Refresh expiry of the task keys now and then, not on every call
+    private void touchIfDue() {
+        long now = System.currentTimeMillis();
+        if (now < nextTouch) return;
+        nextTouch = now + Math.max(1000, keyTtlMillis / 4);
+
+        for (String key : taskKeysSnapshot()) redisTemplate.expire(key, keyTtlMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized List<String> taskKeysSnapshot() {
+        return new ArrayList<>(taskKeys);
+    }
+
+    private void lease(String key) {
+        redisTemplate.opsForZSet().add(leasesKey, key, System.currentTimeMillis() + leaseMillis);
+    }
+
+    private Request loadRequest(String key) {
+        Object payload = redisTemplate.opsForHash().get(requestsKey, key);
+        if (payload == null) {
+            logger.warn("Request {} of {} is missing, skipped.", key, keyPrefix);
+            redisTemplate.opsForZSet().remove(leasesKey, key);
+            return null;
+        }
+
+        try {
+            return FileBackedScheduler.deserialize(Base64.getDecoder().decode(payload.toString()));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void complete(Request request, boolean success) {
+        touchIfDue();
+
+        String key = FileBackedScheduler.keyOf(request);
+
+        // A failed download is queued again before the listener called, wait for the last copy
+        synchronized (this) {
+            Integer count = copies.get(key);
+            if (count == null) return;
+            if (count > 1) {
+                copies.put(key, count - 1);
+                return;
+            }
+            copies.remove(key);
+        }
+
+        redisTemplate.opsForZSet().remove(leasesKey, key);
+        if (success) {
+            redisTemplate.opsForSet().add(finishedKey, key);
+            redisTemplate.opsForHash().delete(requestsKey, key);
+            redisTemplate.opsForHash().increment(nodesKey, nodeId, 1);
+        } else {
+            redisTemplate.opsForSet().add(failedKey, key);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.shinonometn.re.ssim.service.caterpillar.scheduler;
+
+import us.codecraft.webmagic.Page;
+import us.codecraft.webmagic.Request;
+import us.codecraft.webmagic.Site;
+import us.codecraft.webmagic.processor.PageProcessor;
+
+/**
+ * Mark requests whose pages are processed
+ * <p>
+ * Spider reports a request successful even if its download failed or the status code
+ * is not accepted, the page processor is only called for pages actually downloaded.
+ * A {@link TrackingScheduler} only finishes requests marked by this processor, so it
+ * should wrap the page processor of the spider.
+ * <p>
+ * Processors wrapped could leave a downloaded page unfinished by {@link #leaveUnfinished(Page)},
+ * e.g. it could not be parsed, so its request is fetched again by the next run.
+ */
+public class TrackingPageProcessor implements PageProcessor {
+
+    private final static String EXTRA_PROCESSED = "_processed";
+    private final static String FIELD_UNFINISHED = "_unfinished";
+
+    private final PageProcessor delegate;
+
+    public TrackingPageProcessor(PageProcessor delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public void process(Page page) {
+        delegate.process(page);
+        if (!Boolean.TRUE.equals(page.getResultItems().get(FIELD_UNFINISHED))) markProcessed(page.getRequest());
+    }
+
+    @Override
+    public Site getSite() {
+        return delegate.getSite();
+    }
+
+    /**
+     * Mark the request processed, e.g. by a processor not wrapped
+     */
+    public static Request markProcessed(Request request) {
+        return request.putExtra(EXTRA_PROCESSED, Boolean.TRUE);
+    }
+
+    /**
+     * Skip the page and keep its request unfinished
+     */
+    public static void leaveUnfinished(Page page) {
+        page.setSkip(true);
+        page.putField(FIELD_UNFINISHED, Boolean.TRUE);
+    }
+
+    public static boolean isProcessed(Request request) {
+        return Boolean.TRUE.equals(request.getExtra(EXTRA_PROCESSED));
+    }
+}
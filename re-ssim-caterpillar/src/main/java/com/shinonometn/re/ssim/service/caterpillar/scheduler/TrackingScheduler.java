@@ -0,0 +1,21 @@
+package com.shinonometn.re.ssim.service.caterpillar.scheduler;
+
+import us.codecraft.webmagic.SpiderListener;
+import us.codecraft.webmagic.Task;
+import us.codecraft.webmagic.scheduler.MonitorableScheduler;
+import us.codecraft.webmagic.scheduler.Scheduler;
+
+/**
+ * Scheduler knowing which requests are finished
+ * <p>
+ * It should be registered as a listener of the spider, requests are
+ * finished when the spider reports them and their pages are marked processed
+ * by {@link TrackingPageProcessor}.
+ */
+public interface TrackingScheduler extends Scheduler, MonitorableScheduler, SpiderListener {
+
+    /**
+     * Count of requests finished successfully, including ones finished before a resume
+     */
+    int getFinishedRequestsCount(Task task);
+}
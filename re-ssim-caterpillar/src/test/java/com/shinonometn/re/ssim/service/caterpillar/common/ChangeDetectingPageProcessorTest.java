@@ -0,0 +1,80 @@
+package com.shinonometn.re.ssim.service.caterpillar.common;
+
+import org.junit.Test;
+import us.codecraft.webmagic.Page;
+import us.codecraft.webmagic.Request;
+import us.codecraft.webmagic.Site;
+import us.codecraft.webmagic.processor.PageProcessor;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class ChangeDetectingPageProcessorTest {
+
+    private final PageProcessor delegate = new PageProcessor() {
+        @Override
+        public void process(Page page) {
+            page.putField("parsed", true);
+        }
+
+        @Override
+        public Site getSite() {
+            return Site.me();
+        }
+    };
+
+    private static Page notModified(Request request) {
+        Page page = new Page();
+        page.setRequest(request);
+        page.setStatusCode(ChangeDetectingPageProcessor.NOT_MODIFIED);
+        return page;
+    }
+
+    @Test
+    public void testNotModifiedWithoutFingerprintFetchedAgain() {
+        Map<String, PageFingerprint> fingerprints = new HashMap<>();
+        ChangeDetectingPageProcessor processor = new ChangeDetectingPageProcessor(delegate, fingerprints, "code");
+
+        // Validators of a baseline without the course record
+        Request request = ChangeDetectingPageProcessor.conditional(new Request("http://localhost/course?code=1").putExtra("code", "1"),
+                new PageFingerprint("hash", "\"etag\"", "Mon, 01 Jan 2018 00:00:00 GMT"));
+
+        Page page = notModified(request);
+        processor.process(page);
+
+        assertTrue(page.getResultItems().isSkip());
+        assertEquals(1, page.getTargetRequests().size());
+
+        Request retry = page.getTargetRequests().get(0);
+        assertEquals(request.getUrl(), retry.getUrl());
+        assertEquals("1", retry.getExtra("code"));
+        assertNotNull(retry.getExtra(Request.CYCLE_TRIED_TIMES));
+        assertFalse(retry.getHeaders().containsKey("If-None-Match"));
+        assertFalse(retry.getHeaders().containsKey("If-Modified-Since"));
+        assertTrue(request.getHeaders().containsKey("If-None-Match"));
+
+        // Server answering 304 anyway is not asked again
+        Page again = notModified(retry);
+        processor.process(again);
+        assertTrue(again.getResultItems().isSkip());
+        assertTrue(again.getTargetRequests().isEmpty());
+    }
+
+    @Test
+    public void testNotModifiedWithFingerprint() {
+        PageFingerprint previous = new PageFingerprint("hash", "\"etag\"", null);
+        Map<String, PageFingerprint> fingerprints = new HashMap<>();
+        fingerprints.put("1", previous);
+        ChangeDetectingPageProcessor processor = new ChangeDetectingPageProcessor(delegate, fingerprints, "code");
+
+        Page page = notModified(ChangeDetectingPageProcessor.conditional(new Request("http://localhost/course?code=1").putExtra("code", "1"), previous));
+        processor.process(page);
+
+        assertFalse(page.getResultItems().isSkip());
+        assertTrue(page.getTargetRequests().isEmpty());
+        assertTrue(ChangeDetectingPageProcessor.isUnchanged(page.getResultItems()));
+        assertSame(previous, ChangeDetectingPageProcessor.getFingerprint(page.getResultItems()));
+    }
+}
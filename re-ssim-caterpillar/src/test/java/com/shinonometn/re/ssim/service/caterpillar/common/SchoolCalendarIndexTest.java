@@ -0,0 +1,88 @@
+package com.shinonometn.re.ssim.service.caterpillar.common;
+
+import com.shinonometn.re.ssim.service.caterpillar.kingo.KingoSchoolCalendar;
+import org.junit.Test;
+
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SchoolCalendarIndexTest {
+
+    private static KingoSchoolCalendar calendar(String name, LocalDate startDate, LocalDate endDate) {
+        KingoSchoolCalendar calendar = new KingoSchoolCalendar();
+        calendar.setName(name);
+        calendar.setStartDate(startDate.atStartOfDay());
+        calendar.setEndDate(endDate.atTime(LocalTime.MAX));
+        return calendar;
+    }
+
+    private final List<KingoSchoolCalendar> calendars = Arrays.asList(
+            calendar("2018-2019学年第一学期", LocalDate.of(2018, 9, 3), LocalDate.of(2019, 1, 18)),
+            calendar("2017-2018学年第一学期", LocalDate.of(2017, 9, 4), LocalDate.of(2018, 1, 19)),
+            calendar("2017-2018学年第二学期", LocalDate.of(2018, 3, 5), LocalDate.of(2018, 7, 13)),
+            // A long summer term overlapping the next term
+            calendar("2017-2018学年夏季学期", LocalDate.of(2018, 7, 2), LocalDate.of(2018, 9, 14))
+    );
+
+    private final SchoolCalendarIndex index = new SchoolCalendarIndex(calendars);
+
+    @Test
+    public void testSameAsLinearScan() {
+        LocalDateTime from = LocalDate.of(2017, 8, 1).atStartOfDay();
+        LocalDateTime to = LocalDate.of(2019, 2, 1).atStartOfDay();
+
+        for (LocalDateTime dateTime = from; dateTime.isBefore(to); dateTime = dateTime.plusHours(7)) {
+            SchoolCalendar expected = null;
+            for (SchoolCalendar calendar : calendars) {
+                if (calendar.getStartDate().isAfter(dateTime) || calendar.getEndDate().isBefore(dateTime)) continue;
+                if (expected == null || calendar.getStartDate().isAfter(expected.getStartDate())) expected = calendar;
+            }
+
+            assertSame(dateTime.toString(), expected, index.find(dateTime));
+        }
+    }
+
+    @Test
+    public void testConvert() {
+        List<LocalDateTime> dateTimes = new ArrayList<>();
+        dateTimes.add(LocalDate.of(2017, 9, 4).atTime(8, 0));
+        dateTimes.add(LocalDate.of(2018, 2, 1).atTime(8, 0));
+        dateTimes.add(null);
+        dateTimes.add(LocalDate.of(2018, 9, 10).atTime(8, 0));
+
+        List<SchoolDate> result = index.convert(dateTimes);
+
+        assertEquals(4, result.size());
+        assertEquals(new SchoolDate("2017-2018学年第一学期", 1, DayOfWeek.MONDAY), result.get(0));
+        assertNull(result.get(1));
+        assertNull(result.get(2));
+        assertEquals(calendars.get(0).getFromDateTime(dateTimes.get(3)), result.get(3));
+    }
+
+    @Test
+    public void testConvertRange() {
+        List<SchoolDate> result = index.convert(LocalDate.of(2018, 1, 18), LocalDate.of(2018, 1, 21));
+
+        assertEquals(4, result.size());
+        assertEquals("2017-2018学年第一学期", result.get(0).getTerm());
+        assertEquals(DayOfWeek.THURSDAY, result.get(0).getDay());
+        assertEquals(DayOfWeek.FRIDAY, result.get(1).getDay());
+        assertNull(result.get(2));
+        assertNull(result.get(3));
+    }
+
+    @Test
+    public void testEmpty() {
+        SchoolCalendarIndex empty = new SchoolCalendarIndex(new ArrayList<>());
+
+        assertEquals(0, empty.size());
+        assertNull(empty.find(LocalDateTime.now()));
+    }
+}
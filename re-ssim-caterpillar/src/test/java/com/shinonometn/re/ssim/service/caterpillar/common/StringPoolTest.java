@@ -0,0 +1,43 @@
+package com.shinonometn.re.ssim.service.caterpillar.common;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class StringPoolTest {
+
+    @Test
+    public void testEqualStringsShareInstance() {
+        StringPool pool = new StringPool();
+
+        String first = pool.intern(new String("张三"));
+        String second = pool.intern(new String("张三"));
+
+        assertSame(first, second);
+        assertNull(pool.intern(null));
+    }
+
+    @Test
+    public void testEqualArraysShareInstance() {
+        StringPool pool = new StringPool();
+
+        String[] first = pool.internAll(new String[]{new String("软件1701"), new String("软件1702")});
+        String[] second = pool.internAll(new String[]{new String("软件1701"), new String("软件1702")});
+
+        assertSame(first, second);
+        assertSame(first[0], pool.intern(new String("软件1701")));
+    }
+
+    @Test
+    public void testLimits() {
+        StringPool pool = new StringPool(1, 4);
+
+        String tooLong = new String("abcdef");
+        assertSame(tooLong, pool.intern(tooLong));
+
+        pool.intern("abc");
+        String overflow = new String("xyz");
+        assertSame(overflow, pool.intern(overflow));
+        assertEquals(1, pool.size());
+    }
+}
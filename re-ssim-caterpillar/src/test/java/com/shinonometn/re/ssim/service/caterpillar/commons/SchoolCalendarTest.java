@@ -11,6 +11,8 @@ import java.util.HashMap;
 import java.util.Map;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 
 public class SchoolCalendarTest {
 
@@ -67,4 +69,50 @@ public class SchoolCalendarTest {
         assertEquals(days, 18 * 7 - 2); // 18 weeks, 7 days in a week, minus the latest weekend
     }
 
-}
\ No newline at end of file
+    @Test
+    public void testTableSameAsCalculated() {
+        String term = "2017-2018学年第一学期";
+        LocalDateTime endDate = LocalDate.of(2018, 1, 5).atTime(LocalTime.MAX);
+
+        // Monday start, start in the middle of a week, sunday start and a start with time of day
+        LocalDateTime[] startDates = {
+                LocalDate.of(2017, 9, 4).atStartOfDay(),
+                LocalDate.of(2017, 9, 7).atStartOfDay(),
+                LocalDate.of(2017, 9, 10).atStartOfDay(),
+                LocalDateTime.of(2017, 9, 5, 8, 30)
+        };
+
+        for (LocalDateTime startDate : startDates) {
+            KingoSchoolCalendar schoolCalendar = new KingoSchoolCalendar();
+            schoolCalendar.setName(term);
+            schoolCalendar.setStartDate(startDate);
+            schoolCalendar.setEndDate(endDate);
+
+            for (LocalDateTime dateTime = LocalDateTime.of(2017, 8, 25, 0, 0);
+                 dateTime.isBefore(LocalDateTime.of(2018, 1, 10, 0, 0));
+                 dateTime = dateTime.plusMinutes(90)) {
+
+                assertEquals(startDate + " " + dateTime,
+                        schoolCalendar.calculateFromDateTime(dateTime),
+                        schoolCalendar.getFromDateTime(dateTime));
+            }
+        }
+    }
+
+    @Test
+    public void testTableSharedAndRebuiltOnChange() {
+        Date startDate = Date.from(LocalDate.of(2017, 9, 4).atStartOfDay().atZone(ZoneId.systemDefault()).toInstant());
+        Date endDate = Date.from(LocalDate.of(2018, 1, 5).atTime(LocalTime.MAX).atZone(ZoneId.systemDefault()).toInstant());
+        KingoSchoolCalendar schoolCalendar = new KingoSchoolCalendar("2017-2018学年第一学期", startDate, endDate);
+
+        SchoolDate morning = schoolCalendar.getFromDateTime(LocalDateTime.of(2017, 10, 17, 8, 0));
+        assertSame(morning, schoolCalendar.getFromDateTime(LocalDateTime.of(2017, 10, 17, 20, 0)));
+
+        schoolCalendar.setName("2017-2018学年第二学期");
+        schoolCalendar.setStartDate(LocalDate.of(2017, 9, 11).atStartOfDay());
+
+        assertEquals(new SchoolDate("2017-2018学年第二学期", 6, DayOfWeek.TUESDAY),
+                schoolCalendar.getFromDateTime(LocalDateTime.of(2017, 10, 17, 8, 0)));
+        assertNull(schoolCalendar.getFromDateTime(LocalDateTime.of(2017, 9, 10, 8, 0)));
+    }
+}
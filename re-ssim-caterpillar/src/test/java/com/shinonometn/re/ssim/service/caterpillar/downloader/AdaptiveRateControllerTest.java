@@ -0,0 +1,72 @@
+package com.shinonometn.re.ssim.service.caterpillar.downloader;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AdaptiveRateControllerTest {
+
+    private static final String DOMAIN = "jwgl.lnc.edu.cn";
+
+    @Test
+    public void testIncreaseToCeilingWhenHealthy() throws InterruptedException {
+        AdaptiveRateController controller = new AdaptiveRateController(4, 0, 10, 1000, 2.0);
+
+        for (int i = 0; i < 64; i++) {
+            controller.acquire(DOMAIN);
+            controller.release(DOMAIN, 20, false);
+        }
+
+        assertEquals(4, controller.getConcurrencyLimit(DOMAIN));
+        assertEquals(0, controller.getRequestIntervalMillis(DOMAIN));
+        assertEquals(20, controller.getLatencyMillis(DOMAIN));
+    }
+
+    @Test
+    public void testSpacingKeepsFloor() throws InterruptedException {
+        AdaptiveRateController controller = new AdaptiveRateController(4, 10, 1000);
+
+        for (int i = 0; i < 64; i++) {
+            controller.acquire(DOMAIN);
+            controller.release(DOMAIN, 20, false);
+        }
+
+        assertEquals(4, controller.getConcurrencyLimit(DOMAIN));
+        assertEquals(10, controller.getRequestIntervalMillis(DOMAIN));
+    }
+
+    @Test
+    public void testBackOffOnErrors() throws InterruptedException {
+        AdaptiveRateController controller = new AdaptiveRateController(8, 0, 100, 1000, 2.0);
+
+        for (int i = 0; i < 64; i++) {
+            controller.acquire(DOMAIN);
+            controller.release(DOMAIN, 1, false);
+        }
+        assertEquals(8, controller.getConcurrencyLimit(DOMAIN));
+
+        controller.acquire(DOMAIN);
+        controller.release(DOMAIN, 1, true);
+
+        assertEquals(4, controller.getConcurrencyLimit(DOMAIN));
+        assertTrue(controller.getRequestIntervalMillis(DOMAIN) >= 50);
+        assertTrue(controller.getErrorRate(DOMAIN) > 0);
+    }
+
+    @Test
+    public void testBackOffOnLatencySpike() throws InterruptedException {
+        AdaptiveRateController controller = new AdaptiveRateController(8, 0, 0, 1000, 2.0);
+
+        for (int i = 0; i < 64; i++) {
+            controller.acquire(DOMAIN);
+            controller.release(DOMAIN, 50, false);
+        }
+
+        Thread.sleep(60);
+        controller.acquire(DOMAIN);
+        controller.release(DOMAIN, 500, false);
+
+        assertEquals(4, controller.getConcurrencyLimit(DOMAIN));
+    }
+}
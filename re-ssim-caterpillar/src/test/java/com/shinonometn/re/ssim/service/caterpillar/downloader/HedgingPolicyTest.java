@@ -0,0 +1,120 @@
+package com.shinonometn.re.ssim.service.caterpillar.downloader;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.Test;
+import us.codecraft.webmagic.Page;
+import us.codecraft.webmagic.Request;
+import us.codecraft.webmagic.Site;
+import us.codecraft.webmagic.Task;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class HedgingPolicyTest {
+
+    private static final String DETAIL_URL = "http://jwgl.lnc.edu.cn/ZNPK/KBFB_LessonSel_rpt.aspx";
+
+    @Test
+    public void testDelayFollowsObservedLatency() {
+        HedgingPolicy policy = HedgingPolicy.builder().delay(0.95, 10).minSamples(10).build();
+
+        for (int i = 0; i < 9; i++) policy.record(100);
+        assertEquals(-1, policy.delayMillis());
+
+        policy.record(100);
+        assertEquals(100, policy.delayMillis());
+    }
+
+    @Test
+    public void testBudgetLimitsHedges() {
+        HedgingPolicy policy = HedgingPolicy.builder().budget(0.1).endpoint(".*KBFB_LessonSel_rpt.*").build();
+
+        assertTrue(policy.matches(DETAIL_URL));
+        assertFalse(policy.matches("http://jwgl.lnc.edu.cn/_data/index_LOGIN.aspx"));
+        assertFalse(policy.tryHedge());
+
+        for (int i = 0; i < 20; i++) policy.onRequest();
+        assertTrue(policy.tryHedge());
+        assertTrue(policy.tryHedge());
+        assertFalse(policy.tryHedge());
+        assertEquals(2, policy.getHedgeCount());
+    }
+
+    @Test
+    public void testSlowRequestIsHedged() throws IOException {
+        AtomicInteger slowRequests = new AtomicInteger(0);
+
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/", exchange -> {
+            // Only the first request of the stalled page is slow, its duplicate is answered at once
+            if (exchange.getRequestURI().getPath().equals("/stalled") && slowRequests.getAndIncrement() == 0) {
+                try {
+                    Thread.sleep(3000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            byte[] body = "ok".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream output = exchange.getResponseBody()) {
+                output.write(body);
+            } catch (IOException ignored) {
+                // Client cancelled the losing exchange
+            }
+        });
+        server.start();
+
+        String baseUrl = "http://127.0.0.1:" + server.getAddress().getPort();
+        HedgingPolicy policy = HedgingPolicy.builder().delay(0.95, 50).minSamples(5).budget(0.5).build();
+        AtomicInteger hedges = new AtomicInteger(0);
+        AtomicInteger hedgesWon = new AtomicInteger(0);
+
+        try (PooledHttpDownloader downloader = new PooledHttpDownloader(4, 1)) {
+            downloader.setHedgingPolicy(policy).addListener(new DownloadEventListener() {
+                @Override
+                public void onHedge(Request request, long delayMillis) {
+                    hedges.incrementAndGet();
+                }
+
+                @Override
+                public void onHedgeWon(Request request) {
+                    hedgesWon.incrementAndGet();
+                }
+            });
+
+            Task task = taskOf(Site.me().setTimeOut(5000));
+            for (int i = 0; i < 5; i++) assertEquals(200, downloader.download(new Request(baseUrl + "/fast"), task).getStatusCode());
+
+            long startTime = System.currentTimeMillis();
+            Page page = downloader.download(new Request(baseUrl + "/stalled"), task);
+
+            assertEquals("ok", page.getRawText());
+            assertTrue(System.currentTimeMillis() - startTime < 2000);
+            assertEquals(1, hedges.get());
+            assertEquals(1, hedgesWon.get());
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    private static Task taskOf(Site site) {
+        return new Task() {
+            @Override
+            public String getUUID() {
+                return "hedging_test";
+            }
+
+            @Override
+            public Site getSite() {
+                return site;
+            }
+        };
+    }
+}
@@ -0,0 +1,87 @@
+package com.shinonometn.re.ssim.service.caterpillar.downloader;
+
+import org.junit.Test;
+import us.codecraft.webmagic.Request;
+
+import static org.junit.Assert.*;
+
+public class RetryPolicyTest {
+
+    private static final String LOGIN_URL = "http://jwgl.lnc.edu.cn/_data/index_LOGIN.aspx";
+    private static final String DETAIL_URL = "http://jwgl.lnc.edu.cn/ZNPK/KBFB_LessonSel_rpt.aspx";
+
+    @Test
+    public void testBudgetLimitsRetries() {
+        RetryPolicy policy = RetryPolicy.builder().maxRetries(3).budget(2, 0.5).build();
+
+        assertTrue(policy.tryRetry(0));
+        assertTrue(policy.tryRetry(0));
+        assertFalse(policy.tryRetry(0));
+
+        for (int i = 0; i < 4; i++) policy.onRequest();
+        assertTrue(policy.tryRetry(1));
+        assertTrue(policy.tryRetry(2));
+        assertFalse(policy.tryRetry(3));
+    }
+
+    @Test
+    public void testBackoffIsCapped() {
+        RetryPolicy policy = RetryPolicy.builder().backoff(100, 1000).build();
+
+        for (int retried = 0; retried < 64; retried++) {
+            long delay = policy.backoffMillis(retried);
+            assertTrue(delay >= 0 && delay <= Math.min(1000, 100L << Math.min(retried, 20)));
+        }
+    }
+
+    @Test
+    public void testCircuitOpensAndRecovers() throws InterruptedException {
+        RetryPolicy policy = RetryPolicy.builder()
+                .circuitBreaking(2, 50, 200)
+                .circuit("login", "index_LOGIN")
+                .build();
+
+        CircuitBreaker circuit = policy.circuitOf(LOGIN_URL);
+        assertEquals("login", circuit.getName());
+        assertEquals("default", policy.circuitOf(DETAIL_URL).getName());
+
+        circuit.onFailure();
+        assertEquals(CircuitBreaker.State.CLOSED, circuit.getState());
+        long openTime = System.currentTimeMillis();
+        circuit.onFailure();
+        assertEquals(CircuitBreaker.State.OPEN, circuit.getState());
+        assertEquals(1, policy.getOpenCircuits().size());
+
+        // Waits for the cool down, then lets a trial request through
+        circuit.awaitPermission();
+        assertTrue(System.currentTimeMillis() - openTime >= 50);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, circuit.getState());
+
+        circuit.onSuccess();
+        assertEquals(CircuitBreaker.State.CLOSED, circuit.getState());
+        assertTrue(policy.getOpenCircuits().isEmpty());
+    }
+
+    @Test
+    public void testListenerNotifiedOfCircuitChanges() {
+        StringBuilder changes = new StringBuilder();
+        RetryPolicy policy = RetryPolicy.builder().circuitBreaking(1, 1000, 1000).build();
+        policy.addListener(new DownloadEventListener() {
+            @Override
+            public void onRetry(Request request, int attempt, long delayMillis, String reason) {
+            }
+
+            @Override
+            public void onGiveUp(Request request, String reason) {
+            }
+
+            @Override
+            public void onCircuitStateChange(String circuit, CircuitBreaker.State state) {
+                changes.append(circuit).append(':').append(state);
+            }
+        });
+
+        policy.circuitOf(DETAIL_URL).onFailure();
+        assertEquals("default:OPEN", changes.toString());
+    }
+}
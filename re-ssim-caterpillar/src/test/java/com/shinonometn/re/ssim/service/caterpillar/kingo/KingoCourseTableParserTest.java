@@ -0,0 +1,89 @@
+package com.shinonometn.re.ssim.service.caterpillar.kingo;
+
+import com.shinonometn.re.ssim.service.caterpillar.kingo.pojo.Course;
+import com.shinonometn.re.ssim.service.caterpillar.test.TestHelper;
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class KingoCourseTableParserTest {
+
+    // Neither page is a captured one, see comments in them
+    private final static String[] SAMPLE_PAGES = {
+            "/sample_pages/KBFB_LessonSel_rpt.aspx",
+            "/sample_pages/KBFB_LessonSel_rpt_markup.aspx"
+    };
+
+    private Document load(String name) throws IOException {
+        try (InputStream inputStream = getClass().getResourceAsStream(name)) {
+            return Jsoup.parse(inputStream, "utf-8", KingoUrls.subjectQueryPage);
+        }
+    }
+
+    @Test
+    public void testSameOutputAsRawParser() throws IOException {
+        for (String name : SAMPLE_PAGES) {
+            Document document = load(name);
+
+            Course expected = KingoRawCourseParser.parseFromHTML(document);
+            Course actual = KingoCourseTableParser.parseFromHTML(document);
+
+            TestHelper.info(actual.toString());
+            assertEquals(name, expected.toString(), actual.toString());
+        }
+    }
+
+    @Test
+    public void testParseSamplePages() throws IOException {
+        Course course = KingoCourseTableParser.parseFromHTML(load(SAMPLE_PAGES[0]));
+        assertEquals("021431", course.getCode());
+        assertTrue(course.getLessons().size() > 10);
+
+        // Wrapped and padded cells, blank cells continue the lesson above
+        course = KingoCourseTableParser.parseFromHTML(load(SAMPLE_PAGES[1]));
+        assertEquals("030112", course.getCode());
+        assertEquals("2017-2018学年第一学期", course.getTerm());
+        assertEquals("外国语学院", course.getUnit());
+        assertEquals(6.0, course.getPoint(), 0);
+        assertEquals(6, course.getLessons().size());
+        assertEquals(42, (int) course.getLessons().get(1).getAttendAmount());
+        assertEquals(2, course.getLessons().get(0).getClassAttend().length);
+        assertEquals("外语楼301", course.getLessons().get(0).getPosition());
+    }
+
+    @Test
+    public void testIncompleteTable() {
+        Document document = Jsoup.parse("<html><body><table><tr><td><table><tr><td>学年学期</td></tr></table></td></tr></table></body></html>");
+        try {
+            KingoCourseTableParser.parseFromHTML(document);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals(KingoCourseTableParser.COURSE_TABLE_INCOMPLETE, e.getMessage());
+        }
+    }
+
+    @Test
+    public void testExpandTimePoints() {
+        String[][] testCases = {
+                {"1-17", "一[1-2节]"},
+                {"1-8,10-17", "三[3-4节]单"},
+                {"2-16", "五[5-6节]双"},
+                {"1-4,6,8-12", "日[9节]"},
+                {"9", "二[1-3节]"},
+                {"1-6,", "四[7-8节][双]"},
+                {"3-5-9", "六[1-2-3节]"},
+        };
+
+        for (String[] testCase : testCases)
+            assertEquals(
+                    KingoRawCourseParser.expandKingoWeekdays(testCase[0], testCase[1]).toString(),
+                    KingoCourseTableParser.expandTimePoints(testCase[0], testCase[1]).toString());
+    }
+}
@@ -1,8 +1,10 @@
 package com.shinonometn.re.ssim.service.caterpillar.kingo.capture;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.shinonometn.re.ssim.service.caterpillar.scheduler.TrackingPageProcessor;
 import org.junit.Ignore;
 import org.junit.Test;
+import us.codecraft.webmagic.Page;
 import us.codecraft.webmagic.Request;
 import us.codecraft.webmagic.Site;
 import us.codecraft.webmagic.Spider;
@@ -17,9 +19,25 @@ import java.util.Map;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
-@Ignore
+import static org.junit.Assert.*;
+
 public class CourseDetailsPageProcessorTest {
 
+    @Test
+    public void testIncompletePageLeftUnfinished() {
+        Page page = new Page();
+        page.setRequest(new Request("http://localhost/ZNPK/KBFB_LessonSel_rpt.aspx"));
+        page.setStatusCode(200);
+        page.setRawText("<html><body><table><tr><td><table><tr><td>学年学期</td></tr></table></td></tr></table></body></html>");
+
+        new TrackingPageProcessor(new CourseDetailsPageProcessor(Site.me())).process(page);
+
+        assertTrue(page.getResultItems().isSkip());
+        assertNull(CourseDetailsPageProcessor.getSubject(page.getResultItems()));
+        assertFalse(TrackingPageProcessor.isProcessed(page.getRequest()));
+    }
+
+    @Ignore
     @Test
     public void testGetASubject() {
         final String loginPageAddress = "http://jwgl.lnc.edu.cn/_data/index_LOGIN.aspx";
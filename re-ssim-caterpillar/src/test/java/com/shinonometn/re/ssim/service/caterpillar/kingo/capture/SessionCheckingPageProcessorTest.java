@@ -0,0 +1,79 @@
+package com.shinonometn.re.ssim.service.caterpillar.kingo.capture;
+
+import org.junit.Test;
+import us.codecraft.webmagic.Page;
+import us.codecraft.webmagic.Request;
+import us.codecraft.webmagic.Site;
+import us.codecraft.webmagic.processor.PageProcessor;
+
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class SessionCheckingPageProcessorTest {
+
+    private final AtomicInteger processed = new AtomicInteger(0);
+    private final AtomicInteger lost = new AtomicInteger(0);
+
+    private final SessionCheckingPageProcessor processor = new SessionCheckingPageProcessor(new PageProcessor() {
+        @Override
+        public void process(Page page) {
+            processed.incrementAndGet();
+        }
+
+        @Override
+        public Site getSite() {
+            return Site.me();
+        }
+    }, lost::incrementAndGet);
+
+    private static Page page(int statusCode, String location, String html) {
+        Page page = new Page();
+        page.setRequest(new Request("http://localhost/ZNPK/KBFB_LessonSel_rpt.aspx"));
+        page.setStatusCode(statusCode);
+        page.setRawText(html);
+        if (location != null) page.setHeaders(Collections.singletonMap("Location", Collections.singletonList(location)));
+        return page;
+    }
+
+    @Test
+    public void testLoginRedirect() {
+        Page page = page(302, "/_data/index_LOGIN.aspx", "");
+        processor.process(page);
+
+        assertTrue(page.getResultItems().isSkip());
+        assertEquals(0, processed.get());
+        assertEquals(1, lost.get());
+    }
+
+    @Test
+    public void testLoginForm() {
+        Page page = page(200, null, "<html><body><form><input name=\"txt_asmcdefsddsd\"/></form></body></html>");
+        processor.process(page);
+
+        assertTrue(page.getResultItems().isSkip());
+        assertEquals(0, processed.get());
+        assertEquals(1, lost.get());
+    }
+
+    @Test
+    public void testOtherPages() {
+        Page redirect = page(302, "/elsewhere.aspx", "");
+        processor.process(redirect);
+        assertTrue(redirect.getResultItems().isSkip());
+
+        processor.process(page(200, null, "<html><body><table></table></body></html>"));
+
+        assertEquals(1, processed.get());
+        assertEquals(0, lost.get());
+    }
+
+    @Test
+    public void testAcceptRedirects() {
+        Site site = SessionCheckingPageProcessor.acceptRedirects(Site.me());
+
+        assertTrue(site.getAcceptStatCode().contains(200));
+        assertTrue(site.getAcceptStatCode().contains(302));
+    }
+}
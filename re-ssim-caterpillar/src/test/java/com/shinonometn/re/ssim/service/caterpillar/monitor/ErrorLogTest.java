@@ -0,0 +1,26 @@
+package com.shinonometn.re.ssim.service.caterpillar.monitor;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class ErrorLogTest {
+
+    @Test
+    public void testKeepsLatestErrorsOnly() {
+        ErrorLog errorLog = new ErrorLog(3);
+
+        for (int i = 0; i < 10; i++) errorLog.record("http://jwgl.lnc.edu.cn/course/" + i, i % 2 == 0 ? "timeout" : "http_503");
+
+        List<ErrorLog.Entry> recent = errorLog.getRecent();
+        assertEquals(3, recent.size());
+        assertEquals("http://jwgl.lnc.edu.cn/course/9", recent.get(0).getUrl());
+        assertEquals("http://jwgl.lnc.edu.cn/course/7", recent.get(2).getUrl());
+
+        assertEquals(10, errorLog.getTotal());
+        assertEquals(5L, (long) errorLog.getCounts().get("timeout"));
+        assertEquals(5L, (long) errorLog.getCounts().get("http_503"));
+    }
+}
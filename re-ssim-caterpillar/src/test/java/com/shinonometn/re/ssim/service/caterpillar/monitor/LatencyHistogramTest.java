@@ -0,0 +1,29 @@
+package com.shinonometn.re.ssim.service.caterpillar.monitor;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        for (int i = 0; i < 98; i++) histogram.record(15);
+        histogram.record(180);
+        histogram.record(40000);
+
+        assertEquals(100, histogram.getCount());
+        assertEquals(20, histogram.percentile(0.5));
+        assertEquals(200, histogram.percentile(0.99));
+        assertEquals(40000, histogram.percentile(1.0));
+        assertEquals(98L, (long) histogram.getBuckets().get("20"));
+        assertEquals(1L, (long) histogram.getBuckets().get("inf"));
+    }
+
+    @Test
+    public void testEmpty() {
+        assertEquals(0, new LatencyHistogram().percentile(0.99));
+    }
+}
@@ -0,0 +1,180 @@
+package com.shinonometn.re.ssim.service.caterpillar.scheduler;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import us.codecraft.webmagic.Page;
+import us.codecraft.webmagic.Request;
+import us.codecraft.webmagic.Site;
+import us.codecraft.webmagic.Spider;
+import us.codecraft.webmagic.SpiderListener;
+import us.codecraft.webmagic.Task;
+import us.codecraft.webmagic.downloader.Downloader;
+import us.codecraft.webmagic.processor.PageProcessor;
+import us.codecraft.webmagic.model.HttpRequestBody;
+import us.codecraft.webmagic.utils.HttpConstant;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class FileBackedSchedulerTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private static Request coursePost(String courseCode) {
+        Request request = new Request("http://jwgl.lnc.edu.cn/ZNPK/KBFB_LessonSel_rpt.aspx");
+        request.setMethod(HttpConstant.Method.POST);
+        request.setRequestBody(HttpRequestBody.custom(("Sel_KC=" + courseCode).getBytes(StandardCharsets.UTF_8),
+                "application/x-www-form-urlencoded", "utf8"));
+        request.putExtra("course_code", courseCode);
+        return request;
+    }
+
+    @Test
+    public void testDeduplicatePostRequests() throws Exception {
+        try (FileBackedScheduler scheduler = new FileBackedScheduler(temporaryFolder.newFile())) {
+            scheduler.push(coursePost("0001"), null);
+            scheduler.push(coursePost("0001"), null);
+            scheduler.push(coursePost("0002"), null);
+
+            assertEquals(2, scheduler.getTotalRequestsCount(null));
+            assertEquals(2, scheduler.getLeftRequestsCount(null));
+        }
+    }
+
+    @Test
+    public void testResumeUnfinishedRequests() throws Exception {
+        File logFile = temporaryFolder.newFile();
+
+        try (FileBackedScheduler scheduler = new FileBackedScheduler(logFile)) {
+            assertFalse(scheduler.isResumed());
+            for (int i = 0; i < 4; i++) scheduler.push(coursePost("000" + i), null);
+
+            // One done, one in flight when stopped, one failed
+            scheduler.onSuccess(TrackingPageProcessor.markProcessed(scheduler.poll(null)));
+            scheduler.poll(null);
+            scheduler.onError(scheduler.poll(null));
+        }
+
+        try (FileBackedScheduler scheduler = new FileBackedScheduler(logFile)) {
+            assertTrue(scheduler.isResumed());
+            assertEquals(4, scheduler.getTotalRequestsCount(null));
+            assertEquals(3, scheduler.getLeftRequestsCount(null));
+            assertEquals(1, scheduler.getFinishedKeys().size());
+
+            // Finished requests are not fetched again
+            scheduler.push(coursePost("0000"), null);
+            assertEquals(3, scheduler.getLeftRequestsCount(null));
+
+            Request request = scheduler.poll(null);
+            assertEquals("0001", request.getExtra("course_code"));
+            assertEquals(HttpConstant.Method.POST, request.getMethod());
+            assertEquals("Sel_KC=0001", new String(request.getRequestBody().getBody(), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void testCycleRetryIsNotDoneUntilLastCopy() throws Exception {
+        File logFile = temporaryFolder.newFile();
+
+        try (FileBackedScheduler scheduler = new FileBackedScheduler(logFile)) {
+            scheduler.push(coursePost("0001"), null);
+            Request request = scheduler.poll(null);
+
+            // Spider queues the retry before reporting the failed attempt
+            scheduler.push(coursePost("0001").putExtra(Request.CYCLE_TRIED_TIMES, 1), null);
+            scheduler.onSuccess(request);
+            assertTrue(scheduler.getFinishedKeys().isEmpty());
+            assertEquals(1, scheduler.getLeftRequestsCount(null));
+
+            scheduler.onSuccess(TrackingPageProcessor.markProcessed(scheduler.poll(null)));
+            assertEquals(1, scheduler.getFinishedKeys().size());
+        }
+
+        try (FileBackedScheduler scheduler = new FileBackedScheduler(logFile)) {
+            assertEquals(0, scheduler.getLeftRequestsCount(null));
+            assertEquals(1, scheduler.getTotalRequestsCount(null));
+        }
+    }
+
+    @Test
+    public void testFailedDownloadIsNotDone() throws Exception {
+        File logFile = temporaryFolder.newFile();
+
+        // 0001 downloaded, 0002 failed to download, 0003 answered with a server error
+        Downloader downloader = new Downloader() {
+            @Override
+            public Page download(Request request, Task task) {
+                String courseCode = request.getExtra("course_code").toString();
+                if (courseCode.equals("0002")) return Page.fail();
+
+                Page page = new Page();
+                page.setRequest(request);
+                page.setRawText("<html></html>");
+                page.setStatusCode(courseCode.equals("0003") ? 500 : 200);
+                page.setDownloadSuccess(true);
+                return page;
+            }
+
+            @Override
+            public void setThread(int threadNum) {
+            }
+        };
+
+        FileBackedScheduler scheduler = new FileBackedScheduler(logFile);
+        Spider.create(new TrackingPageProcessor(new PageProcessor() {
+            @Override
+            public void process(Page page) {
+            }
+
+            @Override
+            public Site getSite() {
+                return Site.me().setSleepTime(0);
+            }
+        }))
+                .setDownloader(downloader)
+                .setScheduler(scheduler)
+                .setSpiderListeners(Collections.<SpiderListener>singletonList(scheduler))
+                .addPipeline((resultItems, task) -> {
+                })
+                .addRequest(coursePost("0001"), coursePost("0002"), coursePost("0003"))
+                .run();
+
+        assertEquals(1, scheduler.getFinishedRequestsCount(null));
+        assertEquals(3, scheduler.getTotalRequestsCount(null));
+
+        try (FileBackedScheduler resumed = new FileBackedScheduler(logFile)) {
+            assertEquals(2, resumed.getLeftRequestsCount(null));
+            assertEquals("0002", resumed.poll(null).getExtra("course_code"));
+            assertEquals("0003", resumed.poll(null).getExtra("course_code"));
+        }
+    }
+
+    @Test
+    public void testDropHalfWrittenRecord() throws Exception {
+        File logFile = temporaryFolder.newFile();
+
+        try (FileBackedScheduler scheduler = new FileBackedScheduler(logFile)) {
+            scheduler.push(coursePost("0001"), null);
+            scheduler.push(coursePost("0002"), null);
+        }
+
+        try (FileOutputStream outputStream = new FileOutputStream(logFile, true)) {
+            outputStream.write(new byte[]{'P', 0, 64, 'a'});
+        }
+
+        try (FileBackedScheduler scheduler = new FileBackedScheduler(logFile)) {
+            assertEquals(2, scheduler.getLeftRequestsCount(null));
+            scheduler.push(coursePost("0003"), null);
+        }
+
+        try (FileBackedScheduler scheduler = new FileBackedScheduler(logFile)) {
+            assertEquals(3, scheduler.getLeftRequestsCount(null));
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package com.shinonometn.re.ssim.service.caterpillar.scheduler;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import us.codecraft.webmagic.Request;
+
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs against a redis on localhost:6379, skipped if not available
+ */
+public class RedisLeaseSchedulerTest {
+
+    private LettuceConnectionFactory connectionFactory;
+    private StringRedisTemplate redisTemplate;
+
+    private final String taskKey = "test." + UUID.randomUUID();
+
+    @Before
+    public void setUp() {
+        connectionFactory = new LettuceConnectionFactory("localhost", 6379);
+        connectionFactory.afterPropertiesSet();
+
+        try (RedisConnection connection = connectionFactory.getConnection()) {
+            connection.ping();
+        } catch (Exception e) {
+            connectionFactory.destroy();
+            Assume.assumeNoException("Local redis is not available", e);
+        }
+
+        redisTemplate = new StringRedisTemplate(connectionFactory);
+    }
+
+    @After
+    public void tearDown() {
+        if (redisTemplate == null) return;
+        new RedisLeaseScheduler(redisTemplate, taskKey, null, 0).clear();
+        connectionFactory.destroy();
+    }
+
+    @Test
+    public void testDeduplicateAcrossNodes() {
+        RedisLeaseScheduler nodeA = new RedisLeaseScheduler(redisTemplate, taskKey, "node-a", 60000);
+        RedisLeaseScheduler nodeB = new RedisLeaseScheduler(redisTemplate, taskKey, "node-b", 60000);
+
+        nodeA.push(new Request("http://jwgl.lnc.edu.cn/course/1"), null);
+        nodeB.push(new Request("http://jwgl.lnc.edu.cn/course/1"), null);
+        nodeB.push(new Request("http://jwgl.lnc.edu.cn/course/2"), null);
+
+        assertEquals(2, nodeA.getTotalRequestsCount(null));
+        assertEquals(2, nodeB.getLeftRequestsCount(null));
+    }
+
+    @Test
+    public void testNodesShareQueue() {
+        RedisLeaseScheduler nodeA = new RedisLeaseScheduler(redisTemplate, taskKey, "node-a", 60000);
+        RedisLeaseScheduler nodeB = new RedisLeaseScheduler(redisTemplate, taskKey, "node-b", 60000);
+
+        nodeA.push(new Request("http://jwgl.lnc.edu.cn/course/1"), null);
+        nodeA.push(new Request("http://jwgl.lnc.edu.cn/course/2"), null);
+
+        Request first = nodeA.poll(null);
+        Request second = nodeB.poll(null);
+        assertNotEquals(first.getUrl(), second.getUrl());
+        assertFalse(nodeA.isDrained());
+
+        nodeA.onSuccess(TrackingPageProcessor.markProcessed(first));
+        nodeB.onSuccess(TrackingPageProcessor.markProcessed(second));
+
+        assertTrue(nodeA.isDrained());
+        assertEquals(2, nodeB.getFinishedRequestsCount(null));
+        assertEquals(2, nodeA.getNodePagePerSecond().size());
+    }
+
+    @Test
+    public void testExpiredLeaseIsReclaimed() throws InterruptedException {
+        RedisLeaseScheduler nodeA = new RedisLeaseScheduler(redisTemplate, taskKey, "node-a", 100);
+        RedisLeaseScheduler nodeB = new RedisLeaseScheduler(redisTemplate, taskKey, "node-b", 100);
+
+        nodeA.push(new Request("http://jwgl.lnc.edu.cn/course/1"), null);
+        assertNotNull(nodeA.poll(null));
+
+        // Node A is gone without finishing the request
+        Thread.sleep(200);
+
+        Request request = nodeB.poll(null);
+        assertNotNull(request);
+        assertEquals("http://jwgl.lnc.edu.cn/course/1", request.getUrl());
+
+        nodeB.onSuccess(TrackingPageProcessor.markProcessed(request));
+        assertEquals(1, nodeB.getFinishedRequestsCount(null));
+        assertTrue(nodeB.isDrained());
+    }
+
+    @Test
+    public void testFailedDownloadIsRequeuedOnPurpose() {
+        RedisLeaseScheduler node = new RedisLeaseScheduler(redisTemplate, taskKey, "node-a", 60000);
+
+        node.push(new Request("http://jwgl.lnc.edu.cn/course/1"), null);
+
+        // Reported successful by the spider, but the page was never processed
+        node.onSuccess(node.poll(null));
+        assertEquals(0, node.getFinishedRequestsCount(null));
+        assertTrue(node.isDrained());
+        assertNull(node.poll(null));
+
+        assertEquals(1, node.requeueFailed());
+        Request request = node.poll(null);
+        assertNotNull(request);
+
+        node.onSuccess(TrackingPageProcessor.markProcessed(request));
+        assertEquals(1, node.getFinishedRequestsCount(null));
+    }
+
+    @Test
+    public void testKeysExpire() {
+        RedisLeaseScheduler node = new RedisLeaseScheduler(redisTemplate, taskKey, "node-a", 60000, 60000);
+
+        node.push(new Request("http://jwgl.lnc.edu.cn/course/1"), null);
+
+        Long ttl = redisTemplate.getExpire(node.getKeyPrefix() + ".queue");
+        assertNotNull(ttl);
+        assertTrue(ttl > 0 && ttl <= 60);
+    }
+}
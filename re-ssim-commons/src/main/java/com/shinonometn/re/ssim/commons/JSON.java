@@ -21,6 +21,10 @@ public class JSON {
         return mapper.readerFor(clazz).readValue(inputStream);
     }
 
+    public static <T> T read(byte[] bytes, Class<T> clazz) throws IOException {
+        return mapper.readerFor(clazz).readValue(bytes);
+    }
+
     public static <T> T read(String json, TypeReference<T> typeReference) throws IOException {
         return mapper.readerFor(typeReference).readValue(json);
     }
@@ -41,6 +45,10 @@ public class JSON {
         mapper.writeValue(outputStream, object);
     }
 
+    public static byte[] writeAsBytes(Object object) throws IOException {
+        return mapper.writeValueAsBytes(object);
+    }
+
     @NotNull
     public static String parse(Object object) {
         try {
@@ -0,0 +1,93 @@
+package com.shinonometn.re.ssim.commons.file.segment;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Segment writer accepting records from many threads
+ * <p>
+ * Records are queued and written by a single background thread, producers
+ * only block when the queue is full. Write errors are raised on the next
+ * {@link #append(String, byte[])} or on {@link #close()}.
+ */
+public class AsyncSegmentWriter implements Closeable {
+
+    private final static SegmentRecord END_OF_STREAM = new SegmentRecord("", new byte[0]);
+
+    private final SegmentWriter writer;
+    private final BlockingQueue<SegmentRecord> queue;
+    private final Thread writeThread;
+
+    private volatile IOException error;
+    private volatile boolean closed = false;
+
+    public AsyncSegmentWriter(File file, SegmentCompression compression, int queueSize) throws IOException {
+        this(new SegmentWriter(file, compression), queueSize);
+    }
+
+    public AsyncSegmentWriter(SegmentWriter writer, int queueSize) {
+        this.writer = writer;
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+
+        this.writeThread = new Thread(this::write, "segment-writer");
+        this.writeThread.setDaemon(true);
+        this.writeThread.start();
+    }
+
+    public void append(String key, byte[] value) throws IOException {
+        if (error != null) throw error;
+        if (closed) throw new IOException("segment_writer_closed");
+
+        try {
+            queue.put(new SegmentRecord(key, value));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted_while_queueing");
+        }
+    }
+
+    public long getRecordCount() {
+        return writer.getRecordCount();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) return;
+        closed = true;
+
+        try {
+            queue.put(END_OF_STREAM);
+            writeThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted_while_closing");
+        } finally {
+            writer.close();
+        }
+
+        if (error != null) throw error;
+    }
+
+    private void write() {
+        try {
+            while (true) {
+                SegmentRecord record = queue.take();
+                if (record == END_OF_STREAM) return;
+
+                // Keep draining after failure so producers never block forever
+                if (error != null) continue;
+                try {
+                    writer.append(record);
+                } catch (IOException e) {
+                    error = e;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.shinonometn.re.ssim.commons.file.segment;
+
+import org.apache.commons.compress.archivers.ArchiveEntry;
+import org.apache.commons.compress.archivers.ArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveInputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.apache.commons.compress.compressors.zstandard.ZstdCompressorInputStream;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CloseShieldInputStream;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.NoSuchElementException;
+
+/**
+ * Streaming reader of capture output archives
+ * <p>
+ * A segment file entry is read block by block, other entries are
+ * considered as old layout record files named by course code.
+ */
+class CaptureArchiveReader extends CaptureDataReader {
+
+    private final ArchiveInputStream archive;
+
+    private long bytesRead = 0;
+
+    CaptureArchiveReader(InputStream inputStream, String filename) throws IOException {
+        InputStream buffered = new BufferedInputStream(inputStream, 64 * 1024);
+        String name = filename.toLowerCase(Locale.ROOT);
+
+        if (name.endsWith(".zip")) archive = new ZipArchiveInputStream(buffered);
+        else if (name.endsWith(".tar")) archive = new TarArchiveInputStream(buffered);
+        else if (name.endsWith(".tar.gz") || name.endsWith(".tgz"))
+            archive = new TarArchiveInputStream(new GzipCompressorInputStream(buffered));
+        else if (name.endsWith(".tar.zst") || name.endsWith(".tzst"))
+            archive = new TarArchiveInputStream(new ZstdCompressorInputStream(buffered));
+        else {
+            inputStream.close();
+            throw new IOException("unsupported_archive_format:" + filename);
+        }
+    }
+
+    static boolean isSupported(String filename) {
+        String name = filename.toLowerCase(Locale.ROOT);
+        return name.endsWith(".zip") || name.endsWith(".tar")
+                || name.endsWith(".tar.gz") || name.endsWith(".tgz")
+                || name.endsWith(".tar.zst") || name.endsWith(".tzst");
+    }
+
+    @Override
+    public long getTotalBytes() {
+        return -1;
+    }
+
+    @Override
+    public long getRecordCount() {
+        return -1;
+    }
+
+    /**
+     * Uncompressed bytes read from the archive so far
+     */
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    @Override
+    public Iterator<SegmentRecord> iterator() {
+        return new Iterator<SegmentRecord>() {
+
+            private SegmentReader segmentReader;
+            private SegmentRecord next = advance();
+
+            private SegmentRecord advance() {
+                try {
+                    while (true) {
+                        if (segmentReader != null) {
+                            SegmentRecord record = segmentReader.next();
+                            if (record != null) {
+                                bytesRead += record.getValue().length;
+                                return record;
+                            }
+                            segmentReader = null;
+                        }
+
+                        ArchiveEntry entry = archive.getNextEntry();
+                        if (entry == null) return null;
+                        if (entry.isDirectory() || !archive.canReadEntryData(entry)) continue;
+
+                        String entryName = entry.getName();
+                        String baseName = entryName.substring(entryName.lastIndexOf('/') + 1);
+                        if (baseName.isEmpty() || baseName.startsWith(".")) continue;
+
+                        // Reader shares the archive stream, never let it close the archive
+                        if (baseName.equals(SegmentFile.DEFAULT_NAME)) {
+                            segmentReader = new SegmentReader(new CloseShieldInputStream(archive));
+                            continue;
+                        }
+                        if (baseName.endsWith(SegmentFile.EXTENSION)) continue;
+
+                        byte[] value = IOUtils.toByteArray(archive);
+                        bytesRead += value.length;
+                        return new SegmentRecord(baseName, value);
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public SegmentRecord next() {
+                if (next == null) throw new NoSuchElementException();
+                SegmentRecord current = next;
+                next = advance();
+                return current;
+            }
+        };
+    }
+
+    @Override
+    public void close() throws IOException {
+        archive.close();
+    }
+}
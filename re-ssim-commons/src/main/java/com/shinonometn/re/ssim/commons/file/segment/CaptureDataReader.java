@@ -0,0 +1,145 @@
+package com.shinonometn.re.ssim.commons.file.segment;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Read records of a capture output
+ * <p>
+ * If the folder contains a segment file ({@link SegmentFile#DEFAULT_NAME}) it
+ * will be read sequentially. Otherwise the folder is considered as the old layout,
+ * one file per record named by its key.
+ * <p>
+ * Archives of a capture output folder could be read by {@link #openArchive(InputStream, String)}
+ * without extracting.
+ */
+public abstract class CaptureDataReader implements Iterable<SegmentRecord>, Closeable {
+
+    public static CaptureDataReader open(File folder) throws IOException {
+        if (!folder.isDirectory()) throw new FileNotFoundException(folder.getAbsolutePath());
+
+        File segmentFile = new File(folder, SegmentFile.DEFAULT_NAME);
+        if (segmentFile.isFile()) return new SegmentLayout(
+                new SegmentReader(segmentFile),
+                segmentFile.length(),
+                SegmentReader.readRecordCount(segmentFile));
+
+        return new FileLayout(folder);
+    }
+
+    /**
+     * Read a zip, tar, tar.gz or tar.zst archive of a capture output folder
+     * <p>
+     * Entries are read one by one straight from the decompressor, so memory use
+     * does not grow with the archive size.
+     *
+     * @param inputStream archive stream, will be closed with the reader
+     * @param filename    archive filename, used to detect the format
+     */
+    public static CaptureDataReader openArchive(InputStream inputStream, String filename) throws IOException {
+        return new CaptureArchiveReader(inputStream, filename);
+    }
+
+    /**
+     * Check if a file is an archive format supported by {@link #openArchive(InputStream, String)}
+     */
+    public static boolean isArchive(String filename) {
+        return CaptureArchiveReader.isSupported(filename);
+    }
+
+    /**
+     * Bytes this data set occupied on disk
+     */
+    public abstract long getTotalBytes();
+
+    /**
+     * Record count if known before reading, -1 if not
+     */
+    public abstract long getRecordCount();
+
+    private static class SegmentLayout extends CaptureDataReader {
+        private final SegmentReader reader;
+        private final long totalBytes;
+        private final long recordCount;
+
+        SegmentLayout(SegmentReader reader, long totalBytes, long recordCount) {
+            this.reader = reader;
+            this.totalBytes = totalBytes;
+            this.recordCount = recordCount;
+        }
+
+        @Override
+        public long getTotalBytes() {
+            return totalBytes;
+        }
+
+        @Override
+        public long getRecordCount() {
+            return recordCount;
+        }
+
+        @Override
+        public Iterator<SegmentRecord> iterator() {
+            return reader.iterator();
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
+    }
+
+    private static class FileLayout extends CaptureDataReader {
+        private final File[] files;
+
+        FileLayout(File folder) throws IOException {
+            File[] files = folder.listFiles(File::isFile);
+            if (files == null) throw new IOException("could_not_list_folder:" + folder.getAbsolutePath());
+            Arrays.sort(files, Comparator.comparing(File::getName));
+            this.files = files;
+        }
+
+        @Override
+        public long getTotalBytes() {
+            long total = 0;
+            for (File file : files) total += file.length();
+            return total;
+        }
+
+        @Override
+        public long getRecordCount() {
+            return files.length;
+        }
+
+        @Override
+        public Iterator<SegmentRecord> iterator() {
+            return new Iterator<SegmentRecord>() {
+                private int index = 0;
+
+                @Override
+                public boolean hasNext() {
+                    return index < files.length;
+                }
+
+                @Override
+                public SegmentRecord next() {
+                    if (!hasNext()) throw new NoSuchElementException();
+                    File file = files[index++];
+                    try {
+                        return new SegmentRecord(file.getName(), Files.readAllBytes(file.toPath()));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+            };
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
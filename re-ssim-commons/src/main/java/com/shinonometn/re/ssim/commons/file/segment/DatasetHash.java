@@ -0,0 +1,60 @@
+package com.shinonometn.re.ssim.commons.file.segment;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Content hash of a set of records
+ * <p>
+ * Each record is hashed with SHA-256 and the digests are summed, so the
+ * result does not depend on the order records were captured or read.
+ */
+public class DatasetHash {
+
+    private final MessageDigest digest;
+
+    private long high = 0;
+    private long low = 0;
+    private long count = 0;
+
+    public DatasetHash() {
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public void update(String key, byte[] value) {
+        digest.update(key.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        ByteBuffer hash = ByteBuffer.wrap(digest.digest(value));
+
+        // 128 bits addition with carry
+        long recordHigh = hash.getLong();
+        long recordLow = hash.getLong();
+        long newLow = low + recordLow;
+        if (Long.compareUnsigned(newLow, low) < 0) high++;
+        low = newLow;
+        high += recordHigh;
+
+        count++;
+    }
+
+    public void update(SegmentRecord record) {
+        update(record.getKey(), record.getValue());
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Hex string of count and summed digests
+     */
+    public String toHex() {
+        return String.format("%x-%016x%016x", count, high, low);
+    }
+}
@@ -0,0 +1,73 @@
+package com.shinonometn.re.ssim.commons.file.segment;
+
+import com.github.luben.zstd.ZstdInputStream;
+import com.github.luben.zstd.ZstdOutputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compression of segment blocks
+ */
+public enum SegmentCompression {
+
+    NONE(0) {
+        @Override
+        OutputStream wrap(OutputStream outputStream) {
+            return outputStream;
+        }
+
+        @Override
+        InputStream wrap(InputStream inputStream) {
+            return inputStream;
+        }
+    },
+
+    GZIP(1) {
+        @Override
+        OutputStream wrap(OutputStream outputStream) throws IOException {
+            return new GZIPOutputStream(outputStream);
+        }
+
+        @Override
+        InputStream wrap(InputStream inputStream) throws IOException {
+            return new GZIPInputStream(inputStream);
+        }
+    },
+
+    ZSTD(2) {
+        @Override
+        OutputStream wrap(OutputStream outputStream) throws IOException {
+            return new ZstdOutputStream(outputStream);
+        }
+
+        @Override
+        InputStream wrap(InputStream inputStream) throws IOException {
+            return new ZstdInputStream(inputStream);
+        }
+    };
+
+    private final int code;
+
+    SegmentCompression(int code) {
+        this.code = code;
+    }
+
+    public int getCode() {
+        return code;
+    }
+
+    abstract OutputStream wrap(OutputStream outputStream) throws IOException;
+
+    abstract InputStream wrap(InputStream inputStream) throws IOException;
+
+    static SegmentCompression of(int code) throws IOException {
+        for (SegmentCompression compression : values())
+            if (compression.code == code) return compression;
+
+        throw new IOException("unknown_segment_compression:" + code);
+    }
+}
@@ -0,0 +1,39 @@
+package com.shinonometn.re.ssim.commons.file.segment;
+
+/**
+ * Segment file layout
+ * <p>
+ * A segment file is an append-only sequence of length-prefixed records,
+ * grouped into (optionally compressed) blocks:
+ * <pre>
+ * header : magic "RSEG" | version (1 byte) | compression (1 byte)
+ * block  : 'B' | record count (int) | payload length (int) | payload
+ * payload: { key length (int) | key (utf-8) | value length (int) | value } ...
+ * footer : 'F' | block count (int) | { block offset (long) | record count (int) } ...
+ * trailer: footer offset (long) | magic "RIDX"
+ * </pre>
+ * Blocks can be read sequentially without the footer, so a file left
+ * by a crashed writer is still readable up to its last complete block.
+ */
+public final class SegmentFile {
+
+    public final static String DEFAULT_NAME = "capture.seg";
+
+    /**
+     * Other segment files in a capture folder hold side data of the capture
+     * (fingerprints, raw pages...), they are never imported as records.
+     */
+    public final static String EXTENSION = ".seg";
+
+    final static int MAGIC = 0x52534547; // RSEG
+    final static int INDEX_MAGIC = 0x52494458; // RIDX
+    final static int VERSION = 1;
+
+    final static int BLOCK_MARKER = 'B';
+    final static int FOOTER_MARKER = 'F';
+
+    final static int TRAILER_LENGTH = 12;
+
+    private SegmentFile() {
+    }
+}
@@ -0,0 +1,160 @@
+package com.shinonometn.re.ssim.commons.file.segment;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Read records of a segment file by key
+ * <p>
+ * The file is scanned once to find the block and position of every key,
+ * values are not kept. A value is read on demand by decompressing its block,
+ * the last decompressed block is kept since records are usually looked up
+ * in about the order they were written. A truncated tail is ignored like
+ * {@link SegmentReader} does. Thread safe.
+ */
+public class SegmentIndex {
+
+    private final File file;
+    private final SegmentCompression compression;
+    private final Map<String, Position> positions;
+
+    private long cachedBlockOffset = -1;
+    private byte[] cachedBlock = null;
+
+    private SegmentIndex(File file, SegmentCompression compression, Map<String, Position> positions) {
+        this.file = file;
+        this.compression = compression;
+        this.positions = positions;
+    }
+
+    /**
+     * Index records of a segment file, later records win if keys repeat
+     */
+    public static SegmentIndex open(File file) throws IOException {
+        Map<String, Position> positions = new HashMap<>();
+
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024))) {
+            if (input.readInt() != SegmentFile.MAGIC) throw new IOException("not_a_segment_file");
+
+            int version = input.readUnsignedByte();
+            if (version != SegmentFile.VERSION) throw new IOException("unsupported_segment_version:" + version);
+
+            SegmentCompression compression = SegmentCompression.of(input.readUnsignedByte());
+            long offset = 6;
+
+            while (true) {
+                int marker = input.read();
+                if (marker != SegmentFile.BLOCK_MARKER) break;
+
+                byte[] payload;
+                int records;
+                try {
+                    records = input.readInt();
+                    payload = new byte[input.readInt()];
+                    input.readFully(payload);
+                } catch (EOFException e) {
+                    break;
+                }
+
+                try (DataInputStream block = new DataInputStream(new BufferedInputStream(compression.wrap(new ByteArrayInputStream(payload))))) {
+                    for (int i = 0; i < records; i++) {
+                        String key = new String(readBytes(block), StandardCharsets.UTF_8);
+                        skipBytes(block);
+                        positions.put(key, new Position(offset, i));
+                    }
+                }
+
+                offset += 9 + payload.length;
+            }
+
+            return new SegmentIndex(file, compression, positions);
+        }
+    }
+
+    public int size() {
+        return positions.size();
+    }
+
+    public boolean contains(String key) {
+        return positions.containsKey(key);
+    }
+
+    public Set<String> keys() {
+        return Collections.unmodifiableSet(positions.keySet());
+    }
+
+    /**
+     * Read value of a key
+     *
+     * @return value, null if the key is not indexed
+     */
+    public synchronized byte[] read(String key) throws IOException {
+        Position position = positions.get(key);
+        if (position == null) return null;
+
+        try (DataInputStream block = new DataInputStream(new ByteArrayInputStream(blockAt(position.blockOffset)))) {
+            for (int i = 0; i < position.ordinal; i++) {
+                skipBytes(block);
+                skipBytes(block);
+            }
+            skipBytes(block);
+            return readBytes(block);
+        }
+    }
+
+    private byte[] blockAt(long blockOffset) throws IOException {
+        if (blockOffset == cachedBlockOffset) return cachedBlock;
+
+        byte[] payload;
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+            randomAccessFile.seek(blockOffset);
+            if (randomAccessFile.read() != SegmentFile.BLOCK_MARKER) throw new IOException("corrupted_segment_block");
+
+            randomAccessFile.readInt();
+            payload = new byte[randomAccessFile.readInt()];
+            randomAccessFile.readFully(payload);
+        }
+
+        ByteArrayOutputStream block = new ByteArrayOutputStream(payload.length * 4);
+        try (InputStream inputStream = compression.wrap(new ByteArrayInputStream(payload))) {
+            byte[] buffer = new byte[8192];
+            for (int read; (read = inputStream.read(buffer)) != -1; ) block.write(buffer, 0, read);
+        }
+
+        cachedBlock = block.toByteArray();
+        cachedBlockOffset = blockOffset;
+        return cachedBlock;
+    }
+
+    private static byte[] readBytes(DataInputStream inputStream) throws IOException {
+        byte[] bytes = new byte[inputStream.readInt()];
+        inputStream.readFully(bytes);
+        return bytes;
+    }
+
+    private static void skipBytes(DataInputStream inputStream) throws IOException {
+        // Decompressing streams may skip less than asked, fall back to reading
+        for (int remaining = inputStream.readInt(); remaining > 0; ) {
+            int skipped = inputStream.skipBytes(remaining);
+            if (skipped == 0) {
+                if (inputStream.read() == -1) throw new EOFException();
+                skipped = 1;
+            }
+            remaining -= skipped;
+        }
+    }
+
+    private static class Position {
+        private final long blockOffset;
+        private final int ordinal;
+
+        private Position(long blockOffset, int ordinal) {
+            this.blockOffset = blockOffset;
+            this.ordinal = ordinal;
+        }
+    }
+}
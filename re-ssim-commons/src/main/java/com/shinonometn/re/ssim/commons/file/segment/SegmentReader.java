@@ -0,0 +1,170 @@
+package com.shinonometn.re.ssim.commons.file.segment;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Read records of a segment file sequentially
+ * <p>
+ * Only one block is held in memory at a time. A truncated tail
+ * (e.g. writer crashed before footer written) ends the iteration
+ * silently, check {@link #isComplete()} after reading if it matters.
+ */
+public class SegmentReader implements Iterable<SegmentRecord>, Closeable {
+
+    private final DataInputStream input;
+    private final SegmentCompression compression;
+
+    private DataInputStream block;
+    private int blockRemaining = 0;
+
+    private boolean finished = false;
+    private boolean complete = false;
+
+    public SegmentReader(File file) throws IOException {
+        this(new FileInputStream(file));
+    }
+
+    public SegmentReader(InputStream inputStream) throws IOException {
+        this.input = new DataInputStream(new BufferedInputStream(inputStream, 64 * 1024));
+
+        if (input.readInt() != SegmentFile.MAGIC) throw new IOException("not_a_segment_file");
+
+        int version = input.readUnsignedByte();
+        if (version != SegmentFile.VERSION) throw new IOException("unsupported_segment_version:" + version);
+
+        this.compression = SegmentCompression.of(input.readUnsignedByte());
+    }
+
+    /**
+     * Check if a file is a segment file by its magic number
+     */
+    public static boolean isSegmentFile(File file) {
+        if (!file.isFile() || file.length() < 6) return false;
+        try (DataInputStream inputStream = new DataInputStream(new FileInputStream(file))) {
+            return inputStream.readInt() == SegmentFile.MAGIC;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Read record count from the index footer without reading blocks
+     *
+     * @return record count, -1 if the file has no footer
+     */
+    public static long readRecordCount(File file) throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+            long length = randomAccessFile.length();
+            if (length < SegmentFile.TRAILER_LENGTH + 6) return -1;
+
+            randomAccessFile.seek(length - SegmentFile.TRAILER_LENGTH);
+            long footerOffset = randomAccessFile.readLong();
+            if (randomAccessFile.readInt() != SegmentFile.INDEX_MAGIC) return -1;
+
+            randomAccessFile.seek(footerOffset);
+            if (randomAccessFile.read() != SegmentFile.FOOTER_MARKER) return -1;
+
+            int blocks = randomAccessFile.readInt();
+            long records = 0;
+            for (int i = 0; i < blocks; i++) {
+                randomAccessFile.readLong();
+                records += randomAccessFile.readInt();
+            }
+            return records;
+        }
+    }
+
+    public SegmentCompression getCompression() {
+        return compression;
+    }
+
+    /**
+     * If the footer has been reached, false if the file is truncated
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Read next record, null if no more records
+     */
+    public SegmentRecord next() throws IOException {
+        while (blockRemaining == 0) if (!nextBlock()) return null;
+
+        blockRemaining--;
+        String key = new String(readBytes(block), StandardCharsets.UTF_8);
+        byte[] value = readBytes(block);
+        return new SegmentRecord(key, value);
+    }
+
+    @Override
+    public Iterator<SegmentRecord> iterator() {
+        return new Iterator<SegmentRecord>() {
+
+            private SegmentRecord next = advance();
+
+            private SegmentRecord advance() {
+                try {
+                    return SegmentReader.this.next();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public SegmentRecord next() {
+                if (next == null) throw new NoSuchElementException();
+                SegmentRecord current = next;
+                next = advance();
+                return current;
+            }
+        };
+    }
+
+    @Override
+    public void close() throws IOException {
+        input.close();
+    }
+
+    private boolean nextBlock() throws IOException {
+        if (finished) return false;
+
+        try {
+            int marker = input.read();
+            if (marker == SegmentFile.FOOTER_MARKER) {
+                finished = complete = true;
+                return false;
+            }
+            if (marker != SegmentFile.BLOCK_MARKER) {
+                finished = true;
+                if (marker == -1) return false;
+                throw new IOException("corrupted_segment_block");
+            }
+
+            int records = input.readInt();
+            byte[] payload = new byte[input.readInt()];
+            input.readFully(payload);
+
+            block = new DataInputStream(new BufferedInputStream(compression.wrap(new ByteArrayInputStream(payload))));
+            blockRemaining = records;
+            return true;
+        } catch (EOFException e) {
+            finished = true;
+            return false;
+        }
+    }
+
+    private static byte[] readBytes(DataInputStream inputStream) throws IOException {
+        byte[] bytes = new byte[inputStream.readInt()];
+        inputStream.readFully(bytes);
+        return bytes;
+    }
+}
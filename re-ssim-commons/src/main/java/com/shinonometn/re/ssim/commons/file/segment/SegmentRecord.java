@@ -0,0 +1,29 @@
+package com.shinonometn.re.ssim.commons.file.segment;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A keyed record in segment file
+ */
+public final class SegmentRecord {
+
+    private final String key;
+    private final byte[] value;
+
+    public SegmentRecord(String key, byte[] value) {
+        this.key = key;
+        this.value = value;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public byte[] getValue() {
+        return value;
+    }
+
+    public String getValueAsString() {
+        return new String(value, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,122 @@
+package com.shinonometn.re.ssim.commons.file.segment;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Write records to a segment file
+ * <p>
+ * Records are buffered in memory until a block is full, then the block
+ * is compressed and appended to the file. Not thread safe, see
+ * {@link AsyncSegmentWriter} for concurrent producers.
+ */
+public class SegmentWriter implements Closeable {
+
+    public final static int DEFAULT_BLOCK_SIZE = 256 * 1024;
+
+    private final DataOutputStream output;
+    private final SegmentCompression compression;
+    private final int blockSize;
+
+    private final ByteArrayOutputStream blockBuffer;
+    private final DataOutputStream block;
+    private int blockRecords = 0;
+
+    private long position = 0;
+    private final List<long[]> index = new ArrayList<>();
+
+    private long recordCount = 0;
+    private boolean closed = false;
+
+    public SegmentWriter(File file, SegmentCompression compression) throws IOException {
+        this(new FileOutputStream(file), compression, DEFAULT_BLOCK_SIZE);
+    }
+
+    public SegmentWriter(OutputStream outputStream, SegmentCompression compression, int blockSize) throws IOException {
+        this.output = new DataOutputStream(new BufferedOutputStream(outputStream, 64 * 1024));
+        this.compression = compression;
+        this.blockSize = blockSize;
+        this.blockBuffer = new ByteArrayOutputStream(blockSize + blockSize / 4);
+        this.block = new DataOutputStream(blockBuffer);
+
+        output.writeInt(SegmentFile.MAGIC);
+        output.writeByte(SegmentFile.VERSION);
+        output.writeByte(compression.getCode());
+        position += 6;
+    }
+
+    public void append(String key, byte[] value) throws IOException {
+        if (closed) throw new IOException("segment_writer_closed");
+
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        block.writeInt(keyBytes.length);
+        block.write(keyBytes);
+        block.writeInt(value.length);
+        block.write(value);
+
+        blockRecords++;
+        recordCount++;
+
+        if (blockBuffer.size() >= blockSize) flushBlock();
+    }
+
+    public void append(SegmentRecord record) throws IOException {
+        append(record.getKey(), record.getValue());
+    }
+
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * Write buffered records as a block and flush it to the file
+     */
+    public void flush() throws IOException {
+        flushBlock();
+        output.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+
+        try {
+            flushBlock();
+
+            long footerOffset = position;
+            output.writeByte(SegmentFile.FOOTER_MARKER);
+            output.writeInt(index.size());
+            for (long[] entry : index) {
+                output.writeLong(entry[0]);
+                output.writeInt((int) entry[1]);
+            }
+            output.writeLong(footerOffset);
+            output.writeInt(SegmentFile.INDEX_MAGIC);
+        } finally {
+            closed = true;
+            output.close();
+        }
+    }
+
+    private void flushBlock() throws IOException {
+        if (blockRecords == 0) return;
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(blockBuffer.size());
+        try (OutputStream compressor = compression.wrap(compressed)) {
+            blockBuffer.writeTo(compressor);
+        }
+
+        index.add(new long[]{position, blockRecords});
+
+        output.writeByte(SegmentFile.BLOCK_MARKER);
+        output.writeInt(blockRecords);
+        output.writeInt(compressed.size());
+        compressed.writeTo(output);
+        position += 9 + compressed.size();
+
+        blockBuffer.reset();
+        blockRecords = 0;
+    }
+}
@@ -0,0 +1,167 @@
+package com.shinonometn.re.ssim.commons.file.segment;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class SegmentFileTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testWriteAndReadBack() throws IOException {
+        for (SegmentCompression compression : SegmentCompression.values()) {
+            File file = temporaryFolder.newFile("test-" + compression.name() + ".seg");
+
+            // Small block size to produce multiple blocks
+            try (SegmentWriter writer = new SegmentWriter(new FileOutputStream(file), compression, 1024)) {
+                for (int i = 0; i < 500; i++) writer.append("key" + i, ("value of " + i).getBytes(StandardCharsets.UTF_8));
+            }
+
+            assertEquals(500, SegmentReader.readRecordCount(file));
+
+            List<SegmentRecord> records = new ArrayList<>();
+            try (SegmentReader reader = new SegmentReader(file)) {
+                reader.forEach(records::add);
+                assertTrue(reader.isComplete());
+            }
+
+            assertEquals(500, records.size());
+            for (int i = 0; i < 500; i++) {
+                assertEquals("key" + i, records.get(i).getKey());
+                assertEquals("value of " + i, records.get(i).getValueAsString());
+            }
+        }
+    }
+
+    @Test
+    public void testReadTruncatedFile() throws IOException {
+        File file = temporaryFolder.newFile("truncated.seg");
+
+        try (SegmentWriter writer = new SegmentWriter(new FileOutputStream(file), SegmentCompression.GZIP, 1024)) {
+            for (int i = 0; i < 500; i++) writer.append("key" + i, ("value of " + i).getBytes(StandardCharsets.UTF_8));
+        }
+
+        // Cut the footer and a part of the last block
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            randomAccessFile.setLength(randomAccessFile.length() - 200);
+        }
+
+        assertEquals(-1, SegmentReader.readRecordCount(file));
+
+        int count = 0;
+        try (SegmentReader reader = new SegmentReader(file)) {
+            for (SegmentRecord record : reader) {
+                assertEquals("key" + count, record.getKey());
+                count++;
+            }
+            assertFalse(reader.isComplete());
+        }
+
+        assertTrue(count > 0 && count < 500);
+    }
+
+    @Test
+    public void testReadByIndex() throws IOException {
+        for (SegmentCompression compression : SegmentCompression.values()) {
+            File file = temporaryFolder.newFile("index-" + compression.name() + ".seg");
+
+            try (SegmentWriter writer = new SegmentWriter(new FileOutputStream(file), compression, 1024)) {
+                for (int i = 0; i < 500; i++) writer.append("key" + i, ("value of " + i).getBytes(StandardCharsets.UTF_8));
+            }
+
+            SegmentIndex index = SegmentIndex.open(file);
+            assertEquals(500, index.size());
+            assertNull(index.read("key500"));
+
+            // Out of order, so blocks are read again
+            for (int i : new int[]{499, 0, 250, 1, 498})
+                assertEquals("value of " + i, new String(index.read("key" + i), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void testAsyncWriterAndCompatibleReader() throws Exception {
+        File segmentFolder = temporaryFolder.newFolder("segment");
+        try (AsyncSegmentWriter writer = new AsyncSegmentWriter(new File(segmentFolder, SegmentFile.DEFAULT_NAME), SegmentCompression.ZSTD, 16)) {
+            for (int i = 0; i < 100; i++) writer.append(String.valueOf(i), new byte[]{(byte) i});
+        }
+
+        File fileFolder = temporaryFolder.newFolder("files");
+        for (int i = 0; i < 100; i++)
+            try (FileOutputStream outputStream = new FileOutputStream(new File(fileFolder, String.valueOf(i)))) {
+                outputStream.write(i);
+            }
+
+        for (File folder : new File[]{segmentFolder, fileFolder}) {
+            try (CaptureDataReader reader = CaptureDataReader.open(folder)) {
+                assertEquals(100, reader.getRecordCount());
+
+                int count = 0;
+                for (SegmentRecord record : reader) {
+                    assertEquals(Integer.parseInt(record.getKey()), record.getValue()[0]);
+                    count++;
+                }
+                assertEquals(100, count);
+            }
+        }
+    }
+
+    @Test
+    public void testReadArchives() throws IOException {
+        ByteArrayOutputStream segment = new ByteArrayOutputStream();
+        try (SegmentWriter writer = new SegmentWriter(segment, SegmentCompression.GZIP, 1024)) {
+            for (int i = 0; i < 100; i++) writer.append(String.valueOf(i), new byte[]{(byte) i});
+        }
+
+        // tar.gz of a segment layout folder
+        File tarFile = temporaryFolder.newFile("capture.tar.gz");
+        try (TarArchiveOutputStream tar = new TarArchiveOutputStream(new GzipCompressorOutputStream(new FileOutputStream(tarFile)))) {
+            TarArchiveEntry entry = new TarArchiveEntry("1/" + SegmentFile.DEFAULT_NAME);
+            entry.setSize(segment.size());
+            tar.putArchiveEntry(entry);
+            segment.writeTo(tar);
+            tar.closeArchiveEntry();
+        }
+
+        // zip of a old layout folder
+        File zipFile = temporaryFolder.newFile("capture.zip");
+        try (ZipArchiveOutputStream zip = new ZipArchiveOutputStream(new FileOutputStream(zipFile))) {
+            zip.putArchiveEntry(new ZipArchiveEntry("1/"));
+            zip.closeArchiveEntry();
+            for (int i = 0; i < 100; i++) {
+                zip.putArchiveEntry(new ZipArchiveEntry("1/" + i));
+                zip.write(i);
+                zip.closeArchiveEntry();
+            }
+        }
+
+        for (File file : new File[]{tarFile, zipFile}) {
+            assertTrue(CaptureDataReader.isArchive(file.getName()));
+
+            Set<String> keys = new HashSet<>();
+            try (CaptureDataReader reader = CaptureDataReader.openArchive(new FileInputStream(file), file.getName())) {
+                for (SegmentRecord record : reader) {
+                    assertEquals(Integer.parseInt(record.getKey()), record.getValue()[0]);
+                    keys.add(record.getKey());
+                }
+            }
+            assertEquals(100, keys.size());
+        }
+    }
+}
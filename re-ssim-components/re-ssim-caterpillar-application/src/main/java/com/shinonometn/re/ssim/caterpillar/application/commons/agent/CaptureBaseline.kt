@@ -0,0 +1,116 @@
+package com.shinonometn.re.ssim.caterpillar.application.commons.agent
+
+import com.shinonometn.re.ssim.commons.JSON
+import com.shinonometn.re.ssim.commons.file.segment.SegmentCompression
+import com.shinonometn.re.ssim.commons.file.segment.SegmentFile
+import com.shinonometn.re.ssim.commons.file.segment.SegmentIndex
+import com.shinonometn.re.ssim.commons.file.segment.SegmentReader
+import com.shinonometn.re.ssim.commons.file.segment.SegmentWriter
+import com.shinonometn.re.ssim.service.caterpillar.common.PageFingerprint
+import com.shinonometn.re.ssim.service.caterpillar.kingo.pojo.Course
+import java.io.File
+
+/**
+ * Output of the previous capture of a term, used by incremental recapture
+ *
+ * Only courses having both a fingerprint and a record are known,
+ * so an unchanged page could always be replaced by its previous record.
+ * Records and raw pages are only indexed, each of them is read from disk when asked.
+ */
+class CaptureBaseline private constructor(private val folder: File?,
+                                          private val fingerprints: Map<String, PageFingerprint>,
+                                          private val records: SegmentIndex?) {
+
+    // Raw pages are only needed when server answers 304, index them on first use
+    private val rawPages: SegmentIndex? by lazy {
+        val rawPageFile = folder?.let { File(it, RAW_PAGE_FILE) }
+        if (rawPageFile == null || !rawPageFile.isFile) null else SegmentIndex.open(rawPageFile)
+    }
+
+    val size: Int
+        get() = fingerprints.size
+
+    fun fingerprints(): Map<String, PageFingerprint> = fingerprints
+
+    fun fingerprintOf(courseCode: String): PageFingerprint? = fingerprints[courseCode]
+
+    fun courseOf(courseCode: String): Course? = records?.read(courseCode)?.let { JSON.read(it, Course::class.java) }
+
+    fun rawPageOf(courseCode: String): ByteArray? = rawPages?.read(courseCode)
+
+    /**
+     * Compare current course list with the previous one
+     */
+    fun diff(courseCodes: Collection<String>): CourseListDiff {
+        val current = courseCodes.toSet()
+        return CourseListDiff(
+                added = current.filter { !fingerprints.containsKey(it) }.toSet(),
+                removed = fingerprints.keys.filter { !current.contains(it) }.toSet(),
+                kept = current.filter { fingerprints.containsKey(it) }.toSet())
+    }
+
+    data class CourseListDiff(val added: Set<String>, val removed: Set<String>, val kept: Set<String>) {
+        override fun toString() = "+${added.size},-${removed.size},=${kept.size}"
+    }
+
+    companion object {
+
+        const val FINGERPRINT_FILE = "fingerprints.seg"
+
+        const val RAW_PAGE_FILE = "pages.seg"
+
+        // Hidden, so archive readers never take it as a course record
+        const val REQUEST_LOG_FILE = ".requests.log"
+
+        @JvmStatic
+        val EMPTY = CaptureBaseline(null, emptyMap(), null)
+
+        /**
+         * Check if a capture folder is complete and has fingerprints
+         */
+        @JvmStatic
+        fun isUsable(folder: File?): Boolean {
+            if (folder == null || !File(folder, FINGERPRINT_FILE).isFile) return false
+            val segmentFile = File(folder, SegmentFile.DEFAULT_NAME)
+            return segmentFile.isFile && SegmentReader.readRecordCount(segmentFile) >= 0
+        }
+
+        /**
+         * Load baseline from a previous capture folder, empty if folder not usable
+         */
+        @JvmStatic
+        fun load(folder: File?): CaptureBaseline {
+            if (folder == null || !isUsable(folder)) return EMPTY
+
+            val records = SegmentIndex.open(File(folder, SegmentFile.DEFAULT_NAME))
+            val fingerprints = loadFingerprints(folder).filterKeys { records.contains(it) }
+
+            return CaptureBaseline(folder, fingerprints, records)
+        }
+
+        /**
+         * Load fingerprints saved in a capture folder, empty if not saved
+         */
+        @JvmStatic
+        fun loadFingerprints(folder: File): MutableMap<String, PageFingerprint> {
+            val fingerprints = HashMap<String, PageFingerprint>()
+            val fingerprintFile = File(folder, FINGERPRINT_FILE)
+            if (!fingerprintFile.isFile) return fingerprints
+
+            SegmentReader(fingerprintFile).use { reader ->
+                reader.forEach { fingerprints[it.key] = JSON.read(it.value, PageFingerprint::class.java) }
+            }
+            return fingerprints
+        }
+
+        /**
+         * Save fingerprints of current capture for the next one
+         */
+        @JvmStatic
+        fun saveFingerprints(folder: File, fingerprints: Map<String, PageFingerprint>) {
+            SegmentWriter(File(folder, FINGERPRINT_FILE), SegmentCompression.ZSTD).use { writer ->
+                fingerprints.forEach { (code, fingerprint) -> writer.append(code, JSON.writeAsBytes(fingerprint)) }
+            }
+        }
+    }
+}
@@ -1,7 +1,14 @@
 package com.shinonometn.re.ssim.caterpillar.application.commons.agent
 
 import com.shinonometn.re.ssim.caterpillar.application.commons.TermLabelItem
+import com.shinonometn.re.ssim.commons.BusinessException
 import com.shinonometn.re.ssim.service.caterpillar.SpiderMonitor
+import com.shinonometn.re.ssim.service.caterpillar.downloader.AdaptiveRateController
+import com.shinonometn.re.ssim.service.caterpillar.downloader.HedgingPolicy
+import com.shinonometn.re.ssim.service.caterpillar.downloader.PooledHttpDownloader
+import com.shinonometn.re.ssim.service.caterpillar.downloader.RetryPolicy
+import com.shinonometn.re.ssim.service.caterpillar.scheduler.RedisLeaseScheduler
+import org.springframework.data.redis.core.StringRedisTemplate
 import reactor.core.publisher.Flux
 import us.codecraft.webmagic.Site
 import us.codecraft.webmagic.Spider
@@ -25,18 +32,94 @@ abstract class CaterpillarProfileAgent(profileMap: MutableMap<String, Any?>) {
 
     var targetDomain: String by profileMap.withDefault { this.requireTargetDomain() }
 
+    /*
+    * Address the target site served at, change it to capture from a mirror or a mock server
+    */
+    var targetBaseUrl: String by profileMap.withDefault { "http://$targetDomain" }
+
     var userAgent: String by profileMap.withDefault { "WebMagic/0.7.3 re-ssim/2.0 (Lingnan College) AgentCode/$agentCode (CaterpillarProfileAgent/Kotlin.1.2.41)" }
 
     var timeoutMillis: Int by profileMap.withDefault { 5000 }
 
-    var retryTimes: Int by profileMap.withDefault { 81 }
+    var retryTimes: Int by profileMap.withDefault { 8 }
 
     var sleepTimes: Int by profileMap.withDefault { 500 }
 
     var taskThreads: Int by profileMap.withDefault { 2 }
 
+    var ingestQueueSize: Int by profileMap.withDefault { 256 }
+
+    var maxInFlightRequests: Int by profileMap.withDefault { 8 }
+
+    var ioThreads: Int by profileMap.withDefault { 2 }
+
+    /*
+    * Adaptive rate control, concurrency and request spacing are tuned
+    * between [sleepTimes] and [maxSleepTimes] up to [maxConcurrency]
+    */
+    var adaptiveRateControl: Boolean by profileMap.withDefault { false }
+
+    var maxConcurrency: Int by profileMap.withDefault { 8 }
+
+    var maxSleepTimes: Int by profileMap.withDefault { 10000 }
+
+    /*
+    * Skip courses not changed since the previous capture of the term
+    */
+    var incrementalRecapture: Boolean by profileMap.withDefault { false }
+
+    /*
+    * Keep raw fetched pages, so the data could be parsed again without network
+    */
+    var archiveRawPages: Boolean by profileMap.withDefault { false }
+
+    /*
+    * Share the request queue of a capture with other nodes through redis,
+    * other nodes join the capture by [joinCoursesCapture]. A node holding
+    * a request longer than [leaseTimeoutMillis] is considered lost.
+    */
+    var distributedCapture: Boolean by profileMap.withDefault { false }
+
+    var leaseTimeoutMillis: Int by profileMap.withDefault { 60000 }
+
+    /*
+    * Failed requests are retried up to [retryTimes] after a jittered exponential backoff
+    * between [retryBaseDelayMillis] and [retryMaxDelayMillis], all retries of a task share
+    * a budget of [retryBudgetRatio] of its requests. An endpoint failing [circuitFailureThreshold]
+    * times in a row is paused for [circuitCoolDownMillis].
+    */
+    var retryBaseDelayMillis: Int by profileMap.withDefault { 500 }
+
+    var retryMaxDelayMillis: Int by profileMap.withDefault { 30000 }
+
+    var retryBudgetRatio: Double by profileMap.withDefault { 0.2 }
+
+    var circuitFailureThreshold: Int by profileMap.withDefault { 5 }
+
+    var circuitCoolDownMillis: Int by profileMap.withDefault { 30000 }
+
+    /*
+    * Send a duplicate of a request not answered within the [hedgePercentile] latency of
+    * the observed ones (but not before [hedgeMinDelayMillis]), and take the first response.
+    * Duplicates are limited to [hedgeBudgetRatio] of requests.
+    */
+    var hedgeRequests: Boolean by profileMap.withDefault { false }
+
+    var hedgePercentile: Double by profileMap.withDefault { 0.95 }
+
+    var hedgeMinDelayMillis: Int by profileMap.withDefault { 500 }
+
+    var hedgeBudgetRatio: Double by profileMap.withDefault { 0.05 }
+
     private var spiderMonitor: SpiderMonitor? = null
 
+    private val retryPolicy: RetryPolicy by lazy { createRetryPolicy() }
+
+    private val hedgingPolicy: HedgingPolicy? by lazy { if (hedgeRequests) createHedgingPolicy() else null }
+
+    private var redisTemplate: StringRedisTemplate? = null
+    private var nodeId: String? = null
+
     /**
      * provide the default target domain
      */
@@ -62,12 +145,86 @@ abstract class CaterpillarProfileAgent(profileMap: MutableMap<String, Any?>) {
             .setSleepTime(sleepTimes)
             .setUserAgent(userAgent)
 
+    /**
+     * provide a pooled, bounded downloader for spiders
+     *
+     * connections are pooled and bounded by [maxInFlightRequests], but a spider
+     * thread still waits for each response, so requests in flight are bounded by
+     * [taskThreads] too, and every extra thread costs a thread.
+     * The downloader will be closed with the spider.
+     */
+    protected open fun createDownloader(rateController: AdaptiveRateController? = null): PooledHttpDownloader =
+            PooledHttpDownloader(maxInFlightRequests, ioThreads)
+                    .setRateController(rateController)
+                    .setRetryPolicy(retryPolicy)
+                    .setHedgingPolicy(hedgingPolicy)
+
+    /**
+     * provide the retry policy shared by all spiders of this agent
+     *
+     * override it to give endpoints of the target site their own circuits
+     */
+    protected open fun createRetryPolicy(): RetryPolicy = retryPolicyBuilder().build()
+
+    protected fun retryPolicyBuilder(): RetryPolicy.Builder = RetryPolicy.builder()
+            .maxRetries(retryTimes)
+            .backoff(retryBaseDelayMillis.toLong(), retryMaxDelayMillis.toLong())
+            .budget(retryTimes, retryBudgetRatio)
+            .circuitBreaking(circuitFailureThreshold, circuitCoolDownMillis.toLong(), circuitCoolDownMillis * 10L)
+
+    /**
+     * provide the hedging policy shared by all spiders of this agent, used if hedging enabled
+     *
+     * every request could be hedged by default, override it to hedge idempotent endpoints only
+     */
+    protected open fun createHedgingPolicy(): HedgingPolicy = hedgingPolicyBuilder().build()
+
+    protected fun hedgingPolicyBuilder(): HedgingPolicy.Builder = HedgingPolicy.builder()
+            .delay(hedgePercentile, hedgeMinDelayMillis.toLong())
+            .budget(hedgeBudgetRatio)
+
+    /**
+     * provide a rate controller if adaptive rate control enabled
+     *
+     * [sleepTimes] is kept as the least spacing of requests, the controller only backs off from it
+     */
+    protected fun createRateController(): AdaptiveRateController? =
+            if (adaptiveRateControl)
+                AdaptiveRateController(maxConcurrency, sleepTimes.toLong(), sleepTimes.toLong(), maxOf(sleepTimes, maxSleepTimes).toLong(), 2.0)
+            else
+                null
+
+    /**
+     * Thread count of a spider, enough threads for the rate controller to reach its ceiling
+     */
+    protected fun spiderThreads(rateController: AdaptiveRateController?) =
+            if (rateController == null) taskThreads else maxOf(taskThreads, maxConcurrency)
+
     /*
     * Register the spider to monitor
     * It will do noting if monitor not specified
     */
-    protected fun registerSpiderToMonitor(spider: Spider) {
-        spiderMonitor?.register(spider)
+    protected fun registerSpiderToMonitor(spider: Spider,
+                                          rateController: AdaptiveRateController? = null,
+                                          downloader: PooledHttpDownloader? = null) {
+        spiderMonitor?.register(spider, rateController, downloader)
+    }
+
+    /**
+     * provide a scheduler shared with other nodes if distributed capture enabled
+     */
+    protected fun createSharedScheduler(taskUUID: String): RedisLeaseScheduler? {
+        if (!distributedCapture) return null
+        val redis = redisTemplate ?: throw BusinessException("shared_queue_not_available")
+        return RedisLeaseScheduler(redis, taskUUID, nodeId, leaseTimeoutMillis.toLong())
+    }
+
+    /**
+     * provide a sink putting results beside the shared queue, they expire with the queue
+     */
+    protected fun createSharedSink(scheduler: RedisLeaseScheduler): RedisCaptureSink {
+        val redis = redisTemplate ?: throw BusinessException("shared_queue_not_available")
+        return RedisCaptureSink(redis, scheduler.keyPrefix).also { scheduler.addTaskKeys(it.keys) }
     }
 
     /**
@@ -78,10 +235,42 @@ abstract class CaterpillarProfileAgent(profileMap: MutableMap<String, Any?>) {
     /**
      * Fetch courses data from remote and save to files.
      * Formats are defined by each caterpillar.
+     *
+     * If a baseline folder (storage folder of the previous capture of the same term) given
+     * and incremental recapture enabled, unchanged courses are copied from it instead of parsing.
      */
     abstract fun fetchCoursesData(taskUUID: String,
                                   termCode: String,
-                                  storageFolder: File): Flux<ProfileAgentMessage>
+                                  storageFolder: File,
+                                  baselineFolder: File? = null): Flux<ProfileAgentMessage>
+
+    /**
+     * Capture several terms with one login.
+     * Course lists and course details of all terms are fetched by one rate limited spider,
+     * details of a term are requested once its list is parsed, and written to the storage
+     * folder of their term.
+     * Messages about a single term carry its term code.
+     *
+     * @param storageFolders storage folder of each term, by term code
+     * @param baselineFolders baseline folder of each term if any, by term code
+     */
+    abstract fun fetchBatchCoursesData(taskUUID: String,
+                                       storageFolders: Map<String, File>,
+                                       baselineFolders: Map<String, File> = emptyMap()): Flux<ProfileAgentMessage>
+
+    /**
+     * Parse raw pages archived by a previous capture again, without network access.
+     * The new dataset is written to the storage folder in the same format as a capture.
+     */
+    abstract fun reparseCoursesData(taskUUID: String,
+                                    sourceFolder: File,
+                                    storageFolder: File): Flux<ProfileAgentMessage>
+
+    /**
+     * Work on a distributed capture started by another node.
+     * Courses are put to the shared results, the node started the capture collects them.
+     */
+    abstract fun joinCoursesCapture(taskUUID: String): Flux<ProfileAgentMessage>
 
     /**
      * Validate current caterpillar setting
@@ -95,4 +284,14 @@ abstract class CaterpillarProfileAgent(profileMap: MutableMap<String, Any?>) {
         this.spiderMonitor = spiderMonitor
     }
 
+    /**
+     * Bind the redis used to share captures between nodes
+     *
+     * @param nodeId identity of this node, null to use name of the JVM
+     */
+    fun bindSharedQueue(redisTemplate: StringRedisTemplate, nodeId: String?) {
+        this.redisTemplate = redisTemplate
+        this.nodeId = nodeId
+    }
+
 }
@@ -0,0 +1,28 @@
+package com.shinonometn.re.ssim.caterpillar.application.commons.agent
+
+import com.shinonometn.re.ssim.commons.JSON
+import com.shinonometn.re.ssim.commons.file.segment.SegmentCompression
+import com.shinonometn.re.ssim.commons.file.segment.SegmentFile
+import com.shinonometn.re.ssim.commons.file.segment.SegmentWriter
+import com.shinonometn.re.ssim.service.caterpillar.common.CourseSink
+import com.shinonometn.re.ssim.service.caterpillar.kingo.pojo.Course
+import java.io.File
+import java.util.*
+
+/**
+ * Write courses to the segment file of the storage folder,
+ * course code as key and json as value
+ */
+class CourseSegmentArchiveSink(storageFolder: File,
+                               compression: SegmentCompression = SegmentCompression.ZSTD) : CourseSink {
+
+    private val writer = SegmentWriter(File(storageFolder, SegmentFile.DEFAULT_NAME), compression)
+
+    override fun accept(course: Course) {
+        writer.append(Objects.requireNonNull(course.code), JSON.writeAsBytes(course))
+    }
+
+    override fun close() {
+        writer.close()
+    }
+}
@@ -1,5 +1,10 @@
 package com.shinonometn.re.ssim.caterpillar.application.commons.agent
 
+import com.fasterxml.jackson.annotation.JsonInclude
 import com.shinonometn.re.ssim.caterpillar.application.commons.CaptureTaskStage
 
-data class ProfileAgentMessage(val stage : CaptureTaskStage, val message: String)
\ No newline at end of file
+/*
+* Message of a batch capture about one of its terms has the term code, others concern the whole capture
+*/
+@JsonInclude(JsonInclude.Include.NON_NULL)
+data class ProfileAgentMessage(val stage : CaptureTaskStage, val message: String, val termCode: String? = null)
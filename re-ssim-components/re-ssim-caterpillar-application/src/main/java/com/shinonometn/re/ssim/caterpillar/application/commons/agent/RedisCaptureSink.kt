@@ -0,0 +1,64 @@
+package com.shinonometn.re.ssim.caterpillar.application.commons.agent
+
+import com.shinonometn.re.ssim.commons.JSON
+import com.shinonometn.re.ssim.service.caterpillar.common.CourseSink
+import com.shinonometn.re.ssim.service.caterpillar.common.PageFingerprint
+import com.shinonometn.re.ssim.service.caterpillar.kingo.pojo.Course
+import org.springframework.data.redis.core.ScanOptions
+import org.springframework.data.redis.core.StringRedisTemplate
+import java.util.*
+
+/**
+ * Results of a distributed capture, shared by nodes through redis
+ *
+ * Every node puts the courses and page fingerprints it captured here,
+ * the node started the capture collects them into its storage folder.
+ */
+class RedisCaptureSink(private val redisTemplate: StringRedisTemplate, keyPrefix: String) : CourseSink {
+
+    private val resultsKey = "$keyPrefix.results"
+    private val fingerprintsKey = "$keyPrefix.fingerprints"
+
+    /**
+     * Redis keys of the results
+     */
+    val keys: List<String>
+        get() = listOf(resultsKey, fingerprintsKey)
+
+    override fun accept(course: Course) {
+        redisTemplate.opsForHash<String, String>().put(resultsKey, Objects.requireNonNull(course.code), JSON.parse(course))
+    }
+
+    fun acceptFingerprint(courseCode: String, fingerprint: PageFingerprint) {
+        redisTemplate.opsForHash<String, String>().put(fingerprintsKey, courseCode, JSON.parse(fingerprint))
+    }
+
+    /**
+     * Hand all courses captured by nodes to a sink
+     *
+     * @return count of courses
+     */
+    fun collect(sink: CourseSink): Int {
+        var count = 0
+        redisTemplate.opsForHash<String, String>().scan(resultsKey, ScanOptions.scanOptions().count(256).build()).use { cursor ->
+            cursor.forEach {
+                sink.accept(JSON.read(it.value.toByteArray(Charsets.UTF_8), Course::class.java))
+                count++
+            }
+        }
+        return count
+    }
+
+    fun collectFingerprints(): Map<String, PageFingerprint> =
+            redisTemplate.opsForHash<String, String>()
+                    .entries(fingerprintsKey)
+                    .mapValues { JSON.read(it.value.toByteArray(Charsets.UTF_8), PageFingerprint::class.java) }
+
+    fun clear() {
+        redisTemplate.delete(Arrays.asList(resultsKey, fingerprintsKey))
+    }
+
+    // Results are kept in redis until collected
+    override fun close() {
+    }
+}
@@ -6,23 +6,62 @@ import com.fasterxml.jackson.annotation.JsonInclude
 import com.shinonometn.re.ssim.caterpillar.application.commons.CaptureTaskStage
 import com.shinonometn.re.ssim.caterpillar.application.commons.CourseLabelItem
 import com.shinonometn.re.ssim.caterpillar.application.commons.TermLabelItem
+import com.shinonometn.re.ssim.caterpillar.application.commons.agent.CaptureBaseline
 import com.shinonometn.re.ssim.caterpillar.application.commons.agent.CaterpillarProfileAgent
+import com.shinonometn.re.ssim.caterpillar.application.commons.agent.CourseSegmentArchiveSink
 import com.shinonometn.re.ssim.caterpillar.application.commons.agent.ProfileAgentMessage
+import com.shinonometn.re.ssim.caterpillar.application.commons.agent.RedisCaptureSink
 import com.shinonometn.re.ssim.commons.BusinessException
 import com.shinonometn.re.ssim.commons.JSON
-import com.shinonometn.re.ssim.service.caterpillar.kingo.KingoUrls
+import com.shinonometn.re.ssim.commons.file.segment.AsyncSegmentWriter
+import com.shinonometn.re.ssim.commons.file.segment.SegmentCompression
+import com.shinonometn.re.ssim.commons.file.segment.SegmentFile
+import com.shinonometn.re.ssim.commons.file.segment.SegmentReader
+import com.shinonometn.re.ssim.service.caterpillar.common.ArchivingPageProcessor
+import com.shinonometn.re.ssim.service.caterpillar.common.ChangeDetectingPageProcessor
+import com.shinonometn.re.ssim.service.caterpillar.common.CourseSink
+import com.shinonometn.re.ssim.service.caterpillar.common.PageFingerprint
+import com.shinonometn.re.ssim.service.caterpillar.common.QueuedCourseSink
+import com.shinonometn.re.ssim.service.caterpillar.common.RawPage
+import com.shinonometn.re.ssim.service.caterpillar.common.RoutingPageProcessor
+import com.shinonometn.re.ssim.service.caterpillar.downloader.HedgingPolicy
+import com.shinonometn.re.ssim.service.caterpillar.downloader.RetryPolicy
+import com.shinonometn.re.ssim.service.caterpillar.kingo.KingoCourseTableParser
+import com.shinonometn.re.ssim.service.caterpillar.kingo.KingoEndpoints
+import com.shinonometn.re.ssim.service.caterpillar.kingo.KingoSessionPool
 import com.shinonometn.re.ssim.service.caterpillar.kingo.capture.*
+import com.shinonometn.re.ssim.service.caterpillar.kingo.pojo.Course
+import com.shinonometn.re.ssim.service.caterpillar.scheduler.FileBackedScheduler
+import com.shinonometn.re.ssim.service.caterpillar.scheduler.RedisLeaseScheduler
+import com.shinonometn.re.ssim.service.caterpillar.scheduler.TrackingPageProcessor
 import org.slf4j.LoggerFactory
 import reactor.core.publisher.Flux
+import reactor.core.publisher.FluxSink
 import us.codecraft.webmagic.Request
 import us.codecraft.webmagic.Site
 import us.codecraft.webmagic.Spider
+import us.codecraft.webmagic.SpiderListener
 import us.codecraft.webmagic.model.HttpRequestBody
+import us.codecraft.webmagic.processor.PageProcessor
 import us.codecraft.webmagic.utils.HttpConstant
 import java.io.File
-import java.io.FileOutputStream
+import java.io.IOException
+import java.io.UncheckedIOException
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
 import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executors
+import java.util.concurrent.Semaphore
+import java.util.concurrent.TimeUnit
 import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicReference
+import java.util.function.BiFunction
+import java.util.function.Consumer
+import java.util.function.Function
+import java.util.function.Supplier
+import java.util.regex.Pattern
 import java.util.stream.Collectors
 
 @JsonIgnoreProperties(ignoreUnknown = true)
@@ -37,6 +76,12 @@ data class KingoCaterpillarProfileAgent(private val map: MutableMap<String, Any?
 
     var encoding: String by map.withDefault { "utf8" }
 
+    @JsonIgnore
+    private var sessionPool: KingoSessionPool? = null
+
+    private val endpoints: KingoEndpoints
+        get() = KingoEndpoints(targetBaseUrl)
+
     @JsonIgnore
     override fun requireTargetDomain(): String = "jwgl.lnc.edu.cn"
 
@@ -44,12 +89,24 @@ data class KingoCaterpillarProfileAgent(private val map: MutableMap<String, Any?
 
     override fun createSite(): Site = super.createSite().setCharset(encoding)
 
+    override fun createRetryPolicy(): RetryPolicy = retryPolicyBuilder()
+            .circuit("login", Pattern.quote(endpoints.loginPageAddress))
+            .circuit("course_list", Pattern.quote(endpoints.subjectListQueryPath))
+            .circuit("course_detail", Pattern.quote(endpoints.subjectQueryPage))
+            .build()
+
+    // Course detail queries are idempotent, login and others are not hedged
+    override fun createHedgingPolicy(): HedgingPolicy = hedgingPolicyBuilder()
+            .endpoint(Pattern.quote(endpoints.subjectQueryPage))
+            .build()
+
     override fun fetchTerms(): Collection<TermLabelItem> {
 
         val result = LinkedList<TermLabelItem>()
 
         Spider.create(TermListPageProcessor(createSite()))
-                .addUrl(KingoUrls.classInfoQueryPage)
+                .setDownloader(createDownloader())
+                .addUrl(endpoints.classInfoQueryPage)
                 .addPipeline { r, _ ->
                     result.addAll(
                             TermListPageProcessor
@@ -67,55 +124,432 @@ data class KingoCaterpillarProfileAgent(private val map: MutableMap<String, Any?
 
     override fun fetchCoursesData(taskUUID: String,
                                   termCode: String,
-                                  storageFolder: File): Flux<ProfileAgentMessage> = Flux.create {
+                                  storageFolder: File,
+                                  baselineFolder: File?): Flux<ProfileAgentMessage> = createSharedScheduler(taskUUID)
+            ?.let { fetchSharedCoursesData(taskUUID, termCode, storageFolder, it) }
+            ?: Flux.create {
 
         if (!storageFolder.exists() && !storageFolder.mkdirs()) throw Exception("Could not create work directory for task.")
         if (!storageFolder.isDirectory) throw Exception("Given file ${storageFolder.absolutePath} is not a directory.")
 
-        val site = createSite()
+        it.next(ProfileAgentMessage(CaptureTaskStage.INITIALIZE, "login_to_kingo"))
+        val site = loginToKingo()
 
-        it.next(ProfileAgentMessage(CaptureTaskStage.INITIALIZE, "preparing_login_to_kingo"))
-        val prepareContextData = prepareLoginToKingo(site)
+        // Requests of a stopped run are kept in the log, so resuming does not fetch the course list again
+        val scheduler = FileBackedScheduler(File(storageFolder, CaptureBaseline.REQUEST_LOG_FILE), Function { request ->
+            request.getExtra(EXTRA_COURSE_CODE)?.toString() ?: FileBackedScheduler.keyOf(request)
+        })
 
-        it.next(ProfileAgentMessage(CaptureTaskStage.INITIALIZE, "login_to_kingo"))
-        doLoginToKingo(site, prepareContextData)
+        SessionCheckingPageProcessor.acceptRedirects(site)
+
+        val baseline = if (incrementalRecapture) CaptureBaseline.load(baselineFolder) else CaptureBaseline.EMPTY
+        if (baseline.size > 0) site.setAcceptStatCode(site.acceptStatCode + ChangeDetectingPageProcessor.NOT_MODIFIED)
+
+        // Course list is fetched by the capture spider itself, details are requested as soon as it is parsed
+        val startRequests = if (scheduler.isResumed) {
+            it.next(ProfileAgentMessage(CaptureTaskStage.INITIALIZE, "resuming_capture:${scheduler.getLeftRequestsCount(null)}/${scheduler.getTotalRequestsCount(null)}"))
+            emptyList<Request>()
+        } else {
+            listOf(createCourseListRequest(termCode))
+        }
+
+        val courseListProcessor = CourseListExpandingPageProcessor(site, BiFunction { _, courseCodes ->
+            // Removed courses are simply not captured again, new ones have no fingerprint to compare
+            it.next(ProfileAgentMessage(CaptureTaskStage.CAPTURE,
+                    if (baseline.size > 0) "course_list_diff:${baseline.diff(courseCodes)}" else "course_list:${courseCodes.size}"))
 
-        it.next(ProfileAgentMessage(CaptureTaskStage.INITIALIZE, "fetching_remote_courses_list"))
-        val courseCodeList = fetchTermCourseList(site, termCode)
-                .stream()
-                .map { item -> createSubjectRequest(site, termCode, item.courseCode) }
-                .collect(Collectors.toList())
+            courseCodes.map { code -> createCourseRequest(site, termCode, code, baseline) }
+        })
 
         it.next(ProfileAgentMessage(CaptureTaskStage.INITIALIZE, "preparing_caterpillar"))
-        val spider = Spider.create(CourseDetailsPageProcessor(site))
-                .startRequest(courseCodeList)
+
+        // Output of the stopped run is moved aside before the writers truncate it, and copied into the new output
+        val partialCourses = if (scheduler.isResumed) moveAside(File(storageFolder, SegmentFile.DEFAULT_NAME)) else null
+        val partialPages = if (scheduler.isResumed) moveAside(File(storageFolder, CaptureBaseline.RAW_PAGE_FILE)) else null
+
+        // Segment file is written by the queue thread, spider threads only hand courses over
+        val courseSink = QueuedCourseSink(taskUUID, ingestQueueSize, CourseSegmentArchiveSink(storageFolder))
+
+        // Spacing is decided by the rate controller, spider threads should not sleep
+        val rateController = createRateController()
+        if (rateController != null) site.setSleepTime(0)
+
+        val fingerprints = ConcurrentHashMap<String, PageFingerprint>()
+        val unchangedCount = AtomicInteger(0)
+
+        val pageArchive = if (archiveRawPages)
+            AsyncSegmentWriter(File(storageFolder, CaptureBaseline.RAW_PAGE_FILE), SegmentCompression.ZSTD, ingestQueueSize)
+        else
+            null
+
+        val archivePage = { key: String, bytes: ByteArray ->
+            try {
+                pageArchive?.append(key, bytes)
+            } catch (e: IOException) {
+                throw UncheckedIOException(e)
+            }
+        }
+
+        if (scheduler.isResumed) {
+            val partialFingerprints = CaptureBaseline.loadFingerprints(storageFolder)
+            val recovered = recoverPartialOutput(partialCourses, partialPages, courseSink, archivePage)
+            recovered.forEach { code -> partialFingerprints[code]?.let { fingerprint -> fingerprints[code] = fingerprint } }
+
+            // Courses finished but lost with the stopped run are fetched again
+            val courseListKey = FileBackedScheduler.keyOf(createCourseListRequest(termCode))
+            scheduler.finishedKeys
+                    .filter { code -> code != courseListKey && !recovered.contains(code) }
+                    .forEach { code -> scheduler.redo(createCourseRequest(site, termCode, code, baseline)) }
+
+            it.next(ProfileAgentMessage(CaptureTaskStage.INITIALIZE, "recovered_courses:${recovered.size}"))
+        }
+
+        val pageProcessor = ChangeDetectingPageProcessor(CourseDetailsPageProcessor(site), baseline.fingerprints(), EXTRA_COURSE_CODE)
+        val downloader = createDownloader(rateController)
+
+        val detailsProcessor = if (pageArchive == null) pageProcessor else ArchivingPageProcessor(pageProcessor, Consumer { rawPage ->
+            archivePage(rawPage.getExtra(EXTRA_COURSE_CODE) ?: rawPage.url, rawPage.toBytes())
+        })
+
+        // Only requests whose pages are processed are marked done in the request log
+        val spiderRef = AtomicReference<Spider>()
+        val pipelineFailure = AtomicReference<Exception>()
+        val spider = Spider.create(checkSession(TrackingPageProcessor(RoutingPageProcessor(detailsProcessor).route(ROUTE_COURSE_LIST, courseListProcessor)), spiderRef, it))
+                .setDownloader(downloader)
+                .setScheduler(scheduler)
+                .setSpiderListeners(arrayListOf<SpiderListener>(scheduler))
+                .startRequest(startRequests)
                 .addPipeline { resultItems, _ ->
                     try {
-                        val course = CourseDetailsPageProcessor.getSubject(resultItems)
-                        JSON.write(FileOutputStream(File(storageFolder, Objects.requireNonNull(course.code))), course)
+                        val courseCode = ChangeDetectingPageProcessor.getKey(resultItems)
+                        val fingerprint = ChangeDetectingPageProcessor.getFingerprint(resultItems)
+                        if (courseCode != null && fingerprint != null) fingerprints[courseCode] = fingerprint
+
+                        val course = if (ChangeDetectingPageProcessor.isUnchanged(resultItems)) {
+                            unchangedCount.incrementAndGet()
+
+                            // Not modified pages have no body, keep the previous one in the archive
+                            if (!ArchivingPageProcessor.isArchived(resultItems))
+                                baseline.rawPageOf(courseCode!!)?.let { page -> archivePage(courseCode, page) }
+
+                            baseline.courseOf(courseCode!!) ?: throw IllegalStateException("baseline_course_missing:$courseCode")
+                        } else {
+                            CourseDetailsPageProcessor.getSubject(resultItems)
+                        }
+
+                        courseSink.accept(course)
                         logger.debug("downloaded:${course.code}_${course.name}")
                     } catch (e: Exception) {
-                        it.error(Exception("Spider $taskUUID failed: ${e.message}", e))
+                        failSpider(spiderRef, pipelineFailure, Exception("Spider $taskUUID failed: ${e.message}", e))
+                    }
+                }
+                .setUUID(taskUUID)
+                .thread(spiderThreads(rateController))
+
+        spiderRef.set(spider)
+        registerSpiderToMonitor(spider, rateController, downloader)
+
+        it.next(ProfileAgentMessage(CaptureTaskStage.CAPTURE, "downloading_courses"))
+        try {
+            // Queue thread is stopped even if the spider failed
+            try {
+                try {
+                    spider.run()
+                } finally {
+                    scheduler.close()
+                    pageArchive?.close()
+                }
+            } finally {
+                it.next(ProfileAgentMessage(CaptureTaskStage.CAPTURE, "flushing_courses"))
+                courseSink.close()
+            }
+            pipelineFailure.get()?.let { e -> throw e }
+
+            CaptureBaseline.saveFingerprints(storageFolder, fingerprints)
+            if (baseline.size > 0) it.next(ProfileAgentMessage(CaptureTaskStage.CAPTURE, "unchanged_courses:${unchangedCount.get()}"))
+
+            // Request log is only needed to resume, keep it while some requests are not finished
+            val finishedCount = scheduler.getFinishedRequestsCount(null)
+            val totalCount = scheduler.getTotalRequestsCount(null)
+            if (finishedCount < totalCount) {
+                it.next(ProfileAgentMessage(CaptureTaskStage.CAPTURE, "capture_incomplete:$finishedCount/$totalCount"))
+            } else {
+                Files.deleteIfExists(File(storageFolder, CaptureBaseline.REQUEST_LOG_FILE).toPath())
+                partialCourses?.delete()
+                partialPages?.delete()
+            }
+
+            it.next(ProfileAgentMessage(CaptureTaskStage.STOPPED, "terminated"))
+            it.complete()
+        } catch (e: Exception) {
+            it.error(e)
+        }
+    }
+
+    override fun fetchBatchCoursesData(taskUUID: String,
+                                       storageFolders: Map<String, File>,
+                                       baselineFolders: Map<String, File>): Flux<ProfileAgentMessage> = Flux.create {
+
+        if (storageFolders.isEmpty()) throw BusinessException("batch_has_no_term")
+        storageFolders.values.forEach { storageFolder ->
+            if (!storageFolder.exists() && !storageFolder.mkdirs()) throw Exception("Could not create work directory for task.")
+            if (!storageFolder.isDirectory) throw Exception("Given file ${storageFolder.absolutePath} is not a directory.")
+        }
+
+        it.next(ProfileAgentMessage(CaptureTaskStage.INITIALIZE, "login_to_kingo"))
+        val site = loginToKingo()
+
+        SessionCheckingPageProcessor.acceptRedirects(site)
+
+        val outputs = storageFolders.mapValues { (termCode, storageFolder) ->
+            val baseline = if (incrementalRecapture) CaptureBaseline.load(baselineFolders[termCode]) else CaptureBaseline.EMPTY
+            BatchTermOutput(storageFolder, baseline, QueuedCourseSink("$taskUUID:$termCode", ingestQueueSize, CourseSegmentArchiveSink(storageFolder)),
+                    if (archiveRawPages) AsyncSegmentWriter(File(storageFolder, CaptureBaseline.RAW_PAGE_FILE), SegmentCompression.ZSTD, ingestQueueSize) else null)
+        }
+        if (outputs.values.any { output -> output.baseline.size > 0 }) site.setAcceptStatCode(site.acceptStatCode + ChangeDetectingPageProcessor.NOT_MODIFIED)
+
+        // Course lists of all terms are start requests of the spider, they are fetched at once
+        // and each of them is expanded to detail requests as soon as it is parsed
+        val startRequests = outputs.keys.map { termCode -> createCourseListRequest(termCode).putExtra(EXTRA_TERM_CODE, termCode) }
+
+        val courseListProcessor = CourseListExpandingPageProcessor(site, BiFunction { listRequest, courseCodes ->
+            val termCode = listRequest.getExtra(EXTRA_TERM_CODE).toString()
+            val output = outputs.getValue(termCode)
+            output.total = courseCodes.size
+            it.next(ProfileAgentMessage(CaptureTaskStage.CAPTURE,
+                    if (output.baseline.size > 0) "course_list_diff:${output.baseline.diff(courseCodes)}" else "course_list:${courseCodes.size}", termCode))
+
+            courseCodes.map { code ->
+                createCourseRequest(site, termCode, code, output.baseline)
+                        .putExtra(EXTRA_TERM_CODE, termCode)
+                        .putExtra(EXTRA_BATCH_KEY, batchKeyOf(termCode, code))
+            }
+        })
+
+        it.next(ProfileAgentMessage(CaptureTaskStage.INITIALIZE, "preparing_caterpillar"))
+
+        // Course codes are only unique in a term, fingerprints of all terms are keyed by both
+        val previousFingerprints = HashMap<String, PageFingerprint>()
+        outputs.forEach { (termCode, output) ->
+            output.baseline.fingerprints().forEach { (code, fingerprint) -> previousFingerprints[batchKeyOf(termCode, code)] = fingerprint }
+        }
+
+        val rateController = createRateController()
+        if (rateController != null) site.setSleepTime(0)
+
+        val pageProcessor = ChangeDetectingPageProcessor(CourseDetailsPageProcessor(site), previousFingerprints, EXTRA_BATCH_KEY)
+        val downloader = createDownloader(rateController)
+
+        val detailsProcessor = if (!archiveRawPages) pageProcessor else ArchivingPageProcessor(pageProcessor, Consumer { rawPage ->
+            outputs[rawPage.getExtra(EXTRA_TERM_CODE)]?.archivePage(rawPage.getExtra(EXTRA_COURSE_CODE) ?: rawPage.url, rawPage.toBytes())
+        })
+
+        val spiderRef = AtomicReference<Spider>()
+        val pipelineFailure = AtomicReference<Exception>()
+        val spider = Spider.create(checkSession(RoutingPageProcessor(detailsProcessor).route(ROUTE_COURSE_LIST, courseListProcessor), spiderRef, it))
+                .setDownloader(downloader)
+                .startRequest(startRequests)
+                .addPipeline { resultItems, _ ->
+                    try {
+                        val termCode = resultItems.request.getExtra(EXTRA_TERM_CODE).toString()
+                        val courseCode = resultItems.request.getExtra(EXTRA_COURSE_CODE).toString()
+                        val output = outputs.getValue(termCode)
+
+                        ChangeDetectingPageProcessor.getFingerprint(resultItems)?.let { fingerprint -> output.fingerprints[courseCode] = fingerprint }
+
+                        val course = if (ChangeDetectingPageProcessor.isUnchanged(resultItems)) {
+                            output.unchanged.incrementAndGet()
+                            if (!ArchivingPageProcessor.isArchived(resultItems))
+                                output.baseline.rawPageOf(courseCode)?.let { page -> output.archivePage(courseCode, page) }
+
+                            output.baseline.courseOf(courseCode) ?: throw IllegalStateException("baseline_course_missing:$termCode:$courseCode")
+                        } else {
+                            CourseDetailsPageProcessor.getSubject(resultItems)
+                        }
+
+                        output.courseSink.accept(course)
+                        output.captured.incrementAndGet()
+                        logger.debug("downloaded:${termCode}_${course.code}_${course.name}")
+                    } catch (e: Exception) {
+                        failSpider(spiderRef, pipelineFailure, Exception("Spider $taskUUID failed: ${e.message}", e))
                     }
                 }
                 .setUUID(taskUUID)
-                .thread(taskThreads)
+                .thread(spiderThreads(rateController))
 
-        registerSpiderToMonitor(spider)
+        spiderRef.set(spider)
+        registerSpiderToMonitor(spider, rateController, downloader)
 
         it.next(ProfileAgentMessage(CaptureTaskStage.CAPTURE, "downloading_courses"))
         try {
-            spider.run()
+            // Queue threads are stopped even if the spider failed
+            try {
+                try {
+                    spider.run()
+                } finally {
+                    outputs.values.forEach { output -> output.pageArchive?.close() }
+                }
+            } finally {
+                it.next(ProfileAgentMessage(CaptureTaskStage.CAPTURE, "flushing_courses"))
+                outputs.values.forEach { output -> output.courseSink.close() }
+            }
+            pipelineFailure.get()?.let { e -> throw e }
+
+            outputs.forEach { (termCode, output) ->
+                CaptureBaseline.saveFingerprints(output.storageFolder, output.fingerprints)
+
+                // Course list failed to download or the session was lost before it came
+                val captured = output.captured.get()
+                val total = output.total
+                it.next(ProfileAgentMessage(CaptureTaskStage.CAPTURE,
+                        when {
+                            total == null -> "capture_incomplete:course_list_missing"
+                            captured < total -> "capture_incomplete:$captured/$total"
+                            else -> "captured_courses:$captured,unchanged:${output.unchanged.get()}"
+                        },
+                        termCode))
+            }
+
+            it.next(ProfileAgentMessage(CaptureTaskStage.STOPPED, "terminated"))
+            it.complete()
         } catch (e: Exception) {
             it.error(e)
         }
+    }
+
+    override fun reparseCoursesData(taskUUID: String,
+                                    sourceFolder: File,
+                                    storageFolder: File): Flux<ProfileAgentMessage> = Flux.create {
+
+        val rawPageFile = File(sourceFolder, CaptureBaseline.RAW_PAGE_FILE)
+        if (!rawPageFile.isFile) throw BusinessException("raw_page_archive_not_found")
+        if (!storageFolder.exists() && !storageFolder.mkdirs()) throw Exception("Could not create work directory for task.")
+
+        it.next(ProfileAgentMessage(CaptureTaskStage.INITIALIZE, "preparing_reparse"))
+
+        val processor = CourseDetailsPageProcessor(createSite())
+        val workers = Runtime.getRuntime().availableProcessors()
+        val executor = Executors.newFixedThreadPool(workers)
+
+        // Reading is much faster than parsing, only keep a few pages per worker in memory
+        val pendingPages = Semaphore(workers * 4)
+
+        val courseSink = QueuedCourseSink(taskUUID, ingestQueueSize, CourseSegmentArchiveSink(storageFolder))
+        val parsedCount = AtomicInteger(0)
+        val failedCount = AtomicInteger(0)
+
+        it.next(ProfileAgentMessage(CaptureTaskStage.CAPTURE, "reparsing_pages"))
+        try {
+            // Queue thread is stopped even if reading failed
+            try {
+                SegmentReader(rawPageFile).use { reader ->
+                    reader.forEach { record ->
+                        pendingPages.acquire()
+                        executor.execute {
+                            try {
+                                val page = RawPage.fromBytes(record.value).toPage()
+                                processor.process(page)
+                                courseSink.accept(CourseDetailsPageProcessor.getSubject(page.resultItems)
+                                        ?: throw IllegalArgumentException(KingoCourseTableParser.COURSE_TABLE_INCOMPLETE))
+                                parsedCount.incrementAndGet()
+                            } catch (e: Exception) {
+                                failedCount.incrementAndGet()
+                                logger.warn("Could not parse archived page {}: {}", record.key, e.message)
+                            } finally {
+                                pendingPages.release()
+                            }
+                        }
+                    }
+                }
+
+                executor.shutdown()
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS)
+            } finally {
+                executor.shutdownNow()
+                it.next(ProfileAgentMessage(CaptureTaskStage.CAPTURE, "flushing_courses"))
+                courseSink.close()
+            }
+
+            // Raw pages and fingerprints are unchanged, so the new dataset can be re-parsed and recaptured as well
+            Files.copy(rawPageFile.toPath(), File(storageFolder, CaptureBaseline.RAW_PAGE_FILE).toPath(), StandardCopyOption.REPLACE_EXISTING)
+            val fingerprintFile = File(sourceFolder, CaptureBaseline.FINGERPRINT_FILE)
+            if (fingerprintFile.isFile)
+                Files.copy(fingerprintFile.toPath(), File(storageFolder, CaptureBaseline.FINGERPRINT_FILE).toPath(), StandardCopyOption.REPLACE_EXISTING)
+
+            it.next(ProfileAgentMessage(CaptureTaskStage.CAPTURE, "reparsed:${parsedCount.get()},failed:${failedCount.get()}"))
+
+            it.next(ProfileAgentMessage(CaptureTaskStage.STOPPED, "terminated"))
+            it.complete()
+        } catch (e: Exception) {
+            it.error(e)
+        }
+    }
+
+    override fun joinCoursesCapture(taskUUID: String): Flux<ProfileAgentMessage> = Flux.create {
+        val scheduler = createSharedScheduler(taskUUID) ?: throw BusinessException("distributed_capture_disabled")
+        if (!scheduler.isStarted) throw BusinessException("shared_capture_not_started")
+
+        it.next(ProfileAgentMessage(CaptureTaskStage.INITIALIZE, "login_to_kingo"))
+        val site = loginToKingo()
+
+        it.next(ProfileAgentMessage(CaptureTaskStage.CAPTURE, "downloading_courses:${scheduler.nodeId}"))
+        runSharedCourseSpider(taskUUID, site, scheduler, createSharedSink(scheduler), it)
+
         it.next(ProfileAgentMessage(CaptureTaskStage.STOPPED, "terminated"))
+        it.complete()
     }
 
     override fun validateSetting() {
-        val site = createSite()
-        val contextData = prepareLoginToKingo(site)
-        doLoginToKingo(site, contextData)
+        loginToKingo()
+    }
+
+    /**
+     * Bind a session pool, so tasks of the same profile could share the login
+     */
+    fun bindSessionPool(sessionPool: KingoSessionPool) {
+        this.sessionPool = sessionPool
+    }
+
+    /*
+    * Get a logged in site, pooled session is reused if server still accepts it
+    */
+    private fun loginToKingo(): Site {
+        val login = { site: Site -> doLoginToKingo(site, prepareLoginToKingo(site)) }
+        val pool = sessionPool ?: return createSite().also(login)
+
+        return pool.acquire(
+                sessionKey(),
+                Supplier { createSite() },
+                Consumer { login(it) },
+                endpoints.classInfoQueryPage)
+    }
+
+    private fun sessionKey() = KingoSessionPool.keyOf(requireAgentCode(), targetBaseUrl, username, role, password)
+
+    /*
+    * Keep the first failure of a pipeline and stop the spider, the failure is reported
+    * once the spider returned, so no message follows the error
+    */
+    private fun failSpider(spider: AtomicReference<Spider>, failure: AtomicReference<Exception>, e: Exception) {
+        if (failure.compareAndSet(null, e)) spider.get()?.stop()
+        else logger.warn("Spider pipeline failed again: {}", e.message)
+    }
+
+    /*
+    * Once kingo redirects the capture to login page, drop the pooled session and stop the spider.
+    * Requests not processed are left unfinished, the next run logs in again.
+    */
+    private fun checkSession(processor: PageProcessor,
+                             spider: AtomicReference<Spider>,
+                             emitter: FluxSink<ProfileAgentMessage>): PageProcessor {
+        val lost = AtomicBoolean(false)
+        return SessionCheckingPageProcessor(processor, Runnable {
+            if (lost.compareAndSet(false, true)) {
+                sessionPool?.invalidate(sessionKey())
+                emitter.next(ProfileAgentMessage(CaptureTaskStage.CAPTURE, "session_expired"))
+                spider.get()?.stop()
+            }
+        })
     }
 
     /*
@@ -124,7 +558,8 @@ data class KingoCaterpillarProfileAgent(private val map: MutableMap<String, Any?
     private fun prepareLoginToKingo(site: Site): Map<String, Any> {
         val prepareContextData = HashMap<String, Any>()
         Spider.create(LoginPreparePageProcessor(username, password, role, site))
-                .addUrl(KingoUrls.loginPageAddress)
+                .setDownloader(createDownloader())
+                .addUrl(endpoints.loginPageAddress)
                 .addPipeline { r, _ -> prepareContextData.putAll(r.all) }
                 .run()
 
@@ -145,14 +580,15 @@ data class KingoCaterpillarProfileAgent(private val map: MutableMap<String, Any?
 
         val formFields = LoginPreparePageProcessor.getFormFields(prepareContextData)
 
-        val loginRequest = Request(KingoUrls.loginPageAddress)
+        val loginRequest = Request(endpoints.loginPageAddress)
         loginRequest.method = HttpConstant.Method.POST
         loginRequest.addHeader("Content-Type", "application/x-www-form-urlencoded")
-        loginRequest.addHeader("Referer", KingoUrls.loginPageAddress)
+        loginRequest.addHeader("Referer", endpoints.loginPageAddress)
         loginRequest.requestBody = HttpRequestBody.form(formFields, Objects.requireNonNull(encoding))
 
 
         Spider.create(LoginExecutePageProcessor(site))
+                .setDownloader(createDownloader())
                 .addRequest(loginRequest)
                 .addPipeline { resultItems, _ -> loginResult.set(LoginExecutePageProcessor.getIsLogin(resultItems)!!) }
                 .run()
@@ -168,7 +604,8 @@ data class KingoCaterpillarProfileAgent(private val map: MutableMap<String, Any?
         val termList = LinkedList<CourseLabelItem>()
 
         Spider.create(CoursesListPageProcessor(site))
-                .addUrl(KingoUrls.subjectListQueryPath + termCode!!)
+                .setDownloader(createDownloader())
+                .addUrl(endpoints.subjectListQueryPath + termCode!!)
                 .addPipeline { resultItems, _ ->
                     termList.addAll(
                             CoursesListPageProcessor
@@ -186,6 +623,194 @@ data class KingoCaterpillarProfileAgent(private val map: MutableMap<String, Any?
         return termList
     }
 
+    /*
+    * Capture with a queue shared by nodes, this node seeds the queue and collects results of all nodes
+    *
+    * Other nodes have no baseline, so shared captures are full captures without raw page archive.
+    * Fingerprints are still collected for the next incremental recapture.
+    */
+    private fun fetchSharedCoursesData(taskUUID: String,
+                                       termCode: String,
+                                       storageFolder: File,
+                                       scheduler: RedisLeaseScheduler): Flux<ProfileAgentMessage> = Flux.create {
+
+        if (!storageFolder.exists() && !storageFolder.mkdirs()) throw Exception("Could not create work directory for task.")
+        if (!storageFolder.isDirectory) throw Exception("Given file ${storageFolder.absolutePath} is not a directory.")
+
+        it.next(ProfileAgentMessage(CaptureTaskStage.INITIALIZE, "login_to_kingo"))
+        val site = loginToKingo()
+
+        // A started capture is joined again, e.g. when resumed, requests failed in the previous run are fetched again
+        if (scheduler.isStarted) {
+            val requeued = scheduler.requeueFailed()
+            it.next(ProfileAgentMessage(CaptureTaskStage.INITIALIZE, "resuming_shared_capture:${scheduler.getLeftRequestsCount(null)}/${scheduler.getTotalRequestsCount(null)},requeued:$requeued"))
+        } else {
+            it.next(ProfileAgentMessage(CaptureTaskStage.INITIALIZE, "fetching_remote_courses_list"))
+            fetchTermCourseList(site, termCode).forEach { item -> scheduler.push(createSubjectRequest(site, termCode, item.courseCode), null) }
+        }
+
+        val resultSink = createSharedSink(scheduler)
+
+        it.next(ProfileAgentMessage(CaptureTaskStage.CAPTURE, "downloading_courses:${scheduler.nodeId}"))
+        try {
+            runSharedCourseSpider(taskUUID, site, scheduler, resultSink, it)
+
+            it.next(ProfileAgentMessage(CaptureTaskStage.CAPTURE, "collecting_courses"))
+            val courseSink = QueuedCourseSink(taskUUID, ingestQueueSize, CourseSegmentArchiveSink(storageFolder))
+            val collectedCount = try {
+                resultSink.collect(courseSink)
+            } finally {
+                courseSink.close()
+            }
+            CaptureBaseline.saveFingerprints(storageFolder, resultSink.collectFingerprints())
+            it.next(ProfileAgentMessage(CaptureTaskStage.CAPTURE, "collected_courses:$collectedCount,nodes:${scheduler.nodePagePerSecond.size}"))
+
+            // Shared state is kept until every request finished, so the capture could be resumed
+            val finishedCount = scheduler.getFinishedRequestsCount(null)
+            val totalCount = scheduler.getTotalRequestsCount(null)
+            if (scheduler.isDrained && finishedCount >= totalCount) {
+                scheduler.clear()
+                resultSink.clear()
+            } else {
+                it.next(ProfileAgentMessage(CaptureTaskStage.CAPTURE, "capture_incomplete:$finishedCount/$totalCount"))
+            }
+
+            it.next(ProfileAgentMessage(CaptureTaskStage.STOPPED, "terminated"))
+            it.complete()
+        } catch (e: Exception) {
+            it.error(e)
+        }
+    }
+
+    /*
+    * Run a spider working on the shared queue until the queue is drained or the spider stopped
+    *
+    * The spider idles while other nodes hold leases, requests of a lost node come back to the
+    * queue once their leases expire. It is stopped when no request is waiting or leased.
+    */
+    private fun runSharedCourseSpider(taskUUID: String,
+                                      site: Site,
+                                      scheduler: RedisLeaseScheduler,
+                                      resultSink: RedisCaptureSink,
+                                      emitter: FluxSink<ProfileAgentMessage>) {
+
+        val rateController = createRateController()
+        if (rateController != null) site.setSleepTime(0)
+
+        val downloader = createDownloader(rateController)
+
+        SessionCheckingPageProcessor.acceptRedirects(site)
+
+        // No baseline to compare, only computes fingerprints
+        val spiderRef = AtomicReference<Spider>()
+        val pipelineFailure = AtomicReference<Exception>()
+        val spider = Spider.create(checkSession(TrackingPageProcessor(ChangeDetectingPageProcessor(CourseDetailsPageProcessor(site), emptyMap(), EXTRA_COURSE_CODE)), spiderRef, emitter))
+                .setDownloader(downloader)
+                .setScheduler(scheduler)
+                .setSpiderListeners(arrayListOf<SpiderListener>(scheduler))
+                .addPipeline { resultItems, _ ->
+                    try {
+                        val course = CourseDetailsPageProcessor.getSubject(resultItems)
+                        resultSink.accept(course)
+
+                        val courseCode = ChangeDetectingPageProcessor.getKey(resultItems)
+                        val fingerprint = ChangeDetectingPageProcessor.getFingerprint(resultItems)
+                        if (courseCode != null && fingerprint != null) resultSink.acceptFingerprint(courseCode, fingerprint)
+
+                        logger.debug("downloaded:${course.code}_${course.name}")
+                    } catch (e: Exception) {
+                        failSpider(spiderRef, pipelineFailure, Exception("Spider $taskUUID failed: ${e.message}", e))
+                    }
+                }
+                .setUUID(taskUUID)
+                .thread(spiderThreads(rateController))
+                .setExitWhenComplete(false)
+        spider.setEmptySleepTime(SHARED_IDLE_MILLIS)
+
+        spiderRef.set(spider)
+        registerSpiderToMonitor(spider, rateController, downloader)
+
+        val runner = Thread(Runnable { spider.run() }, "shared-spider-$taskUUID")
+        runner.start()
+        while (runner.isAlive) {
+            runner.join(SHARED_IDLE_MILLIS.toLong())
+            if (spider.status == Spider.Status.Running && spider.threadAlive == 0 && scheduler.isDrained) spider.stop()
+        }
+
+        pipelineFailure.get()?.let { e -> throw e }
+    }
+
+    /*
+    * Move output of a stopped run aside, a file left by an unfinished resume is preferred
+    * since current output may lack records copied from it
+    */
+    private fun moveAside(file: File): File? {
+        val partial = File(file.parentFile, "partial_${file.name}")
+        if (partial.isFile) return partial
+        if (!file.isFile) return null
+
+        Files.move(file.toPath(), partial.toPath(), StandardCopyOption.REPLACE_EXISTING)
+        return partial
+    }
+
+    /*
+    * Copy courses and their raw pages of a stopped run into current output
+    *
+    * Returns recovered course codes
+    */
+    private fun recoverPartialOutput(partialCourses: File?,
+                                     partialPages: File?,
+                                     courseSink: CourseSink,
+                                     archivePage: (String, ByteArray) -> Unit): Set<String> {
+        val recovered = HashSet<String>()
+
+        if (partialCourses != null) SegmentReader(partialCourses).use { reader ->
+            reader.forEach { record ->
+                courseSink.accept(JSON.read(record.value, Course::class.java))
+                recovered.add(record.key)
+            }
+        }
+
+        if (partialPages != null) SegmentReader(partialPages).use { reader ->
+            reader.forEach { record -> if (recovered.contains(record.key)) archivePage(record.key, record.value) }
+        }
+
+        return recovered
+    }
+
+    /*
+    * Output of a term in a batch capture
+    */
+    private class BatchTermOutput(val storageFolder: File,
+                                  val baseline: CaptureBaseline,
+                                  val courseSink: CourseSink,
+                                  val pageArchive: AsyncSegmentWriter?) {
+
+        val fingerprints = ConcurrentHashMap<String, PageFingerprint>()
+        val captured = AtomicInteger(0)
+        val unchanged = AtomicInteger(0)
+
+        // Courses in the term list, null until the list is parsed
+        @Volatile
+        var total: Int? = null
+
+        fun archivePage(key: String, bytes: ByteArray) {
+            try {
+                pageArchive?.append(key, bytes)
+            } catch (e: IOException) {
+                throw UncheckedIOException(e)
+            }
+        }
+    }
+
+    private fun batchKeyOf(termCode: String, courseCode: String) = "$termCode:$courseCode"
+
+    private fun createCourseListRequest(termCode: String) =
+            RoutingPageProcessor.routed(Request(endpoints.subjectListQueryPath + termCode), ROUTE_COURSE_LIST)
+
+    private fun createCourseRequest(site: Site, termCode: String, courseCode: String, baseline: CaptureBaseline) =
+            ChangeDetectingPageProcessor.conditional(createSubjectRequest(site, termCode, courseCode), baseline.fingerprintOf(courseCode))
+
     /**
      * Create request model for each course
      */
@@ -196,12 +821,23 @@ data class KingoCaterpillarProfileAgent(private val map: MutableMap<String, Any?
         form["Sel_XNXQ"] = termCode
         form["Sel_KC"] = subjectCode
 
-        val request = Request(KingoUrls.subjectQueryPage)
+        val request = Request(endpoints.subjectQueryPage)
         request.method = HttpConstant.Method.POST
         request.requestBody = HttpRequestBody.form(form, site.charset)
-        request.addHeader("Referer", KingoUrls.classInfoQueryPage)
+        request.addHeader("Referer", endpoints.classInfoQueryPage)
+        request.putExtra(EXTRA_COURSE_CODE, subjectCode)
 
         return request
 
     }
-}
\ No newline at end of file
+
+    companion object {
+        private const val EXTRA_COURSE_CODE = "course_code"
+        private const val EXTRA_TERM_CODE = "term_code"
+        private const val EXTRA_BATCH_KEY = "batch_key"
+
+        private const val ROUTE_COURSE_LIST = "course_list"
+
+        private const val SHARED_IDLE_MILLIS = 1000
+    }
+}
@@ -1,6 +1,7 @@
 package com.shinonometn.re.ssim.caterpillar.application.configuration;
 
 import com.shinonometn.re.ssim.service.caterpillar.SpiderMonitor;
+import com.shinonometn.re.ssim.service.caterpillar.kingo.KingoSessionPool;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
@@ -17,4 +18,15 @@ public class CaterpillarConfiguration {
     public SpiderMonitor spiderMonitor() {
         return new SpiderMonitor();
     }
+
+    /**
+     *
+     * Share logged in kingo sessions between tasks of the same profile
+     *
+     * @return KingoSessionPool
+     */
+    @Bean
+    public KingoSessionPool kingoSessionPool() {
+        return new KingoSessionPool();
+    }
 }
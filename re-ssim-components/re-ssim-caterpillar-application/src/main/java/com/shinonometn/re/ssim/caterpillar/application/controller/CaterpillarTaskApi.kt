@@ -2,6 +2,7 @@ package com.shinonometn.re.ssim.caterpillar.application.controller
 
 import com.shinonometn.re.ssim.caterpillar.application.dto.CaptureTaskDetails
 import com.shinonometn.re.ssim.caterpillar.application.entity.CaptureTask
+import com.shinonometn.re.ssim.caterpillar.application.service.CaptureProgressService
 import com.shinonometn.re.ssim.caterpillar.application.service.CaterpillarProfileService
 import com.shinonometn.re.ssim.caterpillar.application.service.CaterpillarService
 import com.shinonometn.re.ssim.commons.BusinessException
@@ -11,13 +12,17 @@ import com.shinonometn.re.ssim.commons.validation.helper.ValidateFunctions
 import org.springframework.data.domain.Page
 import org.springframework.data.domain.Pageable
 import org.springframework.data.web.PageableDefault
+import org.springframework.http.MediaType
+import org.springframework.http.codec.ServerSentEvent
 import org.springframework.web.bind.annotation.*
+import reactor.core.publisher.Flux
 import java.util.*
 
 @RestController
 @RequestMapping("/task")
 open class CaterpillarTaskApi(private val caterpillarService: CaterpillarService,
-                              private val caterpillarProfileService: CaterpillarProfileService) {
+                              private val caterpillarProfileService: CaterpillarProfileService,
+                              private val captureProgressService: CaptureProgressService) {
 
     private val validator = Validator(ValidationMetaBuilder
             .create()
@@ -26,6 +31,10 @@ open class CaterpillarTaskApi(private val caterpillarService: CaterpillarService
             .addValidator("termCode", ValidateFunctions.notEmpty())
             .addValidator("schoolIdentity", ValidateFunctions.notEmpty())
 
+            .of(BatchCreateRequest::class.java)
+            .addValidator("termCodes", ValidateFunctions.notNull())
+            .addValidator("schoolIdentity", ValidateFunctions.notEmpty())
+
             .build())
 
     @GetMapping
@@ -47,6 +56,35 @@ open class CaterpillarTaskApi(private val caterpillarService: CaterpillarService
         )
     }
 
+    data class BatchCreateRequest(private val map: Map<String, Any?> = HashMap(2)) {
+        val termCodes: List<String>? by map
+        val schoolIdentity: String? by map
+    }
+
+    /**
+     * Create and start a task for each term, all of them captured with one login
+     */
+    @PostMapping("/batch", params = ["profile_id"])
+    fun startBatch(@RequestBody request: BatchCreateRequest, @RequestParam("profile_id") profileId: Int): List<CaptureTaskDetails> {
+        validator.validate(request)
+
+        val caterpillarProfile = caterpillarProfileService.findById(profileId)
+                .orElseThrow { BusinessException("profile_not_found") }
+
+        return caterpillarService.startBatch(request.termCodes!!, request.schoolIdentity!!, caterpillarProfile)
+    }
+
+    /**
+     * Stream stage changes and spider status of a task until it terminates
+     */
+    @GetMapping("/{id}/events", produces = [MediaType.TEXT_EVENT_STREAM_VALUE])
+    fun taskEvents(@PathVariable("id") id: Int): Flux<ServerSentEvent<Any>> {
+        val captureTask = caterpillarService.getTask(id)
+                .orElseThrow { BusinessException("task_not_found") }
+
+        return captureProgressService.eventsOf(captureTask)
+    }
+
     @PostMapping("/{id}", params = ["stop"])
     fun stopTask(@PathVariable("id") id: Int): Optional<CaptureTaskDetails> {
 
@@ -59,11 +97,17 @@ open class CaterpillarTaskApi(private val caterpillarService: CaterpillarService
     }
 
     @PostMapping("/{id}", params = ["resume"])
-    fun resumeTask(@PathVariable("id") id: Int): Optional<CaptureTaskDetails> {
+    fun resumeTask(@PathVariable("id") id: Int,
+                   @RequestParam("profile_id", required = false) profileId: Int?): Optional<CaptureTaskDetails> {
         val captureTask = caterpillarService.getTask(id)
                 .orElseThrow { BusinessException("task_not_found") }
 
-        caterpillarService.resumeTask(captureTask)
+        // With a profile, a capture stopped or lost by restart continues from its request log
+        val caterpillarProfile = profileId?.let {
+            caterpillarProfileService.findById(it).orElseThrow { BusinessException("profile_not_found") }
+        }
+
+        caterpillarService.resumeTask(captureTask, caterpillarProfile)
 
         return caterpillarService.queryTask(id)
     }
@@ -76,6 +120,22 @@ open class CaterpillarTaskApi(private val caterpillarService: CaterpillarService
         return caterpillarService.startByTaskIdAndSettings(id, caterpillarProfile)
     }
 
+    @PostMapping("/{id}", params = ["join", "profile_id"])
+    fun joinTask(@PathVariable("id") id: Int, @RequestParam("profile_id") profileId: Int): CaptureTaskDetails {
+        val caterpillarProfile = caterpillarProfileService.findById(profileId)
+                .orElseThrow { BusinessException("profile_not_found") }
+
+        return caterpillarService.joinTask(id, caterpillarProfile)
+    }
+
+    @PostMapping("/{id}", params = ["reparse", "profile_id"])
+    fun reparseTask(@PathVariable("id") id: Int, @RequestParam("profile_id") profileId: Int): CaptureTaskDetails {
+        val caterpillarProfile = caterpillarProfileService.findById(profileId)
+                .orElseThrow { BusinessException("profile_not_found") }
+
+        return caterpillarService.reparseTask(id, caterpillarProfile)
+    }
+
     @PostMapping("/{id}", params = ["stop"])
     fun deleteTask(@PathVariable("id") id: Int) {
         caterpillarService.delete(id)
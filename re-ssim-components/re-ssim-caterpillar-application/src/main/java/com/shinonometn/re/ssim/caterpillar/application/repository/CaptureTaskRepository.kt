@@ -12,4 +12,6 @@ interface CaptureTaskRepository : JpaRepository<CaptureTask, Int> {
     @Modifying
     @Query("update CaptureTask ct set ct.stage = ?2, ct.stageReport = ?3 where ct.id = ?1")
     fun updateTaskStatus(taskId: Int, captureTaskStage: CaptureTaskStage, reporting: String)
+
+    fun findAllByTermCodeOrderByCreateDateDesc(termCode: String): List<CaptureTask>
 }
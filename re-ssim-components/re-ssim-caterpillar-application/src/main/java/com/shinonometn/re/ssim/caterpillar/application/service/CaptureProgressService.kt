@@ -0,0 +1,83 @@
+package com.shinonometn.re.ssim.caterpillar.application.service
+
+import com.shinonometn.re.ssim.caterpillar.application.commons.CaptureTaskStage
+import com.shinonometn.re.ssim.caterpillar.application.commons.agent.ProfileAgentMessage
+import com.shinonometn.re.ssim.caterpillar.application.entity.CaptureTask
+import com.shinonometn.re.ssim.service.caterpillar.SpiderMonitor
+import org.springframework.beans.factory.annotation.Value
+import org.springframework.http.codec.ServerSentEvent
+import org.springframework.stereotype.Service
+import reactor.core.publisher.Flux
+import reactor.core.publisher.Mono
+import reactor.core.publisher.ReplayProcessor
+import java.time.Duration
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Progress of running capture tasks
+ *
+ * Messages of a task are broadcast to subscribers of its event stream as they
+ * come out of the agent, latest one is replayed to late subscribers. Status of the
+ * spider is sampled into the same stream, so clients do not need to poll task list.
+ */
+@Service
+open class CaptureProgressService(private val spiderMonitor: SpiderMonitor,
+                                  @Value("\${caterpillar.status-event-interval-millis:1000}")
+                                  private val statusEventIntervalMillis: Long) {
+
+    private val channels = ConcurrentHashMap<Int, ReplayProcessor<ProfileAgentMessage>>()
+
+    /**
+     * Broadcast messages of a task while they pass through
+     *
+     * The returned flux should be subscribed once, the task is published until it terminates.
+     * A task terminates with the stopped stage, even if the agent does not complete its stream.
+     */
+    fun publish(taskId: Int, messages: Flux<ProfileAgentMessage>): Flux<ProfileAgentMessage> = Flux.defer {
+        val channel = ReplayProcessor.cacheLast<ProfileAgentMessage>()
+        channels.put(taskId, channel)?.onComplete()
+
+        messages.takeUntil { it.stage == CaptureTaskStage.STOPPED }
+                .doOnNext { channel.onNext(it) }
+                .doFinally {
+                    channels.remove(taskId, channel)
+                    channel.onComplete()
+                }
+    }
+
+    fun isPublishing(taskId: Int) = channels.containsKey(taskId)
+
+    /**
+     * Stage messages and spider status of a task as server-sent events
+     *
+     * Stream ends when the task terminates. If the task is not running,
+     * only its saved stage is sent.
+     */
+    fun eventsOf(captureTask: CaptureTask): Flux<ServerSentEvent<Any>> {
+        val taskId = captureTask.id!!
+        val channel = channels[taskId]
+        if (channel == null) {
+            val stage = captureTask.stage ?: return Flux.empty()
+            return Flux.just(stageEvent(ProfileAgentMessage(stage, captureTask.stageReport)))
+        }
+
+        val stages = channel.map { stageEvent(it) }
+
+        val status = Flux.interval(Duration.ZERO, Duration.ofMillis(statusEventIntervalMillis))
+                .map { Optional.ofNullable(spiderMonitor.getSpiderStatus()[taskId.toString()]) }
+                .filter { it.isPresent }
+                .map { ServerSentEvent.builder<Any>(it.get()).event(EVENT_STATUS).build() }
+                .takeUntilOther(channel.then(Mono.just(true)))
+
+        return Flux.merge(stages, status)
+    }
+
+    private fun stageEvent(message: ProfileAgentMessage): ServerSentEvent<Any> =
+            ServerSentEvent.builder<Any>(message).event(EVENT_STAGE).build()
+
+    companion object {
+        const val EVENT_STAGE = "stage"
+        const val EVENT_STATUS = "status"
+    }
+}
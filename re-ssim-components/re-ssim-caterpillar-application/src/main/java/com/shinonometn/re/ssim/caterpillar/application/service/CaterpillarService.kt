@@ -2,7 +2,9 @@ package com.shinonometn.re.ssim.caterpillar.application.service
 
 import com.shinonometn.re.ssim.caterpillar.application.commons.CaptureTaskStage
 import com.shinonometn.re.ssim.caterpillar.application.commons.TermLabelItem
+import com.shinonometn.re.ssim.caterpillar.application.commons.agent.CaptureBaseline
 import com.shinonometn.re.ssim.caterpillar.application.commons.agent.CaterpillarProfileAgent
+import com.shinonometn.re.ssim.caterpillar.application.commons.agent.ProfileAgentMessage
 import com.shinonometn.re.ssim.caterpillar.application.commons.agent.impl.KingoCaterpillarProfileAgent
 import com.shinonometn.re.ssim.caterpillar.application.dto.CaptureTaskDetails
 import com.shinonometn.re.ssim.caterpillar.application.entity.CaptureTask
@@ -10,22 +12,33 @@ import com.shinonometn.re.ssim.caterpillar.application.entity.CaterpillarSetting
 import com.shinonometn.re.ssim.caterpillar.application.repository.CaptureTaskRepository
 import com.shinonometn.re.ssim.commons.BusinessException
 import com.shinonometn.re.ssim.service.caterpillar.SpiderMonitor
+import com.shinonometn.re.ssim.service.caterpillar.kingo.KingoSessionPool
 import org.slf4j.LoggerFactory
+import org.springframework.beans.factory.annotation.Value
 import org.springframework.core.task.TaskExecutor
 import org.springframework.data.domain.Page
 import org.springframework.data.domain.Pageable
+import org.springframework.data.redis.core.StringRedisTemplate
 import org.springframework.stereotype.Service
 import org.springframework.transaction.support.TransactionTemplate
+import reactor.core.publisher.Flux
 import reactor.core.scheduler.Schedulers
 import us.codecraft.webmagic.Spider
+import java.io.File
+import java.time.Duration
 import java.util.*
 
 @Service
 open class CaterpillarService(private val fileManageService: CaterpillarFileManageService,
                               private val spiderMonitor: SpiderMonitor,
+                              private val sessionPool: KingoSessionPool,
                               private val taskExecutor: TaskExecutor,
                               private val captureTaskRepository: CaptureTaskRepository,
-                              private val transactionTemplate: TransactionTemplate) {
+                              private val transactionTemplate: TransactionTemplate,
+                              private val redisTemplate: StringRedisTemplate,
+                              private val captureProgressService: CaptureProgressService,
+                              @Value("\${caterpillar.node-id:}") private val nodeId: String,
+                              @Value("\${caterpillar.status-write-interval-millis:2000}") private val statusWriteIntervalMillis: Long) {
 
     private val logger = LoggerFactory.getLogger("caterpillar_service")
 
@@ -36,6 +49,8 @@ open class CaterpillarService(private val fileManageService: CaterpillarFileMana
 
         return KingoCaterpillarProfileAgent(caterpillarSetting.caterpillarProfile!!).apply {
             bindSpiderMonitor(spiderMonitor)
+            bindSessionPool(sessionPool)
+            bindSharedQueue(redisTemplate, if (nodeId.isBlank()) null else nodeId)
         }
     }
 
@@ -139,15 +154,29 @@ open class CaterpillarService(private val fileManageService: CaterpillarFileMana
     /**
      * Resume a stopped task
      *
+     * A stopped spider closes itself and is lost when service restarts, so if a setting
+     * is given and the task has a request log (or a shared queue), the capture is started
+     * again and continues from it. Otherwise the spider in monitor is started again.
+     *
      * @param taskId task id
+     * @param caterpillarSetting setting to restart the capture with
      * @return dto
      */
-    fun resumeTask(captureTask: CaptureTask): CaptureTaskDetails? {
+    fun resumeTask(captureTask: CaptureTask, caterpillarSetting: CaterpillarSetting? = null): CaptureTaskDetails? {
 
+        val taskId = captureTask.id!!
         val spiderStatus = getTaskDetails(captureTask).runningTaskStatus
-                ?: throw BusinessException("task_have_not_initialized")
 
-        if (spiderStatus.name == Spider.Status.Running.name) throw BusinessException("spider_running")
+        if (spiderStatus?.status == Spider.Status.Running.name) throw BusinessException("spider_running")
+
+        if (caterpillarSetting != null && (requireAgentByProfile(caterpillarSetting).distributedCapture
+                        || File(fileManageService.contextOf(taskId).file, CaptureBaseline.REQUEST_LOG_FILE).isFile)) {
+            spiderMonitor.removeSpiderStatusMonitor(taskId.toString())
+            startByTaskIdAndSettings(taskId, caterpillarSetting)
+            return getTaskDetails(captureTask)
+        }
+
+        if (spiderStatus == null) throw BusinessException("task_have_not_initialized")
 
         spiderStatus.start()
 
@@ -165,13 +194,8 @@ open class CaterpillarService(private val fileManageService: CaterpillarFileMana
      * @param taskId task id
      * @return dto
      */
-    fun startByTaskIdAndSettings(taskId: Int, caterpillarSetting: CaterpillarSetting): CaptureTaskDetails {
-
-        fun updateTaskStatus(taskId: Int, stage: CaptureTaskStage, reporting: String) {
-            transactionTemplate.execute {
-                captureTaskRepository.updateTaskStatus(taskId, stage, reporting)
-            }
-        }
+    fun startByTaskIdAndSettings(taskId: Int,
+                                 caterpillarSetting: CaterpillarSetting): CaptureTaskDetails {
 
         val captureTaskDetails = captureTaskRepository
                 .findById(taskId)
@@ -185,17 +209,107 @@ open class CaterpillarService(private val fileManageService: CaterpillarFileMana
         val taskUUID = taskId.toString()
         val termCode = captureTask.termCode ?: throw IllegalArgumentException("term_code_should_not_be_null")
 
+        runTask(taskId, requireAgentByProfile(caterpillarSetting)
+                .fetchCoursesData(taskUUID, termCode, fileManageService.contextOf(taskId).file, findBaselineFolder(taskId, termCode)))
+
+        return captureTaskDetails
+    }
+
+    /**
+     * Capture several terms with one login, e.g. current and next term at a semester rollover
+     *
+     * A task is created for each term, so outputs are imported as usual. Details of all terms
+     * are fetched by one spider registered under the first task, stopping it stops the batch.
+     * Batches are always captured by this node.
+     *
+     * @param termCodes term codes
+     * @return tasks of the batch
+     */
+    fun startBatch(termCodes: List<String>, schoolIdentity: String, caterpillarSetting: CaterpillarSetting): List<CaptureTaskDetails> {
+        if (termCodes.isEmpty()) throw BusinessException("batch_has_no_term")
+
+        val agent = requireAgentByProfile(caterpillarSetting)
+        val tasks = termCodes.distinct().map { createTask(it, schoolIdentity) }
+
+        val leadTaskId = tasks.first().id!!
+        tasks.drop(1).forEach { changeCaptureTaskStatus(it, null, "batch_of:$leadTaskId") }
+
+        val taskIds = tasks.associate { it.termCode!! to it.id!! }
+        val messages = agent
+                .fetchBatchCoursesData(
+                        leadTaskId.toString(),
+                        taskIds.mapValues { fileManageService.contextOf(it.value).file },
+                        taskIds.mapNotNull { (termCode, taskId) -> findBaselineFolder(taskId, termCode)?.let { termCode to it } }.toMap())
+                .publish()
+                .autoConnect(taskIds.size)
+
+        // Messages about a term only go to its task
+        taskIds.forEach { (termCode, taskId) ->
+            runTask(taskId, messages.filter { it.termCode == null || it.termCode == termCode })
+        }
+
+        return tasks.map { getTaskDetails(it) }
+    }
+
+    /**
+     * Work on a distributed capture started by another node
+     *
+     * Courses are collected by the node started the task, this node only
+     * reports its own spider, its throughput is reported by every node.
+     *
+     * @param taskId task id
+     * @return dto
+     */
+    fun joinTask(taskId: Int, caterpillarSetting: CaterpillarSetting): CaptureTaskDetails {
+        val captureTask = captureTaskRepository.findById(taskId).orElseThrow { BusinessException("task_not_exists") }
+
+        val spiderStatus = spiderMonitor.getSpiderStatus()[taskId.toString()]
+        if (Spider.Status.Running.name == spiderStatus?.status) throw BusinessException("spider_running")
+        spiderMonitor.removeSpiderStatusMonitor(taskId.toString())
+
         requireAgentByProfile(caterpillarSetting)
-                .fetchCoursesData(taskUUID, termCode, fileManageService.contextOf(taskId).file)
+                .joinCoursesCapture(taskId.toString())
                 .subscribeOn(Schedulers.fromExecutor(taskExecutor))
-                .doOnError { error ->
-                    updateTaskStatus(taskId, CaptureTaskStage.STOPPED, "Error: ${error.javaClass.name}, cause ${error.message}")
-                }
-                .subscribe { e ->
-                    updateTaskStatus(taskId, e.stage, e.message)
-                }
+                .subscribe(
+                        { e -> logger.debug("Joined task {}: {}", taskId, e.message) },
+                        { error -> logger.warn("Joined task $taskId failed.", error) })
 
-        return captureTaskDetails
+        return getTaskDetails(captureTask)
+    }
+
+    /**
+     * Parse raw pages of a finished task again as a new task
+     *
+     * No network access needed, the new task owns an importable dataset
+     * produced by current parser.
+     *
+     * @param taskId source task id
+     * @return the new task
+     */
+    fun reparseTask(taskId: Int, caterpillarSetting: CaterpillarSetting): CaptureTaskDetails {
+        val sourceTask = captureTaskRepository.findById(taskId).orElseThrow { BusinessException("task_not_exists") }
+
+        val sourceStatus = spiderMonitor.getSpiderStatus()[taskId.toString()]
+        if (Spider.Status.Running.name == sourceStatus?.status) throw BusinessException("spider_running")
+
+        val sourceFolder = fileManageService.contextOf(taskId).file
+        if (!File(sourceFolder, CaptureBaseline.RAW_PAGE_FILE).isFile) throw BusinessException("raw_page_archive_not_found")
+
+        val captureTask = captureTaskRepository.save(CaptureTask().apply {
+            createDate = Date()
+            termCode = sourceTask.termCode
+            termName = sourceTask.termName
+            schoolIdentity = sourceTask.schoolIdentity
+            stage = CaptureTaskStage.INITIALIZE
+            stageReport = "reparse_of:$taskId"
+        })
+
+        val newTaskId = captureTask.id!!
+
+        runTask(newTaskId, requireAgentByProfile(caterpillarSetting)
+                .reparseCoursesData(newTaskId.toString(), sourceFolder, fileManageService.contextOf(newTaskId).file))
+
+        return getTaskDetails(captureTask)
     }
 
     /**
@@ -256,6 +370,16 @@ open class CaterpillarService(private val fileManageService: CaterpillarFileMana
 
      */
 
+    /*
+    * Storage folder of the latest complete capture of the same term
+    */
+    private fun findBaselineFolder(taskId: Int, termCode: String): File? =
+            captureTaskRepository.findAllByTermCodeOrderByCreateDateDesc(termCode)
+                    .asSequence()
+                    .filter { it.id != taskId }
+                    .map { fileManageService.contextOf(it.id!!).file }
+                    .firstOrNull { CaptureBaseline.isUsable(it) }
+
     private fun getTaskDetails(captureTask: CaptureTask): CaptureTaskDetails {
         val captureTaskDetails = CaptureTaskDetails()
         captureTaskDetails.taskInfo = captureTask
@@ -271,6 +395,27 @@ open class CaterpillarService(private val fileManageService: CaterpillarFileMana
 //        return file
 //    }
 
+    /*
+    * Run agent messages of a task on the task executor, and publish them to event streams.
+    * Spiders could report much more often than needed, only the latest message of each
+    * interval is written to database. The last message before termination is always written.
+    */
+    private fun runTask(taskId: Int, messages: Flux<ProfileAgentMessage>) {
+        captureProgressService
+                .publish(taskId, messages.subscribeOn(Schedulers.fromExecutor(taskExecutor)))
+                .sample(Duration.ofMillis(statusWriteIntervalMillis))
+                .publishOn(Schedulers.boundedElastic())
+                .subscribe(
+                        { e -> updateTaskStatus(taskId, e.stage, e.message) },
+                        { error -> updateTaskStatus(taskId, CaptureTaskStage.STOPPED, "Error: ${error.javaClass.name}, cause ${error.message}") })
+    }
+
+    private fun updateTaskStatus(taskId: Int, stage: CaptureTaskStage, reporting: String) {
+        transactionTemplate.execute {
+            captureTaskRepository.updateTaskStatus(taskId, stage, reporting)
+        }
+    }
+
     private fun changeCaptureTaskStatus(captureTask: CaptureTask, status: CaptureTaskStage?, description: String?) {
         if (status != null) captureTask.stage = status
         if (description != null) captureTask.stageReport = description
@@ -0,0 +1,125 @@
+package com.shinonometn.re.ssim.caterpillar.application.commons.agent.impl;
+
+import com.shinonometn.re.ssim.commons.file.segment.SegmentFile;
+import com.shinonometn.re.ssim.commons.file.segment.SegmentReader;
+import com.shinonometn.re.ssim.commons.file.segment.SegmentRecord;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Captures from a {@link MockKingoServer} end to end
+ * <p>
+ * The ignored throughput test is a load harness, run it by hand to measure
+ * pages per second, p99 latency and CPU time per page of a capture.
+ */
+public class KingoCaptureLoadTest {
+
+    private final static Logger logger = LoggerFactory.getLogger("com.shinonometn.re.ssim.test");
+
+    private File storageFolder;
+
+    @Before
+    public void setUp() throws IOException {
+        storageFolder = Files.createTempDirectory("kingo_capture").toFile();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(storageFolder);
+    }
+
+    @Test
+    public void testCaptureFromMockServer() throws IOException {
+        try (MockKingoServer server = new MockKingoServer(50, 8)) {
+            server.setLatency(1, 5).setErrorRate(0.05, 42);
+
+            KingoCaterpillarProfileAgent agent = createAgent(server, 4);
+            assertEquals(MockKingoServer.TERM_NAME, agent.fetchTerms().iterator().next().getTitle());
+
+            Set<String> courseCodes = capture(agent);
+
+            assertEquals(50, courseCodes.size());
+            for (int i = 0; i < 50; i++) assertTrue(courseCodes.contains(MockKingoServer.courseCodeOf(i)));
+        }
+    }
+
+    @Ignore("Load harness, run by hand")
+    @Test
+    public void testCaptureThroughput() throws IOException {
+        int courseCount = Integer.getInteger("courses", 20000);
+        int concurrency = Integer.getInteger("concurrency", 64);
+
+        try (MockKingoServer server = new MockKingoServer(courseCount, concurrency * 2)) {
+            server.setLatency(Long.getLong("latency", 20), Long.getLong("jitter", 20))
+                    .setErrorRate(Double.parseDouble(System.getProperty("errorRate", "0.01")), Long.getLong("seed", 42));
+
+            KingoCaterpillarProfileAgent agent = createAgent(server, concurrency);
+
+            com.sun.management.OperatingSystemMXBean os =
+                    (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+            long startCpu = os.getProcessCpuTime();
+            long startTime = System.nanoTime();
+
+            Set<String> courseCodes = capture(agent);
+
+            double seconds = (System.nanoTime() - startTime) / 1e9;
+            long clientCpu = os.getProcessCpuTime() - startCpu - server.getHandlerCpuNanos();
+            int pages = server.getCourseDetailsCount();
+
+            List<Long> responseMillis = server.getResponseMillis();
+            Collections.sort(responseMillis);
+
+            logger.info("courses: {} captured of {}", courseCodes.size(), courseCount);
+            logger.info("requests: {}, injected errors: {}", server.getRequestCount(), server.getErrorCount());
+            logger.info("pages/s: {}", String.format("%.1f", pages / seconds));
+            logger.info("latency p50: {}ms, p99: {}ms (server side, injected latency included)",
+                    percentile(responseMillis, 0.50), percentile(responseMillis, 0.99));
+            logger.info("cpu per page: {}ms (mock server excluded)", String.format("%.3f", clientCpu / 1e6 / Math.max(1, pages)));
+        }
+    }
+
+    private KingoCaterpillarProfileAgent createAgent(MockKingoServer server, int concurrency) {
+        Map<String, Object> profile = new HashMap<>();
+        profile.put("targetDomain", "127.0.0.1");
+        profile.put("targetBaseUrl", server.getBaseUrl());
+        profile.put("username", "mock");
+        profile.put("password", "mock");
+        profile.put("sleepTimes", 0);
+        profile.put("taskThreads", concurrency);
+        profile.put("maxConcurrency", concurrency);
+        profile.put("maxInFlightRequests", concurrency);
+        profile.put("retryBaseDelayMillis", 10);
+        profile.put("retryMaxDelayMillis", 200);
+        return new KingoCaterpillarProfileAgent(profile);
+    }
+
+    private Set<String> capture(KingoCaterpillarProfileAgent agent) throws IOException {
+        agent.fetchCoursesData(UUID.randomUUID().toString(), MockKingoServer.TERM_CODE, storageFolder, null).blockLast();
+
+        // Courses are keyed by course code in the capture output
+        Set<String> courseCodes = new HashSet<>();
+        try (SegmentReader reader = new SegmentReader(new File(storageFolder, SegmentFile.DEFAULT_NAME))) {
+            for (SegmentRecord record : reader) courseCodes.add(record.getKey());
+        }
+        return courseCodes;
+    }
+
+    private static long percentile(List<Long> sorted, double percentile) {
+        if (sorted.isEmpty()) return 0;
+        return sorted.get(Math.min(sorted.size() - 1, (int) Math.ceil(percentile * sorted.size()) - 1));
+    }
+}
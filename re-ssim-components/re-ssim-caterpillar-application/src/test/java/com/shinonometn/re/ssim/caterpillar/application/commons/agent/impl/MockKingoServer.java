@@ -0,0 +1,328 @@
+package com.shinonometn.re.ssim.caterpillar.application.commons.agent.impl;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.io.IOUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Kingo site served on localhost for capture tests
+ * <p>
+ * Serves the login flow, term list, course list, course details and calendar pages.
+ * Course details are generated from {@code sample_pages/KBFB_LessonSel_rpt.aspx}
+ * with the course code replaced, so a synthetic school could have any number of courses.
+ * Every response could be delayed and a part of them answered with 503. Which attempts of a
+ * request fail only depends on the seed, not on the order requests arrive in, so tests
+ * with injected errors are repeatable.
+ */
+public class MockKingoServer implements Closeable {
+
+    public static final String TERM_CODE = "20170";
+    public static final String TERM_NAME = "2017-2018学年第一学期";
+
+    private static final String SESSION_COOKIE = "ASP.NET_SessionId";
+    private static final String FIXTURE_COURSE_CODE = "021431";
+
+    private final int courseCount;
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    private final String courseDetailsTemplate;
+    private final byte[] calendarPage;
+
+    private volatile long latencyMillis = 0;
+    private volatile long latencyJitterMillis = 0;
+    private volatile double errorRate = 0;
+    private volatile long errorSeed = 0;
+
+    private final Set<String> sessions = ConcurrentHashMap.newKeySet();
+    private final Set<String> loggedInSessions = ConcurrentHashMap.newKeySet();
+
+    // Attempts of every request, by method, uri and body
+    private final Map<String, AtomicInteger> attempts = new ConcurrentHashMap<>();
+
+    private final AtomicInteger requestCount = new AtomicInteger(0);
+    private final AtomicInteger errorCount = new AtomicInteger(0);
+    private final AtomicInteger courseDetailsCount = new AtomicInteger(0);
+    private final AtomicLong handlerCpuNanos = new AtomicLong(0);
+    private final Queue<Long> responseMillis = new ConcurrentLinkedQueue<>();
+
+    private final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+    /**
+     * @param courseCount courses of the synthetic term
+     * @param threads     threads serving requests, injected latency holds a thread
+     */
+    public MockKingoServer(int courseCount, int threads) throws IOException {
+        this.courseCount = courseCount;
+        this.courseDetailsTemplate = new String(readFixture("KBFB_LessonSel_rpt.aspx"), StandardCharsets.UTF_8);
+        this.calendarPage = readFixture("index_Lookxl.aspx");
+
+        this.executor = Executors.newFixedThreadPool(threads);
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1024);
+        this.server.setExecutor(executor);
+
+        route("/_data/index_LOGIN.aspx", this::login);
+        route("/ZNPK/KBFB_LessonSel.aspx", this::termList);
+        route("/ZNPK/Private/List_XNXQKC.aspx", this::courseList);
+        route("/ZNPK/KBFB_LessonSel_rpt.aspx", this::courseDetails);
+        route("/_data/index_lookxl.aspx", exchange -> respond(exchange, 200, calendarPage));
+
+        server.start();
+    }
+
+    public String getBaseUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    public static String courseCodeOf(int index) {
+        return String.format("%07d", index);
+    }
+
+    /**
+     * Delay every response by latency plus a random jitter
+     */
+    public MockKingoServer setLatency(long latencyMillis, long jitterMillis) {
+        this.latencyMillis = latencyMillis;
+        this.latencyJitterMillis = jitterMillis;
+        return this;
+    }
+
+    /**
+     * Answer a part of the requests with 503
+     */
+    public MockKingoServer setErrorRate(double errorRate) {
+        return setErrorRate(errorRate, 0);
+    }
+
+    /**
+     * Answer a part of the requests with 503, the same seed fails the same attempts
+     */
+    public MockKingoServer setErrorRate(double errorRate, long seed) {
+        this.errorRate = errorRate;
+        this.errorSeed = seed;
+        return this;
+    }
+
+    public int getRequestCount() {
+        return requestCount.get();
+    }
+
+    public int getErrorCount() {
+        return errorCount.get();
+    }
+
+    public int getCourseDetailsCount() {
+        return courseDetailsCount.get();
+    }
+
+    /**
+     * CPU time spent by the server, excluding injected latency
+     */
+    public long getHandlerCpuNanos() {
+        return handlerCpuNanos.get();
+    }
+
+    /**
+     * Time from request received to response sent, injected latency included
+     */
+    public List<Long> getResponseMillis() {
+        return new ArrayList<>(responseMillis);
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /*
+     * Handlers
+     */
+
+    private void login(HttpExchange exchange) throws IOException {
+        if (exchange.getRequestMethod().equalsIgnoreCase("POST")) {
+            Map<String, String> form = readForm(exchange);
+            String session = sessionOf(exchange);
+
+            boolean accepted = session != null && sessions.contains(session)
+                    && !form.getOrDefault("txt_asmcdefsddsd", "").isEmpty()
+                    && !form.getOrDefault("dsdsdsdsdxcxdfgfg", "").isEmpty();
+            if (accepted) loggedInSessions.add(session);
+
+            respond(exchange, 200, html("<div id=\"divLogNote\"><span>"
+                    + (accepted ? "正在加载权限数据..." : "帐号或密码不正确！")
+                    + "</span></div>"));
+            return;
+        }
+
+        String session = UUID.randomUUID().toString().replace("-", "");
+        sessions.add(session);
+        exchange.getResponseHeaders().add("Set-Cookie", SESSION_COOKIE + "=" + session + "; path=/");
+
+        respond(exchange, 200, html("<form name=\"form1\" method=\"post\" action=\"index_LOGIN.aspx\">"
+                + "<input type=\"hidden\" name=\"__VIEWSTATE\" value=\"mock\"/>"
+                + "<input type=\"hidden\" name=\"pcInfo\" value=\"\"/>"
+                + "<input type=\"hidden\" name=\"typeName\" value=\"\"/>"
+                + "<select name=\"Sel_Type\"><option value=\"STU\">学生</option><option value=\"TEA\">教师</option></select>"
+                + "<input type=\"text\" name=\"txt_asmcdefsddsd\" value=\"\"/>"
+                + "<input type=\"password\" name=\"dsdsdsdsdxcxdfgfg\" value=\"\"/>"
+                + "</form>"));
+    }
+
+    private void termList(HttpExchange exchange) throws IOException {
+        boolean loggedIn = isLoggedIn(exchange);
+
+        respond(exchange, 200, html("<form id=\"form1\">"
+                + "<select name=\"Sel_XNXQ\"><option value=\"" + TERM_CODE + "\">" + TERM_NAME + "</option></select>"
+                + "<div" + (loggedIn ? " style=\"display:none\"" : "") + "><input id=\"txt_yzm\" name=\"txt_yzm\"/></div>"
+                + "</form>"));
+    }
+
+    private void courseList(HttpExchange exchange) throws IOException {
+        if (!isLoggedIn(exchange)) {
+            respond(exchange, 200, html(""));
+            return;
+        }
+
+        StringBuilder options = new StringBuilder(courseCount * 48).append("<option value=''></option>");
+        for (int i = 0; i < courseCount; i++) {
+            String code = courseCodeOf(i);
+            options.append("<option value='").append(code).append("'>[").append(code).append("]课程").append(i).append("</option>");
+        }
+
+        respond(exchange, 200, ("<html><head><script>parent.document.all.theKC.innerHTML=\"<select name='Sel_KC'>"
+                + options + "</select>\";</script></head><body></body></html>").getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void courseDetails(HttpExchange exchange) throws IOException {
+        Map<String, String> form = readForm(exchange);
+        String code = form.get("Sel_KC");
+
+        if (!isLoggedIn(exchange) || code == null) {
+            respond(exchange, 200, html("<input id=\"txt_yzm\"/>"));
+            return;
+        }
+
+        courseDetailsCount.incrementAndGet();
+        respond(exchange, 200, courseDetailsTemplate
+                .replace("[" + FIXTURE_COURSE_CODE + "]", "[" + code + "]")
+                .getBytes(StandardCharsets.UTF_8));
+    }
+
+    /*
+     * Latency and error injection, statistics
+     */
+
+    private interface Handler {
+        void handle(HttpExchange exchange) throws IOException;
+    }
+
+    private void route(String path, Handler handler) {
+        server.createContext(path, exchange -> {
+            long startTime = System.currentTimeMillis();
+            long cpuTime = threadMXBean.getCurrentThreadCpuTime();
+            requestCount.incrementAndGet();
+
+            try {
+                long delay = latencyMillis + (latencyJitterMillis > 0 ? ThreadLocalRandom.current().nextLong(latencyJitterMillis + 1) : 0);
+                if (delay > 0) Thread.sleep(delay);
+
+                if (errorRate > 0 && isFailedAttempt(exchange)) {
+                    errorCount.incrementAndGet();
+                    respond(exchange, 503, html("Service Unavailable"));
+                } else {
+                    handler.handle(exchange);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException e) {
+                respond(exchange, 500, html(String.valueOf(e.getMessage())));
+            } finally {
+                exchange.close();
+                handlerCpuNanos.addAndGet(threadMXBean.getCurrentThreadCpuTime() - cpuTime);
+                responseMillis.add(System.currentTimeMillis() - startTime);
+            }
+        });
+    }
+
+    /*
+    * Decide by the request and its attempt number, the body is kept for the handler
+    */
+    private boolean isFailedAttempt(HttpExchange exchange) throws IOException {
+        byte[] body;
+        try (InputStream inputStream = exchange.getRequestBody()) {
+            body = IOUtils.toByteArray(inputStream);
+        }
+        exchange.setStreams(new ByteArrayInputStream(body), null);
+
+        String request = exchange.getRequestMethod() + " " + exchange.getRequestURI() + " " + new String(body, StandardCharsets.UTF_8);
+        int attempt = attempts.computeIfAbsent(request, k -> new AtomicInteger(0)).getAndIncrement();
+
+        long seed = errorSeed * 31 + request.hashCode();
+        return new Random(seed * 31 + attempt).nextDouble() < errorRate;
+    }
+
+    private boolean isLoggedIn(HttpExchange exchange) {
+        String session = sessionOf(exchange);
+        return session != null && loggedInSessions.contains(session);
+    }
+
+    private static String sessionOf(HttpExchange exchange) {
+        List<String> cookieHeaders = exchange.getRequestHeaders().get("Cookie");
+        if (cookieHeaders == null) return null;
+
+        for (String header : cookieHeaders)
+            for (String cookie : header.split(";")) {
+                String[] pair = cookie.trim().split("=", 2);
+                if (pair.length == 2 && pair[0].equals(SESSION_COOKIE)) return pair[1];
+            }
+        return null;
+    }
+
+    private static Map<String, String> readForm(HttpExchange exchange) throws IOException {
+        Map<String, String> form = new HashMap<>();
+        String body = IOUtils.toString(exchange.getRequestBody(), StandardCharsets.UTF_8);
+
+        for (String field : body.split("&")) {
+            if (field.isEmpty()) continue;
+            String[] pair = field.split("=", 2);
+            form.put(URLDecoder.decode(pair[0], "UTF-8"), pair.length > 1 ? URLDecoder.decode(pair[1], "UTF-8") : "");
+        }
+        return form;
+    }
+
+    private static void respond(HttpExchange exchange, int status, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "text/html; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream outputStream = exchange.getResponseBody()) {
+            outputStream.write(body);
+        }
+    }
+
+    private static byte[] html(String body) {
+        return ("<html><head><meta http-equiv=\"Content-Type\" content=\"text/html; charset=utf-8\"></head><body>"
+                + body + "</body></html>").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] readFixture(String name) throws IOException {
+        try (InputStream inputStream = MockKingoServer.class.getResourceAsStream("/sample_pages/" + name)) {
+            if (inputStream == null) throw new IOException("fixture_not_found:" + name);
+            return IOUtils.toByteArray(inputStream);
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.shinonometn.re.ssim.caterpillar.application.service
+
+import com.shinonometn.re.ssim.caterpillar.application.commons.CaptureTaskStage
+import com.shinonometn.re.ssim.caterpillar.application.commons.agent.ProfileAgentMessage
+import com.shinonometn.re.ssim.caterpillar.application.entity.CaptureTask
+import com.shinonometn.re.ssim.service.caterpillar.SpiderMonitor
+import org.junit.Assert.*
+import org.junit.Test
+import reactor.core.publisher.DirectProcessor
+import java.util.concurrent.TimeUnit
+
+class CaptureProgressServiceTest {
+
+    private val captureProgressService = CaptureProgressService(SpiderMonitor(), 10)
+
+    @Test
+    fun testEventStreamCompletesWhenTaskStops() {
+        // Agent stream is not completed after the task stopped
+        val agent = DirectProcessor.create<ProfileAgentMessage>()
+        val published = captureProgressService.publish(1, agent).collectList().toFuture()
+        assertTrue(captureProgressService.isPublishing(1))
+
+        val events = captureProgressService.eventsOf(CaptureTask().apply { id = 1 }).collectList().toFuture()
+
+        agent.onNext(ProfileAgentMessage(CaptureTaskStage.INITIALIZE, "login_to_kingo"))
+        agent.onNext(ProfileAgentMessage(CaptureTaskStage.STOPPED, "terminated"))
+
+        assertEquals(CaptureTaskStage.STOPPED, published.get(5, TimeUnit.SECONDS).last().stage)
+        assertEquals("terminated", (events.get(5, TimeUnit.SECONDS).last { it.event() == CaptureProgressService.EVENT_STAGE }.data() as ProfileAgentMessage).message)
+        assertFalse(captureProgressService.isPublishing(1))
+    }
+
+    @Test
+    fun testEventStreamOfStoppedTask() {
+        val captureTask = CaptureTask().apply {
+            id = 2
+            stage = CaptureTaskStage.STOPPED
+            stageReport = "terminated"
+        }
+
+        val events = captureProgressService.eventsOf(captureTask).collectList().block()!!
+        assertEquals(1, events.size)
+        assertEquals(CaptureProgressService.EVENT_STAGE, events[0].event())
+    }
+}
@@ -2,8 +2,10 @@ package com.shinonometn.re.ssim.data.manager.application;
 
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.scheduling.annotation.EnableScheduling;
 
 @SpringBootApplication
+@EnableScheduling
 public class RessimDataManagerApplication {
     public static void main(String[] args) {
         SpringApplication.run(RessimDataManagerApplication.class, args);
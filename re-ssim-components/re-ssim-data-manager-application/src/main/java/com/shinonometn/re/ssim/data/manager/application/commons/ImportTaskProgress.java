@@ -0,0 +1,193 @@
+package com.shinonometn.re.ssim.data.manager.application.commons;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Live progress of an import task
+ * <p>
+ * All counters are kept in memory and updated by the import thread,
+ * readers take a {@link Snapshot} at any time. Nothing here touches
+ * the database, so updating it for every document is cheap.
+ */
+public class ImportTaskProgress {
+
+    // Sliding window for throughput, one bucket per second
+    private final static int WINDOW_SECONDS = 10;
+
+    private final String taskId;
+    private final long startTime = System.currentTimeMillis();
+
+    private final AtomicLong filesDiscovered = new AtomicLong();
+    private final AtomicLong filesParsed = new AtomicLong();
+    private final AtomicLong documentsWritten = new AtomicLong();
+    private final AtomicLong bytesRead = new AtomicLong();
+
+    private final AtomicLongArray bucketSeconds = new AtomicLongArray(WINDOW_SECONDS);
+    private final AtomicLongArray bucketCounts = new AtomicLongArray(WINDOW_SECONDS);
+
+    private volatile ImportTaskStatus status = ImportTaskStatus.NONE;
+    private volatile String statusReport = "";
+    private volatile long updateTime = startTime;
+
+    public ImportTaskProgress(String taskId) {
+        this.taskId = taskId;
+    }
+
+    public String getTaskId() {
+        return taskId;
+    }
+
+    public void discovered(long files) {
+        filesDiscovered.addAndGet(files);
+        updateTime = System.currentTimeMillis();
+    }
+
+    public void parsed(long bytes) {
+        filesParsed.incrementAndGet();
+        bytesRead.addAndGet(bytes);
+        updateTime = System.currentTimeMillis();
+    }
+
+    public void written(long documents) {
+        documentsWritten.addAndGet(documents);
+
+        long now = System.currentTimeMillis();
+        long second = now / 1000;
+        int index = (int) (second % WINDOW_SECONDS);
+
+        // Reset a bucket that belongs to a second already out of the window
+        long bucketSecond = bucketSeconds.get(index);
+        if (bucketSecond != second && bucketSeconds.compareAndSet(index, bucketSecond, second))
+            bucketCounts.set(index, 0);
+
+        bucketCounts.addAndGet(index, documents);
+        updateTime = now;
+    }
+
+    public void changeStatus(ImportTaskStatus status, String statusReport) {
+        this.status = status;
+        this.statusReport = statusReport;
+        this.updateTime = System.currentTimeMillis();
+    }
+
+    public boolean isFinished() {
+        return status == ImportTaskStatus.FINISHED || status == ImportTaskStatus.ERROR;
+    }
+
+    /**
+     * Documents per second over the last {@value WINDOW_SECONDS} seconds
+     */
+    public double documentsPerSecond() {
+        long now = System.currentTimeMillis();
+        long currentSecond = now / 1000;
+
+        long total = 0;
+        for (int i = 0; i < WINDOW_SECONDS; i++) {
+            long second = bucketSeconds.get(i);
+            if (second > currentSecond - WINDOW_SECONDS && second <= currentSecond)
+                total += bucketCounts.get(i);
+        }
+
+        // A task younger than the window should not be averaged over the whole window
+        double elapsedSeconds = Math.min(WINDOW_SECONDS, Math.max(1, (now - startTime) / 1000.0));
+        return total / elapsedSeconds;
+    }
+
+    public Snapshot snapshot() {
+        Snapshot snapshot = new Snapshot();
+
+        snapshot.taskId = taskId;
+        snapshot.status = status;
+        snapshot.statusReport = statusReport;
+        snapshot.filesDiscovered = filesDiscovered.get();
+        snapshot.filesParsed = filesParsed.get();
+        snapshot.documentsWritten = documentsWritten.get();
+        snapshot.bytesRead = bytesRead.get();
+        snapshot.documentsPerSecond = documentsPerSecond();
+        snapshot.startTime = startTime;
+        snapshot.updateTime = updateTime;
+
+        // One course file holds one document, so files are the unit of work
+        long total = snapshot.filesDiscovered;
+        long done = snapshot.documentsWritten;
+        snapshot.percentage = total <= 0 ? 0 : Math.min(100.0, done * 100.0 / total);
+
+        if (isFinished()) snapshot.etaSeconds = 0;
+        else if (total <= 0 || snapshot.documentsPerSecond <= 0) snapshot.etaSeconds = -1;
+        else snapshot.etaSeconds = (long) Math.ceil(Math.max(0, total - done) / snapshot.documentsPerSecond);
+
+        return snapshot;
+    }
+
+    /**
+     * Immutable view of the progress for api output
+     */
+    public static class Snapshot {
+        private String taskId;
+        private ImportTaskStatus status;
+        private String statusReport;
+
+        private long filesDiscovered;
+        private long filesParsed;
+        private long documentsWritten;
+        private long bytesRead;
+
+        private double documentsPerSecond;
+        private double percentage;
+
+        // -1 if could not estimate yet
+        private long etaSeconds;
+
+        private long startTime;
+        private long updateTime;
+
+        public String getTaskId() {
+            return taskId;
+        }
+
+        public ImportTaskStatus getStatus() {
+            return status;
+        }
+
+        public String getStatusReport() {
+            return statusReport;
+        }
+
+        public long getFilesDiscovered() {
+            return filesDiscovered;
+        }
+
+        public long getFilesParsed() {
+            return filesParsed;
+        }
+
+        public long getDocumentsWritten() {
+            return documentsWritten;
+        }
+
+        public long getBytesRead() {
+            return bytesRead;
+        }
+
+        public double getDocumentsPerSecond() {
+            return documentsPerSecond;
+        }
+
+        public double getPercentage() {
+            return percentage;
+        }
+
+        public long getEtaSeconds() {
+            return etaSeconds;
+        }
+
+        public long getStartTime() {
+            return startTime;
+        }
+
+        public long getUpdateTime() {
+            return updateTime;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.shinonometn.re.ssim.data.manager.application.controller
+
+import com.shinonometn.re.ssim.commons.BusinessException
+import com.shinonometn.re.ssim.data.manager.application.commons.ImportTaskProgress
+import com.shinonometn.re.ssim.data.manager.application.service.ImportProgressService
+import com.shinonometn.re.ssim.data.manager.application.service.ImportTaskService
+import com.shinonometn.re.ssim.service.data.ImportTask
+import org.springframework.data.domain.Page
+import org.springframework.data.domain.Pageable
+import org.springframework.data.web.PageableDefault
+import org.springframework.http.MediaType
+import org.springframework.web.bind.annotation.*
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter
+import java.util.concurrent.TimeUnit
+import javax.servlet.http.HttpServletRequest
+
+@RestController
+@RequestMapping("/import")
+open class ImportTaskApi(private val importTaskService: ImportTaskService,
+                         private val importProgressService: ImportProgressService) {
+
+    @GetMapping
+    fun list(@PageableDefault pageable: Pageable): Page<ImportTask> {
+        return importTaskService.list(pageable)
+    }
+
+    @GetMapping("/{id}")
+    fun get(@PathVariable("id") id: String): ImportTask {
+        return importTaskService.findOne(id).orElseThrow { BusinessException("import_task_not_exists") }
+    }
+
+    @GetMapping("/{id}", params = ["progress"])
+    fun progress(@PathVariable("id") id: String): ImportTaskProgress.Snapshot {
+        return importTaskService.progressOf(id)
+                .orElseThrow { BusinessException("import_task_not_running") }
+                .snapshot()
+    }
+
+    @GetMapping("/{id}/progress", produces = [MediaType.TEXT_EVENT_STREAM_VALUE])
+    fun progressStream(@PathVariable("id") id: String): SseEmitter {
+        val progress = importTaskService.progressOf(id)
+                .orElseThrow { BusinessException("import_task_not_running") }
+
+        return SseEmitter(TimeUnit.HOURS.toMillis(1)).apply {
+            importProgressService.stream(progress, this)
+        }
+    }
+
+    @PostMapping("/{id}", params = ["start"])
+    fun start(@PathVariable("id") captureTaskId: String) = importTaskService.start(captureTaskId)
+
+    /**
+     * Import an archive of capture output, archive is the raw request body
+     */
+    @PostMapping(params = ["archive", "filename"])
+    fun importArchive(request: HttpServletRequest,
+                      @RequestParam("filename") filename: String,
+                      @RequestParam("term_code", required = false) termCode: String?,
+                      @RequestParam("term_name", required = false) termName: String?): ImportTask {
+        return importTaskService.importArchive(request.inputStream, filename, termCode, termName)
+    }
+
+    @DeleteMapping("/{id}")
+    fun delete(@PathVariable("id") id: String) {
+        importTaskService.delete(id)
+    }
+}
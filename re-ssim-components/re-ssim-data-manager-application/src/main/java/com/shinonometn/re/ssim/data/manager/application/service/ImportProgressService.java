@@ -0,0 +1,90 @@
+package com.shinonometn.re.ssim.data.manager.application.service;
+
+import com.shinonometn.re.ssim.data.manager.application.commons.ImportTaskProgress;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.*;
+
+/**
+ * Keep live progress of running import tasks in memory
+ * <p>
+ * Import tasks only write their final status to database,
+ * the counters in between are served from here.
+ */
+@Service
+public class ImportProgressService {
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    // How long a finished task keeps its progress
+    private final static long FINISHED_RETAIN_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    private final static long PUSH_INTERVAL_MILLIS = 1000;
+
+    private final Map<String, ImportTaskProgress> progressMap = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService pushExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "import-progress-push");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public ImportTaskProgress create(String taskId) {
+        evictFinished();
+
+        ImportTaskProgress progress = new ImportTaskProgress(taskId);
+        progressMap.put(taskId, progress);
+        return progress;
+    }
+
+    public Optional<ImportTaskProgress> find(String taskId) {
+        return Optional.ofNullable(progressMap.get(taskId));
+    }
+
+    /**
+     * Push progress snapshot of a task to the emitter every second,
+     * complete the emitter once the task finished.
+     *
+     * @param progress task progress
+     * @param emitter  sse emitter
+     */
+    public void stream(ImportTaskProgress progress, SseEmitter emitter) {
+        ScheduledFuture<?> future = pushExecutor.scheduleAtFixedRate(() -> {
+            try {
+                emitter.send(SseEmitter.event()
+                        .name("progress")
+                        .id(String.valueOf(progress.snapshot().getUpdateTime()))
+                        .data(progress.snapshot()));
+
+                if (progress.isFinished()) emitter.complete();
+            } catch (IOException | IllegalStateException e) {
+                logger.debug("Progress stream of task {} closed: {}", progress.getTaskId(), e.getMessage());
+                emitter.completeWithError(e);
+            }
+        }, 0, PUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+
+        Runnable cancel = () -> future.cancel(false);
+        emitter.onCompletion(cancel);
+        emitter.onTimeout(cancel);
+    }
+
+    /**
+     * Drop progress of tasks finished long ago
+     */
+    public void evictFinished() {
+        long now = System.currentTimeMillis();
+        progressMap.values().removeIf(p -> p.isFinished() && now - p.snapshot().getUpdateTime() > FINISHED_RETAIN_MILLIS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        pushExecutor.shutdownNow();
+    }
+}
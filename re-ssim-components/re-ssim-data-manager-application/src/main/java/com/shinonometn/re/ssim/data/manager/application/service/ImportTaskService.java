@@ -3,6 +3,8 @@ package com.shinonometn.re.ssim.data.manager.application.service;
 import com.shinonometn.re.ssim.commons.BusinessException;
 import com.shinonometn.re.ssim.commons.CacheKeys;
 import com.shinonometn.re.ssim.commons.file.fundation.FileContext;
+import com.shinonometn.re.ssim.commons.file.segment.CaptureDataReader;
+import com.shinonometn.re.ssim.data.manager.application.commons.ImportTaskProgress;
 import com.shinonometn.re.ssim.data.manager.application.commons.ImportTaskStatus;
 import com.shinonometn.re.ssim.data.manager.application.repository.ImportTaskRepository;
 import com.shinonometn.re.ssim.service.bus.MessageBus;
@@ -12,29 +14,29 @@ import com.shinonometn.re.ssim.service.caterpillar.plugin.CaterpillarMonitorStor
 import com.shinonometn.re.ssim.service.caterpillar.repository.CaptureTaskRepository;
 import com.shinonometn.re.ssim.service.courses.CourseInfoService;
 import com.shinonometn.re.ssim.data.manager.application.task.CourseDataImportTask;
+import com.shinonometn.re.ssim.service.data.DataVersionRegistry;
 import com.shinonometn.re.ssim.service.data.ImportTask;
 import org.apache.commons.io.FileUtils;
-import org.bson.Document;
 import org.jetbrains.annotations.NotNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
 import org.springframework.cache.annotation.CacheEvict;
 import org.springframework.core.task.TaskExecutor;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Comparator;
+import java.io.InputStream;
 import java.util.Date;
 import java.util.Optional;
 
-import static org.springframework.data.mongodb.core.aggregation.Aggregation.*;
-import static org.springframework.data.mongodb.core.query.Criteria.where;
-import static org.springframework.data.mongodb.core.query.Query.query;
-
 @Service
 public class ImportTaskService {
 
@@ -52,13 +54,21 @@ public class ImportTaskService {
     private final TaskExecutor taskExecutor;
     private final MessageBus messageBus;
 
+    private final ImportProgressService importProgressService;
+    private final DataVersionRegistry dataVersionRegistry;
+
+    private final CacheManager cacheManager;
+
     public ImportTaskService(CaptureTaskRepository captureTaskRepository,
                              ImportTaskRepository importTaskRepository,
                              MongoTemplate mongoTemplate, CaterpillarFileManageService fileManageService,
                              CaterpillarMonitorStore caterpillarMonitorStore,
                              CourseInfoService courseInfoService,
                              TaskExecutor taskExecutor,
-                             MessageBus messageBus) {
+                             MessageBus messageBus,
+                             ImportProgressService importProgressService,
+                             DataVersionRegistry dataVersionRegistry,
+                             @SuppressWarnings("SpringJavaInjectionPointsAutowiringInspection") CacheManager cacheManager) {
 
         this.captureTaskRepository = captureTaskRepository;
         this.importTaskRepository = importTaskRepository;
@@ -68,6 +78,9 @@ public class ImportTaskService {
         this.courseInfoService = courseInfoService;
         this.taskExecutor = taskExecutor;
         this.messageBus = messageBus;
+        this.importProgressService = importProgressService;
+        this.dataVersionRegistry = dataVersionRegistry;
+        this.cacheManager = cacheManager;
     }
 
     public Page<ImportTask> list(Pageable pageable) {
@@ -101,31 +114,14 @@ public class ImportTaskService {
         return importTaskRepository.existsByCaptureTaskId(captureTaskId);
     }
 
-    @SuppressWarnings("ConstantConditions")
+    /**
+     * Get current data version of a term
+     *
+     * @param termName term name
+     * @return version, null if term has no data
+     */
     public String latestVersionOf(String termName) {
-        // Get latest version from finished import tasks
-        ImportTask latestTask = mongoTemplate.query(ImportTask.class)
-                .matching(query(where("termName").is(termName).and("finishDate").ne(null)))
-                .stream()
-                .max(Comparator.comparingLong(l -> l.getFinishDate().getTime()))
-                .orElse(null);
-
-        if (latestTask != null && latestTask.getId() != null) return latestTask.getId();
-
-        // If not found, find from exists courses
-        // Because version id is batchId and it is UUID, so sort the
-        // list and the latest item normally is the new version code
-        return Optional.ofNullable(courseInfoService.query(
-                project("term", "batchId"),
-                match(where("term").is(termName)),
-                group("term").addToSet("batchId").as("versions"),
-                project("versions")
-        ).getUniqueMappedResult())
-                .orElse(new Document().append("versions", null))
-                .get("versions", new ArrayList<String>())
-                .stream()
-                .max(Comparator.naturalOrder())
-                .orElse(null);
+        return dataVersionRegistry.currentVersionOf(termName);
     }
 
     /**
@@ -153,20 +149,136 @@ public class ImportTaskService {
         importTask.setCaptureTaskId(taskId);
         importTask.setCreateDate(new Date());
 
+        ImportTask savedTask = save(importTask);
+
         taskExecutor.execute(new CourseDataImportTask(
                 this,
                 courseInfoService,
-                save(importTask),
+                savedTask,
                 caterpillarMonitorStore,
-                dataFolder,
-                messageBus
+                () -> {
+                    if (!dataFolder.getFile().isDirectory()) throw new BusinessException("temp_dir_not_found");
+                    return CaptureDataReader.open(dataFolder.getFile());
+                },
+                messageBus,
+                dataVersionRegistry,
+                importProgressService.create(savedTask.getId()),
+                200
         ));
 
         return captureTask;
     }
 
+    /**
+     * Import a compressed capture archive (zip, tar, tar.gz or tar.zst)
+     * <p>
+     * Data is streamed from the decompressor to database without extracting,
+     * this method returns after the import finished.
+     *
+     * @param inputStream archive stream, will be closed after import
+     * @param filename    archive filename, used to detect format
+     * @param termCode    term code, nullable
+     * @param termName    term name, nullable, taken from data if absent
+     * @return import task
+     */
+    @CacheEvict({
+            CacheKeys.TERM_COURSE_LIST
+    })
+    @NotNull
+    public ImportTask importArchive(@NotNull InputStream inputStream,
+                                    @NotNull String filename,
+                                    String termCode,
+                                    String termName) {
+
+        if (!CaptureDataReader.isArchive(filename)) throw new BusinessException("unsupported_archive_format");
+
+        ImportTask importTask = new ImportTask();
+
+        importTask.setTermCode(termCode);
+        importTask.setTermName(termName);
+        importTask.setDataPath(filename);
+        importTask.setCreateDate(new Date());
+
+        ImportTask savedTask = save(importTask);
+
+        new CourseDataImportTask(
+                this,
+                courseInfoService,
+                savedTask,
+                caterpillarMonitorStore,
+                () -> CaptureDataReader.openArchive(inputStream, filename),
+                messageBus,
+                dataVersionRegistry,
+                importProgressService.create(savedTask.getId()),
+                200
+        ).run();
+
+        return savedTask;
+    }
+
+    /**
+     * Import archives dropped into the root folder of file service
+     * <p>
+     * An archive is renamed before importing so it will be picked only once,
+     * then moved to the 'imported' folder, or renamed with '.failed' if failed.
+     * <p>
+     * {@link #importArchive} is called on this instance, not through the proxy,
+     * so the course list cache is evicted here.
+     */
+    @Scheduled(fixedDelayString = "${app.import.inbox-scan-interval:30000}")
+    public void importDroppedArchives() {
+        File[] archives = fileManageService.getRootFolder()
+                .listFiles(f -> f.isFile() && CaptureDataReader.isArchive(f.getName()));
+
+        if (archives == null) return;
+
+        for (File archive : archives) {
+            File importing = new File(archive.getParentFile(), archive.getName() + ".importing");
+            if (!archive.renameTo(importing)) continue;
+
+            logger.info("Importing dropped archive {}", archive.getName());
+
+            ImportTask importTask;
+            try (InputStream inputStream = new FileInputStream(importing)) {
+                importTask = importArchive(inputStream, archive.getName(), null, null);
+            } catch (IOException e) {
+                logger.error("Could not read dropped archive {}", archive.getName(), e);
+                importTask = null;
+            }
+
+            boolean succeed = importTask != null && ImportTaskStatus.FINISHED.equals(importTask.getStatus());
+            if (succeed) evictCourseListCache();
+
+            File target = succeed
+                    ? new File(new File(archive.getParentFile(), "imported"), archive.getName())
+                    : new File(archive.getParentFile(), archive.getName() + ".failed");
+
+            if (!target.getParentFile().exists() && !target.getParentFile().mkdirs())
+                logger.warn("Could not create folder {}", target.getParentFile());
+
+            if (!importing.renameTo(target))
+                logger.warn("Could not move archive {} to {}", importing, target);
+        }
+    }
+
+    /**
+     * Get live progress of a running or recently finished import task
+     *
+     * @param id import task id
+     * @return progress
+     */
+    @NotNull
+    public Optional<ImportTaskProgress> progressOf(@NotNull String id) {
+        return importProgressService.find(id);
+    }
+
     @NotNull
     public Optional<ImportTask> findOne(@NotNull String id) {
         return importTaskRepository.findById(id);
     }
+
+    private void evictCourseListCache() {
+        Cache cache = cacheManager.getCache(CacheKeys.TERM_COURSE_LIST);
+        if (cache != null) cache.clear();
+    }
 }
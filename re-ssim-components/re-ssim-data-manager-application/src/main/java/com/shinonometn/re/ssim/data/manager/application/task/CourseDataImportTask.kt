@@ -1,38 +1,60 @@
 package com.shinonometn.re.ssim.data.manager.application.task
 
-import com.shinonometn.re.ssim.commons.BusinessException
 import com.shinonometn.re.ssim.commons.JSON
-import com.shinonometn.re.ssim.commons.file.fundation.FileContext
+import com.shinonometn.re.ssim.commons.file.segment.CaptureDataReader
+import com.shinonometn.re.ssim.commons.file.segment.DatasetHash
+import com.shinonometn.re.ssim.data.manager.application.commons.ImportTaskProgress
 import com.shinonometn.re.ssim.data.manager.application.commons.ImportTaskStatus
 import com.shinonometn.re.ssim.data.manager.application.service.ImportTaskService
+import com.shinonometn.re.ssim.service.caterpillar.kingo.CourseStringPool
+import com.shinonometn.re.ssim.service.data.DataVersionRegistry
 import com.shinonometn.re.ssim.service.data.ImportTask
 import org.slf4j.LoggerFactory
-import java.io.File
-import java.io.FileInputStream
 import java.io.IOException
+import java.io.UncheckedIOException
 import java.util.*
-
+import java.util.concurrent.Callable
+
+/**
+ * Import a capture output to database
+ *
+ * Records are read one by one from the data source and inserted in batches,
+ * the data source could be a capture folder or a streaming archive.
+ */
 class CourseDataImportTask(private val importTaskService: ImportTaskService,
                            private val courseInfoService: CourseInfoService,
                            private val importTask: ImportTask,
                            private val caterpillarMonitorStore: CaterpillarMonitorStore,
-                           private val dataFolder: FileContext,
-                           private val messageBus: MessageBus) : Runnable {
+                           private val dataSource: Callable<CaptureDataReader>,
+                           private val messageBus: MessageBus,
+                           private val dataVersionRegistry: DataVersionRegistry,
+                           private val progress: ImportTaskProgress,
+                           private val batchSize: Int = 200) : Runnable {
 
     private val logger = LoggerFactory.getLogger(this::class.java)
 
     private val batchId = importTask.id
 
+    private val datasetHash = DatasetHash()
+
+    // Entities waiting in a batch share teacher names, units, classes and so on
+    private val stringPool = CourseStringPool()
+
+    // Terms found in the data, only their other versions are replaced
+    private val terms = HashSet<String>()
+
     override fun run() {
         try {
 
             importTask.status = ImportTaskStatus.IMPORTING
             importTask.statusReport = "load_data_to_database"
             importTaskService.save(importTask)
+            progress.changeStatus(importTask.status, importTask.statusReport)
             caterpillarMonitorStore.increaseImportTaskCount()
 
             loadDataToDatabase()
 
+            progress.changeStatus(ImportTaskStatus.IMPORTING, "delete_other_versions")
             deleteOtherData()
 
             importTask.status = ImportTaskStatus.FINISHED
@@ -40,14 +62,24 @@ class CourseDataImportTask(private val importTaskService: ImportTaskService,
             importTask.finishDate = Date()
             importTaskService.save(importTask)
 
+            if (importTask.termName != null) dataVersionRegistry.publish(
+                    importTask.termName!!,
+                    importTask.termCode,
+                    batchId!!,
+                    datasetHash.count,
+                    datasetHash.toHex())
+            progress.changeStatus(importTask.status, importTask.statusReport)
+
             // Send a message to bus
             messageBus.emit(Message("import.finished",importTask))
 
-        } catch (e: IOException) {
+        } catch (e: Exception) {
+            // Parsing and database errors leave a partial version too, roll back on any of them
             logger.error("Something happen while importing files, reversing. Batch Id :$batchId", e)
             importTask.status = ImportTaskStatus.ERROR
             importTask.statusReport = Optional.ofNullable(e.message).orElse(e.javaClass.name)
             importTaskService.save(importTask)
+            progress.changeStatus(importTask.status, importTask.statusReport)
             cleanOnFail()
         } finally {
             caterpillarMonitorStore.decreaseImportTaskCount()
@@ -55,19 +87,50 @@ class CourseDataImportTask(private val importTaskService: ImportTaskService,
     }
 
     private fun loadDataToDatabase() {
-        val folder = dataFolder.file
-        if (!folder.isDirectory) throw BusinessException("temp_dir_not_found")
-        Objects.requireNonNull<Array<File>>(folder.listFiles()).forEach { file ->
-            val courseEntity = JSON.read(FileInputStream(file), CourseEntity::class.java)
-            courseEntity.batchId = batchId
-            courseInfoService.save(courseEntity)
+        val buffer = ArrayList<CourseEntity>(batchSize)
+
+        fun flush() {
+            if (buffer.isEmpty()) return
+            courseInfoService.saveAll(buffer)
+            progress.written(buffer.size.toLong())
+            buffer.clear()
+        }
+
+        // Reads the segment file, or the one-file-per-course layout of older captures
+        try {
+            dataSource.call().use { reader ->
+                progress.discovered(reader.recordCount.coerceAtLeast(0))
+
+                reader.forEach { record ->
+                    if (reader.recordCount < 0) progress.discovered(1)
+                    datasetHash.update(record)
+
+                    val courseEntity = JSON.read(record.value, CourseEntity::class.java)
+                    courseEntity.term = stringPool.intern(courseEntity.term)
+                    courseEntity.unit = stringPool.intern(courseEntity.unit)
+                    courseEntity.term?.let { terms.add(it) }
+                    stringPool.internLessons(courseEntity.lessons)
+                    progress.parsed(record.value.size.toLong())
+
+                    // Archives do not carry term info, take it from data
+                    if (importTask.termName == null) importTask.termName = courseEntity.term
+
+                    courseEntity.batchId = batchId
+                    buffer.add(courseEntity)
+                    if (buffer.size >= batchSize) flush()
+                }
+
+                flush()
+            }
+        } catch (e: UncheckedIOException) {
+            throw e.cause ?: IOException(e)
         }
 
         logger.info("Batch data {} loading finished", batchId)
     }
 
     private fun deleteOtherData() {
-        val deleteResult = courseInfoService.deleteOtherVersions(batchId)
+        val deleteResult = courseInfoService.deleteOtherVersions(terms, batchId)
 
         logger.info("Other version deleted, total {} records, current version {}",
                 deleteResult.deletedCount,
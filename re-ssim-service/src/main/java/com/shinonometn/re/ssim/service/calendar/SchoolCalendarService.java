@@ -2,14 +2,14 @@ package com.shinonometn.re.ssim.service.calendar;
 
 import com.shinonometn.re.ssim.commons.BusinessException;
 import com.shinonometn.re.ssim.service.caterpillar.common.SchoolCalendar;
+import com.shinonometn.re.ssim.service.caterpillar.common.SchoolCalendarIndex;
+import com.shinonometn.re.ssim.service.caterpillar.common.SchoolDate;
 import com.shinonometn.re.ssim.service.caterpillar.kingo.KingoSchoolCalendar;
 import com.shinonometn.re.ssim.service.caterpillar.kingo.capture.CalendarPageProcessor;
 import com.shinonometn.re.ssim.service.terms.TermInfoEntity;
 import org.jetbrains.annotations.Nullable;
 import org.springframework.data.domain.Page;
-import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Pageable;
-import org.springframework.data.domain.Sort;
 import org.springframework.stereotype.Service;
 import us.codecraft.webmagic.Request;
 import us.codecraft.webmagic.Site;
@@ -17,7 +17,10 @@ import us.codecraft.webmagic.Spider;
 import us.codecraft.webmagic.model.HttpRequestBody;
 import us.codecraft.webmagic.utils.HttpConstant;
 
+import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.temporal.ChronoUnit;
 import java.util.*;
 import java.util.stream.Collectors;
 
@@ -26,18 +29,23 @@ import static com.shinonometn.re.ssim.service.caterpillar.kingo.KingoUrls.calend
 @Service
 public class SchoolCalendarService {
 
+    // Limits of a bulk conversion
+    private final static int MAX_CONVERT_DATES = 10000;
+    private final static int MAX_CONVERT_DAYS = 3660;
+
     private final SchoolCalendarEntityRepository schoolCalendarEntityRepository;
     private final SchoolCalendarStore schoolCalendarStore;
 
+    private volatile SchoolCalendarIndex calendarIndex = null;
+
     public SchoolCalendarService(SchoolCalendarEntityRepository schoolCalendarEntityRepository, SchoolCalendarStore schoolCalendarStore) {
         this.schoolCalendarEntityRepository = schoolCalendarEntityRepository;
         this.schoolCalendarStore = schoolCalendarStore;
 
         // let school date store can get current school date
-        schoolCalendarStore.setSchoolDateSupplier(() -> {
-            SchoolCalendar s = getCurrentCalendarInfo();
-            return s == null ? null : s.getFromDateTime(LocalDateTime.now());
-        });
+        schoolCalendarStore.setSchoolDateSupplier(() -> getCalendarIndex().getFromDateTime(LocalDateTime.now()));
+        // rebuild the calendar index when calendars changed on any instance
+        schoolCalendarStore.addInvalidationListener(this::dropCalendarIndex);
     }
 
     public Page<SchoolCalendarEntity> list(Pageable pageable) {
@@ -49,11 +57,14 @@ public class SchoolCalendarService {
     }
 
     public SchoolCalendarEntity save(SchoolCalendarEntity schoolCalendarEntity) {
-        return schoolCalendarEntityRepository.save(schoolCalendarEntity);
+        SchoolCalendarEntity saved = schoolCalendarEntityRepository.save(schoolCalendarEntity);
+        schoolCalendarStore.invalidate();
+        return saved;
     }
 
     public void delete(String id) {
         schoolCalendarEntityRepository.deleteById(id);
+        schoolCalendarStore.invalidate();
     }
 
     public void pull(TermInfoEntity entity) {
@@ -84,6 +95,8 @@ public class SchoolCalendarService {
                             return calendarEntity;
                         }).collect(Collectors.toList())))
                 .run();
+
+        schoolCalendarStore.invalidate();
     }
 
     private Site site = Site.me()
@@ -108,14 +121,66 @@ public class SchoolCalendarService {
     }
 
 
-    public SchoolCalendar getCurrentCalendarInfo() {
+    /**
+     * Index of all calendars, built from the repository on first use after calendars changed
+     */
+    public SchoolCalendarIndex getCalendarIndex() {
+        SchoolCalendarIndex index = calendarIndex;
+        return index != null ? index : buildCalendarIndex();
+    }
+
+    /**
+     * Convert dates to school dates
+     *
+     * @return school dates in order of the dates, null for those out of any term
+     */
+    public List<SchoolDate> convert(List<Date> dates) {
+        if (dates.size() > MAX_CONVERT_DATES) throw new BusinessException("too_many_dates");
+
+        List<LocalDateTime> dateTimes = new ArrayList<>(dates.size());
+        for (Date date : dates) dateTimes.add(date == null ? null : toLocalDateTime(date));
+        return getCalendarIndex().convert(dateTimes);
+    }
+
+    /**
+     * Convert every day from a date to another to school dates
+     *
+     * @return school dates from the first day, null for days out of any term
+     */
+    public List<SchoolDate> convert(Date from, Date to) {
+        if (from == null || to == null) throw new BusinessException("date_range_required");
+
+        LocalDate fromDate = toLocalDateTime(from).toLocalDate();
+        LocalDate toDate = toLocalDateTime(to).toLocalDate();
+        if (fromDate.isAfter(toDate)) throw new BusinessException("date_range_invalid");
+        if (ChronoUnit.DAYS.between(fromDate, toDate) >= MAX_CONVERT_DAYS) throw new BusinessException("date_range_too_large");
 
-        List<SchoolCalendarEntity> queryResult = schoolCalendarEntityRepository.findAll(PageRequest.of(0, 2, Sort.Direction.DESC, "endDate")).getContent();
-        if (queryResult.size() == 0) return null;
-        SchoolCalendarEntity latestCalendar = queryResult.get(0);
-        if (new Date().compareTo(latestCalendar.getStartDate()) < 0) latestCalendar = queryResult.get(1);
-        if (latestCalendar == null) return null;
+        return getCalendarIndex().convert(fromDate, toDate);
+    }
+
+    private synchronized SchoolCalendarIndex buildCalendarIndex() {
+        if (calendarIndex != null) return calendarIndex;
+
+        List<SchoolCalendar> calendars = new ArrayList<>();
+        for (SchoolCalendarEntity entity : schoolCalendarEntityRepository.findAll()) {
+            if (entity.getStartDate() == null || entity.getEndDate() == null) continue;
+            if (entity.getStartDate().after(entity.getEndDate())) continue;
+
+            // Days are converted at their start, a term starting later in its first day should still cover it
+            KingoSchoolCalendar calendar = new KingoSchoolCalendar(entity.getTermName(), entity.getStartDate(), entity.getEndDate());
+            calendar.setStartDate(calendar.getStartDate().toLocalDate().atStartOfDay());
+            calendars.add(calendar);
+        }
+
+        calendarIndex = new SchoolCalendarIndex(calendars);
+        return calendarIndex;
+    }
+
+    private synchronized void dropCalendarIndex() {
+        calendarIndex = null;
+    }
 
-        return new KingoSchoolCalendar(latestCalendar.getTermName(), latestCalendar.getStartDate(), latestCalendar.getEndDate());
+    private static LocalDateTime toLocalDateTime(Date date) {
+        return LocalDateTime.ofInstant(date.toInstant(), ZoneId.systemDefault());
     }
 }
@@ -2,38 +2,144 @@ package com.shinonometn.re.ssim.service.calendar;
 
 import com.shinonometn.re.ssim.service.caterpillar.common.SchoolDate;
 import com.shinonometn.re.ssim.service.commons.InMemoryStoreAdapter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.data.redis.connection.RedisConnectionFactory;
-import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.stereotype.Component;
 
-import java.util.concurrent.TimeUnit;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.function.Supplier;
 
+/**
+ * Current school date of this process
+ * <p>
+ * The school date only changes at day boundaries or when calendars change, so it is
+ * kept in process until the next day starts, and reading it needs no network hop.
+ * Calendar changes are broadcast through a redis channel, every instance drops its
+ * school date on them and asks the supplier again on next read.
+ */
 @Component
 public class SchoolCalendarStore extends InMemoryStoreAdapter<SchoolDate> {
 
-    private final ValueOperations<String, SchoolDate> store;
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final RedisMessageListenerContainer listenerContainer = new RedisMessageListenerContainer();
+
+    private final List<Runnable> invalidationListeners = new CopyOnWriteArrayList<>();
 
     private Supplier<SchoolDate> schoolDateSupplier = null;
 
+    // Changed only while holding the lock, an invalidation waits for a running calculation
+    private volatile CachedSchoolDate cached = null;
+
     protected SchoolCalendarStore(RedisConnectionFactory redisConnectionFactory) {
         super(redisConnectionFactory, "schoolDate");
-        store = redisTemplate.opsForValue();
+        listenerContainer.setConnectionFactory(redisConnectionFactory);
+    }
+
+    @PostConstruct
+    public void subscribe() {
+        listenerContainer.addMessageListener((message, pattern) -> {
+            SchoolDate schoolDate = (SchoolDate) redisTemplate.getValueSerializer().deserialize(message.getBody());
+            if (schoolDate == null) invalidateLocal();
+            else put(schoolDate);
+        }, new ChannelTopic(storeKey));
+        listenerContainer.afterPropertiesSet();
+        listenerContainer.start();
+    }
+
+    @PreDestroy
+    public void unsubscribe() throws Exception {
+        listenerContainer.destroy();
     }
 
     public void setSchoolDateSupplier(Supplier<SchoolDate> schoolDateSupplier) {
         this.schoolDateSupplier = schoolDateSupplier;
+        invalidateLocal();
     }
 
+    /**
+     * Run the listener when calendars change on any instance, before the school date is dropped
+     */
+    public void addInvalidationListener(Runnable listener) {
+        invalidationListeners.add(listener);
+    }
+
+    /**
+     * Set school date of all instances until the next day
+     */
     public void update(SchoolDate schoolDate) {
-        store.set(storeKey, schoolDate);
+        put(schoolDate);
+        publish(schoolDate);
+    }
+
+    /**
+     * Drop school date of all instances, it is calculated again on next read
+     */
+    public void invalidate() {
+        invalidateLocal();
+        publish(null);
     }
 
     public SchoolDate get() {
-        if (!redisTemplate.hasKey(storeKey) && schoolDateSupplier != null) {
-            store.set(storeKey, schoolDateSupplier.get());
-            redisTemplate.expire(storeKey, 1, TimeUnit.MINUTES);
+        CachedSchoolDate current = cached;
+        if (current != null && System.currentTimeMillis() < current.expireAt) return current.schoolDate;
+        return refresh();
+    }
+
+    @Override
+    public void clear() {
+        super.clear();
+        invalidate();
+    }
+
+    private synchronized SchoolDate refresh() {
+        CachedSchoolDate current = cached;
+        if (current != null && System.currentTimeMillis() < current.expireAt) return current.schoolDate;
+        if (schoolDateSupplier == null) return null;
+
+        long expireAt = nextDayStart();
+        SchoolDate schoolDate = schoolDateSupplier.get();
+        cached = new CachedSchoolDate(schoolDate, expireAt);
+        return schoolDate;
+    }
+
+    private synchronized void put(SchoolDate schoolDate) {
+        cached = new CachedSchoolDate(schoolDate, nextDayStart());
+    }
+
+    private synchronized void invalidateLocal() {
+        invalidationListeners.forEach(Runnable::run);
+        cached = null;
+    }
+
+    private void publish(SchoolDate schoolDate) {
+        try {
+            redisTemplate.convertAndSend(storeKey, schoolDate);
+        } catch (Exception e) {
+            logger.warn("Could not broadcast school date change, other instances keep theirs until the next day.", e);
+        }
+    }
+
+    private static long nextDayStart() {
+        ZoneId zone = ZoneId.systemDefault();
+        return LocalDate.now(zone).plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli();
+    }
+
+    private static class CachedSchoolDate {
+        private final SchoolDate schoolDate;
+        private final long expireAt;
+
+        private CachedSchoolDate(SchoolDate schoolDate, long expireAt) {
+            this.schoolDate = schoolDate;
+            this.expireAt = expireAt;
         }
-        return store.get(storeKey);
     }
 }
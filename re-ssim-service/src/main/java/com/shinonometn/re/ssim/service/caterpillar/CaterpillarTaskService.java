@@ -4,16 +4,23 @@ import com.shinonometn.re.ssim.commons.BusinessException;
 import com.shinonometn.re.ssim.commons.CacheKeys;
 import com.shinonometn.re.ssim.commons.JSON;
 import com.shinonometn.re.ssim.commons.file.fundation.FileContext;
+import com.shinonometn.re.ssim.commons.file.segment.AsyncSegmentWriter;
+import com.shinonometn.re.ssim.commons.file.segment.SegmentCompression;
+import com.shinonometn.re.ssim.commons.file.segment.SegmentFile;
+import com.shinonometn.re.ssim.service.caterpillar.common.QueuedCourseSink;
 import com.shinonometn.re.ssim.service.caterpillar.commons.CaptureTaskStage;
+import com.shinonometn.re.ssim.service.caterpillar.downloader.PooledHttpDownloader;
 import com.shinonometn.re.ssim.service.caterpillar.entity.CaptureTask;
 import com.shinonometn.re.ssim.service.caterpillar.entity.CaptureTaskDetails;
 import com.shinonometn.re.ssim.service.caterpillar.entity.CaterpillarSetting;
+import com.shinonometn.re.ssim.service.caterpillar.kingo.KingoSessionPool;
 import com.shinonometn.re.ssim.service.caterpillar.kingo.KingoUrls;
 import com.shinonometn.re.ssim.service.caterpillar.kingo.capture.*;
 import com.shinonometn.re.ssim.service.caterpillar.kingo.pojo.Course;
 import com.shinonometn.re.ssim.service.caterpillar.plugin.CaterpillarMonitorStore;
 import com.shinonometn.re.ssim.service.caterpillar.repository.CaptureTaskRepository;
 import com.shinonometn.re.ssim.service.courses.CourseInfoService;
+import com.shinonometn.re.ssim.service.data.StreamingCourseImportSink;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
@@ -31,9 +38,11 @@ import us.codecraft.webmagic.model.HttpRequestBody;
 import us.codecraft.webmagic.utils.HttpConstant;
 
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -45,6 +54,7 @@ public class CaterpillarTaskService {
     private final CourseInfoService courseInfoService;
     private final CaterpillarFileManageService fileManageService;
     private final SpiderMonitor spiderMonitor;
+    private final KingoSessionPool sessionPool;
     private final TaskExecutor taskExecutor;
 
     private final CaterpillarMonitorStore caterpillarMonitorStore;
@@ -53,6 +63,7 @@ public class CaterpillarTaskService {
 
     public CaterpillarTaskService(CourseInfoService courseInfoService, CaterpillarFileManageService fileManageService,
                                   SpiderMonitor spiderMonitor,
+                                  KingoSessionPool sessionPool,
                                   TaskExecutor taskExecutor,
                                   CaterpillarMonitorStore caterpillarMonitorStore,
                                   CaptureTaskRepository captureTaskRepository) {
@@ -60,6 +71,7 @@ public class CaterpillarTaskService {
 
         this.fileManageService = fileManageService;
         this.spiderMonitor = spiderMonitor;
+        this.sessionPool = sessionPool;
         this.taskExecutor = taskExecutor;
         this.caterpillarMonitorStore = caterpillarMonitorStore;
         this.captureTaskRepository = captureTaskRepository;
@@ -185,61 +197,43 @@ public class CaterpillarTaskService {
      */
     public CaptureTaskDetails start(String taskId, CaterpillarSetting caterpillarSetting) {
 
-        CaptureTaskDetails captureTaskDetails = captureTaskRepository
-                .findById(taskId)
-                .map(this::getTaskDetails)
-                .orElseThrow(() -> new BusinessException("task_not_exists"));
-
-        if (captureTaskDetails.getRunningTaskStatus() != null) throw new BusinessException("task_thread_exists");
-
-        CaptureTask captureTask = captureTaskDetails.getTaskInfo();
+        CaptureTaskDetails captureTaskDetails = prepareCapture(taskId);
 
-        changeCaptureTaskStatus(captureTask, CaptureTaskStage.INITIALIZE, "task_initialing");
-        caterpillarMonitorStore.increaseCaptureTaskCount();
+        taskExecutor.execute(() -> capture(taskId, captureTaskDetails.getTaskInfo(), caterpillarSetting, null));
 
-        taskExecutor.execute(() -> {
-
-            changeCaptureTaskStatus(captureTask, null, "login_to_kingo");
+        return captureTaskDetails;
+    }
 
-            try {
-                Site site = doLogin(caterpillarSetting);
-
-                FileContext dataFolder = fileManageService.contextOf(taskId);
-                if (!dataFolder.exists() && !dataFolder.getFile().mkdirs())
-                    throw new BusinessException("Could not create work directory for task");
-
-                Spider spider = Spider.create(new CourseDetailsPageProcessor(site))
-                        .addPipeline((resultItems, task) -> {
-                            try {
-                                Course course = CourseDetailsPageProcessor.getSubject(resultItems);
-                                JSON.write(new FileOutputStream(new File(dataFolder.getFile(), Objects.requireNonNull(course.getCode()))), course);
-                            } catch (Exception e) {
-                                changeCaptureTaskStatus(captureTask, null, "failed:" + e.getMessage());
-                                throw new RuntimeException(e);
-                            }
-                        })
-                        .setUUID(taskId)
-                        .thread(caterpillarSetting.getThreads());
-
-                spider.startRequest(fetchTermCourseList(site, captureTaskDetails.getTaskInfo().getTermCode())
-                        .stream()
-                        .map(id -> createSubjectRequest(site, captureTaskDetails.getTaskInfo().getTermCode(), id))
-                        .collect(Collectors.toList()));
-
-                spiderMonitor.register(spider);
-
-                changeCaptureTaskStatus(captureTask, CaptureTaskStage.CAPTURE, "downloading");
-                spider.run();
-                changeCaptureTaskStatus(captureTask, CaptureTaskStage.STOPPED, "stopped");
-
-            } catch (BusinessException e) {
-                changeCaptureTaskStatus(captureTask, null, "failed:" + e.getMessage());
-            } finally {
-                caterpillarMonitorStore.decreaseCaptureTaskCount();
-            }
-        });
+    /**
+     * Capture a task on the calling thread, returns after the spider finished
+     *
+     * @param taskId task id
+     * @return true if the spider finished without failure and every course of the term captured
+     */
+    public boolean captureNow(String taskId, CaterpillarSetting caterpillarSetting) {
+        return captureNow(taskId, caterpillarSetting, null);
+    }
 
-        return captureTaskDetails;
+    /**
+     * Capture a task on the calling thread and import courses while they are captured
+     * <p>
+     * Courses are handed to the import sink through a bounded queue besides the capture file.
+     * The imported version is published when the spider finished and every course captured,
+     * otherwise it is discarded.
+     *
+     * @param taskId     task id
+     * @param importSink streaming import of the task, nullable
+     * @return true if the spider finished without failure and every course of the term captured
+     * @see com.shinonometn.re.ssim.service.data.ImportTaskService#openStreamingImport(String)
+     */
+    public boolean captureNow(String taskId, CaterpillarSetting caterpillarSetting, @Nullable StreamingCourseImportSink importSink) {
+        try {
+            CaptureTaskDetails captureTaskDetails = prepareCapture(taskId);
+            return capture(taskId, captureTaskDetails.getTaskInfo(), caterpillarSetting, importSink);
+        } finally {
+            // Not published by the capture, e.g. capture failed or incomplete
+            if (importSink != null) importSink.discard("capture_failed");
+        }
     }
 
 
@@ -321,6 +315,119 @@ public class CaterpillarTaskService {
         return captureTaskDetails;
     }
 
+    private CaptureTaskDetails prepareCapture(String taskId) {
+
+        CaptureTaskDetails captureTaskDetails = captureTaskRepository
+                .findById(taskId)
+                .map(this::getTaskDetails)
+                .orElseThrow(() -> new BusinessException("task_not_exists"));
+
+        if (captureTaskDetails.getRunningTaskStatus() != null) throw new BusinessException("task_thread_exists");
+
+        CaptureTask captureTask = captureTaskDetails.getTaskInfo();
+
+        changeCaptureTaskStatus(captureTask, CaptureTaskStage.INITIALIZE, "task_initialing");
+        caterpillarMonitorStore.increaseCaptureTaskCount();
+
+        return captureTaskDetails;
+    }
+
+    private boolean capture(String taskId, CaptureTask captureTask, CaterpillarSetting caterpillarSetting, StreamingCourseImportSink importSink) {
+
+        changeCaptureTaskStatus(captureTask, null, "login_to_kingo");
+
+        try {
+            Site site = SessionCheckingPageProcessor.acceptRedirects(doLogin(caterpillarSetting));
+
+            FileContext dataFolder = fileManageService.contextOf(taskId);
+            if (!dataFolder.exists() && !dataFolder.getFile().mkdirs())
+                throw new BusinessException("Could not create work directory for task");
+
+            AsyncSegmentWriter segmentWriter = new AsyncSegmentWriter(
+                    new File(dataFolder.getFile(), SegmentFile.DEFAULT_NAME),
+                    SegmentCompression.ZSTD,
+                    256);
+
+            // Bulk inserts are done by the queue thread, spider threads only wait when the queue is full
+            QueuedCourseSink importQueue = importSink == null ? null : new QueuedCourseSink(taskId, 256, importSink);
+
+            // A course failed to download is missing from the data, such captures are not reported finished
+            AtomicInteger capturedCount = new AtomicInteger(0);
+
+            // Once kingo redirects to login page, the pooled session is dropped and the capture stopped
+            AtomicReference<Spider> spiderRef = new AtomicReference<>();
+            Spider spider = Spider.create(new SessionCheckingPageProcessor(new CourseDetailsPageProcessor(site), () -> {
+                sessionPool.invalidate(sessionKeyOf(caterpillarSetting));
+                Spider running = spiderRef.get();
+                if (running != null) running.stop();
+            }))
+                    .setDownloader(new PooledHttpDownloader(caterpillarSetting.getThreads()))
+                    .addPipeline((resultItems, task) -> {
+                        try {
+                            Course course = CourseDetailsPageProcessor.getSubject(resultItems);
+                            segmentWriter.append(Objects.requireNonNull(course.getCode()), JSON.writeAsBytes(course));
+                            if (importQueue != null) importQueue.accept(course);
+                            capturedCount.incrementAndGet();
+                        } catch (Exception e) {
+                            changeCaptureTaskStatus(captureTask, null, "failed:" + e.getMessage());
+                            throw new RuntimeException(e);
+                        }
+                    })
+                    .setUUID(taskId)
+                    .thread(caterpillarSetting.getThreads());
+
+            List<Request> courseRequests = fetchTermCourseList(site, captureTask.getTermCode())
+                    .stream()
+                    .map(id -> createSubjectRequest(site, captureTask.getTermCode(), id))
+                    .collect(Collectors.toList());
+            spider.startRequest(courseRequests);
+            spiderRef.set(spider);
+
+            spiderMonitor.register(spider);
+
+            changeCaptureTaskStatus(captureTask, CaptureTaskStage.CAPTURE, "downloading");
+            try {
+                try {
+                    spider.run();
+                } finally {
+                    segmentWriter.close();
+                }
+            } finally {
+                // A failed import is reported by publishing, the capture itself is done
+                if (importQueue != null) try {
+                    importQueue.close();
+                } catch (IOException e) {
+                    logger.warn("Streaming import of task {} failed: {}", taskId, e.getMessage());
+                }
+            }
+
+            if (capturedCount.get() < courseRequests.size()) {
+                String report = "capture_incomplete:" + capturedCount.get() + "/" + courseRequests.size();
+                if (importSink != null) importSink.discard(report);
+                changeCaptureTaskStatus(captureTask, CaptureTaskStage.STOPPED, report);
+                return false;
+            }
+
+            if (importSink != null) {
+                changeCaptureTaskStatus(captureTask, null, "publishing_import");
+                importSink.publish();
+            }
+
+            changeCaptureTaskStatus(captureTask, CaptureTaskStage.STOPPED, "stopped");
+            return true;
+
+        } catch (BusinessException e) {
+            changeCaptureTaskStatus(captureTask, null, "failed:" + e.getMessage());
+        } catch (IOException e) {
+            changeCaptureTaskStatus(captureTask, null, "failed:" + e.getMessage());
+            logger.error("Could not write capture data of task {}", taskId, e);
+        } finally {
+            caterpillarMonitorStore.decreaseCaptureTaskCount();
+        }
+
+        return false;
+    }
+
     private Collection<String> fetchTermCourseList(Site site, String termCode) {
         Map<String, String> termList = new HashMap<>();
 
@@ -342,9 +449,21 @@ public class CaterpillarTaskService {
         return file;
     }
 
+    /*
+     * Get a logged in site, pooled session is reused if server still accepts it
+     */
     private Site doLogin(CaterpillarSetting caterpillarSetting) {
+        return sessionPool.acquire(
+                sessionKeyOf(caterpillarSetting),
+                caterpillarSetting::createSite,
+                site -> doLogin(site, caterpillarSetting));
+    }
 
-        Site site = caterpillarSetting.createSite();
+    private static String sessionKeyOf(CaterpillarSetting caterpillarSetting) {
+        return KingoSessionPool.keyOf(caterpillarSetting.getUsername(), caterpillarSetting.getRole(), caterpillarSetting.getPassword());
+    }
+
+    private void doLogin(Site site, CaterpillarSetting caterpillarSetting) {
 
         String username = caterpillarSetting.getUsername();
         String password = caterpillarSetting.getPassword();
@@ -381,9 +500,6 @@ public class CaterpillarTaskService {
 
         logger.debug("Login to kingo {}.", (loginResult.get() ? "successful" : "failed"));
         if (!loginResult.get()) throw new BusinessException("login_to_kingo_failed");
-
-        return site;
-
     }
 
     private Request createSubjectRequest(Site site, String termCode, String subjectCode) {
@@ -19,6 +19,7 @@ import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.stereotype.Service;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 
@@ -66,20 +67,33 @@ public class CourseInfoService {
         return courseRepository.save(courseEntity);
     }
 
+    /**
+     * Insert courses in one bulk operation
+     *
+     * @param courseEntities courses, should not have ids
+     * @return saved entities
+     */
+    public Collection<CourseEntity> saveAll(Collection<CourseEntity> courseEntities) {
+        return mongoTemplate.insertAll(courseEntities);
+    }
+
     public void delete(String id) {
         courseRepository.deleteById(id);
     }
 
     /**
-     * Delete course info excepted if match version
+     * Delete course info of the terms excepted if match version
+     * <p>
+     * Versions are per term, courses of other terms are kept
      *
+     * @param terms          names of terms in the current version
      * @param currentVersion version to exclude
      * @return delete result
      */
-    public DeleteResult deleteOtherVersions(String currentVersion) {
+    public DeleteResult deleteOtherVersions(Collection<String> terms, String currentVersion) {
         return mongoTemplate
                 .remove(CourseEntity.class)
-                .matching(Query.query(where("batchId").ne(currentVersion)))
+                .matching(Query.query(where("term").in(terms).and("batchId").ne(currentVersion)))
                 .all();
     }
 
@@ -1,5 +1,6 @@
 package com.shinonometn.re.ssim.service.courses.entity
 
+import com.shinonometn.re.ssim.service.caterpillar.kingo.pojo.Course
 import com.shinonometn.re.ssim.service.caterpillar.kingo.pojo.Lesson
 import org.springframework.data.annotation.Id
 import org.springframework.data.mongodb.core.mapping.Document
@@ -19,4 +20,18 @@ open class CourseEntity: Serializable {
     var lessons: List<Lesson>? = null//课堂
 
     var batchId: String? = null // Import batch
+
+    companion object {
+        @JvmStatic
+        fun of(course: Course, batchId: String?): CourseEntity = CourseEntity().also {
+            it.term = course.term
+            it.name = course.name
+            it.code = course.code
+            it.unit = course.unit
+            it.timeSpend = course.timeSpend
+            it.point = course.point
+            it.lessons = course.lessons
+            it.batchId = batchId
+        }
+    }
 }
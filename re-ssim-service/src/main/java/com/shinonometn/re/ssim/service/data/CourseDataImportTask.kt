@@ -3,28 +3,33 @@ package com.shinonometn.re.ssim.service.data
 import com.shinonometn.re.ssim.commons.BusinessException
 import com.shinonometn.re.ssim.commons.JSON
 import com.shinonometn.re.ssim.commons.file.fundation.FileContext
+import com.shinonometn.re.ssim.commons.file.segment.CaptureDataReader
+import com.shinonometn.re.ssim.commons.file.segment.DatasetHash
 import com.shinonometn.re.ssim.service.bus.Message
 import com.shinonometn.re.ssim.service.bus.MessageBus
 import com.shinonometn.re.ssim.service.caterpillar.plugin.CaterpillarMonitorStore
 import com.shinonometn.re.ssim.service.courses.CourseInfoService
 import com.shinonometn.re.ssim.service.courses.entity.CourseEntity
 import org.slf4j.LoggerFactory
-import java.io.File
-import java.io.FileInputStream
-import java.io.IOException
 import java.util.*
 
 class CourseDataImportTask(private val importTaskService: ImportTaskService,
                            private val courseInfoService: CourseInfoService,
-                           private val importTask: ImportTask,
+                           val importTask: ImportTask,
                            private val caterpillarMonitorStore: CaterpillarMonitorStore,
                            private val dataFolder: FileContext,
-                           private val messageBus: MessageBus) : Runnable {
+                           private val messageBus: MessageBus,
+                           private val dataVersionRegistry: DataVersionRegistry) : Runnable {
 
     private val logger = LoggerFactory.getLogger(this::class.java)
 
     private val batchId = importTask.id
 
+    private val datasetHash = DatasetHash()
+
+    // Terms found in the data, only their other versions are replaced
+    private val terms = HashSet<String>()
+
     override fun run() {
         try {
 
@@ -42,10 +47,18 @@ class CourseDataImportTask(private val importTaskService: ImportTaskService,
             importTask.finishDate = Date()
             importTaskService.save(importTask)
 
+            if (importTask.termName != null) dataVersionRegistry.publish(
+                    importTask.termName!!,
+                    importTask.termCode,
+                    batchId!!,
+                    datasetHash.count,
+                    datasetHash.toHex())
+
             // Send a message to bus
             messageBus.emit(Message("import.finished",importTask))
 
-        } catch (e: IOException) {
+        } catch (e: Exception) {
+            // Parsing and database errors leave a partial version too, roll back on any of them
             logger.error("Something happen while importing files, reversing. Batch Id :$batchId", e)
             importTask.status = ImportTaskStatus.ERROR
             importTask.statusReport = Optional.ofNullable(e.message).orElse(e.javaClass.name)
@@ -59,17 +72,24 @@ class CourseDataImportTask(private val importTaskService: ImportTaskService,
     private fun loadDataToDatabase() {
         val folder = dataFolder.file
         if (!folder.isDirectory) throw BusinessException("temp_dir_not_found")
-        Objects.requireNonNull<Array<File>>(folder.listFiles()).forEach { file ->
-            val courseEntity = JSON.read(FileInputStream(file), CourseEntity::class.java)
-            courseEntity.batchId = batchId
-            courseInfoService.save(courseEntity)
+
+        // Reads the segment file, or the one-file-per-course layout of older captures
+        CaptureDataReader.open(folder).use { reader ->
+            reader.forEach { record ->
+                datasetHash.update(record)
+
+                val courseEntity = JSON.read(record.value, CourseEntity::class.java)
+                courseEntity.term?.let { terms.add(it) }
+                courseEntity.batchId = batchId
+                courseInfoService.save(courseEntity)
+            }
         }
 
         logger.info("Batch data {} loading finished", batchId)
     }
 
     private fun deleteOtherData() {
-        val deleteResult = courseInfoService.deleteOtherVersions(batchId)
+        val deleteResult = courseInfoService.deleteOtherVersions(terms, batchId)
 
         logger.info("Other version deleted, total {} records, current version {}",
                 deleteResult.deletedCount,
@@ -0,0 +1,36 @@
+package com.shinonometn.re.ssim.service.data
+
+import com.fasterxml.jackson.annotation.JsonInclude
+import org.springframework.data.annotation.Id
+import org.springframework.data.mongodb.core.index.Indexed
+import org.springframework.data.mongodb.core.mapping.Document
+import java.io.Serializable
+import java.util.*
+
+/**
+ * Published data versions of a term
+ *
+ * Term name is the id, so finding current version is a point read.
+ */
+@Document("data_versions")
+@JsonInclude(JsonInclude.Include.NON_NULL)
+class DataVersionEntity : Serializable {
+
+    @Id
+    var termName: String? = null
+
+    var termCode: String? = null
+
+    @Indexed
+    var currentVersion: String? = null
+    var currentPublishDate: Date? = null
+    var currentSize: Long = 0
+    var currentHash: String? = null
+
+    var previousVersion: String? = null
+    var previousPublishDate: Date? = null
+    var previousSize: Long = 0
+    var previousHash: String? = null
+
+    var updateDate: Date? = null
+}
@@ -0,0 +1,204 @@
+package com.shinonometn.re.ssim.service.data;
+
+import com.shinonometn.re.ssim.service.courses.CourseInfoService;
+import com.shinonometn.re.ssim.service.courses.entity.CourseEntity;
+import org.bson.Document;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static org.springframework.data.mongodb.core.aggregation.Aggregation.*;
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+/**
+ * Registry of published data versions
+ * <p>
+ * Keeps current and previous version of each term in the 'data_versions'
+ * collection, with an in-process cache in front of it. Terms never published
+ * through the registry are seeded once from import tasks or existing courses.
+ */
+@Service
+public class DataVersionRegistry {
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    // Other nodes may publish, so cached entries do not live forever
+    private final static long CACHE_TTL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private final DataVersionRepository dataVersionRepository;
+    private final MongoTemplate mongoTemplate;
+    private final CourseInfoService courseInfoService;
+
+    private final Map<String, CachedVersion> cache = new ConcurrentHashMap<>();
+
+    public DataVersionRegistry(DataVersionRepository dataVersionRepository,
+                               MongoTemplate mongoTemplate,
+                               CourseInfoService courseInfoService) {
+
+        this.dataVersionRepository = dataVersionRepository;
+        this.mongoTemplate = mongoTemplate;
+        this.courseInfoService = courseInfoService;
+    }
+
+    /**
+     * Get version info of a term
+     *
+     * @param termName term name
+     * @return version info, empty if term has no data
+     */
+    @NotNull
+    public Optional<DataVersionEntity> find(@NotNull String termName) {
+        CachedVersion cached = cache.get(termName);
+        if (cached != null && !cached.isExpired()) return Optional.ofNullable(cached.entity);
+
+        DataVersionEntity entity = dataVersionRepository.findById(termName).orElseGet(() -> seed(termName));
+        cache.put(termName, new CachedVersion(entity));
+        return Optional.ofNullable(entity);
+    }
+
+    /**
+     * Get current version of a term
+     *
+     * @param termName term name
+     * @return version, null if term has no data
+     */
+    @Nullable
+    public String currentVersionOf(@NotNull String termName) {
+        return find(termName).map(DataVersionEntity::getCurrentVersion).orElse(null);
+    }
+
+    /**
+     * Publish a new version of a term, current version becomes the previous one
+     *
+     * @param termName term name
+     * @param termCode term code, nullable
+     * @param version  new version
+     * @param size     document count of the version
+     * @param hash     content hash of the version, nullable
+     * @return updated entity
+     */
+    @NotNull
+    public DataVersionEntity publish(@NotNull String termName,
+                                     @Nullable String termCode,
+                                     @NotNull String version,
+                                     long size,
+                                     @Nullable String hash) {
+
+        DataVersionEntity entity = dataVersionRepository.findById(termName).orElseGet(() -> {
+            DataVersionEntity newEntity = new DataVersionEntity();
+            newEntity.setTermName(termName);
+            return newEntity;
+        });
+
+        if (entity.getCurrentVersion() != null && !version.equals(entity.getCurrentVersion())) {
+            entity.setPreviousVersion(entity.getCurrentVersion());
+            entity.setPreviousPublishDate(entity.getCurrentPublishDate());
+            entity.setPreviousSize(entity.getCurrentSize());
+            entity.setPreviousHash(entity.getCurrentHash());
+        }
+
+        Date now = new Date();
+
+        if (termCode != null) entity.setTermCode(termCode);
+        entity.setCurrentVersion(version);
+        entity.setCurrentPublishDate(now);
+        entity.setCurrentSize(size);
+        entity.setCurrentHash(hash);
+        entity.setUpdateDate(now);
+
+        DataVersionEntity saved = dataVersionRepository.save(entity);
+        cache.put(termName, new CachedVersion(saved));
+
+        logger.info("Published version {} of term {}, {} document(s)", version, termName, size);
+
+        return saved;
+    }
+
+    /**
+     * Forget cached versions, next lookup reads database
+     */
+    public void invalidate() {
+        cache.clear();
+    }
+
+    /*
+     * Find the latest version of a term not registered yet, and register it.
+     * Only happens once per term.
+     */
+    @SuppressWarnings("ConstantConditions")
+    private DataVersionEntity seed(String termName) {
+        String version = null;
+        Date publishDate = null;
+        String termCode = null;
+
+        // Latest finished import task, a point read on index (termName, finishDate)
+        ImportTask latestTask = mongoTemplate.findOne(
+                query(where("termName").is(termName).and("finishDate").ne(null))
+                        .with(Sort.by(Sort.Direction.DESC, "finishDate"))
+                        .limit(1),
+                ImportTask.class);
+
+        if (latestTask != null && latestTask.getId() != null) {
+            version = latestTask.getId();
+            publishDate = latestTask.getFinishDate();
+            termCode = latestTask.getTermCode();
+        } else {
+            // If not found, find from exists courses
+            // Because version id is batchId and it is UUID, so sort the
+            // list and the latest item normally is the new version code
+            version = Optional.ofNullable(courseInfoService.query(
+                    project("term", "batchId"),
+                    match(where("term").is(termName)),
+                    group("term").addToSet("batchId").as("versions"),
+                    project("versions")
+            ).getUniqueMappedResult())
+                    .orElse(new Document().append("versions", null))
+                    .get("versions", new ArrayList<String>())
+                    .stream()
+                    .max(Comparator.naturalOrder())
+                    .orElse(null);
+        }
+
+        if (version == null) return null;
+
+        DataVersionEntity entity = new DataVersionEntity();
+        entity.setTermName(termName);
+        entity.setTermCode(termCode);
+        entity.setCurrentVersion(version);
+        entity.setCurrentPublishDate(publishDate);
+        entity.setCurrentSize(mongoTemplate.count(
+                query(where("term").is(termName).and("batchId").is(version)),
+                CourseEntity.class));
+        entity.setUpdateDate(new Date());
+
+        logger.info("Seeded version registry of term {} with version {}", termName, version);
+
+        return dataVersionRepository.save(entity);
+    }
+
+    private static class CachedVersion {
+        private final DataVersionEntity entity;
+        private final long loadTime = System.currentTimeMillis();
+
+        CachedVersion(DataVersionEntity entity) {
+            this.entity = entity;
+        }
+
+        boolean isExpired() {
+            return System.currentTimeMillis() - loadTime > CACHE_TTL_MILLIS;
+        }
+    }
+}
@@ -0,0 +1,6 @@
+package com.shinonometn.re.ssim.service.data;
+
+import org.springframework.data.mongodb.repository.MongoRepository;
+
+public interface DataVersionRepository extends MongoRepository<DataVersionEntity, String> {
+}
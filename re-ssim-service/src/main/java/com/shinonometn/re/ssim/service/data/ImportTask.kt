@@ -2,11 +2,13 @@ package com.shinonometn.re.ssim.service.data
 
 import com.fasterxml.jackson.annotation.JsonInclude
 import org.springframework.data.annotation.Id
+import org.springframework.data.mongodb.core.index.CompoundIndex
 import org.springframework.data.mongodb.core.mapping.Document
 import java.io.Serializable
 import java.util.*
 
 @Document
+@CompoundIndex(name = "term_finish_date", def = "{'termName': 1, 'finishDate': -1}")
 @JsonInclude(JsonInclude.Include.NON_NULL)
 class ImportTask: Serializable {
 
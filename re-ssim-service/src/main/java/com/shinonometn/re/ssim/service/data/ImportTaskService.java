@@ -10,7 +10,6 @@ import com.shinonometn.re.ssim.service.caterpillar.plugin.CaterpillarMonitorStor
 import com.shinonometn.re.ssim.service.caterpillar.repository.CaptureTaskRepository;
 import com.shinonometn.re.ssim.service.courses.CourseInfoService;
 import org.apache.commons.io.FileUtils;
-import org.bson.Document;
 import org.jetbrains.annotations.NotNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -22,18 +21,15 @@ import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.stereotype.Service;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Comparator;
 import java.util.Date;
 import java.util.Optional;
 
-import static org.springframework.data.mongodb.core.aggregation.Aggregation.*;
-import static org.springframework.data.mongodb.core.query.Criteria.where;
-import static org.springframework.data.mongodb.core.query.Query.query;
-
 @Service
 public class ImportTaskService {
 
+    // Courses inserted by one bulk operation while streaming
+    private final static int STREAMING_BATCH_SIZE = 200;
+
     private final Logger logger = LoggerFactory.getLogger(this.getClass());
 
     private final CaptureTaskRepository captureTaskRepository;
@@ -48,13 +44,16 @@ public class ImportTaskService {
     private final TaskExecutor taskExecutor;
     private final MessageBus messageBus;
 
+    private final DataVersionRegistry dataVersionRegistry;
+
     public ImportTaskService(CaptureTaskRepository captureTaskRepository,
                              ImportTaskRepository importTaskRepository,
                              MongoTemplate mongoTemplate, CaterpillarFileManageService fileManageService,
                              CaterpillarMonitorStore caterpillarMonitorStore,
                              CourseInfoService courseInfoService,
                              TaskExecutor taskExecutor,
-                             MessageBus messageBus) {
+                             MessageBus messageBus,
+                             DataVersionRegistry dataVersionRegistry) {
 
         this.captureTaskRepository = captureTaskRepository;
         this.importTaskRepository = importTaskRepository;
@@ -64,6 +63,7 @@ public class ImportTaskService {
         this.courseInfoService = courseInfoService;
         this.taskExecutor = taskExecutor;
         this.messageBus = messageBus;
+        this.dataVersionRegistry = dataVersionRegistry;
     }
 
     public Page<ImportTask> list(Pageable pageable) {
@@ -97,31 +97,14 @@ public class ImportTaskService {
         return importTaskRepository.existsByCaptureTaskId(captureTaskId);
     }
 
-    @SuppressWarnings("ConstantConditions")
+    /**
+     * Get current data version of a term
+     *
+     * @param termName term name
+     * @return version, null if term has no data
+     */
     public String latestVersionOf(String termName) {
-        // Get latest version from finished import tasks
-        ImportTask latestTask = mongoTemplate.query(ImportTask.class)
-                .matching(query(where("termName").is(termName).and("finishDate").ne(null)))
-                .stream()
-                .max(Comparator.comparingLong(l -> l.getFinishDate().getTime()))
-                .orElse(null);
-
-        if (latestTask != null && latestTask.getId() != null) return latestTask.getId();
-
-        // If not found, find from exists courses
-        // Because version id is batchId and it is UUID, so sort the
-        // list and the latest item normally is the new version code
-        return Optional.ofNullable(courseInfoService.query(
-                project("term", "batchId"),
-                match(where("term").is(termName)),
-                group("term").addToSet("batchId").as("versions"),
-                project("versions")
-        ).getUniqueMappedResult())
-                .orElse(new Document().append("versions", null))
-                .get("versions", new ArrayList<String>())
-                .stream()
-                .max(Comparator.naturalOrder())
-                .orElse(null);
+        return dataVersionRegistry.currentVersionOf(termName);
     }
 
     /**
@@ -139,26 +122,84 @@ public class ImportTaskService {
         CaptureTask captureTask = captureTaskRepository.findById(taskId).orElse(null);
         if (captureTask == null) throw new BusinessException("task_not_found");
 
-        FileContext dataFolder = fileManageService.contextOf(taskId);
+        taskExecutor.execute(createImportTask(captureTask));
 
-        ImportTask importTask = new ImportTask();
+        return captureTask;
+    }
 
-        importTask.setTermCode(captureTask.getTermCode());
-        importTask.setTermName(captureTask.getTermName());
-        importTask.setDataPath(dataFolder.getDomainPath());
-        importTask.setCaptureTaskId(taskId);
-        importTask.setCreateDate(new Date());
+    /**
+     * Import data of a capture task on the calling thread, returns after the import finished
+     *
+     * @param taskId capture task id
+     * @return import task, check its status for the result
+     */
+    @CacheEvict({
+            CacheKeys.TERM_COURSE_LIST
+    })
+    @NotNull
+    public ImportTask importNow(String taskId) {
+
+        CaptureTask captureTask = captureTaskRepository.findById(taskId).orElse(null);
+        if (captureTask == null) throw new BusinessException("task_not_found");
+
+        CourseDataImportTask importTask = createImportTask(captureTask);
+        importTask.run();
+
+        return importTask.getImportTask();
+    }
 
-        taskExecutor.execute(new CourseDataImportTask(
+    /**
+     * Import courses of a capture task while they are being captured
+     * <p>
+     * Pass the sink to {@link com.shinonometn.re.ssim.service.caterpillar.CaterpillarTaskService#captureNow},
+     * the version is published when the capture finished complete, and rolled back otherwise.
+     * Captured data is still written to the task folder, so it could be imported again.
+     *
+     * @param taskId capture task id
+     * @return sink of the started import task
+     */
+    @NotNull
+    public StreamingCourseImportSink openStreamingImport(String taskId) {
+
+        CaptureTask captureTask = captureTaskRepository.findById(taskId).orElse(null);
+        if (captureTask == null) throw new BusinessException("task_not_found");
+
+        return new StreamingCourseImportSink(
                 this,
                 courseInfoService,
-                save(importTask),
+                save(newImportTask(captureTask, fileManageService.contextOf(captureTask.getId()))),
+                caterpillarMonitorStore,
+                messageBus,
+                dataVersionRegistry,
+                STREAMING_BATCH_SIZE
+        );
+    }
+
+    private CourseDataImportTask createImportTask(CaptureTask captureTask) {
+
+        FileContext dataFolder = fileManageService.contextOf(captureTask.getId());
+
+        return new CourseDataImportTask(
+                this,
+                courseInfoService,
+                save(newImportTask(captureTask, dataFolder)),
                 caterpillarMonitorStore,
                 dataFolder,
-                messageBus
-        ));
+                messageBus,
+                dataVersionRegistry
+        );
+    }
 
-        return captureTask;
+    private static ImportTask newImportTask(CaptureTask captureTask, FileContext dataFolder) {
+        ImportTask importTask = new ImportTask();
+
+        importTask.setTermCode(captureTask.getTermCode());
+        importTask.setTermName(captureTask.getTermName());
+        importTask.setDataPath(dataFolder.getDomainPath());
+        importTask.setCaptureTaskId(captureTask.getId());
+        importTask.setCreateDate(new Date());
+
+        return importTask;
     }
 
     @NotNull
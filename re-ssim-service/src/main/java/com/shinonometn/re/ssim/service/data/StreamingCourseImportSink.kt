@@ -0,0 +1,176 @@
+package com.shinonometn.re.ssim.service.data
+
+import com.shinonometn.re.ssim.commons.JSON
+import com.shinonometn.re.ssim.commons.file.segment.DatasetHash
+import com.shinonometn.re.ssim.service.bus.Message
+import com.shinonometn.re.ssim.service.bus.MessageBus
+import com.shinonometn.re.ssim.service.caterpillar.common.CourseSink
+import com.shinonometn.re.ssim.service.caterpillar.kingo.pojo.Course
+import com.shinonometn.re.ssim.service.caterpillar.plugin.CaterpillarMonitorStore
+import com.shinonometn.re.ssim.service.courses.CourseInfoService
+import com.shinonometn.re.ssim.service.courses.entity.CourseEntity
+import org.slf4j.LoggerFactory
+import java.io.IOException
+import java.util.*
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * Import courses while they are being captured
+ *
+ * Courses are buffered and inserted in bulk as a new version, closing the sink
+ * only flushes the buffer. The version is published by [publish] once the capture
+ * turned out complete, otherwise it is rolled back by [discard]. Content hash is
+ * computed like the one of the capture file, so an unchanged term is not published again.
+ *
+ * Courses should be accepted by one thread, e.g. behind a queued sink.
+ */
+class StreamingCourseImportSink(private val importTaskService: ImportTaskService,
+                                private val courseInfoService: CourseInfoService,
+                                val importTask: ImportTask,
+                                private val caterpillarMonitorStore: CaterpillarMonitorStore,
+                                private val messageBus: MessageBus,
+                                private val dataVersionRegistry: DataVersionRegistry,
+                                private val batchSize: Int = 200) : CourseSink {
+
+    private val logger = LoggerFactory.getLogger(this::class.java)
+
+    private val batchId = importTask.id
+
+    private val datasetHash = DatasetHash()
+
+    // Terms found in the data, only their other versions are replaced
+    private val terms = HashSet<String>()
+
+    private val buffer = ArrayList<CourseEntity>(batchSize)
+
+    private val finished = AtomicBoolean(false)
+
+    @Volatile
+    private var failure: Exception? = null
+
+    // True once the version is published
+    @Volatile
+    var isPublished = false
+        private set
+
+    // True if inserting or publishing failed, not the capture
+    val isFailed: Boolean
+        get() = failure != null
+
+    init {
+        importTask.status = ImportTaskStatus.IMPORTING
+        importTask.statusReport = "streaming_from_capture"
+        importTaskService.save(importTask)
+        caterpillarMonitorStore.increaseImportTaskCount()
+    }
+
+    override fun accept(course: Course) = failOnError {
+        datasetHash.update(course.code ?: throw IllegalArgumentException("course_without_code"), JSON.writeAsBytes(course))
+        course.term?.let { terms.add(it) }
+
+        buffer.add(CourseEntity.of(course, batchId))
+        if (buffer.size >= batchSize) flush()
+    }
+
+    override fun close() = failOnError { flush() }
+
+    /**
+     * Publish the imported version, call after the sink closed
+     *
+     * Nothing is published if no course came or the content is the same as the
+     * current version, the imported version is rolled back and the task report says why.
+     *
+     * @return true if a new version is published
+     * @throws IOException if any bulk insert or publishing failed, the version is rolled back
+     */
+    fun publish(): Boolean {
+        if (!finished.compareAndSet(false, true)) throw IllegalStateException("streaming_import_finished")
+
+        try {
+            failure?.let { throw it }
+
+            if (datasetHash.count == 0L) {
+                rollback(ImportTaskStatus.ERROR, "capture_empty")
+                return false
+            }
+
+            val currentHash = importTask.termName?.let { termName ->
+                dataVersionRegistry.find(termName).map { it.currentHash }.orElse(null)
+            }
+            if (datasetHash.toHex() == currentHash) {
+                rollback(ImportTaskStatus.FINISHED, "unchanged")
+                return false
+            }
+
+            val deleteResult = courseInfoService.deleteOtherVersions(terms, batchId)
+            logger.info("Other version deleted, total {} records, current version {}", deleteResult.deletedCount, batchId)
+
+            importTask.status = ImportTaskStatus.FINISHED
+            importTask.statusReport = "finished"
+            importTask.finishDate = Date()
+            importTaskService.save(importTask)
+
+            if (importTask.termName != null) dataVersionRegistry.publish(
+                    importTask.termName!!,
+                    importTask.termCode,
+                    batchId!!,
+                    datasetHash.count,
+                    datasetHash.toHex())
+
+            isPublished = true
+            messageBus.emit(Message("import.finished", importTask))
+            return true
+
+        } catch (e: Exception) {
+            if (failure == null) failure = e
+            logger.error("Something happen while streaming import, reversing. Batch Id :$batchId", e)
+            rollback(ImportTaskStatus.ERROR, Optional.ofNullable(e.message).orElse(e.javaClass.name))
+            throw e as? IOException ?: IOException(e)
+        } finally {
+            caterpillarMonitorStore.decreaseImportTaskCount()
+        }
+    }
+
+    /**
+     * Roll back the imported version, e.g. the capture is incomplete
+     *
+     * Does nothing if already published or discarded.
+     */
+    fun discard(reason: String) {
+        if (!finished.compareAndSet(false, true)) return
+
+        try {
+            rollback(ImportTaskStatus.ERROR, reason)
+        } finally {
+            caterpillarMonitorStore.decreaseImportTaskCount()
+        }
+    }
+
+    private fun flush() {
+        if (buffer.isEmpty()) return
+        courseInfoService.saveAll(buffer)
+        buffer.clear()
+    }
+
+    // Once failed, the version is never published
+    private fun failOnError(action: () -> Unit) {
+        failure?.let { throw IOException("streaming_import_failed", it) }
+        try {
+            action()
+        } catch (e: Exception) {
+            failure = e
+            logger.error("Streaming import failed. Batch Id :$batchId", e)
+            throw IOException("streaming_import_failed", e)
+        }
+    }
+
+    private fun rollback(status: ImportTaskStatus, report: String) {
+        importTask.status = status
+        importTask.statusReport = report
+        if (status == ImportTaskStatus.FINISHED) importTask.finishDate = Date()
+        importTaskService.save(importTask)
+
+        val deleteResult = courseInfoService.deleteVersion(batchId)
+        logger.info("Streaming import {} not published ({}), rolled back {} record(s)", batchId, report, deleteResult.deletedCount)
+    }
+}
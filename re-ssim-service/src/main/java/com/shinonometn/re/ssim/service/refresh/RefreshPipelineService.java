@@ -0,0 +1,271 @@
+package com.shinonometn.re.ssim.service.refresh;
+
+import com.shinonometn.re.ssim.commons.BusinessException;
+import com.shinonometn.re.ssim.commons.file.segment.CaptureDataReader;
+import com.shinonometn.re.ssim.commons.file.segment.DatasetHash;
+import com.shinonometn.re.ssim.service.bus.Message;
+import com.shinonometn.re.ssim.service.bus.MessageBus;
+import com.shinonometn.re.ssim.service.caterpillar.CaterpillarFileManageService;
+import com.shinonometn.re.ssim.service.caterpillar.CaterpillarTaskService;
+import com.shinonometn.re.ssim.service.caterpillar.entity.CaptureTask;
+import com.shinonometn.re.ssim.service.caterpillar.entity.CaterpillarSetting;
+import com.shinonometn.re.ssim.service.caterpillar.repository.CaterpillarSettingRepository;
+import com.shinonometn.re.ssim.service.data.DataVersionEntity;
+import com.shinonometn.re.ssim.service.data.DataVersionRegistry;
+import com.shinonometn.re.ssim.service.data.ImportTask;
+import com.shinonometn.re.ssim.service.data.ImportTaskService;
+import com.shinonometn.re.ssim.service.data.ImportTaskStatus;
+import com.shinonometn.re.ssim.service.data.StreamingCourseImportSink;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+import org.springframework.scheduling.support.CronSequenceGenerator;
+import org.springframework.scheduling.support.CronTrigger;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.io.IOException;
+import java.util.Date;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * Refreshes term data without operators
+ * <p>
+ * Each enabled {@link RefreshSchedule} captures its term at the given times, usually an
+ * off-peak window, then imports the captured data. If the data has the same content hash
+ * as the current version of the term, importing is skipped. After a new version is
+ * published, a {@link #TOPIC_PUBLISHED} message is sent so term caches could be warmed.
+ */
+@Service
+public class RefreshPipelineService {
+
+    public final static String TOPIC_PUBLISHED = "refresh.published";
+
+    private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final RefreshScheduleRepository refreshScheduleRepository;
+    private final CaterpillarSettingRepository caterpillarSettingRepository;
+    private final CaterpillarTaskService caterpillarTaskService;
+    private final CaterpillarFileManageService fileManageService;
+    private final ImportTaskService importTaskService;
+    private final DataVersionRegistry dataVersionRegistry;
+    private final MessageBus messageBus;
+
+    private final ThreadPoolTaskScheduler taskScheduler = new ThreadPoolTaskScheduler();
+
+    private final Map<String, ScheduledFuture<?>> scheduledRuns = new ConcurrentHashMap<>();
+    private final Set<String> runningTerms = ConcurrentHashMap.newKeySet();
+
+    public RefreshPipelineService(RefreshScheduleRepository refreshScheduleRepository,
+                                  CaterpillarSettingRepository caterpillarSettingRepository,
+                                  CaterpillarTaskService caterpillarTaskService,
+                                  CaterpillarFileManageService fileManageService,
+                                  ImportTaskService importTaskService,
+                                  DataVersionRegistry dataVersionRegistry,
+                                  MessageBus messageBus) {
+
+        this.refreshScheduleRepository = refreshScheduleRepository;
+        this.caterpillarSettingRepository = caterpillarSettingRepository;
+        this.caterpillarTaskService = caterpillarTaskService;
+        this.fileManageService = fileManageService;
+        this.importTaskService = importTaskService;
+        this.dataVersionRegistry = dataVersionRegistry;
+        this.messageBus = messageBus;
+
+        // Runs are long, but a single thread keeps captures from overlapping each other
+        taskScheduler.setPoolSize(1);
+        taskScheduler.setThreadNamePrefix("refresh-pipeline-");
+    }
+
+    @PostConstruct
+    public void scheduleAll() {
+        taskScheduler.initialize();
+        refreshScheduleRepository.findAllByEnabledTrue().forEach(this::reschedule);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        taskScheduler.shutdown();
+    }
+
+    public Page<RefreshSchedule> list(Pageable pageable) {
+        return refreshScheduleRepository.findAll(pageable);
+    }
+
+    /**
+     * Save a schedule and apply it
+     *
+     * @param refreshSchedule schedule
+     * @return saved schedule
+     */
+    @NotNull
+    public RefreshSchedule save(@NotNull RefreshSchedule refreshSchedule) {
+        if (refreshSchedule.getTermCode() == null) throw new BusinessException("term_code_required");
+        if (refreshSchedule.getCron() == null || !CronSequenceGenerator.isValidExpression(refreshSchedule.getCron()))
+            throw new BusinessException("invalid_cron_expression");
+        if (refreshSchedule.getSettingId() == null || !caterpillarSettingRepository.existsById(refreshSchedule.getSettingId()))
+            throw new BusinessException("profile_not_found");
+
+        RefreshSchedule saved = refreshScheduleRepository.save(refreshSchedule);
+        reschedule(saved);
+        return saved;
+    }
+
+    public void delete(@NotNull String id) {
+        cancel(id);
+        refreshScheduleRepository.deleteById(id);
+    }
+
+    /**
+     * Run a schedule now, out of its time
+     *
+     * @param id schedule id
+     */
+    public void runNow(@NotNull String id) {
+        RefreshSchedule refreshSchedule = refreshScheduleRepository.findById(id)
+                .orElseThrow(() -> new BusinessException("refresh_schedule_not_found"));
+
+        if (runningTerms.contains(refreshSchedule.getTermCode())) throw new BusinessException("refresh_running");
+
+        taskScheduler.execute(() -> run(refreshSchedule.getId()));
+    }
+
+    /*
+     * Capture, compare, import and announce. Schedule is read again, it may be changed since scheduled
+     */
+    private void run(String scheduleId) {
+        RefreshSchedule refreshSchedule = refreshScheduleRepository.findById(scheduleId).orElse(null);
+        if (refreshSchedule == null) return;
+
+        String termCode = refreshSchedule.getTermCode();
+        if (!runningTerms.add(termCode)) {
+            logger.warn("Refresh of term {} is still running, skipped.", termCode);
+            return;
+        }
+
+        refreshSchedule.setLastRunDate(new Date());
+        refreshSchedule.setLastImportTaskId(null);
+
+        try {
+            CaterpillarSetting caterpillarSetting = caterpillarSettingRepository.findById(refreshSchedule.getSettingId())
+                    .orElseThrow(() -> new BusinessException("profile_not_found"));
+
+            CaptureTask captureTask = caterpillarTaskService.create(termCode);
+            refreshSchedule.setLastCaptureTaskId(captureTask.getId());
+
+            if (refreshSchedule.getStreamingImport()) {
+                captureStreaming(refreshSchedule, captureTask, caterpillarSetting);
+                return;
+            }
+
+            // A partial capture would replace a complete version, it is never imported
+            if (!caterpillarTaskService.captureNow(captureTask.getId(), caterpillarSetting)) {
+                finish(refreshSchedule, "capture_failed");
+                return;
+            }
+
+            DatasetHash datasetHash = hashOf(fileManageService.contextOf(captureTask.getId()).getFile());
+
+            // Importing nothing would remove the current version
+            if (datasetHash.getCount() == 0) {
+                finish(refreshSchedule, "capture_empty");
+                return;
+            }
+
+            String currentHash = captureTask.getTermName() == null ? null : dataVersionRegistry
+                    .find(captureTask.getTermName())
+                    .map(DataVersionEntity::getCurrentHash)
+                    .orElse(null);
+
+            if (datasetHash.toHex().equals(currentHash)) {
+                finish(refreshSchedule, "unchanged");
+                return;
+            }
+
+            ImportTask importTask = importTaskService.importNow(captureTask.getId());
+            refreshSchedule.setLastImportTaskId(importTask.getId());
+
+            if (!ImportTaskStatus.FINISHED.equals(importTask.getStatus())) {
+                finish(refreshSchedule, "import_failed:" + importTask.getStatusReport());
+                return;
+            }
+
+            // Queued after 'import.finished', so caches are warmed after they are cleared
+            messageBus.emit(new Message(TOPIC_PUBLISHED, importTask));
+            finish(refreshSchedule, "published");
+
+        } catch (BusinessException | IOException e) {
+            finish(refreshSchedule, "failed:" + e.getMessage());
+        } catch (RuntimeException e) {
+            logger.error("Refresh of term {} failed.", termCode, e);
+            finish(refreshSchedule, "failed:" + e.getMessage());
+        } finally {
+            runningTerms.remove(termCode);
+        }
+    }
+
+    /*
+     * Import while capturing, the version is published by the capture once it finished complete.
+     * Content hash is compared by the import, an unchanged version is rolled back
+     */
+    private void captureStreaming(RefreshSchedule refreshSchedule, CaptureTask captureTask, CaterpillarSetting caterpillarSetting) {
+        StreamingCourseImportSink importSink = importTaskService.openStreamingImport(captureTask.getId());
+        ImportTask importTask = importSink.getImportTask();
+        refreshSchedule.setLastImportTaskId(importTask.getId());
+
+        if (!caterpillarTaskService.captureNow(captureTask.getId(), caterpillarSetting, importSink)) {
+            finish(refreshSchedule, importSink.isFailed() ? "import_failed:" + importTask.getStatusReport() : "capture_failed");
+            return;
+        }
+
+        // Not published, e.g. 'unchanged' or 'capture_empty'
+        if (!importSink.isPublished()) {
+            finish(refreshSchedule, importTask.getStatusReport());
+            return;
+        }
+
+        messageBus.emit(new Message(TOPIC_PUBLISHED, importTask));
+        finish(refreshSchedule, "published");
+    }
+
+    private void finish(RefreshSchedule refreshSchedule, String result) {
+        refreshSchedule.setLastResult(result);
+        refreshScheduleRepository.save(refreshSchedule);
+
+        logger.info("Refresh of term {} finished: {}", refreshSchedule.getTermCode(), result);
+    }
+
+    private void reschedule(RefreshSchedule refreshSchedule) {
+        String id = Objects.requireNonNull(refreshSchedule.getId());
+        cancel(id);
+
+        if (!refreshSchedule.getEnabled()) return;
+
+        scheduledRuns.put(id, taskScheduler.schedule(() -> run(id), new CronTrigger(refreshSchedule.getCron())));
+    }
+
+    private void cancel(String id) {
+        ScheduledFuture<?> scheduled = scheduledRuns.remove(id);
+        if (scheduled != null) scheduled.cancel(false);
+    }
+
+    /*
+     * Same hash as the import task computes, records are summed so order does not matter
+     */
+    private static DatasetHash hashOf(File folder) throws IOException {
+        DatasetHash datasetHash = new DatasetHash();
+        try (CaptureDataReader reader = CaptureDataReader.open(folder)) {
+            reader.forEach(datasetHash::update);
+        }
+        return datasetHash;
+    }
+}
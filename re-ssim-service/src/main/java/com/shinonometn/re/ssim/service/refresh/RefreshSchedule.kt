@@ -0,0 +1,37 @@
+package com.shinonometn.re.ssim.service.refresh
+
+import com.fasterxml.jackson.annotation.JsonInclude
+import org.springframework.data.annotation.Id
+import org.springframework.data.mongodb.core.mapping.Document
+import java.io.Serializable
+import java.util.*
+
+/**
+ * Automatic capture and import of a term
+ *
+ * Runs at times given by a cron expression, e.g. "0 0 3 * * *" for 3 AM every day.
+ */
+@Document("refresh_schedules")
+@JsonInclude(JsonInclude.Include.NON_NULL)
+class RefreshSchedule : Serializable {
+
+    @Id
+    var id: String? = null
+
+    var termCode: String? = null
+
+    var cron: String? = null
+
+    // Caterpillar setting used to login
+    var settingId: String? = null
+
+    var enabled: Boolean = true
+
+    // Import courses while they are being captured instead of after the capture
+    var streamingImport: Boolean = false
+
+    var lastRunDate: Date? = null
+    var lastCaptureTaskId: String? = null
+    var lastImportTaskId: String? = null
+    var lastResult: String? = null
+}
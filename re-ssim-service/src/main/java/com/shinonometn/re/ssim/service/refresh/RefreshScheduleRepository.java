@@ -0,0 +1,10 @@
+package com.shinonometn.re.ssim.service.refresh;
+
+import org.springframework.data.mongodb.repository.MongoRepository;
+
+import java.util.List;
+
+public interface RefreshScheduleRepository extends MongoRepository<RefreshSchedule, String> {
+
+    List<RefreshSchedule> findAllByEnabledTrue();
+}